@@ -0,0 +1,383 @@
+import java.io.*;
+import java.util.*;
+
+/**
+ * Static IPv4 address pool for one subnet.  Every address of the subnet is a
+ * bit in a long[] bitset that is set while the address is allocated or
+ * reserved, so a /16 pool takes 8 KB and allocating, releasing or checking
+ * an address is a shift and a mask.  The search for the next free address
+ * starts at a cursor before which every word is full, so handing out a run
+ * of addresses costs O(1) per address.
+ */
+public class AddressPool {
+    /** Smallest prefix length of a pool, a /8 pool is 2 MB */
+    public static final int MIN_PREFIX = 8;
+
+    /** File format marker */
+    private static final int MAGIC = 0x49506f6c;
+
+    /** Network address */
+    private final int network;
+
+    /** Prefix length */
+    private final int prefix;
+
+    /** Number of addresses in the subnet */
+    private final long size;
+
+    /** Allocated and reserved addresses, bit i is network + i */
+    private final long[] used;
+
+    /** Starts of the reserved ranges, as offsets from the network */
+    private int[] reservedFrom = new int[4];
+
+    /** Ends of the reserved ranges, inclusive */
+    private int[] reservedTo = new int[4];
+
+    /** Number of reserved ranges */
+    private int reservedCount;
+
+    /** Every word before this index is full */
+    private int cursor;
+
+    /** Number of free addresses */
+    private long free;
+
+    /**
+     * Creates a new AddressPool.  For subnets larger than /31 the network and
+     * broadcast addresses are reserved.
+     *
+     * @param   network an address of the subnet
+     * @param   prefix the prefix length, MIN_PREFIX to 32
+     *
+     * @throws  IllegalArgumentException if the prefix is out of range
+     */
+    public AddressPool(int network, int prefix) {
+        this(network,prefix,true);
+    }
+
+    /**
+     * Creates a new AddressPool
+     *
+     * @param   network an address of the subnet
+     * @param   prefix the prefix length, MIN_PREFIX to 32
+     * @param   implicit true to reserve the network and broadcast addresses,
+     *          false when the reserved ranges are read from a file that
+     *          already holds them
+     *
+     * @throws  IllegalArgumentException if the prefix is out of range
+     */
+    private AddressPool(int network, int prefix, boolean implicit) {
+        if (prefix < MIN_PREFIX || prefix > 32)
+            throw new IllegalArgumentException("Prefix bits must be " +
+             MIN_PREFIX + " to 32");
+        this.network = Ipv4.network(network,prefix);
+        this.prefix = prefix;
+        size = 1L << (32 - prefix);
+        used = new long[(int)((size + 63) >>> 6)];
+        free = size;
+        // bits past the end of a subnet smaller than a word are never free
+        if (size < 64)
+            used[0] = -1L << size;
+        if (implicit && prefix < 31) {
+            reserve(this.network,this.network);
+            reserve(Ipv4.broadcast(this.network,prefix),
+             Ipv4.broadcast(this.network,prefix));
+        }
+    }
+
+    /**
+     * Parses a subnet in a.b.c.d/bits form
+     *
+     * @param   subnet the subnet
+     *
+     * @return  a new empty pool for the subnet
+     *
+     * @throws  IllegalArgumentException if the subnet is not valid
+     */
+    public static AddressPool parse(String subnet) {
+        String str = subnet.trim();
+        int slash = str.indexOf('/');
+        long address = slash < 0 ? Ipv4.INVALID : Ipv4.parse(str,0,slash);
+        if (address == Ipv4.INVALID)
+            throw new IllegalArgumentException("Subnet must be a.b.c.d/bits");
+        int bits = Ipv4.parsePrefix(str,slash + 1,str.length(),32);
+        if (bits < 0)
+            throw new IllegalArgumentException("Prefix bits must be " +
+             MIN_PREFIX + " to 32");
+        return new AddressPool((int)address,bits);
+    }
+
+    /**
+     * Reserves a range of addresses so they are never allocated.  A range
+     * that is already reserved is not added again.
+     *
+     * @param   from the first address
+     * @param   to the last address
+     *
+     * @throws  IllegalArgumentException if the range is not in the subnet
+     */
+    public synchronized void reserve(int from, int to) {
+        if (!contains(from) || !contains(to) ||
+         Integer.compareUnsigned(from,to) > 0)
+            throw new IllegalArgumentException(Ipv4.toString(from) + "-" +
+             Ipv4.toString(to) + " is not a range in " + this);
+        for (int r=0; r<reservedCount; r++)
+            if (reservedFrom[r] == from - network &&
+             reservedTo[r] == to - network)
+                return;
+        if (reservedCount == reservedFrom.length) {
+            reservedFrom = Arrays.copyOf(reservedFrom,reservedCount * 2);
+            reservedTo = Arrays.copyOf(reservedTo,reservedCount * 2);
+        }
+        reservedFrom[reservedCount] = from - network;
+        reservedTo[reservedCount++] = to - network;
+        for (long i=from-network; i<=to-network; i++)
+            set((int)i);
+    }
+
+    /**
+     * Parses and reserves ranges in a.b.c.d-a.b.c.d form, separated by
+     * commas or spaces.  A single address reserves just that address.
+     *
+     * @param   ranges the ranges
+     *
+     * @throws  IllegalArgumentException if a range is not valid
+     */
+    public void reserve(String ranges) {
+        for (String range : ranges.split("[,\\s]+")) {
+            if (range.isEmpty())
+                continue;
+            int dash = range.indexOf('-');
+            long from = Ipv4.parse(range,0,dash < 0 ? range.length() : dash);
+            long to = dash < 0 ? from :
+             Ipv4.parse(range,dash + 1,range.length());
+            if (from == Ipv4.INVALID || to == Ipv4.INVALID)
+                throw new IllegalArgumentException(range +
+                 " is not an address or a.b.c.d-a.b.c.d range");
+            reserve((int)from,(int)to);
+        }
+    }
+
+    /**
+     * Tests if an address is in the subnet
+     *
+     * @param   address the address
+     *
+     * @return  true if it is in the subnet
+     */
+    public boolean contains(int address) {
+        return Ipv4.contains(network,prefix,address);
+    }
+
+    /**
+     * Tests if an address is allocated or reserved
+     *
+     * @param   address the address
+     *
+     * @return  true if it is in use, false if it is free or not in the
+     *          subnet
+     */
+    public synchronized boolean isAllocated(int address) {
+        return contains(address) && isSet(address - network);
+    }
+
+    /**
+     * Tests if an address is in a reserved range
+     *
+     * @param   address the address
+     *
+     * @return  true if it is reserved
+     */
+    public synchronized boolean isReserved(int address) {
+        if (!contains(address))
+            return false;
+        int offset = address - network;
+        for (int r=0; r<reservedCount; r++)
+            if (offset >= reservedFrom[r] && offset <= reservedTo[r])
+                return true;
+        return false;
+    }
+
+    /**
+     * Allocates a particular address
+     *
+     * @param   address the address
+     *
+     * @return  true if it was allocated, false if it is in use or not in the
+     *          subnet
+     */
+    public synchronized boolean allocate(int address) {
+        if (!contains(address) || isSet(address - network))
+            return false;
+        set(address - network);
+        return true;
+    }
+
+    /**
+     * Allocates the lowest free address
+     *
+     * @return  the address as an unsigned value or Ipv4.INVALID if the pool
+     *          is full
+     */
+    public synchronized long allocateNext() {
+        while (cursor < used.length && used[cursor] == -1L)
+            ++cursor;
+        if (cursor == used.length)
+            return Ipv4.INVALID;
+        int bit = Long.numberOfTrailingZeros(~used[cursor]);
+        int offset = cursor << 6 | bit;
+        set(offset);
+        return (network + offset) & 0xffffffffL;
+    }
+
+    /**
+     * Allocates a number of addresses at once, the lowest free ones
+     *
+     * @param   count the number of addresses
+     *
+     * @return  the addresses
+     *
+     * @throws  IllegalStateException if the pool doesn't have that many free
+     */
+    public synchronized int[] allocateNext(int count) {
+        if (count > free)
+            throw new IllegalStateException(this + " has only " + free +
+             " free addresses");
+        int[] addresses = new int[count];
+        for (int i=0; i<count; i++)
+            addresses[i] = (int)allocateNext();
+        return addresses;
+    }
+
+    /**
+     * Releases an allocated address.  Reserved addresses stay reserved.
+     *
+     * @param   address the address
+     *
+     * @return  true if it was released
+     */
+    public synchronized boolean release(int address) {
+        if (!contains(address) || !isSet(address - network) ||
+         isReserved(address))
+            return false;
+        int offset = address - network;
+        used[offset >>> 6] &= ~(1L << offset);
+        ++free;
+        cursor = Math.min(cursor,offset >>> 6);
+        return true;
+    }
+
+    /**
+     * Gets the number of free addresses
+     *
+     * @return  the number of free addresses
+     */
+    public synchronized long getFree() {
+        return free;
+    }
+
+    /**
+     * Gets the network address
+     *
+     * @return  the network address
+     */
+    public int getNetwork() {
+        return network;
+    }
+
+    /**
+     * Gets the prefix length
+     *
+     * @return  the prefix length
+     */
+    public int getPrefix() {
+        return prefix;
+    }
+
+    /**
+     * Tests the bit of an address
+     *
+     * @param   offset the offset of the address from the network
+     *
+     * @return  true if the bit is set
+     */
+    private boolean isSet(int offset) {
+        return (used[offset >>> 6] & 1L << offset) != 0;
+    }
+
+    /**
+     * Sets the bit of an address
+     *
+     * @param   offset the offset of the address from the network
+     */
+    private void set(int offset) {
+        long bit = 1L << offset;
+        if ((used[offset >>> 6] & bit) == 0) {
+            used[offset >>> 6] |= bit;
+            --free;
+        }
+    }
+
+    /**
+     * Writes the pool
+     *
+     * @param   out the stream to write to
+     *
+     * @throws  IOException if an I/O error occurs
+     */
+    public synchronized void write(DataOutput out) throws IOException {
+        out.writeInt(MAGIC);
+        out.writeInt(network);
+        out.writeInt(prefix);
+        out.writeInt(reservedCount);
+        for (int r=0; r<reservedCount; r++) {
+            out.writeInt(reservedFrom[r]);
+            out.writeInt(reservedTo[r]);
+        }
+        for (long word : used)
+            out.writeLong(word);
+    }
+
+    /**
+     * Reads a pool
+     *
+     * @param   in the stream to read from
+     *
+     * @return  the pool
+     *
+     * @throws  IOException if an I/O error occurs or the data is not a pool
+     */
+    public static AddressPool read(DataInput in) throws IOException {
+        if (in.readInt() != MAGIC)
+            throw new IOException("Not an address pool");
+        AddressPool pool;
+        try {
+            pool = new AddressPool(in.readInt(),in.readInt(),false);
+            int count = in.readInt();
+            for (int r=0; r<count; r++) {
+                int from = in.readInt();
+                int to = in.readInt();
+                pool.reserve(pool.network + from,pool.network + to);
+            }
+        } catch (IllegalArgumentException iae) {
+            throw new IOException("Corrupt address pool: " + iae.getMessage());
+        }
+        pool.free = 0;
+        for (int i=0; i<pool.used.length; i++) {
+            pool.used[i] = in.readLong();
+            pool.free += 64 - Long.bitCount(pool.used[i]);
+        }
+        return pool;
+    }
+
+    /**
+     * Gets the subnet of the pool
+     *
+     * @return  the subnet in a.b.c.d/bits form
+     */
+    @Override
+    public String toString() {
+        return Ipv4.toString(network) + "/" + prefix;
+    }
+}
@@ -0,0 +1,148 @@
+import java.io.*;
+import java.nio.file.*;
+import java.util.*;
+
+/**
+ * The address pools of the user, each kept in a small file in one
+ * directory, by default .ipconfig-pools in the home directory next to the
+ * temporary files IPConfig writes.  A pool file is replaced atomically when
+ * the pool is saved.
+ */
+public class AddressPools {
+    /** Pool file name suffix */
+    private static final String SUFFIX = ".pool";
+
+    /** Directory holding the pool files */
+    private final Path dir;
+
+    /** Pools by subnet, in subnet order */
+    private final Map<String,AddressPool> pools = new TreeMap<>();
+
+    /**
+     * Creates a new AddressPools
+     *
+     * @param   dir the directory holding the pool files
+     */
+    public AddressPools(Path dir) {
+        this.dir = dir;
+    }
+
+    /**
+     * Gets the default pool directory
+     *
+     * @return  .ipconfig-pools in the home directory
+     */
+    public static Path defaultDir() {
+        return Paths.get(System.getProperty("user.home"),".ipconfig-pools");
+    }
+
+    /**
+     * Loads every pool in the directory, replacing the pools already loaded
+     *
+     * @throws  IOException if an I/O error occurs reading a pool
+     */
+    public synchronized void load() throws IOException {
+        pools.clear();
+        if (!Files.isDirectory(dir))
+            return;
+        try (DirectoryStream<Path> ds =
+         Files.newDirectoryStream(dir,"*" + SUFFIX)) {
+            for (Path path : ds) {
+                try (DataInputStream in = new DataInputStream(
+                 new BufferedInputStream(Files.newInputStream(path)))) {
+                    AddressPool pool = AddressPool.read(in);
+                    pools.put(pool.toString(),pool);
+                } catch (IOException ioe) {
+                    throw new IOException(path + ": " + ioe.getMessage(),ioe);
+                }
+            }
+        }
+    }
+
+    /**
+     * Gets the pools
+     *
+     * @return  a copy of the list of pools
+     */
+    public synchronized List<AddressPool> getPools() {
+        return new ArrayList<>(pools.values());
+    }
+
+    /**
+     * Finds the smallest pool holding an address
+     *
+     * @param   address the address
+     *
+     * @return  the pool or null if no pool holds the address
+     */
+    public synchronized AddressPool find(int address) {
+        AddressPool best = null;
+        for (AddressPool pool : pools.values())
+            if (pool.contains(address) &&
+             (best == null || pool.getPrefix() > best.getPrefix()))
+                best = pool;
+        return best;
+    }
+
+    /**
+     * Gets the pool of a subnet
+     *
+     * @param   subnet the subnet in a.b.c.d/bits form
+     *
+     * @return  the pool or null if there is none
+     */
+    public synchronized AddressPool get(String subnet) {
+        return pools.get(subnet);
+    }
+
+    /**
+     * Adds a pool and saves it
+     *
+     * @param   pool the pool
+     *
+     * @throws  IOException if an I/O error occurs or a pool for the subnet
+     *          already exists
+     */
+    public synchronized void add(AddressPool pool) throws IOException {
+        if (pools.containsKey(pool.toString()))
+            throw new IOException("A pool for " + pool + " already exists");
+        save(pool);
+        pools.put(pool.toString(),pool);
+    }
+
+    /**
+     * Saves a pool, replacing its file atomically
+     *
+     * @param   pool the pool
+     *
+     * @throws  IOException if an I/O error occurs
+     */
+    public void save(AddressPool pool) throws IOException {
+        Files.createDirectories(dir);
+        Path target = dir.resolve(pool.toString().replace('/','_') + SUFFIX);
+        Path temp = Files.createTempFile(dir,"." +
+         target.getFileName(),".tmp");
+        try {
+            try (DataOutputStream out = new DataOutputStream(
+             new BufferedOutputStream(Files.newOutputStream(temp)))) {
+                pool.write(out);
+            }
+            Files.move(temp,target,StandardCopyOption.ATOMIC_MOVE,
+             StandardCopyOption.REPLACE_EXISTING);
+        } finally {
+            Files.deleteIfExists(temp);
+        }
+    }
+
+    /**
+     * Releases an address in whichever pool holds it
+     *
+     * @param   address the address
+     *
+     * @return  the pool the address was released in or null
+     */
+    public AddressPool release(int address) {
+        AddressPool pool = find(address);
+        return pool != null && pool.release(address) ? pool : null;
+    }
+}
@@ -0,0 +1,590 @@
+import com.sun.net.httpserver.*;
+import java.io.*;
+import java.net.*;
+import java.nio.charset.*;
+import java.nio.file.*;
+import java.security.*;
+import java.util.*;
+import java.util.concurrent.*;
+
+/**
+ * HTTP API for machines without a display.  The server listens on the
+ * loopback address only and answers with a small pool of daemon threads.
+ * Configurations are sent and returned as JSON lines, one flat object per
+ * interface with the keys of a {@link Fleet} inventory, and a record
+ * replaces the whole static configuration of its interface.
+ *
+ * <pre>
+ * GET  /config      the static configuration of each interface
+ * GET  /metrics     the phase times in the Prometheus text format
+ * POST /validate    check records, 422 with the errors if they are bad
+ * POST /preview     the unified diff the records would make
+ * POST /apply       commit the records and rebind the changed interfaces
+ * </pre>
+ *
+ * <p>Applies need the token written to /run/ipconfig-api.token, readable by
+ * root and the netdev group, in an Authorization: Bearer header.  They are
+ * checked on the pool thread and then queued for a single writer thread,
+ * which waits LINGER milliseconds for more applies, merges the queued
+ * records with later ones winning, and commits and rebinds them together
+ * so back-to-back applies cost one dhcpcd reload.
+ */
+public class ApiDaemon {
+    /** Default port */
+    public static final int DEFAULT_PORT = 8067;
+
+    /** Threads answering requests */
+    private static final int THREADS = 2;
+
+    /** Time the writer waits for more applies in milliseconds */
+    private static final long LINGER = 50;
+
+    /** Largest request body in bytes */
+    private static final int MAX_BODY = 64 * 1024;
+
+    /** Longest interface name, IFNAMSIZ less the NUL */
+    private static final int MAX_NAME = 15;
+
+    /** Owner, group and mode of the token file */
+    private static final ConfCommitter.Ownership TOKEN =
+     new ConfCommitter.Ownership("root","netdev","rw-r-----");
+
+    /** Reads and commits dhcpcd.conf */
+    private final ConfService service;
+
+    /** Port to listen on */
+    private final int port;
+
+    /** Applies waiting for the writer */
+    private final BlockingQueue<Apply> queue = new LinkedBlockingQueue<>();
+
+    /** Token applies must present */
+    private byte[] token;
+
+    /**
+     * Creates a new ApiDaemon
+     *
+     * @param   service reads and commits dhcpcd.conf
+     * @param   port the port to listen on
+     */
+    public ApiDaemon(ConfService service, int port) {
+        this.service = service;
+        this.port = port;
+    }
+
+    /**
+     * Writes the token, starts the server and runs the writer on the
+     * calling thread until it is interrupted
+     *
+     * @throws  IOException if the token can't be written or the server
+     *          can't be started
+     */
+    public void run() throws IOException {
+        Path metricsFile = Metrics.defaultPath();
+        try {
+            service.getMetrics().load(metricsFile);
+        } catch (IOException ioe) {
+            System.err.println("Error loading metrics: " + ioe.getMessage());
+        }
+        writeToken();
+
+        HttpServer server = HttpServer.create(
+         new InetSocketAddress(InetAddress.getLoopbackAddress(),port),8);
+        server.setExecutor(Executors.newFixedThreadPool(THREADS,r -> {
+            Thread t = new Thread(r,"ApiDaemon");
+            t.setDaemon(true);
+            return t;
+        }));
+        server.createContext("/config",ex -> handle(ex,"GET",this::config));
+        server.createContext("/metrics",ex -> handle(ex,"GET",this::metrics));
+        server.createContext("/validate",ex ->
+         handle(ex,"POST",this::validate));
+        server.createContext("/preview",ex -> handle(ex,"POST",this::preview));
+        server.createContext("/apply",ex -> handle(ex,"POST",this::apply));
+        server.start();
+        System.out.println("Listening on " + server.getAddress());
+
+        try {
+            while (true)
+                write(metricsFile);
+        } catch (InterruptedException ie) {
+            server.stop(0);
+        }
+    }
+
+    /**
+     * Writes a new random token where members of netdev can read it
+     *
+     * @throws  IOException if the token can't be written
+     */
+    private void writeToken() throws IOException {
+        byte[] random = new byte[16];
+        new SecureRandom().nextBytes(random);
+        StringBuilder sb = new StringBuilder();
+        for (byte b : random)
+            sb.append(String.format("%02x",b & 0xff));
+        Path file = service.getCommitter().resolve("/run/ipconfig-api.token");
+        Files.createDirectories(file.toAbsolutePath().getParent());
+        service.getCommitter().commit(sb + "\n",file,TOKEN);
+        token = sb.toString().getBytes(StandardCharsets.US_ASCII);
+    }
+
+    /**
+     * Takes a batch of applies off the queue and commits them together
+     *
+     * @param   metricsFile the file the metrics are exported to
+     *
+     * @throws  InterruptedException if the writer is interrupted
+     */
+    private void write(Path metricsFile) throws InterruptedException {
+        List<Apply> batch = new ArrayList<>();
+        batch.add(queue.take());
+        Thread.sleep(LINGER);
+        queue.drainTo(batch);
+
+        Map<String,InterfaceConfig> merged = new LinkedHashMap<>();
+        for (Apply a : batch)
+            for (InterfaceConfig ic : a.edits)
+                merged.put(ic.getName(),ic);
+        try {
+            commit(batch,merged.values());
+        } catch (IllegalArgumentException iae) {
+            // applies that were valid alone may clash, so give each its own
+            // commit and let the one that clashes fail
+            if (batch.size() == 1) {
+                reply(batch.get(0).exchange,422,errors(iae.getMessage()));
+            } else {
+                for (Apply a : batch) {
+                    try {
+                        commit(Collections.singletonList(a),a.edits);
+                    } catch (IllegalArgumentException e) {
+                        reply(a.exchange,422,errors(e.getMessage()));
+                    } catch (RuntimeException e) {
+                        // the outer handler doesn't cover this block, and
+                        // the writer must keep running
+                        reply(a.exchange,500,errors(e.toString()));
+                    }
+                }
+            }
+        } catch (RuntimeException e) {
+            for (Apply a : batch)
+                reply(a.exchange,500,errors(e.toString()));
+        }
+        try {
+            service.getMetrics().export(metricsFile);
+        } catch (IOException ioe) {
+            System.err.println("Error exporting metrics: " + ioe.getMessage());
+        }
+    }
+
+    /**
+     * Commits edits and answers the applies they came from
+     *
+     * @param   batch the applies
+     * @param   edits the merged edits
+     *
+     * @throws  IllegalArgumentException if the edits are not valid
+     * @throws  InterruptedException if the writer is interrupted
+     */
+    private void commit(List<Apply> batch, Collection<InterfaceConfig> edits)
+     throws InterruptedException {
+        Set<String> names = new LinkedHashSet<>();
+        for (InterfaceConfig ic : edits)
+            names.add(ic.getName());
+        int status = 200;
+        String body;
+        try {
+            ConfService.Outcome o = service.apply(edits,
+             "API save " + String.join(",",names));
+            body = outcome(o,batch.size());
+        } catch (IOException ioe) {
+            status = 500;
+            body = errors(ioe.getMessage());
+        }
+        for (Apply a : batch)
+            reply(a.exchange,status,body);
+    }
+
+    /**
+     * Formats what an apply did
+     *
+     * @param   o the outcome
+     * @param   applies the number of applies committed together
+     *
+     * @return  the JSON object
+     */
+    private static String outcome(ConfService.Outcome o, int applies) {
+        StringBuilder sb = new StringBuilder("{\"version\":");
+        sb.append(o.version).append(",\"applies\":").append(applies)
+         .append(",\"changed\":").append(array(o.changed))
+         .append(",\"restored\":").append(array(o.restored))
+         .append(",\"links\":{");
+        String sep = "";
+        for (LinkWatchdog.Result r : o.links.values()) {
+            sb.append(sep).append(quote(r.name)).append(":{\"up\":")
+             .append(r.isUp()).append(",\"address_ms\":")
+             .append(millis(r.getAddressTime())).append(",\"gateway_ms\":")
+             .append(millis(r.getGatewayTime())).append('}');
+            sep = ",";
+        }
+        return sb.append("}}\n").toString();
+    }
+
+    /**
+     * Converts a watchdog time to milliseconds
+     *
+     * @param   nanos the time in nanoseconds or -1
+     *
+     * @return  the milliseconds or -1
+     */
+    private static long millis(long nanos) {
+        return nanos < 0 ? -1 : nanos / 1000000;
+    }
+
+    /**
+     * Answers GET /config
+     *
+     * @param   ex the exchange
+     *
+     * @throws  IOException if the file can't be read
+     */
+    private void config(HttpExchange ex) throws IOException {
+        DhcpcdConf conf = service.read();
+        StringBuilder sb = new StringBuilder();
+        for (String name : conf.getInterfaces()) {
+            InterfaceConfig ic = conf.getInterface(name);
+            String[] rec = new String[Fleet.COLUMNS.length];
+            rec[Fleet.INTERFACE] = name;
+            rec[Fleet.IP_ADDRESS] = ic.getAddress().isEmpty() ? "" :
+             ic.getAddress() + "/" + ic.getBits();
+            rec[Fleet.ROUTERS] = ic.getRouters();
+            rec[Fleet.NAME_SERVERS] = ic.getNameServers();
+            rec[Fleet.IP6_ADDRESS] = ic.getIp6Address().isEmpty() ? "" :
+             ic.getIp6Address() + "/" + ic.getIp6Bits();
+            String sep = "{";
+            for (int c=0; c<rec.length; c++) {
+                if (rec[c] == null || rec[c].isEmpty())
+                    continue;
+                sb.append(sep).append(quote(Fleet.COLUMNS[c])).append(':')
+                 .append(quote(rec[c]));
+                sep = ",";
+            }
+            sb.append("}\n");
+        }
+        reply(ex,200,"application/x-ndjson",sb.toString());
+    }
+
+    /**
+     * Answers GET /metrics
+     *
+     * @param   ex the exchange
+     */
+    private void metrics(HttpExchange ex) {
+        reply(ex,200,"text/plain; version=0.0.4",
+         service.getMetrics().format());
+    }
+
+    /**
+     * Answers POST /validate
+     *
+     * @param   ex the exchange
+     *
+     * @throws  IOException if the body or the file can't be read
+     */
+    private void validate(HttpExchange ex) throws IOException {
+        List<InterfaceConfig> edits = parse(ex);
+        if (edits == null)
+            return;
+        List<String> errors = service.check(service.read(),edits);
+        reply(ex,errors.isEmpty() ? 200 : 422,errors(errors));
+    }
+
+    /**
+     * Answers POST /preview
+     *
+     * @param   ex the exchange
+     *
+     * @throws  IOException if the body or the file can't be read
+     */
+    private void preview(HttpExchange ex) throws IOException {
+        List<InterfaceConfig> edits = parse(ex);
+        if (edits == null)
+            return;
+        List<String> errors = service.check(service.read(),edits);
+        if (!errors.isEmpty())
+            reply(ex,422,errors(errors));
+        else
+            reply(ex,200,"text/x-diff",service.preview(edits));
+    }
+
+    /**
+     * Answers POST /apply by checking the records and queueing them for the
+     * writer, which answers once they are committed
+     *
+     * @param   ex the exchange
+     *
+     * @throws  IOException if the body or the file can't be read
+     */
+    private void apply(HttpExchange ex) throws IOException {
+        String auth = ex.getRequestHeaders().getFirst("Authorization");
+        if (auth == null || !auth.startsWith("Bearer ") ||
+         !MessageDigest.isEqual(token,auth.substring(7).trim()
+         .getBytes(StandardCharsets.US_ASCII))) {
+            reply(ex,401,errors("Missing or wrong token"));
+            return;
+        }
+        List<InterfaceConfig> edits = parse(ex);
+        if (edits == null)
+            return;
+        List<String> errors = service.check(service.read(),edits);
+        if (!errors.isEmpty()) {
+            reply(ex,422,errors(errors));
+            return;
+        }
+        queue.add(new Apply(ex,edits));
+    }
+
+    /**
+     * Reads the records of a request body, answering 400 or 413 if they
+     * can't be read
+     *
+     * @param   ex the exchange
+     *
+     * @return  the configurations or null if the request was answered
+     *
+     * @throws  IOException if the body can't be read
+     */
+    private List<InterfaceConfig> parse(HttpExchange ex) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        try (InputStream in = ex.getRequestBody()) {
+            byte[] buf = new byte[4096];
+            int n;
+            while ((n = in.read(buf)) > 0) {
+                out.write(buf,0,n);
+                if (out.size() > MAX_BODY) {
+                    reply(ex,413,errors("Request body over " + MAX_BODY +
+                     " bytes"));
+                    return null;
+                }
+            }
+        }
+
+        List<InterfaceConfig> edits = new ArrayList<>();
+        Set<String> names = new HashSet<>();
+        int number = 0;
+        for (String line : out.toString("UTF-8").split("\n")) {
+            ++number;
+            if (line.trim().isEmpty())
+                continue;
+            String[] rec;
+            try {
+                rec = Fleet.parseJson(line);
+            } catch (IllegalArgumentException iae) {
+                reply(ex,400,errors("line " + number + ": " +
+                 iae.getMessage()));
+                return null;
+            }
+            // a line break in a value would start a new line of the file
+            for (int c=0; c<rec.length; c++) {
+                if (hasControl(rec[c])) {
+                    reply(ex,400,errors("line " + number + ": control " +
+                     "character in " + Fleet.COLUMNS[c]));
+                    return null;
+                }
+            }
+            String name = rec[Fleet.INTERFACE];
+            if (!isInterfaceName(name) || !names.add(name)) {
+                reply(ex,400,errors("line " + number + ": missing, bad or " +
+                 "repeated interface name"));
+                return null;
+            }
+            InterfaceConfig ic = new InterfaceConfig(name);
+            ConfService.edit(ic,Arrays.asList(
+             "ip_address=" + rec[Fleet.IP_ADDRESS],
+             "ip6_address=" + rec[Fleet.IP6_ADDRESS],
+             "routers=" + rec[Fleet.ROUTERS],
+             "domain_name_servers=" + rec[Fleet.NAME_SERVERS]));
+            edits.add(ic);
+        }
+        if (edits.isEmpty()) {
+            reply(ex,400,errors("No records"));
+            return null;
+        }
+        return edits;
+    }
+
+    /**
+     * Tests if a value holds a control character
+     *
+     * @param   value the value
+     *
+     * @return  true if it does
+     */
+    private static boolean hasControl(String value) {
+        for (int i=0; i<value.length(); i++)
+            if (value.charAt(i) < ' ' || value.charAt(i) == 0x7f)
+                return true;
+        return false;
+    }
+
+    /**
+     * Tests if a name can be an interface name.  The name ends up on an
+     * interface line of dhcpcd.conf, so anything that could end the line
+     * or the word is refused.
+     *
+     * @param   name the name
+     *
+     * @return  true if it can
+     */
+    static boolean isInterfaceName(String name) {
+        if (name.isEmpty() || name.length() > MAX_NAME)
+            return false;
+        for (int i=0; i<name.length(); i++) {
+            char ch = name.charAt(i);
+            if (ch > 0x7f || !Character.isLetterOrDigit(ch) &&
+             "._-:@".indexOf(ch) < 0)
+                return false;
+        }
+        return true;
+    }
+
+    /**
+     * Checks the method of a request and runs its handler, answering 405,
+     * or 500 if the handler fails
+     *
+     * @param   ex the exchange
+     * @param   method the method the handler takes
+     * @param   handler answers the request
+     */
+    private void handle(HttpExchange ex, String method, Handler handler) {
+        if (!ex.getRequestMethod().equals(method)) {
+            ex.getResponseHeaders().set("Allow",method);
+            reply(ex,405,errors(method + " only"));
+            return;
+        }
+        try {
+            handler.handle(ex);
+        } catch (IOException | RuntimeException e) {
+            reply(ex,500,errors(e.getMessage() != null ? e.getMessage() :
+             e.toString()));
+        }
+    }
+
+    /**
+     * Sends a JSON response and closes the exchange
+     *
+     * @param   ex the exchange
+     * @param   status the HTTP status
+     * @param   json the body
+     */
+    private static void reply(HttpExchange ex, int status, String json) {
+        reply(ex,status,"application/json",json);
+    }
+
+    /**
+     * Sends a response and closes the exchange.  A client that has gone
+     * away is ignored.
+     *
+     * @param   ex the exchange
+     * @param   status the HTTP status
+     * @param   type the content type
+     * @param   body the body
+     */
+    private static void reply(HttpExchange ex, int status, String type,
+     String body) {
+        byte[] bytes = body.getBytes(StandardCharsets.UTF_8);
+        try {
+            ex.getResponseHeaders().set("Content-Type",type);
+            ex.sendResponseHeaders(status,bytes.length > 0 ? bytes.length : -1);
+            if (bytes.length > 0)
+                ex.getResponseBody().write(bytes);
+        } catch (IOException ioe) {
+            // the client closed the connection
+        } finally {
+            ex.close();
+        }
+    }
+
+    /**
+     * Formats error messages
+     *
+     * @param   message the messages separated by new lines
+     *
+     * @return  the JSON object
+     */
+    private static String errors(String message) {
+        return errors(Arrays.asList(message.split("\n")));
+    }
+
+    /**
+     * Formats error messages
+     *
+     * @param   messages the messages
+     *
+     * @return  the JSON object
+     */
+    private static String errors(Collection<String> messages) {
+        return "{\"errors\":" + array(messages) + "}\n";
+    }
+
+    /**
+     * Formats strings as a JSON array
+     *
+     * @param   values the strings
+     *
+     * @return  the array
+     */
+    private static String array(Collection<String> values) {
+        StringBuilder sb = new StringBuilder("[");
+        for (String value : values) {
+            if (sb.length() > 1)
+                sb.append(',');
+            sb.append(quote(value));
+        }
+        return sb.append(']').toString();
+    }
+
+    /**
+     * Quotes a JSON string
+     *
+     * @param   s the string
+     *
+     * @return  the quoted string
+     */
+    private static String quote(String s) {
+        StringBuilder sb = new StringBuilder("\"");
+        for (int i=0; i<s.length(); i++) {
+            char ch = s.charAt(i);
+            if (ch == '"' || ch == '\\')
+                sb.append('\\').append(ch);
+            else if (ch < 0x20)
+                sb.append(String.format("\\u%04x",(int)ch));
+            else
+                sb.append(ch);
+        }
+        return sb.append('"').toString();
+    }
+
+    /**
+     * Answers a request
+     */
+    private interface Handler {
+        void handle(HttpExchange ex) throws IOException;
+    }
+
+    /**
+     * An apply waiting for the writer
+     */
+    private static class Apply {
+        /** Exchange to answer */
+        final HttpExchange exchange;
+
+        /** New interface configurations */
+        final List<InterfaceConfig> edits;
+
+        Apply(HttpExchange exchange, List<InterfaceConfig> edits) {
+            this.exchange = exchange;
+            this.edits = edits;
+        }
+    }
+}
@@ -0,0 +1,21 @@
+import java.io.*;
+import java.util.*;
+
+/**
+ * Runs system commands.  The reload logic goes through this interface so
+ * that a fake can stand in for the real commands.
+ */
+public interface CommandExecutor {
+    /**
+     * Runs a command and waits for it to finish
+     *
+     * @param   command the command and its arguments
+     *
+     * @return  the exit status of the command
+     *
+     * @throws  IOException if an I/O error occurs starting the command
+     * @throws  InterruptedException if interrupted waiting for the command,
+     *          the command is killed and has exited when it is thrown
+     */
+    int execute(List<String> command) throws IOException, InterruptedException;
+}
@@ -0,0 +1,437 @@
+import java.io.*;
+import java.nio.channels.*;
+import java.nio.charset.*;
+import java.nio.file.*;
+import java.nio.file.attribute.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.locks.*;
+
+/**
+ * Commits configuration files in process.  The new contents are written to
+ * a temporary file next to the target, flushed to disk, given their owner
+ * and mode and then renamed over the target, so readers see either the old
+ * file or the new one and never a partly written one.  All paths are
+ * resolved against a root directory that defaults to / and can be moved
+ * with the ipconfig.root system property to work on a copy of the system.
+ *
+ * <p>Programs that commit dhcpcd.conf take an advisory lock on
+ * /run/ipconfig/ipconfig.lock first, and a model is only committed if the
+ * file still has the version the model was read from, so an update made by
+ * another program between the read and the commit is never overwritten.
+ * The directory belongs to root and the netdev group and is not open to
+ * others, it is made at boot by ipconfig.tmpfiles or by the first process
+ * that locks as root, e.g. the root helper.  A user who can't edit
+ * dhcpcd.conf can't create or hold the lock file, and one that belongs to
+ * a user other than root or the current one is refused.
+ */
+public class ConfCommitter {
+    /** Owner, group and mode of /etc/dhcpcd.conf */
+    public static final Ownership DHCPCD_CONF =
+     new Ownership("root","netdev","rw-rw-r--");
+
+    /** Owner, group and mode of /etc/network/interfaces */
+    public static final Ownership INTERFACES =
+     new Ownership("root","root","rw-r--r--");
+
+    /** Lock file shared by every program that commits dhcpcd.conf */
+    private static final String LOCK_FILE = "/run/ipconfig/ipconfig.lock";
+
+    /** In process locks by lock file, FileChannel locks are per process */
+    private static final ConcurrentMap<Path,Lock> LOCKS =
+     new ConcurrentHashMap<>();
+
+    /** Root directory that absolute paths are resolved against */
+    private final Path root;
+
+    /** Commit mode, direct, script or auto */
+    private final String mode;
+
+    /**
+     * Creates a new ConfCommitter
+     *
+     * @param   root the root directory
+     * @param   mode direct to commit in process, script to leave commits to
+     *          the sudo script or auto to commit in process when the target
+     *          directory is writable
+     */
+    public ConfCommitter(Path root, String mode) {
+        this.root = root;
+        this.mode = mode;
+    }
+
+    /**
+     * Creates a new ConfCommitter from the ipconfig.root and ipconfig.commit
+     * system properties
+     *
+     * @return  the new ConfCommitter
+     */
+    public static ConfCommitter fromProperties() {
+        return new ConfCommitter(
+         Paths.get(System.getProperty("ipconfig.root","/")),
+         System.getProperty("ipconfig.commit","auto"));
+    }
+
+    /**
+     * Resolves an absolute system path against the root directory
+     *
+     * @param   path the absolute path, e.g. /etc/dhcpcd.conf
+     *
+     * @return  the resolved path
+     */
+    public Path resolve(String path) {
+        while (path.startsWith("/"))
+            path = path.substring(1);
+        return root.resolve(path);
+    }
+
+    /**
+     * Gets the root directory
+     *
+     * @return  the root directory
+     */
+    public Path getRoot() {
+        return root;
+    }
+
+    /**
+     * Tests if a target can be committed in process
+     *
+     * @param   target the file to commit
+     *
+     * @return  true if the file can be committed in process
+     */
+    public boolean isDirect(Path target) {
+        if (mode.equals("direct"))
+            return true;
+        if (mode.equals("script"))
+            return false;
+        Path dir = target.toAbsolutePath().getParent();
+        return dir != null && Files.isWritable(dir);
+    }
+
+    /**
+     * Commits a dhcpcd.conf model to a file under the commit lock if the
+     * file still has the version the model was read from
+     *
+     * @param   conf the model to write
+     * @param   target the file to replace
+     * @param   ownership the owner, group and mode to give the file
+     *
+     * @throws  StaleException if the target changed after the model was
+     *          read, the target is unchanged
+     * @throws  IOException if an I/O error occurs, the target is unchanged
+     */
+    @SuppressWarnings("try")
+    public void commit(DhcpcdConf conf, Path target, Ownership ownership)
+     throws IOException {
+        try (Lock lock = lock()) {
+            check(conf,target);
+            commit(target,ownership,fc -> ConfFile.write(conf,fc));
+        }
+    }
+
+    /**
+     * Takes the commit lock, waiting for other threads and programs to
+     * release it.  The lock is reentrant, a thread that holds it can take it
+     * again, e.g. to commit while it holds the lock across a script.
+     *
+     * @return  the lock, to be closed to release it
+     *
+     * @throws  IOException if the lock file can't be opened or locked
+     */
+    public Lock lock() throws IOException {
+        Path file = resolve(LOCK_FILE).toAbsolutePath();
+        Lock lock = LOCKS.computeIfAbsent(file,Lock::new);
+        lock.acquire();
+        return lock;
+    }
+
+    /**
+     * Checks that a file still has the version a model was read from.
+     * Models that were not read from the file are not checked.
+     *
+     * @param   conf the model
+     * @param   target the file
+     *
+     * @throws  StaleException if the file has changed
+     * @throws  IOException if the file can't be read
+     */
+    public void check(DhcpcdConf conf, Path target) throws IOException {
+        if (conf.source == null || conf.sourceVersion == -1 ||
+         !conf.source.toAbsolutePath().equals(target.toAbsolutePath()))
+            return;
+        if (ConfFile.version(target) != conf.sourceVersion)
+            throw new StaleException(target + " was changed by another " +
+             "program after it was read");
+    }
+
+    /**
+     * Commits text to a file under the commit lock
+     *
+     * @param   text the new contents of the file
+     * @param   target the file to replace
+     * @param   ownership the owner, group and mode to give the file
+     *
+     * @throws  IOException if an I/O error occurs, the target is unchanged
+     */
+    @SuppressWarnings("try")
+    public void commit(String text, Path target, Ownership ownership)
+     throws IOException {
+        try (Lock lock = lock()) {
+            commit(target,ownership,fc -> {
+                java.nio.ByteBuffer bb =
+                 StandardCharsets.ISO_8859_1.encode(text);
+                while (bb.hasRemaining())
+                    fc.write(bb);
+            });
+        }
+    }
+
+    /**
+     * Writes a sibling temporary file, syncs it, sets its attributes and
+     * moves it over the target
+     *
+     * @param   target the file to replace
+     * @param   ownership the owner, group and mode to give the file
+     * @param   content writes the new contents
+     *
+     * @throws  IOException if an I/O error occurs, the target is unchanged
+     */
+    private void commit(Path target, Ownership ownership, Content content)
+     throws IOException {
+        // only the real system has the owners to give files to
+        if (root.toAbsolutePath().getNameCount() > 0)
+            ownership = ownership.permissionsOnly();
+        Path dir = target.toAbsolutePath().getParent();
+        Path temp = Files.createTempFile(dir,
+         "." + target.getFileName() + ".",".tmp");
+        try {
+            try (FileChannel fc = FileChannel.open(temp,
+             StandardOpenOption.WRITE,StandardOpenOption.TRUNCATE_EXISTING)) {
+                content.write(fc);
+                fc.force(true);
+            }
+            ownership.apply(temp);
+            Files.move(temp,target,StandardCopyOption.ATOMIC_MOVE,
+             StandardCopyOption.REPLACE_EXISTING);
+        } catch (IOException | RuntimeException e) {
+            Files.deleteIfExists(temp);
+            throw e;
+        }
+
+        // make the rename itself durable
+        try (FileChannel fc = FileChannel.open(dir,StandardOpenOption.READ)) {
+            fc.force(true);
+        } catch (IOException ioe) {
+            // not every file system allows directories to be synced
+        }
+    }
+
+    /**
+     * Writes the contents of a file
+     */
+    private interface Content {
+        void write(FileChannel fc) throws IOException;
+    }
+
+    /**
+     * Thrown when a model is committed over a file that changed after the
+     * model was read
+     */
+    public static class StaleException extends IOException {
+        private static final long serialVersionUID = 1L;
+
+        public StaleException(String message) {
+            super(message);
+        }
+    }
+
+    /**
+     * The commit lock of one lock file.  A ReentrantLock orders the threads
+     * of this process and a FileChannel lock, held while any thread holds
+     * the ReentrantLock, orders the processes.
+     */
+    public static class Lock implements Closeable {
+        /** Lock file */
+        private final Path file;
+
+        /** Orders the threads of this process */
+        private final ReentrantLock threads = new ReentrantLock();
+
+        /** Open lock file while the lock is held */
+        private FileChannel channel;
+
+        /** File lock while the lock is held */
+        private FileLock fileLock;
+
+        Lock(Path file) {
+            this.file = file;
+        }
+
+        /**
+         * Takes the lock, the file lock only on the outermost hold
+         *
+         * @throws  IOException if the lock file can't be opened or locked
+         */
+        void acquire() throws IOException {
+            threads.lock();
+            if (threads.getHoldCount() > 1)
+                return;
+            try {
+                directory(file.getParent());
+                channel = FileChannel.open(file,StandardOpenOption.CREATE,
+                 StandardOpenOption.WRITE);
+                String owner = Files.getOwner(file).getName();
+                String user = System.getProperty("user.name");
+                if (!owner.equals("root") && !owner.equals(user))
+                    throw new IOException(file + " belongs to " + owner +
+                     " and is not trusted, remove it");
+                fileLock = channel.lock();
+            } catch (IOException | RuntimeException e) {
+                if (channel != null)
+                    channel.close();
+                channel = null;
+                threads.unlock();
+                if (e instanceof AccessDeniedException)
+                    throw new IOException(file + " can only be locked by " +
+                     "root and the netdev group",e);
+                throw e;
+            }
+            // only those who may edit dhcpcd.conf can hold up its commits
+            PosixFileAttributeView view = Files.getFileAttributeView(file,
+             PosixFileAttributeView.class);
+            if (view == null)
+                return;
+            try {
+                view.setGroup(file.getFileSystem()
+                 .getUserPrincipalLookupService()
+                 .lookupPrincipalByGroupName("netdev"));
+            } catch (IOException | UnsupportedOperationException e) {
+                // another user owns the file or there is no netdev group
+            }
+            try {
+                view.setPermissions(
+                 PosixFilePermissions.fromString("rw-rw----"));
+            } catch (IOException e) {
+                // another user owns the file
+            }
+        }
+
+        /**
+         * Makes the lock directory if there is none, which only root can do
+         * in /run, and gives it to root and the netdev group
+         *
+         * @param   dir the directory
+         *
+         * @throws  IOException if the directory can't be made
+         */
+        private static void directory(Path dir) throws IOException {
+            if (Files.isDirectory(dir))
+                return;
+            try {
+                Files.createDirectories(dir);
+            } catch (AccessDeniedException ade) {
+                throw new IOException(dir + " is missing, install " +
+                 "ipconfig.tmpfiles as /etc/tmpfiles.d/ipconfig.conf or " +
+                 "start the root helper",ade);
+            }
+            PosixFileAttributeView view = Files.getFileAttributeView(dir,
+             PosixFileAttributeView.class);
+            if (view == null)
+                return;
+            try {
+                view.setGroup(dir.getFileSystem()
+                 .getUserPrincipalLookupService()
+                 .lookupPrincipalByGroupName("netdev"));
+            } catch (IOException | UnsupportedOperationException e) {
+                // there is no netdev group
+            }
+            view.setPermissions(PosixFilePermissions.fromString("rwxrwx---"));
+        }
+
+        /**
+         * Releases one hold of the lock, the file lock with the last one
+         *
+         * @throws  IOException if the file lock can't be released
+         */
+        @Override
+        public void close() throws IOException {
+            if (!threads.isHeldByCurrentThread())
+                throw new IllegalMonitorStateException();
+            try {
+                if (threads.getHoldCount() == 1) {
+                    try {
+                        fileLock.release();
+                    } finally {
+                        channel.close();
+                        channel = null;
+                        fileLock = null;
+                    }
+                }
+            } finally {
+                threads.unlock();
+            }
+        }
+    }
+
+    /**
+     * Owner, group and permissions of a committed file.  A null owner or
+     * group leaves that attribute as the temporary file was created.  Under
+     * a root other than / only the permissions are applied.
+     */
+    public static class Ownership {
+        /** Owner name or null */
+        private final String owner;
+
+        /** Group name or null */
+        private final String group;
+
+        /** Permissions */
+        private final Set<PosixFilePermission> permissions;
+
+        /**
+         * Creates a new Ownership
+         *
+         * @param   owner the owner name or null
+         * @param   group the group name or null
+         * @param   permissions the permissions, e.g. rw-r--r--
+         */
+        public Ownership(String owner, String group, String permissions) {
+            this.owner = owner;
+            this.group = group;
+            this.permissions = PosixFilePermissions.fromString(permissions);
+        }
+
+        /**
+         * Gets a copy of this Ownership that keeps the owner and group
+         *
+         * @return  the permissions only Ownership
+         */
+        public Ownership permissionsOnly() {
+            return new Ownership(null,null,
+             PosixFilePermissions.toString(permissions));
+        }
+
+        /**
+         * Applies the attributes to a file
+         *
+         * @param   path the file
+         *
+         * @throws  IOException if an I/O error occurs
+         */
+        void apply(Path path) throws IOException {
+            PosixFileAttributeView view = Files.getFileAttributeView(path,
+             PosixFileAttributeView.class);
+            if (view == null)
+                return;
+            UserPrincipalLookupService lookup =
+             path.getFileSystem().getUserPrincipalLookupService();
+            if (owner != null)
+                view.setOwner(lookup.lookupPrincipalByName(owner));
+            if (group != null)
+                view.setGroup(lookup.lookupPrincipalByGroupName(group));
+            view.setPermissions(permissions);
+        }
+    }
+}
@@ -0,0 +1,441 @@
+import java.io.*;
+import java.nio.*;
+import java.nio.channels.*;
+import java.nio.charset.*;
+import java.nio.file.*;
+import java.util.*;
+import java.util.zip.*;
+
+/**
+ * Lossless reader and writer for dhcpcd.conf files.  The file is memory
+ * mapped and split into lines that remember their byte offsets.  When the
+ * model is written back, runs of lines that are still in their original
+ * order are copied from the source file with {@link FileChannel#transferTo}
+ * and only new or edited lines are encoded, so line endings, comments and
+ * unknown directives come out byte for byte as they went in.
+ */
+public class ConfFile {
+    /**
+     * Charset used to decode and encode lines.  ISO-8859-1 maps every byte to
+     * one char and back, so any bytes survive a round trip even when they are
+     * not valid in the platform charset.
+     */
+    private static final Charset CHARSET = StandardCharsets.ISO_8859_1;
+
+    private ConfFile() { }
+
+    /**
+     * Reads a dhcpcd.conf file
+     *
+     * @param   path the file to read
+     *
+     * @return  the parsed file
+     *
+     * @throws  IOException if an I/O error occurs reading the file
+     */
+    public static DhcpcdConf read(Path path) throws IOException {
+        try (FileChannel fc = FileChannel.open(path,StandardOpenOption.READ)) {
+            long time = Files.getLastModifiedTime(path).toMillis();
+            long size = fc.size();
+            if (size > Integer.MAX_VALUE)
+                throw new IOException(path + " is too large");
+            MappedByteBuffer mbb = fc.map(FileChannel.MapMode.READ_ONLY,0,size);
+            long version = version(mbb);
+            String data = CHARSET.decode(mbb).toString();
+            return parse(data,path,size,time,version);
+        }
+    }
+
+    /**
+     * Gets the version of a file, which changes whenever its contents do
+     *
+     * @param   path the file
+     *
+     * @return  the version or -1 if there is no file
+     *
+     * @throws  IOException if an I/O error occurs reading the file
+     */
+    public static long version(Path path) throws IOException {
+        try (FileChannel fc = FileChannel.open(path,StandardOpenOption.READ)) {
+            return version(fc.map(FileChannel.MapMode.READ_ONLY,0,fc.size()));
+        } catch (NoSuchFileException nsfe) {
+            return -1;
+        }
+    }
+
+    /**
+     * Computes the version of file contents, the CRC-32 of the bytes with
+     * the length above it, so contents of another length never share a
+     * version
+     *
+     * @param   bb the contents, its position is left as it is
+     *
+     * @return  the version
+     */
+    static long version(ByteBuffer bb) {
+        CRC32 crc = new CRC32();
+        crc.update(bb.duplicate());
+        return (long)bb.remaining() << 32 | crc.getValue();
+    }
+
+    /**
+     * Reads a dhcpcd.conf file again after it was changed.  The new data is
+     * compared with the lines of the old model from both ends and only the
+     * region in between is split into new lines, the lines before and after
+     * it are carried over.
+     *
+     * @param   old the model read before the change
+     * @param   path the file to read
+     * @param   affected receives the interfaces whose blocks are in the
+     *          changed region, in the old or in the new file
+     *
+     * @return  the new model
+     *
+     * @throws  IOException if an I/O error occurs reading the file
+     */
+    public static DhcpcdConf reread(DhcpcdConf old, Path path,
+     Set<String> affected) throws IOException {
+        String data;
+        long size, time, version;
+        try (FileChannel fc = FileChannel.open(path,StandardOpenOption.READ)) {
+            time = Files.getLastModifiedTime(path).toMillis();
+            size = fc.size();
+            if (size > Integer.MAX_VALUE)
+                throw new IOException(path + " is too large");
+            MappedByteBuffer mbb = fc.map(FileChannel.MapMode.READ_ONLY,0,size);
+            version = version(mbb);
+            data = CHARSET.decode(mbb).toString();
+        }
+
+        List<DhcpcdConf.Line> lines = old.lines();
+        // lines that are unchanged at the start
+        int first = 0, start = 0;
+        while (first < lines.size()) {
+            DhcpcdConf.Line line = lines.get(first);
+            if (!matches(data,start,line) || (line.eol.isEmpty() &&
+             start + line.length() != data.length()))
+                break;
+            start += line.length();
+            ++first;
+        }
+        // lines that are unchanged at the end, the region must still begin
+        // and end on line boundaries
+        int last = lines.size(), end = data.length();
+        while (last > first) {
+            DhcpcdConf.Line line = lines.get(last - 1);
+            int from = end - (int)line.length();
+            if (from < start || !matches(data,from,line) ||
+             (from > start && data.charAt(from - 1) != '\n'))
+                break;
+            end = from;
+            --last;
+        }
+
+        // carry the unchanged lines over at their offsets in the new file
+        List<DhcpcdConf.Line> fresh = new ArrayList<>(lines.size());
+        long offset = 0;
+        for (DhcpcdConf.Line line : lines.subList(0,first)) {
+            fresh.add(line.offset == offset ? line :
+             new DhcpcdConf.Line(line.text,line.eol,offset));
+            offset += line.length();
+        }
+        DhcpcdConf middle = parse(data.substring(start,end),null,0,0);
+        for (DhcpcdConf.Line line : middle.lines())
+            fresh.add(new DhcpcdConf.Line(line.text,line.eol,
+             start + line.offset));
+        int changedEnd = fresh.size();
+        offset = end;
+        for (DhcpcdConf.Line line : lines.subList(last,lines.size())) {
+            fresh.add(line.offset == offset ? line :
+             new DhcpcdConf.Line(line.text,line.eol,offset));
+            offset += line.length();
+        }
+
+        DhcpcdConf conf = new DhcpcdConf(fresh,old.getLineTerminator(),path,
+         size,time,version);
+        affected.addAll(old.interfacesIn(first,last));
+        affected.addAll(conf.interfacesIn(first,changedEnd));
+
+        return conf;
+    }
+
+    /**
+     * Tests if a line with its terminator is found in data at a position
+     *
+     * @param   data the data
+     * @param   pos the position
+     * @param   line the line
+     *
+     * @return  true if the line is there
+     */
+    private static boolean matches(String data, int pos,
+     DhcpcdConf.Line line) {
+        return data.regionMatches(pos,line.text,0,line.text.length()) &&
+         data.regionMatches(pos + line.text.length(),line.eol,0,
+         line.eol.length());
+    }
+
+    /**
+     * Splits file data into lines
+     *
+     * @param   data the decoded file data
+     * @param   path the source file or null
+     * @param   size the size of the source file
+     * @param   time the modification time of the source file
+     *
+     * @return  the parsed file
+     */
+    static DhcpcdConf parse(String data, Path path, long size, long time) {
+        return parse(data,path,size,time,-1);
+    }
+
+    /**
+     * Splits file data into lines
+     *
+     * @param   data the decoded file data
+     * @param   path the source file or null
+     * @param   size the size of the source file
+     * @param   time the modification time of the source file
+     * @param   version the version of the source file or -1
+     *
+     * @return  the parsed file
+     */
+    static DhcpcdConf parse(String data, Path path, long size, long time,
+     long version) {
+        List<DhcpcdConf.Line> lines = new ArrayList<>();
+        String eol = null;
+        int start = 0;
+        while (start < data.length()) {
+            int nl = data.indexOf('\n',start);
+            int end, next;
+            String term;
+            if (nl < 0) {
+                end = next = data.length();
+                term = "";
+            } else if (nl > start && data.charAt(nl - 1) == '\r') {
+                end = nl - 1;
+                next = nl + 1;
+                term = "\r\n";
+            } else {
+                end = nl;
+                next = nl + 1;
+                term = "\n";
+            }
+            if (eol == null && !term.isEmpty())
+                eol = term;
+            lines.add(new DhcpcdConf.Line(data.substring(start,end),term,
+             start));
+            start = next;
+        }
+
+        return new DhcpcdConf(lines,eol == null ? "\n" : eol,path,size,time,
+         version);
+    }
+
+    /**
+     * Writes a dhcpcd.conf file.  If the file the model was read from is
+     * unchanged, untouched runs of lines are copied from it without being
+     * decoded or encoded, otherwise every line is encoded.
+     *
+     * @param   conf the model to write
+     * @param   path the file to write, must not be the source file
+     *
+     * @return  the number of bytes that were encoded rather than copied
+     *
+     * @throws  IOException if an I/O error occurs writing the file
+     */
+    public static long write(DhcpcdConf conf, Path path) throws IOException {
+        return write(conf,path,true);
+    }
+
+    /**
+     * Writes a dhcpcd.conf file, optionally without forcing it to the
+     * device.  Generated files that are not yet installed anywhere don't
+     * need to be synced, and syncing each of thousands of them costs more
+     * than writing them.
+     *
+     * @param   conf the model to write
+     * @param   path the file to write, must not be the source file
+     * @param   sync true to force the file to the device
+     *
+     * @return  the number of bytes that were encoded rather than copied
+     *
+     * @throws  IOException if an I/O error occurs writing the file
+     */
+    public static long write(DhcpcdConf conf, Path path, boolean sync)
+     throws IOException {
+        try (FileChannel out = FileChannel.open(path,StandardOpenOption.WRITE,
+         StandardOpenOption.CREATE,StandardOpenOption.TRUNCATE_EXISTING)) {
+            FileChannel src = openSource(conf);
+            try {
+                return write(conf,src,out,sync);
+            } finally {
+                if (src != null)
+                    src.close();
+            }
+        }
+    }
+
+    /**
+     * Encodes a model as the bytes it is written as, for sending it to
+     * another process
+     *
+     * @param   conf the model
+     *
+     * @return  the contents of the file
+     */
+    public static byte[] encode(DhcpcdConf conf) {
+        List<DhcpcdConf.Line> lines = conf.lines();
+        String eol = conf.getLineTerminator();
+        StringBuilder sb = new StringBuilder();
+        for (int i=0; i<lines.size(); i++) {
+            DhcpcdConf.Line line = lines.get(i);
+            // a line that lost its place as the last line needs a terminator
+            sb.append(line.text).append(line.eol.isEmpty() &&
+             i < lines.size() - 1 ? eol : line.eol);
+        }
+        return sb.toString().getBytes(CHARSET);
+    }
+
+    /**
+     * Writes a dhcpcd.conf file to an open channel
+     *
+     * @param   conf the model to write
+     * @param   out the channel to write to
+     *
+     * @return  the number of bytes that were encoded rather than copied
+     *
+     * @throws  IOException if an I/O error occurs writing the file
+     */
+    public static long write(DhcpcdConf conf, FileChannel out)
+     throws IOException {
+        FileChannel src = openSource(conf);
+        try {
+            return write(conf,src,out,true);
+        } finally {
+            if (src != null)
+                src.close();
+        }
+    }
+
+    /**
+     * Opens the source file of a model if it has not changed since it was
+     * read.  The size and modification time can stay the same across a
+     * rewrite, so the contents are compared by their version.
+     *
+     * @param   conf the model
+     *
+     * @return  the open source file or null if it can't be used
+     *
+     * @throws  IOException if an I/O error occurs opening the file
+     */
+    private static FileChannel openSource(DhcpcdConf conf) throws IOException {
+        if (conf.source == null || conf.sourceVersion == -1 ||
+         !Files.isRegularFile(conf.source))
+            return null;
+        FileChannel src = FileChannel.open(conf.source,StandardOpenOption.READ);
+        if (src.size() != conf.sourceSize || version(src.map(
+         FileChannel.MapMode.READ_ONLY,0,src.size())) != conf.sourceVersion) {
+            src.close();
+            return null;
+        }
+        return src;
+    }
+
+    /**
+     * Writes the lines of a model, copying runs of source lines
+     *
+     * @param   conf the model to write
+     * @param   src the unchanged source file or null
+     * @param   out the channel to write to
+     * @param   sync true to force the channel to the device
+     *
+     * @return  the number of bytes that were encoded
+     *
+     * @throws  IOException if an I/O error occurs
+     */
+    private static long write(DhcpcdConf conf, FileChannel src,
+     FileChannel out, boolean sync) throws IOException {
+        List<DhcpcdConf.Line> lines = conf.lines();
+        String eol = conf.getLineTerminator();
+        StringBuilder pending = new StringBuilder();
+        long encoded = 0;
+        long runStart = -1, runEnd = -1;
+
+        for (int i=0; i<lines.size(); i++) {
+            DhcpcdConf.Line line = lines.get(i);
+            boolean last = i == lines.size() - 1;
+            // a line that lost its place as the last line needs a terminator
+            boolean addEol = line.eol.isEmpty() && !last;
+            if (src != null && line.offset >= 0) {
+                if (line.offset != runEnd) {
+                    encoded += flush(pending,out);
+                    copy(src,runStart,runEnd,out);
+                    runStart = line.offset;
+                }
+                runEnd = line.offset + line.length();
+                if (addEol) {
+                    copy(src,runStart,runEnd,out);
+                    runStart = runEnd = -1;
+                    pending.append(eol);
+                }
+            } else {
+                copy(src,runStart,runEnd,out);
+                runStart = runEnd = -1;
+                pending.append(line.text).append(addEol ? eol : line.eol);
+            }
+        }
+        copy(src,runStart,runEnd,out);
+        encoded += flush(pending,out);
+        if (sync)
+            out.force(false);
+
+        return encoded;
+    }
+
+    /**
+     * Copies a run of bytes from the source file
+     *
+     * @param   src the source file
+     * @param   start start of the run or -1 if there is none
+     * @param   end end of the run
+     * @param   out the channel to write to
+     *
+     * @throws  IOException if an I/O error occurs or the source file got
+     *          shorter
+     */
+    private static void copy(FileChannel src, long start, long end,
+     FileChannel out) throws IOException {
+        if (start < 0)
+            return;
+        long pos = start;
+        while (pos < end) {
+            long n = src.transferTo(pos,end - pos,out);
+            if (n <= 0)
+                throw new IOException("Source file changed while copying");
+            pos += n;
+        }
+    }
+
+    /**
+     * Encodes and writes pending text
+     *
+     * @param   pending the text, cleared after writing
+     * @param   out the channel to write to
+     *
+     * @return  the number of bytes written
+     *
+     * @throws  IOException if an I/O error occurs
+     */
+    private static long flush(StringBuilder pending, FileChannel out)
+     throws IOException {
+        if (pending.length() == 0)
+            return 0;
+        ByteBuffer bb = CHARSET.encode(CharBuffer.wrap(pending));
+        int n = bb.remaining();
+        while (bb.hasRemaining())
+            out.write(bb);
+        pending.setLength(0);
+        return n;
+    }
+}
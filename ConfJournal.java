@@ -0,0 +1,501 @@
+import java.io.*;
+import java.nio.channels.*;
+import java.nio.charset.*;
+import java.nio.file.*;
+import java.util.*;
+import java.util.zip.*;
+
+/**
+ * Append only journal of the versions of dhcpcd.conf.  A version is stored
+ * as the hunks of a {@link LineDiff} against the version before it, with a
+ * full snapshot every SNAPSHOT_INTERVAL versions so that rebuilding any
+ * version replays at most that many deltas.  Lines keep their terminators,
+ * so a rebuilt version is byte for byte the file that was recorded.
+ *
+ * <p>Each record carries its length and a CRC32.  A record cut short by a
+ * crash is ignored when the journal is loaded and overwritten by the next
+ * record.  Records are appended under a lock on the journal file, and a
+ * journal that another program appended to is loaded again first, so
+ * programs sharing the journal don't overwrite each other's records.
+ */
+public class ConfJournal {
+    /** Versions between full snapshots */
+    public static final int SNAPSHOT_INTERVAL = 64;
+
+    /** File format marker */
+    private static final int MAGIC = 0x49504a6c;
+
+    /** Record type of a full copy of the lines */
+    private static final byte SNAPSHOT = 0;
+
+    /** Record type of the changes from the version before */
+    private static final byte DELTA = 1;
+
+    /** Charset of the lines, every byte maps to one char and back */
+    private static final Charset CHARSET = StandardCharsets.ISO_8859_1;
+
+    /** Journal file */
+    private final Path file;
+
+    /** Recorded versions, oldest first */
+    private final List<Version> versions = new ArrayList<>();
+
+    /** Lines of the newest version */
+    private List<String> head = Collections.emptyList();
+
+    /** Length of the valid part of the file */
+    private long length;
+
+    /** True once the file has been loaded */
+    private boolean loaded;
+
+    /**
+     * Creates a new ConfJournal
+     *
+     * @param   file the journal file
+     */
+    public ConfJournal(Path file) {
+        this.file = file;
+    }
+
+    /**
+     * Gets the default journal file
+     *
+     * @return  .ipconfig-journal in the home directory
+     */
+    public static Path defaultPath() {
+        return Paths.get(System.getProperty("user.home"),".ipconfig-journal");
+    }
+
+    /**
+     * Splits file data into lines that keep their terminators
+     *
+     * @param   data the file data
+     *
+     * @return  the lines
+     */
+    public static List<String> split(String data) {
+        List<String> lines = new ArrayList<>();
+        int start = 0;
+        while (start < data.length()) {
+            int nl = data.indexOf('\n',start);
+            int next = nl < 0 ? data.length() : nl + 1;
+            lines.add(data.substring(start,next));
+            start = next;
+        }
+        return lines;
+    }
+
+    /**
+     * Joins lines that keep their terminators into file data
+     *
+     * @param   lines the lines
+     *
+     * @return  the file data
+     */
+    public static String join(List<String> lines) {
+        StringBuilder sb = new StringBuilder();
+        for (String line : lines)
+            sb.append(line);
+        return sb.toString();
+    }
+
+    /**
+     * Loads the journal, replaying every record to the newest version
+     *
+     * @throws  IOException if an I/O error occurs or the file is not a
+     *          journal
+     */
+    public synchronized void load() throws IOException {
+        versions.clear();
+        head = new ArrayList<>();
+        length = 0;
+        loaded = true;
+        if (!Files.exists(file))
+            return;
+
+        byte[] data = Files.readAllBytes(file);
+        if (data.length == 0)
+            return;
+        DataInputStream in = new DataInputStream(
+         new ByteArrayInputStream(data));
+        if (data.length < 4 || in.readInt() != MAGIC)
+            throw new IOException(file + " is not a dhcpcd.conf journal");
+        int pos = 4;
+        CRC32 crc = new CRC32();
+        while (pos + 8 <= data.length) {
+            int size = in.readInt();
+            int check = in.readInt();
+            if (size < 0 || size > data.length - pos - 8)
+                break;
+            crc.reset();
+            crc.update(data,pos + 8,size);
+            if ((int)crc.getValue() != check)
+                break;
+            Version v = readRecord(in,pos,head);
+            versions.add(v);
+            pos += 8 + size;
+        }
+        length = pos;
+    }
+
+    /**
+     * Reads a record and applies it to the lines of the version before
+     *
+     * @param   in the stream positioned at the record body
+     * @param   offset the offset of the record in the file
+     * @param   lines the lines of the version before, changed to the lines
+     *          of this version
+     *
+     * @return  the version
+     *
+     * @throws  IOException if the record is not valid
+     */
+    private static Version readRecord(DataInputStream in, long offset,
+     List<String> lines) throws IOException {
+        byte type = in.readByte();
+        int number = in.readInt();
+        long time = in.readLong();
+        String note = in.readUTF();
+        int added = 0, removed = 0;
+        if (type == SNAPSHOT) {
+            lines.clear();
+            int count = in.readInt();
+            for (int i=0; i<count; i++)
+                lines.add(readLine(in));
+        } else if (type == DELTA) {
+            int hunks = in.readInt();
+            // hunks are stored last first so earlier indexes stay valid
+            for (int h=0; h<hunks; h++) {
+                int start = in.readInt();
+                int deleted = in.readInt();
+                int inserted = in.readInt();
+                if (start < 0 || deleted < 0 || start + deleted > lines.size())
+                    throw new IOException("Corrupt journal record at " +
+                     offset);
+                lines.subList(start,start + deleted).clear();
+                List<String> insert = new ArrayList<>(inserted);
+                for (int i=0; i<inserted; i++)
+                    insert.add(readLine(in));
+                lines.addAll(start,insert);
+                added += inserted;
+                removed += deleted;
+            }
+        } else {
+            throw new IOException("Corrupt journal record at " + offset);
+        }
+        return new Version(number,time,note,type == SNAPSHOT,added,removed,
+         offset);
+    }
+
+    /**
+     * Reads a line
+     *
+     * @param   in the stream
+     *
+     * @return  the line
+     *
+     * @throws  IOException if an I/O error occurs
+     */
+    private static String readLine(DataInputStream in) throws IOException {
+        byte[] bytes = new byte[in.readInt()];
+        in.readFully(bytes);
+        return new String(bytes,CHARSET);
+    }
+
+    /**
+     * Writes a line
+     *
+     * @param   out the stream
+     * @param   line the line
+     *
+     * @throws  IOException if an I/O error occurs
+     */
+    private static void writeLine(DataOutputStream out, String line)
+     throws IOException {
+        byte[] bytes = line.getBytes(CHARSET);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    /**
+     * Records the current contents of a file as a new version
+     *
+     * @param   path the file
+     * @param   note what made the version, e.g. Save eth0
+     *
+     * @return  the new version or the newest version if the file is
+     *          unchanged
+     *
+     * @throws  IOException if an I/O error occurs
+     */
+    public int record(Path path, String note) throws IOException {
+        return record(split(new String(Files.readAllBytes(path),CHARSET)),
+         note);
+    }
+
+    /**
+     * Records lines as a new version
+     *
+     * @param   lines the lines, with their terminators
+     * @param   note what made the version
+     *
+     * @return  the new version or the newest version if the lines are
+     *          unchanged
+     *
+     * @throws  IOException if an I/O error occurs
+     */
+    public int record(List<String> lines, String note) throws IOException {
+        return record(lines,null,note);
+    }
+
+    /**
+     * Records lines as a new version, reusing a diff already made against
+     * the newest version, such as the one shown in the preview before a
+     * save.  The diff is only used if it turns the newest version into the
+     * lines.
+     *
+     * @param   lines the lines, with their terminators
+     * @param   edits the edits from the newest version or null
+     * @param   note what made the version
+     *
+     * @return  the new version or the newest version if the lines are
+     *          unchanged
+     *
+     * @throws  IOException if an I/O error occurs
+     */
+    @SuppressWarnings("try")
+    public synchronized int record(List<String> lines,
+     List<LineDiff.Edit> edits, String note) throws IOException {
+        Path dir = file.toAbsolutePath().getParent();
+        if (dir != null)
+            Files.createDirectories(dir);
+        try (FileChannel fc = FileChannel.open(file,StandardOpenOption.CREATE,
+         StandardOpenOption.WRITE); FileLock lock = fc.lock()) {
+            // another program may have appended since the journal was read
+            if (!loaded || fc.size() != length)
+                load();
+            return record(fc,lines,edits,note);
+        }
+    }
+
+    /**
+     * Records lines as a new version while the journal is locked
+     *
+     * @param   fc the locked journal file
+     * @param   lines the lines, with their terminators
+     * @param   edits the edits from the newest version or null
+     * @param   note what made the version
+     *
+     * @return  the new version or the newest version if the lines are
+     *          unchanged
+     *
+     * @throws  IOException if an I/O error occurs
+     */
+    private int record(FileChannel fc, List<String> lines,
+     List<LineDiff.Edit> edits, String note) throws IOException {
+        if (!versions.isEmpty() && lines.equals(head))
+            return versions.get(versions.size() - 1).number;
+
+        int number = versions.isEmpty() ? 1 :
+         versions.get(versions.size() - 1).number + 1;
+        int sinceSnapshot = 0;
+        for (int i=versions.size()-1; i>=0 && !versions.get(i).snapshot; i--)
+            ++sinceSnapshot;
+        boolean snapshot = versions.isEmpty() ||
+         sinceSnapshot + 1 >= SNAPSHOT_INTERVAL;
+
+        if (edits == null || !LineDiff.apply(head,lines,edits).equals(lines))
+            edits = LineDiff.diff(head,lines);
+        int added = 0, removed = 0;
+        for (LineDiff.Edit e : edits) {
+            added += e.bEnd - e.bStart;
+            removed += e.aEnd - e.aStart;
+        }
+
+        ByteArrayOutputStream body = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(body);
+        long time = System.currentTimeMillis();
+        out.writeByte(snapshot ? SNAPSHOT : DELTA);
+        out.writeInt(number);
+        out.writeLong(time);
+        out.writeUTF(note);
+        if (snapshot) {
+            out.writeInt(lines.size());
+            for (String line : lines)
+                writeLine(out,line);
+        } else {
+            out.writeInt(edits.size());
+            for (int h=edits.size()-1; h>=0; h--) {
+                LineDiff.Edit e = edits.get(h);
+                out.writeInt(e.aStart);
+                out.writeInt(e.aEnd - e.aStart);
+                out.writeInt(e.bEnd - e.bStart);
+                for (String line : lines.subList(e.bStart,e.bEnd))
+                    writeLine(out,line);
+            }
+        }
+        append(fc,body.toByteArray());
+
+        versions.add(new Version(number,time,note,snapshot,
+         snapshot ? lines.size() : added,snapshot ? 0 : removed,
+         length));
+        head = new ArrayList<>(lines);
+        length += 8 + body.size();
+        return number;
+    }
+
+    /**
+     * Appends a record to the file after the valid records, dropping any
+     * record cut short before it, and forces it to disk
+     *
+     * @param   fc the locked journal file
+     * @param   body the record body
+     *
+     * @throws  IOException if an I/O error occurs
+     */
+    private void append(FileChannel fc, byte[] body) throws IOException {
+        if (length == 0) {
+            fc.truncate(0);
+            fc.write(java.nio.ByteBuffer.allocate(4).putInt(0,MAGIC),0);
+            length = 4;
+        }
+        fc.truncate(length);
+        CRC32 crc = new CRC32();
+        crc.update(body,0,body.length);
+        java.nio.ByteBuffer bb = java.nio.ByteBuffer.allocate(8 + body.length);
+        bb.putInt(body.length).putInt((int)crc.getValue()).put(body);
+        bb.flip();
+        fc.position(length);
+        while (bb.hasRemaining())
+            fc.write(bb);
+        fc.force(false);
+    }
+
+    /**
+     * Loads the journal if it hasn't been or another program has appended
+     * to it
+     *
+     * @throws  IOException if an I/O error occurs or the file is not a
+     *          journal
+     */
+    private void refresh() throws IOException {
+        if (!loaded || (Files.exists(file) ? Files.size(file) : 0) != length)
+            load();
+    }
+
+    /**
+     * Gets the recorded versions
+     *
+     * @return  a copy of the list of versions, oldest first
+     *
+     * @throws  IOException if an I/O error occurs loading the journal
+     */
+    public synchronized List<Version> getVersions() throws IOException {
+        refresh();
+        return new ArrayList<>(versions);
+    }
+
+    /**
+     * Rebuilds a version from the snapshot before it and the deltas after
+     * the snapshot
+     *
+     * @param   number the version
+     *
+     * @return  the lines of the version, with their terminators
+     *
+     * @throws  IOException if an I/O error occurs or there is no such version
+     */
+    public synchronized List<String> lines(int number) throws IOException {
+        refresh();
+        int index = -1;
+        for (int i=0; i<versions.size(); i++)
+            if (versions.get(i).number == number)
+                index = i;
+        if (index < 0)
+            throw new IOException("No version " + number + " in " + file);
+        if (index == versions.size() - 1)
+            return new ArrayList<>(head);
+        int first = index;
+        while (!versions.get(first).snapshot)
+            --first;
+
+        List<String> lines = new ArrayList<>();
+        try (FileChannel fc = FileChannel.open(file,StandardOpenOption.READ)) {
+            long from = versions.get(first).offset;
+            long to = versions.get(index + 1).offset;
+            java.nio.ByteBuffer bb =
+             java.nio.ByteBuffer.allocate((int)(to - from));
+            while (bb.hasRemaining())
+                if (fc.read(bb,from + bb.position()) < 0)
+                    throw new EOFException(file.toString());
+            DataInputStream in = new DataInputStream(
+             new ByteArrayInputStream(bb.array()));
+            for (int i=first; i<=index; i++) {
+                in.readInt();
+                in.readInt();
+                readRecord(in,versions.get(i).offset,lines);
+            }
+        }
+        return lines;
+    }
+
+    /**
+     * A recorded version
+     */
+    public static class Version {
+        /** Version number, counting from 1 */
+        public final int number;
+
+        /** Time the version was recorded, in milliseconds */
+        public final long time;
+
+        /** What made the version */
+        public final String note;
+
+        /** True if the record is a full snapshot */
+        final boolean snapshot;
+
+        /** Lines added since the version before */
+        public final int added;
+
+        /** Lines removed since the version before */
+        public final int removed;
+
+        /** Offset of the record in the file */
+        final long offset;
+
+        /**
+         * Creates a new Version
+         *
+         * @param   number the version number
+         * @param   time the time it was recorded
+         * @param   note what made the version
+         * @param   snapshot true if the record is a full snapshot
+         * @param   added lines added
+         * @param   removed lines removed
+         * @param   offset offset of the record in the file
+         */
+        Version(int number, long time, String note, boolean snapshot,
+         int added, int removed, long offset) {
+            this.number = number;
+            this.time = time;
+            this.note = note;
+            this.snapshot = snapshot;
+            this.added = added;
+            this.removed = removed;
+            this.offset = offset;
+        }
+
+        /**
+         * Formats the version for a list
+         *
+         * @return  the number, time, note and line counts
+         */
+        @Override
+        public String toString() {
+            return String.format("%d  %tF %<tT  %s  +%d -%d",number,time,note,
+             added,removed);
+        }
+    }
+}
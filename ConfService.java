@@ -0,0 +1,488 @@
+import java.io.*;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.function.*;
+
+/**
+ * Reads, checks and commits dhcpcd.conf without a display, for the command
+ * line and the API daemon.  Applying edits follows the same steps as a save
+ * from the form: the file is recorded in the journal, committed in process,
+ * the changed interfaces are rebound and the watchdog puts back the blocks
+ * of interfaces that don't come back.  Commits are serialized on the
+ * service, so there is one writer however many callers there are, and an
+ * edit that loses a race with another program's commit is made again on
+ * the new file.
+ */
+public class ConfService {
+    /** Times an edit is made again after another program's commit */
+    private static final int RETRIES = 5;
+
+    /** Commits the file */
+    private final ConfCommitter committer;
+
+    /** The dhcpcd.conf file */
+    private final Path target;
+
+    /** Journal of committed versions */
+    private final ConfJournal journal;
+
+    /** Watchdog or null if it is turned off */
+    private final LinkWatchdog watchdog;
+
+    /** Phase times */
+    private final Metrics metrics;
+
+    /** Rebinds changed interfaces */
+    private final DhcpcdReloader reloader;
+
+    /** Receives log messages */
+    private final Consumer<String> log;
+
+    /**
+     * Creates a new ConfService
+     *
+     * @param   committer commits the file
+     * @param   journal the journal of committed versions
+     * @param   watchdog the watchdog or null to not watch rebinds
+     * @param   metrics receives the phase times
+     * @param   reloader rebinds changed interfaces
+     * @param   log receives log messages
+     */
+    public ConfService(ConfCommitter committer, ConfJournal journal,
+     LinkWatchdog watchdog, Metrics metrics, DhcpcdReloader reloader,
+     Consumer<String> log) {
+        this.committer = committer;
+        this.journal = journal;
+        this.watchdog = watchdog;
+        this.metrics = metrics;
+        this.reloader = reloader;
+        this.log = log;
+        target = committer.resolve("/etc/dhcpcd.conf");
+    }
+
+    /**
+     * Creates a new ConfService from the system properties read by
+     * ConfCommitter, ConfJournal and LinkWatchdog
+     *
+     * @param   log receives log messages
+     *
+     * @return  the new ConfService
+     */
+    public static ConfService fromProperties(Consumer<String> log) {
+        ConfCommitter committer = ConfCommitter.fromProperties();
+        return new ConfService(committer,
+         new ConfJournal(ConfJournal.defaultPath()),
+         LinkWatchdog.fromProperties(committer.getRoot()),new Metrics(),
+         new DhcpcdReloader(new ProcessRunner(log,60,TimeUnit.SECONDS)),log);
+    }
+
+    /**
+     * Gets the committer of the file
+     *
+     * @return  the committer
+     */
+    public ConfCommitter getCommitter() {
+        return committer;
+    }
+
+    /**
+     * Gets the dhcpcd.conf file
+     *
+     * @return  the file
+     */
+    public Path getTarget() {
+        return target;
+    }
+
+    /**
+     * Gets the journal of committed versions
+     *
+     * @return  the journal
+     */
+    public ConfJournal getJournal() {
+        return journal;
+    }
+
+    /**
+     * Gets the phase times
+     *
+     * @return  the metrics
+     */
+    public Metrics getMetrics() {
+        return metrics;
+    }
+
+    /**
+     * Reads dhcpcd.conf
+     *
+     * @return  the model
+     *
+     * @throws  IOException if the file can't be read
+     */
+    public DhcpcdConf read() throws IOException {
+        long start = Metrics.start();
+        DhcpcdConf conf = ConfFile.read(target);
+        metrics.record(Metrics.LOAD,start);
+        return conf;
+    }
+
+    /**
+     * Changes an interface from key=value settings.  dhcp removes the
+     * static addresses.
+     *
+     * @param   ic the configuration to change
+     * @param   settings the settings, e.g. ip_address=a.b.c.d/bits
+     *
+     * @throws  IllegalArgumentException if a setting is not understood
+     */
+    public static void edit(InterfaceConfig ic, List<String> settings) {
+        for (String arg : settings) {
+            if (arg.equals("dhcp")) {
+                ic.setAddress("");
+                ic.setBits("");
+                ic.setIp6Address("");
+                ic.setIp6Bits("");
+                continue;
+            }
+            int eq = arg.indexOf('=');
+            String key = eq < 0 ? arg : arg.substring(0,eq);
+            String value = eq < 0 ? "" : arg.substring(eq + 1);
+            int slash = value.indexOf('/');
+            String address = slash < 0 ? value : value.substring(0,slash);
+            String bits = slash < 0 ? "" : value.substring(slash + 1);
+            switch (key) {
+                case "ip_address":
+                    ic.setAddress(address);
+                    ic.setBits(bits);
+                    break;
+                case "ip6_address":
+                    ic.setIp6Address(address);
+                    ic.setIp6Bits(bits);
+                    break;
+                case "routers":
+                    ic.setRouters(value);
+                    break;
+                case "domain_name_servers":
+                    ic.setNameServers(value);
+                    break;
+                default:
+                    throw new IllegalArgumentException("Unknown setting " +
+                     arg);
+            }
+        }
+    }
+
+    /**
+     * Checks edits against a model.  Each edited interface must be valid
+     * and no two static interfaces may overlap once the edits are made.
+     *
+     * @param   conf the model
+     * @param   edits the new interface configurations
+     *
+     * @return  the error messages, empty if the edits can be applied
+     */
+    public List<String> check(DhcpcdConf conf,
+     Collection<InterfaceConfig> edits) {
+        long start = Metrics.start();
+        List<String> errors = new ArrayList<>();
+        Map<String,InterfaceConfig> configs = new LinkedHashMap<>();
+        for (String name : conf.getInterfaces())
+            configs.put(name,conf.getInterface(name));
+        for (InterfaceConfig ic : edits) {
+            int code = ConfigValidator.validate(ic);
+            if (code != ConfigValidator.OK)
+                errors.add(ic.getName() + ": " +
+                 ConfigValidator.message(code));
+            configs.put(ic.getName(),ic);
+        }
+        String[] overlap = ConfigValidator.findOverlap(configs.values());
+        if (overlap != null)
+            errors.add(overlap[0] + " and " + overlap[1] + ": " +
+             ConfigValidator.message(ConfigValidator.OVERLAP));
+        metrics.record(Metrics.VALIDATE,start);
+        return errors;
+    }
+
+    /**
+     * Makes the edits on a copy of dhcpcd.conf and formats what would change
+     *
+     * @param   edits the new interface configurations
+     *
+     * @return  a unified diff, empty if nothing would change
+     *
+     * @throws  IOException if the file can't be read
+     */
+    public String preview(Collection<InterfaceConfig> edits)
+     throws IOException {
+        DhcpcdConf conf = read();
+        DhcpcdConf edited = conf.copy();
+        for (InterfaceConfig ic : edits)
+            edited.setInterface(ic);
+        List<String> a = conf.getLines();
+        List<String> b = edited.getLines();
+        return LineDiff.unified(a,b,LineDiff.diff(a,b),target.toString(),
+         target + " (edited)");
+    }
+
+    /**
+     * Applies edits to dhcpcd.conf, commits it, rebinds the changed
+     * interfaces and waits for them to come back, putting back the blocks
+     * of those that don't
+     *
+     * @param   edits the new interface configurations
+     * @param   note what made the change, for the journal
+     *
+     * @return  what was done
+     *
+     * @throws  IllegalArgumentException if the edits are not valid
+     * @throws  IOException if the file can't be committed, isn't writable
+     *          or an interface can't be rebound
+     * @throws  InterruptedException if interrupted while waiting
+     */
+    public synchronized Outcome apply(Collection<InterfaceConfig> edits,
+     String note) throws IOException, InterruptedException {
+        return commit(conf -> {
+            List<String> errors = check(conf,edits);
+            if (!errors.isEmpty())
+                throw new IllegalArgumentException(String.join("\n",errors));
+            for (InterfaceConfig ic : edits)
+                conf.setInterface(ic);
+        },note,true);
+    }
+
+    /**
+     * Switches to a profile by swapping its blocks into dhcpcd.conf,
+     * committing it and rebinding the interfaces whose blocks changed,
+     * putting back the blocks of those that don't come back
+     *
+     * @param   profile the profile
+     *
+     * @return  what was done
+     *
+     * @throws  IllegalArgumentException if the profile is not valid or
+     *          overlaps another interface
+     * @throws  IOException if the file can't be committed, isn't writable
+     *          or an interface can't be rebound
+     * @throws  InterruptedException if interrupted while waiting
+     */
+    public Outcome activate(Profiles.Profile profile)
+     throws IOException, InterruptedException {
+        return activate(profile,true);
+    }
+
+    /**
+     * Switches to a profile, see activate.  A profile switched to because
+     * an interface lost its carrier can't bring that interface up, so the
+     * watchdog can be left out and the switch kept.
+     *
+     * @param   profile the profile
+     * @param   watch false to not wait for the interfaces to come back
+     *
+     * @return  what was done
+     *
+     * @throws  IllegalArgumentException if the profile is not valid or
+     *          overlaps another interface
+     * @throws  IOException if the file can't be committed, isn't writable
+     *          or an interface can't be rebound
+     * @throws  InterruptedException if interrupted while waiting
+     */
+    public synchronized Outcome activate(Profiles.Profile profile,
+     boolean watch) throws IOException, InterruptedException {
+        return commit(profile::activate,"Profile " + profile.name,watch);
+    }
+
+    /**
+     * Edits dhcpcd.conf, commits it, rebinds the changed interfaces and
+     * waits for them to come back, putting back the blocks of those that
+     * don't.  If another program commits the file between the read and the
+     * commit, the file is read and edited again, up to RETRIES times.
+     *
+     * @param   edit makes the edits on the model
+     * @param   note what made the change, for the journal
+     * @param   watch false to not wait for the interfaces to come back
+     *
+     * @return  what was done
+     *
+     * @throws  IOException if the file can't be committed, isn't writable
+     *          or an interface can't be rebound
+     * @throws  InterruptedException if interrupted while waiting
+     */
+    private Outcome commit(Consumer<DhcpcdConf> edit, String note,
+     boolean watch) throws IOException, InterruptedException {
+        Outcome outcome = new Outcome();
+        DhcpcdConf conf, previous;
+        for (int attempt=1; ; attempt++) {
+            conf = read();
+            previous = conf.copy();
+            edit.accept(conf);
+            outcome.changed.clear();
+            outcome.changed.addAll(conf.getChangedInterfaces());
+            if (outcome.changed.isEmpty()) {
+                outcome.version = record("Before save");
+                return outcome;
+            }
+            if (!committer.isDirect(target))
+                throw new IOException("No write access to " + target +
+                 ", run as root");
+
+            record("Before save");
+            long start = Metrics.start();
+            try {
+                committer.commit(conf,target,ConfCommitter.DHCPCD_CONF);
+            } catch (ConfCommitter.StaleException se) {
+                if (attempt == RETRIES)
+                    throw se;
+                log.accept(se.getMessage() + ", reading it again");
+                continue;
+            }
+            metrics.record(Metrics.WRITE,start);
+            break;
+        }
+        outcome.version = record(note);
+        long start = System.nanoTime();
+        outcome.rebound.putAll(rebind(outcome.changed));
+
+        if (!watch)
+            return outcome;
+        Set<String> failed = watch(conf,outcome,start);
+        if (failed.isEmpty())
+            return outcome;
+        String names = String.join(",",failed);
+        log.accept("Restoring the previous configuration of " + names);
+        DhcpcdConf restored = read();
+        for (String name : failed) {
+            List<String> block = previous.getBlock(name);
+            restored.replaceBlock(name,block != null ? block :
+             Collections.<String>emptyList());
+        }
+        committer.commit(restored,target,ConfCommitter.DHCPCD_CONF);
+        outcome.version = record("Watchdog restore " + names);
+        rebind(failed);
+        outcome.restored.addAll(failed);
+        return outcome;
+    }
+
+    /**
+     * Replaces dhcpcd.conf with a recorded version and rebinds the
+     * interfaces whose parameters differ
+     *
+     * @param   number the version
+     *
+     * @return  what was done
+     *
+     * @throws  IOException if the version can't be rebuilt, the file can't
+     *          be committed or an interface can't be rebound
+     * @throws  InterruptedException if interrupted while waiting
+     */
+    public synchronized Outcome rollback(int number)
+     throws IOException, InterruptedException {
+        if (!committer.isDirect(target))
+            throw new IOException("No write access to " + target +
+             ", run as root");
+        record("Before rollback");
+        String text = ConfJournal.join(journal.lines(number));
+        DhcpcdConf conf = ConfFile.parse(text,null,-1,-1);
+        Outcome outcome = new Outcome();
+        outcome.changed.addAll(read().differences(conf));
+        long start = Metrics.start();
+        committer.commit(text,target,ConfCommitter.DHCPCD_CONF);
+        metrics.record(Metrics.WRITE,start);
+        outcome.version = record("Rollback to " + number);
+        start = System.nanoTime();
+        outcome.rebound.putAll(rebind(outcome.changed));
+        watch(conf,outcome,start);
+        return outcome;
+    }
+
+    /**
+     * Records dhcpcd.conf in the journal, a failure is logged but doesn't
+     * stop the commit
+     *
+     * @param   note what made the version
+     *
+     * @return  the newest version or 0 if it couldn't be recorded
+     */
+    private int record(String note) {
+        try {
+            return journal.record(target,note);
+        } catch (IOException ioe) {
+            log.accept("Error recording dhcpcd.conf version: " +
+             ioe.getMessage());
+            return 0;
+        }
+    }
+
+    /**
+     * Rebinds interfaces and times the rebinds
+     *
+     * @param   names the interfaces
+     *
+     * @return  the time each rebind took in milliseconds
+     *
+     * @throws  IOException if a rebind command can't be run or fails
+     * @throws  InterruptedException if interrupted waiting for a command
+     */
+    private Map<String,Long> rebind(Collection<String> names)
+     throws IOException, InterruptedException {
+        long start = Metrics.start();
+        Map<String,Long> times = reloader.rebind(names);
+        metrics.record(Metrics.RELOAD,start);
+        times.forEach((name,ms) -> log.accept(name + " rebound in " + ms +
+         " ms"));
+        return times;
+    }
+
+    /**
+     * Waits for rebound interfaces with the watchdog
+     *
+     * @param   conf the committed model
+     * @param   outcome receives the results
+     * @param   start the time the rebind started
+     *
+     * @return  the interfaces that didn't come back
+     *
+     * @throws  InterruptedException if interrupted while waiting
+     */
+    private Set<String> watch(DhcpcdConf conf, Outcome outcome, long start)
+     throws InterruptedException {
+        Set<String> failed = new LinkedHashSet<>();
+        if (watchdog == null)
+            return failed;
+        List<InterfaceConfig> configs = new ArrayList<>();
+        for (String name : outcome.changed)
+            configs.add(conf.getInterface(name));
+        outcome.links.putAll(watchdog.watch(configs,start));
+        for (LinkWatchdog.Result r : outcome.links.values()) {
+            log.accept(r.toString());
+            if (r.getAddressTime() >= 0)
+                metrics.get(Metrics.LINK_UP).observe(r.getAddressTime());
+            if (r.getGatewayTime() >= 0)
+                metrics.get(Metrics.GATEWAY).observe(r.getGatewayTime());
+            if (!r.isUp())
+                failed.add(r.name);
+        }
+        return failed;
+    }
+
+    /**
+     * What an apply or rollback did
+     */
+    public static class Outcome {
+        /** Interfaces whose parameters changed */
+        public final Set<String> changed = new LinkedHashSet<>();
+
+        /** Rebind time of each interface in milliseconds */
+        public final Map<String,Long> rebound = new LinkedHashMap<>();
+
+        /** What the watchdog saw of each interface */
+        public final Map<String,LinkWatchdog.Result> links =
+         new LinkedHashMap<>();
+
+        /** Interfaces whose previous blocks were put back */
+        public final Set<String> restored = new LinkedHashSet<>();
+
+        /** Journal version of the file afterwards, 0 if not recorded */
+        public int version;
+    }
+}
@@ -0,0 +1,103 @@
+import java.io.*;
+import java.nio.file.*;
+import java.util.concurrent.*;
+
+/**
+ * Watches a file for changes made by other programs.  A daemon thread
+ * blocks on a {@link WatchService} for the file's directory and runs a
+ * callback when the file is modified or replaced.  Events that arrive in a
+ * burst, as an editor saving a file produces, are coalesced into one
+ * callback.
+ */
+public class ConfWatcher implements Closeable {
+    /** Time to wait for more events of a burst in milliseconds */
+    private static final long SETTLE = 100;
+
+    /** Watched file */
+    private final Path file;
+
+    /** Run when the file changes */
+    private final Runnable onChange;
+
+    /** Watch service for the directory */
+    private final WatchService watchService;
+
+    /**
+     * Creates a new ConfWatcher
+     *
+     * @param   file the file to watch
+     * @param   onChange run on the watcher thread when the file changes
+     *
+     * @throws  IOException if the directory can't be watched
+     */
+    public ConfWatcher(Path file, Runnable onChange) throws IOException {
+        this.file = file.toAbsolutePath();
+        this.onChange = onChange;
+        watchService = this.file.getFileSystem().newWatchService();
+        // an atomic replace shows up as a create in the directory
+        this.file.getParent().register(watchService,
+         StandardWatchEventKinds.ENTRY_CREATE,
+         StandardWatchEventKinds.ENTRY_MODIFY);
+    }
+
+    /**
+     * Starts the watcher thread
+     */
+    public void start() {
+        Thread t = new Thread(this::watch,"conf-watcher");
+        t.setDaemon(true);
+        t.start();
+    }
+
+    /**
+     * Waits for events until the watch service is closed
+     */
+    private void watch() {
+        try {
+            while (true) {
+                if (!matches(watchService.take()))
+                    continue;
+                // let the rest of the burst arrive
+                WatchKey key;
+                while ((key = watchService.poll(SETTLE,
+                 TimeUnit.MILLISECONDS)) != null)
+                    matches(key);
+                try {
+                    onChange.run();
+                } catch (RuntimeException re) {
+                    re.printStackTrace();
+                }
+            }
+        } catch (InterruptedException | ClosedWatchServiceException e) {
+            // closed, stop watching
+        }
+    }
+
+    /**
+     * Tests if a key has events for the watched file and resets it
+     *
+     * @param   key the signalled key
+     *
+     * @return  true if the file changed or events were lost
+     */
+    private boolean matches(WatchKey key) {
+        boolean match = false;
+        for (WatchEvent<?> event : key.pollEvents()) {
+            if (event.kind() == StandardWatchEventKinds.OVERFLOW ||
+             file.getFileName().equals(event.context()))
+                match = true;
+        }
+        key.reset();
+        return match;
+    }
+
+    /**
+     * Stops watching
+     *
+     * @throws  IOException if an I/O error occurs closing the watch service
+     */
+    @Override
+    public void close() throws IOException {
+        watchService.close();
+    }
+}
@@ -0,0 +1,402 @@
+import java.util.*;
+
+/**
+ * Checks static IP parameters before they are written.  Each check returns
+ * an int result code, 0 when the input is valid, and works on the text of
+ * the fields without allocating, so it is cheap enough to run on every
+ * keystroke and fast enough for batch checks of millions of records.
+ */
+public final class ConfigValidator {
+    /** Input is valid */
+    public static final int OK = 0;
+
+    /** Address field result, not an IPv4 address */
+    public static final int BAD_ADDRESS = 1;
+
+    /** Address field result, the network address of the subnet */
+    public static final int NETWORK_ADDRESS = 2;
+
+    /** Address field result, the broadcast address of the subnet */
+    public static final int BROADCAST_ADDRESS = 3;
+
+    /** Bits field result, missing or not 0 to 32 */
+    public static final int BAD_PREFIX = 4;
+
+    /** Routers field result, not a list of IPv4 addresses */
+    public static final int BAD_ROUTER = 5;
+
+    /** Routers field result, a router outside the subnet */
+    public static final int ROUTER_OUTSIDE = 6;
+
+    /** Routers field result, a router that is the address itself */
+    public static final int ROUTER_IS_ADDRESS = 7;
+
+    /** DNS servers field result, not a list of addresses */
+    public static final int BAD_NAME_SERVER = 8;
+
+    /** Address field result, the subnet overlaps another interface */
+    public static final int OVERLAP = 9;
+
+    /** IPv6 address field result, not an IPv6 address */
+    public static final int BAD_IP6_ADDRESS = 10;
+
+    /** IPv6 address field result, unspecified or multicast */
+    public static final int IP6_UNUSABLE = 11;
+
+    /** IPv6 bits field result, missing or not 0 to 128 */
+    public static final int BAD_IP6_PREFIX = 12;
+
+    /** Routers field result, routers without an IPv4 address */
+    public static final int ROUTERS_WITHOUT_ADDRESS = 13;
+
+    /** Address field */
+    public static final int ADDRESS_FIELD = 0;
+
+    /** Bits field */
+    public static final int BITS_FIELD = 1;
+
+    /** Routers field */
+    public static final int ROUTERS_FIELD = 2;
+
+    /** DNS servers field */
+    public static final int NAME_SERVERS_FIELD = 3;
+
+    /** IPv6 address field */
+    public static final int IP6_ADDRESS_FIELD = 4;
+
+    /** IPv6 bits field */
+    public static final int IP6_BITS_FIELD = 5;
+
+    /** Messages by result code */
+    private static final String[] MESSAGES = {
+        "OK",
+        "Not an IPv4 address",
+        "The network address of the subnet can't be used",
+        "The broadcast address of the subnet can't be used",
+        "Prefix bits must be 0 to 32",
+        "Routers must be IPv4 addresses separated by spaces",
+        "Router is outside the subnet",
+        "Router can't be the interface address",
+        "DNS servers must be addresses separated by spaces",
+        "Subnet overlaps another interface",
+        "Not an IPv6 address",
+        "The unspecified or a multicast address can't be used",
+        "Prefix bits must be 0 to 128",
+        "Routers need an IPv4 address"
+    };
+
+    /** Field of each result code */
+    private static final int[] FIELDS = {
+        ADDRESS_FIELD,ADDRESS_FIELD,ADDRESS_FIELD,ADDRESS_FIELD,BITS_FIELD,
+        ROUTERS_FIELD,ROUTERS_FIELD,ROUTERS_FIELD,NAME_SERVERS_FIELD,
+        ADDRESS_FIELD,IP6_ADDRESS_FIELD,IP6_ADDRESS_FIELD,IP6_BITS_FIELD,
+        ROUTERS_FIELD
+    };
+
+    /** Per thread buffer for parsed IPv6 addresses */
+    private static final ThreadLocal<long[]> IP6 =
+     ThreadLocal.withInitial(() -> new long[2]);
+
+    private ConfigValidator() { }
+
+    /**
+     * Validates the static IPv4 parameters of an interface.  An empty address
+     * means the interface is not static and is always valid.
+     *
+     * @param   address the address text
+     * @param   bits the prefix bits text
+     * @param   routers the routers text, addresses separated by spaces
+     * @param   nameServers the DNS servers text, addresses separated by
+     *          spaces
+     *
+     * @return  OK or the first problem found
+     */
+    public static int validate(CharSequence address, CharSequence bits,
+     CharSequence routers, CharSequence nameServers) {
+        return validate(address,bits,routers,nameServers,"","");
+    }
+
+    /**
+     * Validates the static IP parameters of a dual stack interface.  An
+     * empty address means the interface has no static address of that
+     * family, without either it is not static and is always valid.  Routers
+     * are IPv4 and are only written with an IPv4 address, so routers with
+     * only an IPv6 address are refused rather than dropped.  Every field
+     * ends up on a line of dhcpcd.conf, so one holding a line break or
+     * another control character is refused as not valid for that field.
+     *
+     * @param   address the address text
+     * @param   bits the prefix bits text
+     * @param   routers the routers text, addresses separated by spaces
+     * @param   nameServers the DNS servers text, IPv4 or IPv6 addresses
+     *          separated by spaces
+     * @param   ip6Address the IPv6 address text
+     * @param   ip6Bits the IPv6 prefix bits text
+     *
+     * @return  OK or the first problem found
+     */
+    public static int validate(CharSequence address, CharSequence bits,
+     CharSequence routers, CharSequence nameServers, CharSequence ip6Address,
+     CharSequence ip6Bits) {
+        if (hasControl(address))
+            return BAD_ADDRESS;
+        if (hasControl(bits))
+            return BAD_PREFIX;
+        if (hasControl(routers))
+            return BAD_ROUTER;
+        if (hasControl(nameServers))
+            return BAD_NAME_SERVER;
+        if (hasControl(ip6Address))
+            return BAD_IP6_ADDRESS;
+        if (hasControl(ip6Bits))
+            return BAD_IP6_PREFIX;
+
+        int from = skip(address,0), to = trimEnd(address);
+        int from6 = skip(ip6Address,0), to6 = trimEnd(ip6Address);
+        if (from == to && from6 == to6)
+            return OK;
+
+        if (from < to) {
+            int code = validateIpv4(address,from,to,bits,routers);
+            if (code != OK)
+                return code;
+        } else if (skip(routers,0) < routers.length()) {
+            return ROUTERS_WITHOUT_ADDRESS;
+        }
+
+        if (from6 < to6) {
+            long[] a = IP6.get();
+            if (!Ipv6Address.parse(ip6Address,from6,to6,a))
+                return BAD_IP6_ADDRESS;
+            // unspecified or multicast, ff00::/8
+            if ((a[0] == 0 && a[1] == 0) || (a[0] >>> 56) == 0xff)
+                return IP6_UNUSABLE;
+            if (Ipv4.parsePrefix(ip6Bits,skip(ip6Bits,0),trimEnd(ip6Bits),
+             128) < 0)
+                return BAD_IP6_PREFIX;
+        }
+
+        int pos = skip(nameServers,0);
+        while (pos < nameServers.length()) {
+            int end = word(nameServers,pos);
+            if (!isNameServer(nameServers,pos,end))
+                return BAD_NAME_SERVER;
+            pos = skip(nameServers,end);
+        }
+
+        return OK;
+    }
+
+    /**
+     * Validates the IPv4 address, prefix and routers of an interface
+     *
+     * @param   address the address text
+     * @param   from index of the first character of the address
+     * @param   to index one past the last character of the address
+     * @param   bits the prefix bits text
+     * @param   routers the routers text
+     *
+     * @return  OK or the first problem found
+     */
+    private static int validateIpv4(CharSequence address, int from, int to,
+     CharSequence bits, CharSequence routers) {
+        long a = Ipv4.parse(address,from,to);
+        if (a == Ipv4.INVALID)
+            return BAD_ADDRESS;
+        int prefix = Ipv4.parsePrefix(bits,skip(bits,0),trimEnd(bits),32);
+        if (prefix < 0)
+            return BAD_PREFIX;
+        int addr = (int)a;
+        // /31 and /32 have no network or broadcast address, RFC 3021
+        if (prefix < 31) {
+            if (addr == Ipv4.network(addr,prefix))
+                return NETWORK_ADDRESS;
+            if (addr == Ipv4.broadcast(addr,prefix))
+                return BROADCAST_ADDRESS;
+        }
+
+        int pos = skip(routers,0);
+        while (pos < routers.length()) {
+            int end = word(routers,pos);
+            long r = Ipv4.parse(routers,pos,end);
+            if (r == Ipv4.INVALID)
+                return BAD_ROUTER;
+            if (!Ipv4.contains(addr,prefix,(int)r))
+                return ROUTER_OUTSIDE;
+            if ((int)r == addr)
+                return ROUTER_IS_ADDRESS;
+            pos = skip(routers,end);
+        }
+
+        return OK;
+    }
+
+    /**
+     * Validates an interface configuration
+     *
+     * @param   ic the configuration
+     *
+     * @return  OK or the first problem found
+     */
+    public static int validate(InterfaceConfig ic) {
+        return validate(ic.getAddress(),ic.getBits(),ic.getRouters(),
+         ic.getNameServers(),ic.getIp6Address(),ic.getIp6Bits());
+    }
+
+    /**
+     * Finds static interfaces whose IPv4 or IPv6 subnets overlap.
+     * Configurations that are not static or not valid are skipped.
+     *
+     * @param   configs the configurations
+     *
+     * @return  the names of the first two interfaces that overlap or null
+     */
+    public static String[] findOverlap(Collection<InterfaceConfig> configs) {
+        int size = configs.size();
+        String[] names = new String[size];
+        int[] addresses = new int[size];
+        int[] prefixes = new int[size];
+        String[] names6 = new String[size];
+        Ipv6Address[] addresses6 = new Ipv6Address[size];
+        int[] prefixes6 = new int[size];
+        int n = 0, n6 = 0;
+        for (InterfaceConfig ic : configs) {
+            if (!ic.isStatic() || validate(ic) != OK)
+                continue;
+            if (!ic.getAddress().isEmpty()) {
+                names[n] = ic.getName();
+                addresses[n] = (int)Ipv4.parse(ic.getAddress());
+                prefixes[n++] = Integer.parseInt(ic.getBits());
+            }
+            if (!ic.getIp6Address().isEmpty()) {
+                names6[n6] = ic.getName();
+                addresses6[n6] = Ipv6Address.parse(ic.getIp6Address());
+                prefixes6[n6++] = Integer.parseInt(ic.getIp6Bits());
+            }
+        }
+
+        for (int i=0; i<n; i++)
+            for (int j=i+1; j<n; j++)
+                if (Ipv4.overlaps(addresses[i],prefixes[i],addresses[j],
+                 prefixes[j]))
+                    return new String[] { names[i],names[j] };
+        for (int i=0; i<n6; i++)
+            for (int j=i+1; j<n6; j++)
+                if (addresses6[i].overlaps(prefixes6[i],addresses6[j],
+                 prefixes6[j]))
+                    return new String[] { names6[i],names6[j] };
+        return null;
+    }
+
+    /**
+     * Tests if a word is an IPv4 or IPv6 DNS server address
+     *
+     * @param   s the text
+     * @param   from index of the first character
+     * @param   to index one past the last character
+     *
+     * @return  true if the word is an address
+     */
+    static boolean isNameServer(CharSequence s, int from, int to) {
+        return Ipv4.parse(s,from,to) != Ipv4.INVALID ||
+         Ipv6Address.isValid(s,from,to);
+    }
+
+    /**
+     * Gets the message for a result code
+     *
+     * @param   code the result code
+     *
+     * @return  the message
+     */
+    public static String message(int code) {
+        return MESSAGES[code];
+    }
+
+    /**
+     * Gets the field a result code is about
+     *
+     * @param   code the result code, not OK
+     *
+     * @return  ADDRESS_FIELD, BITS_FIELD, ROUTERS_FIELD,
+     *          NAME_SERVERS_FIELD, IP6_ADDRESS_FIELD or IP6_BITS_FIELD
+     */
+    public static int field(int code) {
+        return FIELDS[code];
+    }
+
+    /**
+     * Tests if text holds a control character, e.g. a line break, other
+     * than at its ends, which are trimmed before it is written
+     *
+     * @param   s the text
+     *
+     * @return  true if it does
+     */
+    static boolean hasControl(CharSequence s) {
+        int end = trimEnd(s);
+        for (int i=skipBlank(s,0); i<end; i++) {
+            char ch = s.charAt(i);
+            if (ch < ' ' || ch == 0x7f)
+                return true;
+        }
+        return false;
+    }
+
+    /**
+     * Skips leading whitespace
+     *
+     * @param   s the text
+     * @param   pos the position to start at
+     *
+     * @return  the position of the next other character or the length
+     */
+    private static int skipBlank(CharSequence s, int pos) {
+        while (pos < s.length() && s.charAt(pos) <= ' ')
+            ++pos;
+        return pos;
+    }
+
+    /**
+     * Skips spaces and commas
+     *
+     * @param   s the text
+     * @param   pos the position to start at
+     *
+     * @return  the position of the next other character or the length
+     */
+    private static int skip(CharSequence s, int pos) {
+        while (pos < s.length() && (s.charAt(pos) <= ' ' ||
+         s.charAt(pos) == ','))
+            ++pos;
+        return pos;
+    }
+
+    /**
+     * Gets the end of the text without trailing spaces
+     *
+     * @param   s the text
+     *
+     * @return  the end index
+     */
+    private static int trimEnd(CharSequence s) {
+        int end = s.length();
+        while (end > 0 && s.charAt(end - 1) <= ' ')
+            --end;
+        return end;
+    }
+
+    /**
+     * Gets the end of a word
+     *
+     * @param   s the text
+     * @param   pos the start of the word
+     *
+     * @return  the index after the word
+     */
+    private static int word(CharSequence s, int pos) {
+        while (pos < s.length() && s.charAt(pos) > ' ' && s.charAt(pos) != ',')
+            ++pos;
+        return pos;
+    }
+}
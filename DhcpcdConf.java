@@ -0,0 +1,446 @@
+import java.util.*;
+
+/**
+ * Parsed model of a dhcpcd.conf file.  The lines are kept exactly as read
+ * and a single pass over them builds an index from interface name to the
+ * range of lines in that interface's block, so an edit replaces the whole
+ * range in one step instead of rescanning the file.  Lines read by
+ * {@link ConfFile} remember where their bytes came from so that untouched
+ * lines can be copied back out verbatim.  A model can be frozen once it is
+ * published to other threads, after which it is an immutable snapshot that
+ * is read without locks and edited through a copy.
+ */
+public class DhcpcdConf {
+    /** Lines of the file */
+    private final List<Line> lines;
+
+    /** Line terminator used for new lines */
+    private final String eol;
+
+    /** File the lines were read from or null */
+    final java.nio.file.Path source;
+
+    /** Size of the source file when it was read */
+    final long sourceSize;
+
+    /** Modification time of the source file when it was read */
+    final long sourceTime;
+
+    /** Version of the source file when it was read, -1 if unknown */
+    final long sourceVersion;
+
+    /** True once the model may no longer be edited */
+    private volatile boolean frozen;
+
+    /** Interface name to block, in file order */
+    private final Map<String,Block> blocks = new LinkedHashMap<>();
+
+    /** Interfaces whose blocks have been edited */
+    private final Set<String> changed = new LinkedHashSet<>();
+
+    /**
+     * Creates a new DhcpcdConf from the lines of a dhcpcd.conf file
+     *
+     * @param   lines the lines of the file
+     */
+    public DhcpcdConf(List<String> lines) {
+        this.lines = new ArrayList<>(lines.size());
+        for (String line : lines)
+            this.lines.add(new Line(line,"\n",-1));
+        eol = "\n";
+        source = null;
+        sourceSize = sourceTime = sourceVersion = -1;
+        index();
+    }
+
+    /**
+     * Creates a new DhcpcdConf from lines read from a file
+     *
+     * @param   lines the lines of the file
+     * @param   eol the line terminator to use for new lines
+     * @param   source the file the lines were read from
+     * @param   sourceSize the size of the file
+     * @param   sourceTime the modification time of the file
+     * @param   sourceVersion the version of the file from
+     *          {@link ConfFile#version} or -1
+     */
+    DhcpcdConf(List<Line> lines, String eol, java.nio.file.Path source,
+     long sourceSize, long sourceTime, long sourceVersion) {
+        this.lines = lines;
+        this.eol = eol;
+        this.source = source;
+        this.sourceSize = sourceSize;
+        this.sourceTime = sourceTime;
+        this.sourceVersion = sourceVersion;
+        index();
+    }
+
+    /**
+     * Creates a copy that can be edited without affecting this one.  Lines
+     * are immutable so only the list is copied, and the copy keeps the
+     * source file so untouched lines are still copied from it when written.
+     * The copy starts with no changed interfaces and is not frozen.
+     *
+     * @return  the copy
+     */
+    public DhcpcdConf copy() {
+        return new DhcpcdConf(new ArrayList<>(lines),eol,source,sourceSize,
+         sourceTime,sourceVersion);
+    }
+
+    /**
+     * Freezes the model so that it can be shared as a snapshot
+     *
+     * @return  this model
+     */
+    public DhcpcdConf freeze() {
+        frozen = true;
+        return this;
+    }
+
+    /**
+     * Gets the version of the file the model was read from, which a commit
+     * checks the file still has
+     *
+     * @return  the version or -1 if the model was not read from a file
+     */
+    public long getSourceVersion() {
+        return sourceVersion;
+    }
+
+    /**
+     * Builds the interface block index in one pass over the lines.  A block
+     * starts at an interface line and runs to the next interface, profile
+     * or ssid line.  Trailing blank lines and comments are left to whatever
+     * follows the block.
+     */
+    private void index() {
+        blocks.clear();
+        Block current = null;
+        for (int i=0; i<lines.size(); i++) {
+            String keyword = keyword(lines.get(i).text);
+            if (keyword.equals("interface") || keyword.equals("profile") ||
+             keyword.equals("ssid")) {
+                if (current != null)
+                    current.end = trimEnd(current.start,i);
+                current = null;
+                if (keyword.equals("interface")) {
+                    String name = argument(lines.get(i).text);
+                    if (!name.isEmpty()) {
+                        current = new Block(i);
+                        // the last block for an interface wins, as dhcpcd
+                        // applies them in order
+                        blocks.remove(name);
+                        blocks.put(name,current);
+                    }
+                }
+            }
+        }
+        if (current != null)
+            current.end = trimEnd(current.start,lines.size());
+    }
+
+    /**
+     * Moves the end of a block back over trailing blank and comment lines
+     *
+     * @param   start index of the block header
+     * @param   end index one past the last candidate line
+     *
+     * @return  the trimmed end index
+     */
+    private int trimEnd(int start, int end) {
+        while (end > start + 1) {
+            String str = lines.get(end - 1).text.trim();
+            if (!str.isEmpty() && !str.startsWith("#"))
+                break;
+            --end;
+        }
+        return end;
+    }
+
+    /**
+     * Gets the first word of a line
+     *
+     * @param   line the line
+     *
+     * @return  the first word or an empty String
+     */
+    static String keyword(String line) {
+        String str = line.trim();
+        int i = 0;
+        while (i < str.length() && !Character.isWhitespace(str.charAt(i)))
+            ++i;
+        return str.substring(0,i);
+    }
+
+    /**
+     * Gets the second word of a line
+     *
+     * @param   line the line
+     *
+     * @return  the second word or an empty String
+     */
+    static String argument(String line) {
+        String str = line.trim();
+        str = str.substring(keyword(str).length()).trim();
+        int i = 0;
+        while (i < str.length() && !Character.isWhitespace(str.charAt(i)) &&
+         str.charAt(i) != '#')
+            ++i;
+        return str.substring(0,i);
+    }
+
+    /**
+     * Gets the lines of the file
+     *
+     * @return  an unmodifiable view of the lines
+     */
+    public List<String> getLines() {
+        return new Text(lines);
+    }
+
+    /**
+     * Gets the lines of the file with their terminators, as they are
+     * written
+     *
+     * @return  the lines
+     */
+    List<String> rawLines() {
+        List<String> raw = new ArrayList<>(lines.size());
+        for (Line line : lines)
+            raw.add(line.text + line.eol);
+        return raw;
+    }
+
+    /**
+     * Gets the lines of the file with their source information
+     *
+     * @return  the lines
+     */
+    List<Line> lines() {
+        return Collections.unmodifiableList(lines);
+    }
+
+    /**
+     * Gets the line terminator used for new lines
+     *
+     * @return  the line terminator
+     */
+    String getLineTerminator() {
+        return eol;
+    }
+
+    /**
+     * Gets the names of the interfaces that have a block, in file order
+     *
+     * @return  the interface names
+     */
+    public Set<String> getInterfaces() {
+        return Collections.unmodifiableSet(blocks.keySet());
+    }
+
+    /**
+     * Gets the interfaces whose blocks overlap a range of lines
+     *
+     * @param   from index of the first line
+     * @param   to index one past the last line
+     *
+     * @return  the interface names
+     */
+    Set<String> interfacesIn(int from, int to) {
+        Set<String> names = new LinkedHashSet<>();
+        for (Map.Entry<String,Block> e : blocks.entrySet()) {
+            Block b = e.getValue();
+            // an empty range still touches the block it falls inside
+            if (b.start < Math.max(to,from + 1) && b.end > from)
+                names.add(e.getKey());
+        }
+        return names;
+    }
+
+    /**
+     * Gets the lines of an interface block
+     *
+     * @param   name the interface name
+     *
+     * @return  an unmodifiable view of the block lines or null if there is
+     *          no block for the interface
+     */
+    public List<String> getBlock(String name) {
+        Block b = blocks.get(name);
+        if (b == null)
+            return null;
+        return new Text(lines.subList(b.start,b.end));
+    }
+
+    /**
+     * Replaces the lines of an interface block in one step.  If there is no
+     * block for the interface the new lines are appended to the file and if
+     * the new lines are empty the block is removed.  Lines of the old block
+     * that appear unchanged in the new one keep their source position.
+     *
+     * @param   name the interface name
+     * @param   block the new block lines, header included
+     *
+     * @throws  IllegalStateException if the model is frozen
+     */
+    public void replaceBlock(String name, List<String> block) {
+        if (frozen)
+            throw new IllegalStateException("The model is a frozen snapshot");
+        Block b = blocks.get(name);
+        if (b == null) {
+            if (block.isEmpty())
+                return;
+            b = new Block(lines.size());
+            for (String line : block)
+                lines.add(new Line(line,eol,-1));
+            b.end = lines.size();
+            blocks.put(name,b);
+            changed.add(name);
+            return;
+        }
+
+        List<Line> range = lines.subList(b.start,b.end);
+        if (new Text(range).equals(block))
+            return;
+        changed.add(name);
+
+        // reuse the old lines where the text is unchanged
+        Map<String,Deque<Line>> old = new HashMap<>();
+        for (Line line : range)
+            old.computeIfAbsent(line.text,k -> new ArrayDeque<>()).add(line);
+        List<Line> replacement = new ArrayList<>(block.size());
+        for (String text : block) {
+            Deque<Line> q = old.get(text);
+            Line line = q == null ? null : q.poll();
+            replacement.add(line != null ? line : new Line(text,eol,-1));
+        }
+
+        int delta = replacement.size() - range.size();
+        range.clear();
+        range.addAll(replacement);
+        b.end += delta;
+
+        // shift the blocks that follow the edit
+        if (delta != 0)
+            for (Block other : blocks.values())
+                if (other.start > b.start) {
+                    other.start += delta;
+                    other.end += delta;
+                }
+        if (block.isEmpty())
+            blocks.remove(name);
+    }
+
+    /**
+     * Gets the interfaces whose blocks have been added, edited or removed
+     * since the file was read
+     *
+     * @return  the interface names in the order they were edited
+     */
+    public Set<String> getChangedInterfaces() {
+        return Collections.unmodifiableSet(changed);
+    }
+
+    /**
+     * Gets the static IP parameters of an interface
+     *
+     * @param   name the interface name
+     *
+     * @return  the interface configuration, empty if there is no block
+     */
+    public InterfaceConfig getInterface(String name) {
+        return InterfaceConfig.fromBlock(name,getBlock(name));
+    }
+
+    /**
+     * Stores the static IP parameters of an interface in its block
+     *
+     * @param   ic the interface configuration
+     */
+    public void setInterface(InterfaceConfig ic) {
+        replaceBlock(ic.getName(),ic.render(getBlock(ic.getName())));
+    }
+
+    /**
+     * Gets the interfaces whose static IP parameters differ from another
+     * version of the file
+     *
+     * @param   other the other version
+     *
+     * @return  the interface names, in file order
+     */
+    public Set<String> differences(DhcpcdConf other) {
+        Set<String> names = new LinkedHashSet<>(blocks.keySet());
+        names.addAll(other.blocks.keySet());
+        names.removeIf(name ->
+         getInterface(name).sameValues(other.getInterface(name)));
+        return names;
+    }
+
+    /**
+     * A line of the file and where its bytes came from
+     */
+    static final class Line {
+        /** Line text without the terminator */
+        final String text;
+
+        /** Line terminator, empty for a last line without one */
+        final String eol;
+
+        /** Offset of the line in the source file or -1 for a new line */
+        final long offset;
+
+        public Line(String text, String eol, long offset) {
+            this.text = text;
+            this.eol = eol;
+            this.offset = offset;
+        }
+
+        /**
+         * Gets the length of the line in the source file
+         *
+         * @return  length in bytes, terminator included
+         */
+        long length() {
+            return text.length() + eol.length();
+        }
+    }
+
+    /**
+     * Read only view of the text of a list of lines
+     */
+    private static class Text extends AbstractList<String> {
+        /** Viewed lines */
+        private final List<Line> lines;
+
+        public Text(List<Line> lines) {
+            this.lines = lines;
+        }
+
+        @Override
+        public String get(int index) {
+            return lines.get(index).text;
+        }
+
+        @Override
+        public int size() {
+            return lines.size();
+        }
+    }
+
+    /**
+     * Range of lines of an interface block
+     */
+    private static class Block {
+        /** Index of the interface line */
+        int start;
+
+        /** Index one past the last line */
+        int end;
+
+        public Block(int start) {
+            this.start = start;
+        }
+    }
+}
@@ -0,0 +1,88 @@
+import java.io.*;
+import java.util.*;
+
+/**
+ * Reloads dhcpcd for the interfaces whose blocks changed.  Each interface is
+ * rebound on its own with dhcpcd -n so the other links stay up.
+ */
+public class DhcpcdReloader {
+    /** Runs the commands */
+    private final CommandExecutor executor;
+
+    /** True to prefix the commands with sudo */
+    private final boolean sudo;
+
+    /**
+     * Creates a new DhcpcdReloader
+     *
+     * @param   executor runs the commands
+     * @param   sudo true to prefix the commands with sudo
+     */
+    public DhcpcdReloader(CommandExecutor executor, boolean sudo) {
+        this.executor = executor;
+        this.sudo = sudo;
+    }
+
+    /**
+     * Creates a new DhcpcdReloader that uses sudo unless running as root
+     *
+     * @param   executor runs the commands
+     */
+    public DhcpcdReloader(CommandExecutor executor) {
+        this(executor,!"root".equals(System.getProperty("user.name")));
+    }
+
+    /**
+     * Thrown when the file was committed but an interface could not be
+     * rebound, the file is not put back
+     */
+    public static class RebindException extends IOException {
+        private static final long serialVersionUID = 1L;
+
+        public RebindException(String message) {
+            super(message);
+        }
+    }
+
+    /**
+     * Gets the command that rebinds an interface
+     *
+     * @param   name the interface name
+     *
+     * @return  the command and its arguments
+     */
+    public List<String> rebindCommand(String name) {
+        List<String> command = new ArrayList<>();
+        if (sudo)
+            command.add("sudo");
+        command.add("dhcpcd");
+        command.add("-n");
+        command.add(name);
+        return command;
+    }
+
+    /**
+     * Rebinds the given interfaces one at a time
+     *
+     * @param   names the interface names
+     *
+     * @return  the time each rebind took in milliseconds, by interface
+     *
+     * @throws  RebindException if a command fails
+     * @throws  IOException if a command can't be run
+     * @throws  InterruptedException if interrupted waiting for a command
+     */
+    public Map<String,Long> rebind(Collection<String> names)
+     throws IOException, InterruptedException {
+        Map<String,Long> times = new LinkedHashMap<>();
+        for (String name : names) {
+            long start = System.nanoTime();
+            int status = executor.execute(rebindCommand(name));
+            if (status != 0)
+                throw new RebindException("dhcpcd -n " + name +
+                 " exited with status " + status);
+            times.put(name,(System.nanoTime() - start) / 1000000);
+        }
+        return times;
+    }
+}
@@ -0,0 +1,87 @@
+import java.awt.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+
+/**
+ * Measures how long the Event Dispatch Thread is kept from running events.
+ * While started, a probe event is posted every few milliseconds and the
+ * delay between posting it and the EDT running it is recorded, the longest
+ * delay is the worst stall the user could have seen.
+ */
+public class EdtMonitor {
+    /** Longest stall that goes unnoticed, one frame at 60 Hz */
+    public static final long FRAME_NANOS = 16000000L;
+
+    /** Time between probes in milliseconds */
+    private static final long PERIOD = 4;
+
+    /** Posts the probes */
+    private final ScheduledExecutorService scheduler =
+     Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread t = new Thread(r,"edt-monitor");
+        t.setDaemon(true);
+        return t;
+    });
+
+    /** Time the outstanding probe was posted or 0 if none is outstanding */
+    private final AtomicLong posted = new AtomicLong();
+
+    /** Longest delay seen in nanoseconds */
+    private final AtomicLong longest = new AtomicLong();
+
+    /** Running probe task or null */
+    private ScheduledFuture<?> task;
+
+    /**
+     * Starts measuring, the longest delay is reset
+     */
+    public synchronized void start() {
+        longest.set(0);
+        posted.set(0);
+        if (task == null)
+            task = scheduler.scheduleAtFixedRate(this::probe,0,PERIOD,
+             TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Stops measuring
+     *
+     * @return  the longest delay seen in nanoseconds
+     */
+    public synchronized long stop() {
+        if (task != null) {
+            task.cancel(false);
+            task = null;
+        }
+        // a probe still waiting on the EDT is a stall that has not ended
+        long t = posted.get();
+        if (t != 0)
+            record(System.nanoTime() - t);
+        return longest.get();
+    }
+
+    /**
+     * Posts a probe unless the last one has not run yet
+     */
+    private void probe() {
+        long now = System.nanoTime();
+        if (!posted.compareAndSet(0,now))
+            return;
+        EventQueue.invokeLater(() -> {
+            record(System.nanoTime() - now);
+            posted.compareAndSet(now,0);
+        });
+    }
+
+    /**
+     * Records a delay
+     *
+     * @param   nanos the delay in nanoseconds
+     */
+    private void record(long nanos) {
+        long l;
+        while (nanos > (l = longest.get()))
+            if (longest.compareAndSet(l,nanos))
+                break;
+    }
+}
@@ -0,0 +1,688 @@
+import java.io.*;
+import java.nio.charset.*;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+import java.util.function.*;
+
+/**
+ * Headless fleet mode.  Renders one dhcpcd.conf file per host from a base
+ * file and an inventory with one record per host and interface, applying
+ * each record to a copy of the base with the same block editing the form
+ * uses.  The inventory is streamed, records are read one at a time, gathered
+ * per host and handed to a fork/join pool with a bound on the number of
+ * hosts in flight, so the records and rendered files held do not grow with
+ * the size of the inventory.  The records of a host must be adjacent, and
+ * to catch those that aren't the names of the hosts seen are kept, a few
+ * tens of bytes per host.
+ *
+ * <p>An inventory is either CSV, with an optional header line naming the
+ * columns, or JSON lines, one flat object per line.  The columns or keys are
+ * host, interface, ip_address, routers, domain_name_servers and ip6_address,
+ * addresses in address/bits form.  An ip_address of auto takes the next free
+ * address from the address pool holding the first router, or from the only
+ * pool, and auto:a.b.c.d/bits takes it from the pool of that subnet.  A
+ * record without addresses removes the static configuration of the interface
+ * from the base.  Nothing here touches
+ * AWT so it runs on machines without a display.
+ */
+public class Fleet {
+    /** Column names in default order */
+    static final String[] COLUMNS = { "host","interface","ip_address",
+     "routers","domain_name_servers","ip6_address" };
+
+    /** Host column */
+    static final int HOST = 0;
+
+    /** Interface column */
+    static final int INTERFACE = 1;
+
+    /** IPv4 address/bits column */
+    static final int IP_ADDRESS = 2;
+
+    /** Routers column */
+    static final int ROUTERS = 3;
+
+    /** DNS servers column */
+    static final int NAME_SERVERS = 4;
+
+    /** IPv6 address/bits column */
+    static final int IP6_ADDRESS = 5;
+
+    /** Hosts in flight per worker thread */
+    private static final int HOSTS_PER_THREAD = 16;
+
+    /** Base configuration every host starts from */
+    private final DhcpcdConf base;
+
+    /** Directory the host files are written to */
+    private final Path outDir;
+
+    /** Renders hosts */
+    private final ForkJoinPool pool;
+
+    /** Bounds the hosts read but not yet written */
+    private final Semaphore inFlight;
+
+    /** Number of permits of inFlight */
+    private final int permits;
+
+    /** Receives error messages */
+    private final Consumer<String> errors;
+
+    /** Address pools for auto addresses or null */
+    private AddressPools pools;
+
+    /** Pools that handed out or took back addresses */
+    private final Set<AddressPool> touched = ConcurrentHashMap.newKeySet();
+
+    /** Host files written */
+    private final AtomicLong written = new AtomicLong();
+
+    /** Hosts that could not be rendered */
+    private final AtomicLong failed = new AtomicLong();
+
+    /** Lines that could not be read as a record of a host */
+    private final AtomicLong badLines = new AtomicLong();
+
+    /**
+     * Creates a new Fleet
+     *
+     * @param   base the base configuration
+     * @param   outDir the directory to write host files to
+     * @param   parallelism the number of worker threads
+     * @param   errors receives error messages, called from worker threads
+     */
+    public Fleet(DhcpcdConf base, Path outDir, int parallelism,
+     Consumer<String> errors) {
+        // host files are encoded from memory, reopening the base file for
+        // every host to copy a few hundred bytes costs more than encoding
+        this.base = new DhcpcdConf(new ArrayList<>(base.lines()),
+         base.getLineTerminator(),null,-1,-1,-1);
+        this.outDir = outDir;
+        this.errors = errors;
+        pool = new ForkJoinPool(parallelism);
+        permits = parallelism * HOSTS_PER_THREAD;
+        inFlight = new Semaphore(permits);
+    }
+
+    /**
+     * Sets the address pools auto addresses are allocated from
+     *
+     * @param   pools the pools or null for none
+     */
+    public void setPools(AddressPools pools) {
+        this.pools = pools;
+    }
+
+    /**
+     * Renders every host of an inventory and waits for the files to be
+     * written.  Auto addresses are allocated as records are read so they
+     * follow the order of the inventory, the pools are saved at the end.
+     * A bad record fails its host once and the rest of the host's records
+     * are skipped, a line without a host is counted as a bad line.
+     *
+     * @param   in the inventory
+     * @param   json true for JSON lines, false for CSV
+     *
+     * @return  the number of host files written
+     *
+     * @throws  IOException if an I/O error occurs reading the inventory or
+     *          the records of a host are not adjacent
+     * @throws  InterruptedException if interrupted while waiting
+     */
+    public long run(BufferedReader in, boolean json)
+     throws IOException, InterruptedException {
+        int[] map = { 0,1,2,3,4,5 };
+        // names of the hosts seen, the one set that grows with the inventory
+        Set<String> done = new HashSet<>();
+        String host = null;
+        List<InterfaceConfig> group = new ArrayList<>();
+        List<Integer> allocated = new ArrayList<>();
+        long lineNo = 0;
+        boolean first = true;
+        try {
+            String line;
+            while ((line = in.readLine()) != null) {
+                ++lineNo;
+                String str = line.trim();
+                if (str.isEmpty() || str.startsWith("#"))
+                    continue;
+                String[] rec;
+                try {
+                    if (json) {
+                        rec = parseJson(str);
+                    } else {
+                        List<String> fields = parseCsv(str);
+                        if (first && fields.get(0).equalsIgnoreCase("host")) {
+                            map = header(fields);
+                            first = false;
+                            continue;
+                        }
+                        rec = new String[COLUMNS.length];
+                        for (int c=0; c<COLUMNS.length; c++)
+                            rec[c] = map[c] >= 0 && map[c] < fields.size() ?
+                             fields.get(map[c]).trim() : "";
+                    }
+                } catch (IllegalArgumentException iae) {
+                    errors.accept("line " + lineNo + ": " + iae.getMessage());
+                    badLines.incrementAndGet();
+                    continue;
+                }
+                first = false;
+                if (rec[HOST].isEmpty()) {
+                    errors.accept("line " + lineNo + ": host is required");
+                    badLines.incrementAndGet();
+                    continue;
+                }
+
+                if (!rec[HOST].equals(host)) {
+                    submit(host,group,allocated);
+                    if (!done.add(rec[HOST]))
+                        throw new IOException("line " + lineNo +
+                         ": records for host " + rec[HOST] +
+                         " are not adjacent");
+                    host = rec[HOST];
+                    group = new ArrayList<>();
+                    allocated = new ArrayList<>();
+                }
+                // the rest of a failed host is skipped
+                if (group == null)
+                    continue;
+                try {
+                    if (rec[INTERFACE].isEmpty())
+                        throw new IllegalArgumentException(
+                         "interface is required");
+                    group.add(toConfig(rec,allocated));
+                } catch (IllegalArgumentException iae) {
+                    fail(host,"line " + lineNo + ": " + iae.getMessage());
+                    release(allocated);
+                    group = null;
+                }
+            }
+            submit(host,group,allocated);
+        } finally {
+            // wait for the hosts in flight
+            inFlight.acquire(permits);
+            inFlight.release(permits);
+            for (AddressPool pool : touched)
+                pools.save(pool);
+        }
+
+        return written.get();
+    }
+
+    /**
+     * Maps a CSV header line to column positions
+     *
+     * @param   fields the header fields
+     *
+     * @return  the position of each column, -1 if it is missing
+     */
+    private static int[] header(List<String> fields) {
+        int[] map = new int[COLUMNS.length];
+        for (int c=0; c<COLUMNS.length; c++) {
+            map[c] = -1;
+            for (int i=0; i<fields.size(); i++)
+                if (fields.get(i).trim().equalsIgnoreCase(COLUMNS[c]))
+                    map[c] = i;
+        }
+        return map;
+    }
+
+    /**
+     * Hands the interfaces of a host to the pool, waiting if too many hosts
+     * are in flight
+     *
+     * @param   host the host name or null if there is none
+     * @param   group the host's interface configurations, null if the host
+     *          failed
+     * @param   allocated the auto addresses of the host
+     *
+     * @throws  InterruptedException if interrupted while waiting
+     */
+    private void submit(String host, List<InterfaceConfig> group,
+     List<Integer> allocated) throws InterruptedException {
+        if (host == null || group == null)
+            return;
+        inFlight.acquire();
+        try {
+            pool.execute(() -> {
+                try {
+                    if (!render(host,group))
+                        release(allocated);
+                } finally {
+                    inFlight.release();
+                }
+            });
+        } catch (RejectedExecutionException ree) {
+            inFlight.release();
+            throw ree;
+        }
+    }
+
+    /**
+     * Renders and writes the file of one host
+     *
+     * @param   host the host name
+     * @param   group the host's interface configurations
+     *
+     * @return  true if the file was written
+     */
+    private boolean render(String host, List<InterfaceConfig> group) {
+        if (!isFileName(host)) {
+            fail(host,"not usable as a file name");
+            return false;
+        }
+        DhcpcdConf conf = base.copy();
+        for (InterfaceConfig ic : group) {
+            int code = ConfigValidator.validate(ic);
+            if (code != ConfigValidator.OK) {
+                fail(host,ic.getName() + ": " + ConfigValidator.message(code));
+                return false;
+            }
+            conf.setInterface(ic);
+        }
+        String[] overlap = ConfigValidator.findOverlap(group);
+        if (overlap != null) {
+            fail(host,overlap[0] + ", " + overlap[1] + ": " +
+             ConfigValidator.message(ConfigValidator.OVERLAP));
+            return false;
+        }
+
+        try {
+            ConfFile.write(conf,outDir.resolve(host + ".conf"),false);
+            written.incrementAndGet();
+            return true;
+        } catch (IOException ioe) {
+            fail(host,ioe.toString());
+            return false;
+        }
+    }
+
+    /**
+     * Gives the auto addresses of a failed host back to their pools
+     *
+     * @param   allocated the addresses
+     */
+    private void release(List<Integer> allocated) {
+        for (int address : allocated) {
+            AddressPool p = pools.release(address);
+            if (p != null)
+                touched.add(p);
+        }
+    }
+
+    /**
+     * Reports a host that could not be rendered
+     *
+     * @param   host the host name
+     * @param   message what went wrong
+     */
+    private void fail(String host, String message) {
+        failed.incrementAndGet();
+        errors.accept(host + ": " + message);
+    }
+
+    /**
+     * Tests if a host name can be used as a file name in the output
+     * directory
+     *
+     * @param   host the host name
+     *
+     * @return  true if it can
+     */
+    private static boolean isFileName(String host) {
+        if (host.startsWith("."))
+            return false;
+        for (int i=0; i<host.length(); i++) {
+            char ch = host.charAt(i);
+            if (!Character.isLetterOrDigit(ch) && ch != '.' && ch != '-' &&
+             ch != '_')
+                return false;
+        }
+        return true;
+    }
+
+    /**
+     * Creates an interface configuration from a record, allocating an auto
+     * address
+     *
+     * @param   rec the record fields in column order
+     * @param   allocated receives an allocated address
+     *
+     * @return  the configuration
+     *
+     * @throws  IllegalArgumentException if an auto address can't be
+     *          allocated
+     */
+    private InterfaceConfig toConfig(String[] rec, List<Integer> allocated) {
+        InterfaceConfig ic = new InterfaceConfig(rec[INTERFACE]);
+        String value = rec[IP_ADDRESS];
+        if (value.equals("auto") || value.startsWith("auto:")) {
+            AddressPool p = autoPool(value,rec[ROUTERS]);
+            long address = p.allocateNext();
+            if (address == Ipv4.INVALID)
+                throw new IllegalArgumentException(p +
+                 " has no free addresses");
+            allocated.add((int)address);
+            touched.add(p);
+            value = Ipv4.toString((int)address) + "/" + p.getPrefix();
+        }
+        int slash = value.indexOf('/');
+        ic.setAddress(slash < 0 ? value : value.substring(0,slash));
+        ic.setBits(slash < 0 ? "" : value.substring(slash + 1));
+        value = rec[IP6_ADDRESS];
+        slash = value.indexOf('/');
+        ic.setIp6Address(slash < 0 ? value : value.substring(0,slash));
+        ic.setIp6Bits(slash < 0 ? "" : value.substring(slash + 1));
+        ic.setRouters(rec[ROUTERS]);
+        ic.setNameServers(rec[NAME_SERVERS]);
+        return ic;
+    }
+
+    /**
+     * Finds the pool an auto address comes from
+     *
+     * @param   spec auto or auto:a.b.c.d/bits
+     * @param   routers the routers of the record
+     *
+     * @return  the pool
+     *
+     * @throws  IllegalArgumentException if there is no such pool
+     */
+    private AddressPool autoPool(String spec, String routers) {
+        if (pools == null || pools.getPools().isEmpty())
+            throw new IllegalArgumentException("auto needs an address pool");
+        AddressPool p;
+        if (spec.startsWith("auto:")) {
+            String subnet = AddressPool.parse(spec.substring(5)).toString();
+            p = pools.get(subnet);
+            if (p == null)
+                throw new IllegalArgumentException("no address pool " +
+                 subnet);
+            return p;
+        }
+        long router = Ipv4.parse(routers.split("[,\\s]+")[0]);
+        p = router == Ipv4.INVALID ? null : pools.find((int)router);
+        if (p == null && pools.getPools().size() == 1)
+            p = pools.getPools().get(0);
+        if (p == null)
+            throw new IllegalArgumentException("auto needs a router in an " +
+             "address pool or auto:a.b.c.d/bits");
+        return p;
+    }
+
+    /**
+     * Splits a CSV line into fields.  Fields may be quoted with double quotes
+     * and a doubled quote inside a quoted field stands for one quote.
+     *
+     * @param   line the line
+     *
+     * @return  the fields
+     *
+     * @throws  IllegalArgumentException if a quote is not closed
+     */
+    static List<String> parseCsv(String line) {
+        List<String> fields = new ArrayList<>(COLUMNS.length);
+        StringBuilder sb = new StringBuilder();
+        boolean quoted = false;
+        for (int i=0; i<line.length(); i++) {
+            char ch = line.charAt(i);
+            if (quoted) {
+                if (ch != '"')
+                    sb.append(ch);
+                else if (i + 1 < line.length() && line.charAt(i + 1) == '"')
+                    sb.append(line.charAt(++i));
+                else
+                    quoted = false;
+            } else if (ch == '"') {
+                quoted = true;
+            } else if (ch == ',') {
+                fields.add(sb.toString());
+                sb.setLength(0);
+            } else {
+                sb.append(ch);
+            }
+        }
+        if (quoted)
+            throw new IllegalArgumentException("unterminated quote");
+        fields.add(sb.toString());
+        return fields;
+    }
+
+    /**
+     * Parses a flat JSON object into record fields.  Values may be strings,
+     * numbers or null, keys that are not columns are ignored.
+     *
+     * @param   line the line holding the object
+     *
+     * @return  the record fields in column order, empty for missing keys
+     *
+     * @throws  IllegalArgumentException if the line is not a flat object
+     */
+    static String[] parseJson(String line) {
+        String[] rec = new String[COLUMNS.length];
+        Arrays.fill(rec,"");
+        int[] pos = { skipSpace(line,0) };
+        expect(line,pos,'{');
+        if (peek(line,pos) == '}')
+            return rec;
+        while (true) {
+            String key = jsonString(line,pos);
+            expect(line,pos,':');
+            String value = jsonValue(line,pos);
+            for (int c=0; c<COLUMNS.length; c++)
+                if (COLUMNS[c].equals(key))
+                    rec[c] = value.trim();
+            if (peek(line,pos) == ',') {
+                ++pos[0];
+                continue;
+            }
+            expect(line,pos,'}');
+            return rec;
+        }
+    }
+
+    /**
+     * Parses a JSON value that is a string, number, boolean or null
+     *
+     * @param   s the text
+     * @param   pos the position, updated past the value
+     *
+     * @return  the value as text, empty for null
+     */
+    private static String jsonValue(String s, int[] pos) {
+        if (peek(s,pos) == '"')
+            return jsonString(s,pos);
+        int start = pos[0];
+        while (pos[0] < s.length() && ",}".indexOf(s.charAt(pos[0])) < 0 &&
+         !Character.isWhitespace(s.charAt(pos[0])))
+            ++pos[0];
+        String value = s.substring(start,pos[0]);
+        if (value.isEmpty() || value.equals("{") || value.equals("["))
+            throw new IllegalArgumentException("expected a value at " + start);
+        return value.equals("null") ? "" : value;
+    }
+
+    /**
+     * Parses a JSON string
+     *
+     * @param   s the text
+     * @param   pos the position, updated past the string
+     *
+     * @return  the string
+     */
+    private static String jsonString(String s, int[] pos) {
+        expect(s,pos,'"');
+        StringBuilder sb = new StringBuilder();
+        int i = pos[0];
+        while (i < s.length()) {
+            char ch = s.charAt(i++);
+            if (ch == '"') {
+                pos[0] = i;
+                return sb.toString();
+            }
+            if (ch != '\\') {
+                sb.append(ch);
+                continue;
+            }
+            if (i == s.length())
+                break;
+            ch = s.charAt(i++);
+            switch (ch) {
+                case 'n': sb.append('\n'); break;
+                case 't': sb.append('\t'); break;
+                case 'r': sb.append('\r'); break;
+                case 'b': sb.append('\b'); break;
+                case 'f': sb.append('\f'); break;
+                case 'u':
+                    if (i + 4 > s.length())
+                        throw new IllegalArgumentException("bad escape");
+                    try {
+                        sb.append((char)Integer.parseInt(s.substring(i,i + 4),
+                         16));
+                    } catch (NumberFormatException nfe) {
+                        throw new IllegalArgumentException("bad escape");
+                    }
+                    i += 4;
+                    break;
+                default: sb.append(ch);
+            }
+        }
+        throw new IllegalArgumentException("unterminated string");
+    }
+
+    /**
+     * Skips white space and consumes an expected character
+     *
+     * @param   s the text
+     * @param   pos the position, updated past the character
+     * @param   ch the expected character
+     */
+    private static void expect(String s, int[] pos, char ch) {
+        if (peek(s,pos) != ch)
+            throw new IllegalArgumentException("expected '" + ch + "' at " +
+             pos[0]);
+        ++pos[0];
+    }
+
+    /**
+     * Skips white space and gets the next character
+     *
+     * @param   s the text
+     * @param   pos the position, updated past the white space
+     *
+     * @return  the next character or 0 at the end
+     */
+    private static char peek(String s, int[] pos) {
+        pos[0] = skipSpace(s,pos[0]);
+        return pos[0] < s.length() ? s.charAt(pos[0]) : 0;
+    }
+
+    /**
+     * Skips white space
+     *
+     * @param   s the text
+     * @param   pos the position to start at
+     *
+     * @return  the position of the next other character
+     */
+    private static int skipSpace(String s, int pos) {
+        while (pos < s.length() && Character.isWhitespace(s.charAt(pos)))
+            ++pos;
+        return pos;
+    }
+
+    /**
+     * Gets the number of hosts that could not be rendered
+     *
+     * @return  the number of failed hosts
+     */
+    public long getFailed() {
+        return failed.get();
+    }
+
+    /**
+     * Gets the number of lines that could not be read as a record of a host
+     *
+     * @return  the number of bad lines
+     */
+    public long getBadLines() {
+        return badLines.get();
+    }
+
+    /**
+     * Stops the worker threads
+     */
+    public void shutdown() {
+        pool.shutdown();
+    }
+
+    /**
+     * Renders an inventory from the command line.  Exits with status 1 if
+     * any host failed or any line was bad and 2 for bad arguments.
+     *
+     * @param   args [-j threads] [--json] [--pools dir] base.conf
+     *          inventory|- out-dir
+     */
+    public static void main(String... args) {
+        int threads = Runtime.getRuntime().availableProcessors();
+        boolean json = false;
+        Path poolDir = AddressPools.defaultDir();
+        int a = 0;
+        try {
+            for (; a<args.length && args[a].startsWith("-") &&
+             !args[a].equals("-"); a++) {
+                if (args[a].equals("-j"))
+                    threads = Integer.parseInt(args[++a]);
+                else if (args[a].equals("--json"))
+                    json = true;
+                else if (args[a].equals("--pools"))
+                    poolDir = Paths.get(args[++a]);
+                else
+                    throw new IllegalArgumentException(args[a]);
+            }
+            if (args.length - a != 3 || threads < 1)
+                throw new IllegalArgumentException();
+        } catch (RuntimeException re) {
+            System.err.println("Usage: Fleet [-j threads] [--json] " +
+             "[--pools dir] base.conf inventory.csv|inventory.jsonl|- " +
+             "out-dir");
+            System.exit(2);
+        }
+
+        String inventory = args[a + 1];
+        json |= inventory.endsWith(".json") || inventory.endsWith(".jsonl");
+        long start = System.nanoTime();
+        Fleet fleet = null;
+        try {
+            DhcpcdConf base = ConfFile.read(Paths.get(args[a]));
+            Path outDir = Paths.get(args[a + 2]);
+            Files.createDirectories(outDir);
+            fleet = new Fleet(base,outDir,threads,System.err::println);
+            AddressPools pools = new AddressPools(poolDir);
+            pools.load();
+            fleet.setPools(pools);
+            long written;
+            try (BufferedReader br = inventory.equals("-") ?
+             new BufferedReader(new InputStreamReader(System.in,
+             StandardCharsets.ISO_8859_1),65536) :
+             Files.newBufferedReader(Paths.get(inventory),
+             StandardCharsets.ISO_8859_1)) {
+                written = fleet.run(br,json);
+            }
+            System.out.printf("%d hosts written, %d failed, %d bad lines " +
+             "in %d ms%n",written,fleet.getFailed(),fleet.getBadLines(),
+             TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
+        } catch (IOException|InterruptedException e) {
+            System.err.println(e.getMessage());
+            System.exit(1);
+        } finally {
+            if (fleet != null)
+                fleet.shutdown();
+        }
+        System.exit(fleet.getFailed() > 0 || fleet.getBadLines() > 0 ? 1 : 0);
+    }
+}
@@ -3,6 +3,7 @@ import java.awt.event.*;
 import java.io.*;
 import java.nio.charset.*;
 import java.util.*;
+import java.util.concurrent.*;
 import javax.swing.*;
 
 
@@ -19,239 +20,339 @@ public class IPConfig extends JPanel {
     /** Color raspberry */
     public static final Color RASPBERRY = new Color(0,0,0);
 
-    /** dhcpcd.conf file */
-    private final File CONF_FILE = new File("/etc/dhcpcd.conf");
+    /** Commits files in process when it has the rights to */
+    private final ConfCommitter COMMITTER = ConfCommitter.fromProperties();
 
-    /** Temporary file */
-    private final File TEMP_FILE = new File(
-     System.getProperty("user.home"),"temp"); 
+    /** Log of command output */
+    private final LogPanel LOG = new LogPanel(6,40);
 
-    /** Script file name */
-    private final String SCRIPT_NAME =
-     System.getProperty("user.home") + "/ipconfig-script";
+    /** Runs scripts and commands, their output goes to the log */
+    private final ProcessRunner RUNNER =
+     new ProcessRunner(LOG::append,60,TimeUnit.SECONDS);
 
-    /** Script file */
-    private final File SCRIPT_FILE = new File(SCRIPT_NAME);
-    
-    /** List to hold lines from dhcpcd.conf file */
-    private final java.util.List<String> LINES = new ArrayList<>();
+    /** Rebinds the interfaces whose blocks changed */
+    private final DhcpcdReloader RELOADER = new DhcpcdReloader(RUNNER);
 
-    /** JMenuBar reference */
-    private final JMenuBar menuBar;
+    /** dhcpcd.conf file */
+    private final File CONF_FILE =
+     COMMITTER.resolve("/etc/dhcpcd.conf").toFile();
 
-    /** eth0 address field */
-    private final JTextField eth0AddressField;
+    /** interfaces file */
+    private final File INTERFACES_FILE =
+     COMMITTER.resolve("/etc/network/interfaces").toFile();
 
-    /** eth0 bits field */
-    private final JTextField eth0BitsField;
+    /** Commits files and rebinds as root in one round trip if running */
+    private final RootHelper.Client HELPER =
+     new RootHelper.Client(COMMITTER.resolve(RootHelper.SOCKET));
 
-    /** eth0 routers field */
-    private final JTextField eth0RoutersField;
+    /** Commits files through the sudo script when it has no rights */
+    private final SudoScript SCRIPT = new SudoScript(
+     new File(System.getProperty("user.home")),RUNNER,RELOADER,LOG::append);
+    
+    /** Model of the dhcpcd.conf file, a frozen snapshot that is replaced */
+    private volatile DhcpcdConf conf;
 
-    /** eth0 domain name servers field */
-    private final JTextField eth0NameServersField;
+    /** Containing frame */
+    private final JFrame frame;
 
-    /** wlan0 address field */
-    private final JTextField wlan0AddressField;
+    /** JMenuBar reference */
+    private final JMenuBar menuBar;
 
-    /** wlan0 bits field */
-    private final JTextField wlan0BitsField;
+    /** Directions message, built the first time it is shown */
+    private String directionsHtml;
 
-    /** wlan0 routers field */
-    private final JTextField wlan0RoutersField;
+    /** Run once when the form is first painted or null */
+    private Runnable firstPaint;
 
-    /** wlan0 domain name servers field */
-    private final JTextField wlan0NameServersField;
+    /** Finds the network interfaces of the system */
+    private final InterfaceDiscovery DISCOVERY = new InterfaceDiscovery(
+     COMMITTER.resolve("/sys/class/net"),5000);
 
-    /** index of interface eth0 line */
-    private int eth0;
+    /** Static address pools */
+    private final AddressPools POOLS =
+     new AddressPools(AddressPools.defaultDir());
 
-    /** index of interface wlan0 line */
-    private int wlan0;
+    /** Named sets of interface blocks to switch between */
+    private final Profiles PROFILES = new Profiles(Profiles.defaultDir());
 
-    /**
-     * Creates a new IPConfig GUI
-     *
-     * @param   frame a reference to the containing JFrame
-     *
-     * @throws  IOException if an I/O error occurs reading the dhcpcd.conf file
-     */
-    public IPConfig(JFrame frame) throws IOException {
-        super(new GridBagLayout());
-        
-        GridBagConstraints c = new GridBagConstraints();
-        c.insets = new Insets(5,15,5,15);
-        c.gridx = c.gridy = 0;
-        c.fill = GridBagConstraints.HORIZONTAL;
+    /** Versions of dhcpcd.conf for rollback */
+    private final ConfJournal JOURNAL =
+     new ConfJournal(ConfJournal.defaultPath());
 
-        c.gridwidth = 2;  c.anchor = GridBagConstraints.CENTER;
-        JLabel l = new RaspberryJLabel("Ethernet IP (eth0)",JLabel.LEFT);
-		l.setBorder(BorderFactory.createEmptyBorder(15,0,0,0));
-        add(l,c);
+    /** Times of the load and save phases */
+    private final Metrics METRICS = new Metrics();
 
-        ++c.gridy; c.gridwidth = 1;  c.anchor = GridBagConstraints.WEST;
-        l = new RaspberryJLabel("IPv4 Address:",JLabel.RIGHT);
-        add(l,c);
+    /** File the metrics are exported to */
+    private final java.nio.file.Path METRICS_FILE = Metrics.defaultPath();
 
-        ++c.gridx;
-        JPanel eth0Panel = new JPanel(new FlowLayout(FlowLayout.LEFT,0,0));
-        eth0AddressField = new RaspberryJTextField(12);
-        eth0Panel.add(eth0AddressField);
+    /** Checks rebound interfaces come back, null if turned off */
+    private final LinkWatchdog WATCHDOG =
+     LinkWatchdog.fromProperties(COMMITTER.getRoot());
 
-        l = new RaspberryJLabel(" / ");
-        eth0Panel.add(l);
+    /** Polls the live state of the expanded interfaces */
+    private final StatusPoller POLLER =
+     new StatusPoller(new LinkStatusReader(COMMITTER.getRoot()));
 
-        eth0BitsField = new RaspberryJTextField(2);
-        eth0Panel.add(eth0BitsField);
-        add(eth0Panel,c);
+    /** Interfaces found when the file was loaded */
+    private java.util.List<String> interfaces = Collections.emptyList();
 
-        c.gridx = 0;  ++c.gridy;
-        l = new RaspberryJLabel("Router:",JLabel.RIGHT);
-        add(l,c);
+    /** Panel holding a section per interface */
+    private final JPanel formPanel;
 
-        ++c.gridx;
-        eth0RoutersField = new RaspberryJTextField(12);
-        add(eth0RoutersField,c);
+    /** Interface sections by name, in display order */
+    private final Map<String,InterfacePanel> panels = new LinkedHashMap<>();
 
-        c.gridx = 0;  ++c.gridy;
-        l = new RaspberryJLabel("DNS Servers:",JLabel.RIGHT);
-        add(l,c);
+    /** Save button */
+    private final JButton saveButton;
 
-        ++c.gridx;
-        eth0NameServersField = new RaspberryJTextField(12);
-        add(eth0NameServersField,c);
+    /** Preview button */
+    private final JButton previewButton;
 
-        c.gridx = 0;  ++c.gridy;
-        c.gridwidth = 2;  c.anchor = GridBagConstraints.CENTER;
-        l = new RaspberryJLabel("Wi-Fi IP (wlan0)",JLabel.LEFT);        
-        l.setBorder(BorderFactory.createEmptyBorder(25, 0, 0, 0));        
-        add(l,c);
+    /** Edit menu */
+    private final JMenu editMenu;
 
-        ++c.gridy; c.gridwidth = 1;  c.anchor = GridBagConstraints.WEST;
-        l = new RaspberryJLabel("IPv4 Address:",JLabel.RIGHT);
-        add(l,c);
+    /** Shows the progress of a background task */
+    private final JProgressBar progressBar;
 
-        ++c.gridx;
-        JPanel wlan0Panel = new JPanel(new FlowLayout(FlowLayout.LEFT,0,0));
-        wlan0AddressField = new RaspberryJTextField(12);
-        wlan0Panel.add(wlan0AddressField);
+    /** Cancels a background task */
+    private final JButton cancelButton;
 
-        l = new RaspberryJLabel(" / ");
-        wlan0Panel.add(l);
+    /** Measures EDT stalls while a background task runs */
+    private final EdtMonitor EDT_MONITOR = new EdtMonitor();
 
-        wlan0BitsField = new RaspberryJTextField(2);
-        wlan0Panel.add(wlan0BitsField);
-        add(wlan0Panel,c);
+    /** Running background task or null */
+    private Task task;
 
-        c.gridx = 0;  ++c.gridy;
-        l = new RaspberryJLabel("Router:",JLabel.RIGHT);
-        add(l,c);
+    /** Watches dhcpcd.conf for changes made by other programs */
+    private ConfWatcher watcher;
 
-        ++c.gridx;
-        wlan0RoutersField = new RaspberryJTextField(12);
-        add(wlan0RoutersField,c);
+    /** True if the file changed while a task was running */
+    private volatile boolean externalPending;
 
-        c.gridx = 0;  ++c.gridy;
-        l = new RaspberryJLabel("DNS Servers:",JLabel.RIGHT);
-        add(l,c);
+    /**
+     * Creates a new IPConfig GUI
+     *
+     * @param   frame a reference to the containing JFrame
+     */
+    public IPConfig(JFrame frame) {
+        super(new GridBagLayout());
+        this.frame = frame;
+        
+        GridBagConstraints c = new GridBagConstraints();
+        c.insets = new Insets(5,15,5,15);
+        c.gridx = c.gridy = 0;
+        c.fill = GridBagConstraints.HORIZONTAL;
 
-        ++c.gridx;
-        wlan0NameServersField = new RaspberryJTextField(12);
-        add(wlan0NameServersField,c);
+        // the interface sections are added once the file has been loaded
+        c.gridwidth = 2;
+        formPanel = new JPanel(new GridBagLayout());
+        JScrollPane formScroll = new JScrollPane(formPanel,
+         JScrollPane.VERTICAL_SCROLLBAR_AS_NEEDED,
+         JScrollPane.HORIZONTAL_SCROLLBAR_NEVER) {
+            // many interfaces scroll rather than grow the window off screen
+            @Override
+            public Dimension getPreferredSize() {
+                Dimension d = super.getPreferredSize();
+                d.height = Math.min(d.height,480);
+                return d;
+            }
+        };
+        formScroll.setBorder(BorderFactory.createEmptyBorder());
+        formScroll.getVerticalScrollBar().setUnitIncrement(16);
+        add(formScroll,c);
 
         c.gridx = 0;  ++c.gridy;  c.gridwidth = 2;
         c.anchor = GridBagConstraints.EAST;
         c.fill = GridBagConstraints.NONE;
         c.insets = new Insets(5,15,10,15);
-        JButton b = new JButton("Save");
-        b.setForeground(RASPBERRY);
-        b.addActionListener(event -> {
-            depopulateFields();
-            try {
-                // create temporary file with the lines from /etc/dhpcd.conf
-                // as modified
-                try (BufferedWriter bw = new BufferedWriter(
-                 new FileWriter(TEMP_FILE))) {
-                    for (String line : LINES) {
-                        bw.write(line);
-                        bw.newLine();
-                    }
-                }
+        JPanel buttonPanel = new JPanel(new FlowLayout(FlowLayout.RIGHT,10,0));
+        progressBar = new JProgressBar(0,100);
+        progressBar.setVisible(false);
+        buttonPanel.add(progressBar);
+
+        cancelButton = new JButton("Cancel");
+        cancelButton.setForeground(RASPBERRY);
+        cancelButton.setVisible(false);
+        cancelButton.addActionListener(event -> {
+            if (task != null)
+                task.cancel(true);
+        });
+        buttonPanel.add(cancelButton);
+
+        previewButton = new JButton("Preview");
+        previewButton.setForeground(RASPBERRY);
+        previewButton.addActionListener(event -> preview());
+        buttonPanel.add(previewButton);
+
+        saveButton = new JButton("Save");
+        saveButton.setForeground(RASPBERRY);
+        saveButton.addActionListener(event -> {
+            // read and check the fields on the EDT, everything else runs
+            // in the background
+            if (!validateFields())
+                return;
+            java.util.List<InterfaceConfig> edits = depopulateFields();
+            background("Error saving dhcpcd.conf file",
+             t -> save(t,edits,null),this::populateFields);
+        });
+        buttonPanel.add(saveButton);
+        add(buttonPanel,c);
 
-                // create the script file
-                createScriptFile(dhcpcdScript());
+        ++c.gridy;
+        c.fill = GridBagConstraints.BOTH;
+        c.weightx = c.weighty = 1.0;
+        add(LOG,c);
 
-                // run the script and capture stdout and stderr to the terminal
-                runScript();
-            } catch (IOException ioe) {
-                JOptionPane.showMessageDialog(IPConfig.this,ioe,
-                 "Error saving dhcpcd.conf file",JOptionPane.ERROR_MESSAGE);
-                ioe.printStackTrace();
+        // the menus are filled in the first time they open
+        menuBar = new JMenuBar();
+        lazyMenu("File",this::buildFileMenu);
+        editMenu = lazyMenu("Edit",this::buildEditMenu);
+        lazyMenu("Help",this::buildHelpMenu);
+
+        // load the file in the background, the form stays disabled until it
+        // has been read
+        background("Error loading dhcpcd.conf file",t -> {
+            loadMetrics();
+            loadConfFile();
+        },this::populateFields);
+    }
+
+    /**
+     * Starts the status poller and the file watcher, called once the frame
+     * is showing so they don't delay the first frame
+     */
+    public void start() {
+        POLLER.start(1000);
+
+        // notice edits made to dhcpcd.conf while the program is open
+        try {
+            watcher = new ConfWatcher(CONF_FILE.toPath(),
+             () -> EventQueue.invokeLater(this::externalChange));
+            watcher.start();
+        } catch (IOException ioe) {
+            LOG.append("Not watching " + CONF_FILE + ": " + ioe);
+        }
+    }
+
+    /**
+     * Adds a menu to the menu bar whose items are built the first time it
+     * opens
+     *
+     * @param   title the menu title
+     * @param   build adds the items to the menu
+     *
+     * @return  the menu
+     */
+    private JMenu lazyMenu(String title,
+     java.util.function.Consumer<JMenu> build) {
+        JMenu menu = menuBar.add(new JMenu(title));
+        menu.setForeground(RASPBERRY);
+        menu.addMenuListener(new javax.swing.event.MenuListener() {
+            @Override
+            public void menuSelected(javax.swing.event.MenuEvent event) {
+                menu.removeMenuListener(this);
+                build.accept(menu);
             }
-        });
-        add(b,c);
 
-        // create menu bar and menus
-        menuBar = new JMenuBar();
-        JMenu file = menuBar.add(new JMenu("File"));
-        file.setForeground(RASPBERRY);
-        JMenu edit = menuBar.add(new JMenu("Edit"));
-        edit.setForeground(RASPBERRY);
-        JMenu help = menuBar.add(new JMenu("Help"));
-        help.setForeground(RASPBERRY);
-        JMenuItem mi;
-
-        mi = edit.add("Clear eth0");
-        mi.setForeground(RASPBERRY);
-        mi.addActionListener(event -> {
-            eth0AddressField.setText("");
-            eth0BitsField.setText("");
-            eth0RoutersField.setText("");
-            eth0NameServersField.setText("");
+            @Override
+            public void menuDeselected(javax.swing.event.MenuEvent event) { }
+
+            @Override
+            public void menuCanceled(javax.swing.event.MenuEvent event) { }
         });
+        return menu;
+    }
 
-        mi = edit.add("Clear wlan0");
+    /**
+     * Builds the items of the File menu
+     *
+     * @param   file the menu
+     */
+    private void buildFileMenu(JMenu file) {
+        JMenuItem mi = file.add("Refresh Interfaces");
         mi.setForeground(RASPBERRY);
         mi.addActionListener(event -> {
-            wlan0AddressField.setText("");
-            wlan0BitsField.setText("");
-            wlan0RoutersField.setText("");
-            wlan0NameServersField.setText("");
+            DISCOVERY.invalidate();
+            background("Error loading dhcpcd.conf file",t -> loadConfFile(),
+             this::populateFields);
         });
-       
-        mi = edit.add("Recover");
+
+        file.addSeparator();
+        mi = file.add("Quit");
         mi.setForeground(RASPBERRY);
         mi.addActionListener(event -> {
+            POLLER.stop();
             try {
-                // write data to temp file
-                try (BufferedWriter bw = new BufferedWriter(
-                 new FileWriter(TEMP_FILE))) {
-                    bw.write(interfaces());
-                }
-
-                // create the recover script
-                createScriptFile(recoverScript());
-    
-                // run the script
-                runScript();
+                if (watcher != null)
+                    watcher.close();
             } catch (IOException ioe) {
-                JOptionPane.showMessageDialog(file,
-                 "Error attempting to recover /etc/network/interfaces\n" + ioe,
-                 "IPConfig",JOptionPane.ERROR_MESSAGE);
                 ioe.printStackTrace();
             }
+            frame.dispose();
         });
+    }
 
-        file.addSeparator();
-        mi = file.add("Quit");
+    /**
+     * Builds the items of the Edit menu
+     *
+     * @param   edit the menu
+     */
+    private void buildEditMenu(JMenu edit) {
+        // one clear item per interface, built when the menu opens
+        JMenu clear = new JMenu("Clear");
+        clear.setForeground(RASPBERRY);
+        clear.addMenuListener(new javax.swing.event.MenuListener() {
+            @Override
+            public void menuSelected(javax.swing.event.MenuEvent event) {
+                clear.removeAll();
+                for (InterfacePanel panel : panels.values()) {
+                    JMenuItem item = clear.add(panel.getInterfaceName());
+                    item.setForeground(RASPBERRY);
+                    item.addActionListener(e -> panel.clear());
+                }
+            }
+
+            @Override
+            public void menuDeselected(javax.swing.event.MenuEvent event) { }
+
+            @Override
+            public void menuCanceled(javax.swing.event.MenuEvent event) { }
+        });
+        edit.add(clear);
+
+        JMenuItem mi = edit.add("Address Pools");
         mi.setForeground(RASPBERRY);
-        mi.addActionListener(event -> frame.dispose());
+        mi.addActionListener(event -> addressPools());
 
-        mi = help.add("Directions");
+        mi = edit.add("Profiles");
+        mi.setForeground(RASPBERRY);
+        mi.addActionListener(event -> profiles());
+
+        mi = edit.add("Rollback");
+        mi.setForeground(RASPBERRY);
+        mi.addActionListener(event -> rollback());
+
+        mi = edit.add("Recover");
+        mi.setForeground(RASPBERRY);
+        mi.addActionListener(event ->
+         background("Error attempting to recover /etc/network/interfaces",
+         this::recover,null));
+    }
+
+    /**
+     * Builds the items of the Help menu
+     *
+     * @param   help the menu
+     */
+    private void buildHelpMenu(JMenu help) {
+        JMenuItem mi = help.add("Directions");
         mi.setForeground(RASPBERRY);
         mi.addActionListener(event ->
          JOptionPane.showMessageDialog(help,new JLabel(directions()),
          "IPConfig",JOptionPane.INFORMATION_MESSAGE));
+        mi = help.add("Diagnostics");
+        mi.setForeground(RASPBERRY);
+        mi.addActionListener(event -> diagnostics());
         help.addSeparator();
 
         mi = help.add("About");
@@ -262,9 +363,6 @@ public class IPConfig extends JPanel {
          "A program to set static IP parameters in /etc/dhcpcd.conf<br>\n" +
          "Written by: Knute Johnson"),
          "About IPConfig",JOptionPane.INFORMATION_MESSAGE));
-
-        loadConfFile();
-        populateFields();
     }
 
     /**
@@ -277,247 +375,975 @@ public class IPConfig extends JPanel {
     }
 
     /**
-     * Loads the dhcpcd.conf file data into the LINES array list
+     * Loads the dhcpcd.conf file data into the conf model
      *
      * @throws IOException if an I/O error occurs reading the dhcpcd.conf file
      */
     private void loadConfFile() throws IOException {
-        try (BufferedReader br = new BufferedReader(
-         new FileReader(CONF_FILE))) {
-            String str;
-            while ((str = br.readLine()) != null)
-                    LINES.add(str);
+        long start = Metrics.start();
+        conf = ConfFile.read(CONF_FILE.toPath()).freeze();
+        METRICS.record(Metrics.LOAD,start);
+        interfaces = DISCOVERY.get();
+        try {
+            POOLS.load();
+        } catch (IOException ioe) {
+            // the form works without pools
+            LOG.append("Error loading address pools: " + ioe.getMessage());
+        }
+        try {
+            PROFILES.load();
+        } catch (IOException ioe) {
+            LOG.append("Error loading profiles: " + ioe.getMessage());
         }
     }
 
     /**
      * Populates the GUI data fields with the appropriate data from the
-     * dhcpcd.conf file
+     * dhcpcd.conf file.  There is a section for every interface of the system
+     * and every interface with a block in the file, sections with a static
+     * address start expanded.
      */
     private void populateFields() {
-        // find eth0 data
-        for (int i=0; i<LINES.size(); i++) {
-            if (LINES.get(i).trim().equals("interface eth0")) {
-                eth0 = i;
-                if (LINES.get(i+1).trim().startsWith("static ip_address=")) {
-                    String arr[] = LINES.get(i+1).split("=");
-                    String arr2[] = arr[1].split("/");
-                    eth0AddressField.setText(arr2[0]);
-                    eth0BitsField.setText(arr2[1]);
-                }
-                if (LINES.get(i+2).trim().startsWith("static routers=")) {
-                    String arr[] = LINES.get(i+2).split("=");
-                    eth0RoutersField.setText(arr[1]);
-                }
-                if (LINES.get(i+3).trim().startsWith(
-                 "static domain_name_servers=")) {
-                    String arr[] = LINES.get(i+3).split("=");
-                    eth0NameServersField.setText(arr[1]);
-                }
+        for (InterfacePanel panel : panels.values())
+            panel.setConfig(conf.getInterface(panel.getInterfaceName()));
+        populateNew();
+    }
+
+    /**
+     * Adds sections for interfaces that have none yet
+     */
+    private void populateNew() {
+        Set<String> names = new TreeSet<>(InterfaceDiscovery.ORDER);
+        names.addAll(interfaces);
+        names.addAll(conf.getInterfaces());
+
+        boolean added = false;
+        for (String name : names) {
+            if (panels.containsKey(name))
+                continue;
+            InterfaceConfig ic = conf.getInterface(name);
+            InterfacePanel panel = new InterfacePanel(ic,POLLER,POOLS);
+            panels.put(name,panel);
+            if (ic.isStatic())
+                panel.setExpanded(true);
+            added = true;
+        }
+
+        if (added) {
+            // rebuild the form in display order
+            java.util.List<InterfacePanel> order = new ArrayList<>();
+            for (String name : names)
+                order.add(panels.get(name));
+            for (InterfacePanel panel : panels.values())
+                if (!names.contains(panel.getInterfaceName()))
+                    order.add(panel);
+            formPanel.removeAll();
+            GridBagConstraints c = new GridBagConstraints();
+            c.gridx = 0;  c.gridy = GridBagConstraints.RELATIVE;
+            c.fill = GridBagConstraints.HORIZONTAL;
+            c.weightx = 1.0;
+            c.insets = new Insets(0,15,0,15);
+            for (InterfacePanel panel : order)
+                formPanel.add(panel,c);
+            Window window = SwingUtilities.getWindowAncestor(this);
+            if (window != null)
+                window.pack();
+        }
+    }
+
+    /**
+     * Depopulates the data fields into interface configurations, an
+     * interface with a cleared address field loses its static data
+     *
+     * @return  the interface configurations that were edited
+     */
+    private java.util.List<InterfaceConfig> depopulateFields() {
+        java.util.List<InterfaceConfig> edits = new ArrayList<>();
+        for (InterfacePanel panel : panels.values()) {
+            InterfaceConfig ic = panel.getConfig();
+            if (ic != null)
+                edits.add(ic);
+        }
+
+        return edits;
+    }
+
+    /**
+     * Validates the fields of every interface and checks that no two static
+     * interfaces have overlapping subnets, showing the first problem found
+     *
+     * @return  true if the fields can be saved
+     */
+    private boolean validateFields() {
+        // the time the user takes to read a message isn't measured
+        long start = Metrics.start();
+        java.util.List<InterfaceConfig> configs = new ArrayList<>();
+        for (InterfacePanel panel : panels.values()) {
+            int result = panel.validateFields();
+            if (result != ConfigValidator.OK) {
+                METRICS.record(Metrics.VALIDATE,start);
+                panel.setExpanded(true);
+                JOptionPane.showMessageDialog(this,
+                 panel.getInterfaceName() + ": " +
+                 ConfigValidator.message(result),"IPConfig",
+                 JOptionPane.ERROR_MESSAGE);
+                return false;
             }
+            InterfaceConfig ic = panel.getConfig();
+            configs.add(ic != null ? ic : panel.getLoadedConfig());
+        }
 
-            // find wlan0 data
-            if (LINES.get(i).trim().equals("interface wlan0")) {
-                wlan0 = i;
-                if (LINES.get(i+1).trim().startsWith("static ip_address=")) {
-                    String arr[] = LINES.get(i+1).split("=");
-                    String arr2[] = arr[1].split("/");
-                    wlan0AddressField.setText(arr2[0]);
-                    wlan0BitsField.setText(arr2[1]);
-                }
-                if (LINES.get(i+2).trim().startsWith("static routers=")) {
-                    String arr[] = LINES.get(i+2).split("=");
-                    wlan0RoutersField.setText(arr[1]);
-                }
-                if (LINES.get(i+3).trim().startsWith(
-                 "static domain_name_servers=")) {
-                    String arr[] = LINES.get(i+3).split("=");
-                    wlan0NameServersField.setText(arr[1]);
-                }
+        String[] overlap = ConfigValidator.findOverlap(configs);
+        METRICS.record(Metrics.VALIDATE,start);
+        if (overlap != null) {
+            JOptionPane.showMessageDialog(this,
+             overlap[0] + " and " + overlap[1] + ": " +
+             ConfigValidator.message(ConfigValidator.OVERLAP),"IPConfig",
+             JOptionPane.ERROR_MESSAGE);
+            return false;
+        }
+
+        // an address typed in that a pool has already handed out is likely
+        // used by another device
+        for (InterfacePanel panel : panels.values()) {
+            InterfaceConfig ic = panel.getConfig();
+            if (ic == null || ic.getAddress().isEmpty() || ic.getAddress()
+             .equals(panel.getLoadedConfig().getAddress()))
+                continue;
+            int address = (int)Ipv4.parse(ic.getAddress());
+            AddressPool pool = POOLS.find(address);
+            if (pool != null && pool.isAllocated(address) &&
+             !panel.isAllocatedHere(address)) {
+                panel.setExpanded(true);
+                int choice = JOptionPane.showConfirmDialog(this,
+                 panel.getInterfaceName() + ": " + ic.getAddress() +
+                 " is already allocated in address pool " + pool +
+                 ".\nSave anyway?","IPConfig",JOptionPane.YES_NO_OPTION,
+                 JOptionPane.WARNING_MESSAGE);
+                if (choice != JOptionPane.YES_OPTION)
+                    return false;
             }
         }
+        return true;
     }
 
     /**
-     * Depopulates the data fields and stores the data in the LINES array list
+     * Handles a change to dhcpcd.conf made by another program.  Only the
+     * changed region of the file is parsed again, then the affected
+     * interfaces are merged into the form.
      */
-    private void depopulateFields() {
-        eth0 = wlan0 = 0;
-        // find eth0
-        for (int i=0; i<LINES.size(); i++) {
-            if (LINES.get(i).trim().startsWith("interface eth0"))
-                eth0 = i;
+    private void externalChange() {
+        // a running task reloads the file itself or is changing it, check
+        // again when it is done
+        if (task != null || conf == null) {
+            externalPending = true;
+            return;
         }
-        // if there is no eth0 data add it
-        if (eth0 == 0) {
-            eth0 = LINES.size();
-            LINES.add("interface eth0");
-            LINES.add(eth0 + 1,
-             "static ip_address=" + eth0AddressField.getText() + "/" +
-             eth0BitsField.getText());
-            LINES.add(eth0 + 2,"static routers=" + eth0RoutersField.getText());
-            LINES.add(eth0 + 3,
-             "static domain_name_servers=" + eth0NameServersField.getText());
-        // else modify it
-        } else {
-            LINES.set(eth0 + 1,
-             "static ip_address=" + eth0AddressField.getText() + "/" +
-             eth0BitsField.getText());
-            LINES.set(eth0 + 2,"static routers=" + eth0RoutersField.getText());
-            LINES.set(eth0 + 3,
-             "static domain_name_servers=" + eth0NameServersField.getText());
-        }
-
-        // find wlan0
-        for (int i=0; i<LINES.size(); i++) {
-            if (LINES.get(i).trim().startsWith("interface wlan0"))
-                wlan0 = i;
-        }
-        // if there is no wlan0 data add it
-        if (wlan0 == 0) {
-            wlan0 = LINES.size();
-            LINES.add("interface wlan0");
-            LINES.add(wlan0 + 1,
-             "static ip_address=" + wlan0AddressField.getText() + "/" +
-             wlan0BitsField.getText());
-            LINES.add(wlan0 + 2,
-             "static routers=" + wlan0RoutersField.getText());
-            LINES.add(wlan0 + 3,
-             "static domain_name_servers=" + wlan0NameServersField.getText());
-        // else modify it
-        } else {
-            LINES.set(wlan0 + 1,
-             "static ip_address=" + wlan0AddressField.getText() + "/" +
-             wlan0BitsField.getText());
-            LINES.set(wlan0 + 2,
-             "static routers=" + wlan0RoutersField.getText());
-            LINES.set(wlan0 + 3,
-             "static domain_name_servers=" + wlan0NameServersField.getText());
+        DhcpcdConf old = conf;
+        Set<String> affected = new LinkedHashSet<>();
+        background("Error reading dhcpcd.conf file",
+         t -> conf =
+         ConfFile.reread(old,CONF_FILE.toPath(),affected).freeze(),
+         () -> mergeExternal(affected));
+    }
+
+    /**
+     * Merges interfaces changed by another program into the form.  Sections
+     * that have not been edited take the new values, for a section that has
+     * been edited the user chooses between the file and the edits.
+     *
+     * @param   affected the interfaces in the changed region of the file
+     */
+    private void mergeExternal(Set<String> affected) {
+        for (String name : affected) {
+            InterfacePanel panel = panels.get(name);
+            InterfaceConfig fromFile = conf.getInterface(name);
+            if (panel == null || fromFile.sameValues(panel.getLoadedConfig()))
+                continue;
+            LOG.append(name + " was changed outside IPConfig");
+            InterfaceConfig mine = panel.getConfig();
+            if (mine == null || mine.sameValues(fromFile)) {
+                panel.setConfig(fromFile);
+                continue;
+            }
+
+            Object[] options = { "Use File","Keep My Edits" };
+            int choice = JOptionPane.showOptionDialog(this,
+             CONF_FILE + " was changed by another program while you were\n" +
+             "editing " + name + ".  Use the values from the file or keep\n" +
+             "your edits and save them over the file?",
+             "IPConfig",JOptionPane.DEFAULT_OPTION,
+             JOptionPane.WARNING_MESSAGE,null,options,options[0]);
+            if (choice == 0)
+                panel.setConfig(fromFile);
+            else
+                panel.rebase(fromFile);
         }
+        // interfaces that are new in the file get sections
+        populateNew();
+    }
 
-        // find wlan0 data in the LINES array list
-        for (int i=0; i<LINES.size(); i++) {
-            if (LINES.get(i).trim().startsWith("interface wlan0"))
-                wlan0 = i;
+    /**
+     * Stores edits in the conf model, commits it and rebinds the interfaces
+     * that changed.  Runs on a background thread.
+     *
+     * @param   t the task running the save
+     * @param   edits the interface configurations from the form
+     * @param   diff the previewed diff of the file and the edits or null
+     *
+     * @throws  Exception if the save fails or is cancelled
+     */
+    private void save(Task t, java.util.List<InterfaceConfig> edits,
+     java.util.List<LineDiff.Edit> diff) throws Exception {
+        // keep the file as it is now if it changed since the last save
+        journal("Before save");
+        DhcpcdConf previous = conf;
+        DhcpcdConf saved = previous.copy();
+        Map<String,String> before = new HashMap<>();
+        for (InterfaceConfig ic : edits) {
+            before.put(ic.getName(),
+             previous.getInterface(ic.getName()).getAddress());
+            saved.setInterface(ic);
         }
-        // if the wlan0 address field has been cleared 
-        if (wlan0AddressField.getText().equals("")) {
-            // remove the wlan0 data
-            for (int i=wlan0; i<wlan0 + 4; i++)
-                LINES.remove(wlan0);
+        // only the interfaces that were edited get rebound
+        java.util.List<String> changed =
+         new ArrayList<>(saved.getChangedInterfaces());
+        t.step(25);
+
+        if (COMMITTER.isDirect(CONF_FILE.toPath())) {
+            // replace /etc/dhcpcd.conf atomically and reload it so the next
+            // save copies from the new file
+            long start = Metrics.start();
+            commit(saved);
+            METRICS.record(Metrics.WRITE,start);
+            t.step(50);
+            loadConfFile();
+            journal(saved,diff,"Save " + String.join(",",changed));
+            t.step(60);
+            start = Metrics.start();
+            rebind(changed);
+            t.step(70);
+            if (verify(changed,start,previous))
+                claimAddresses(before,edits);
+            exportMetrics();
+            return;
         }
 
-        // find the eth0 data in the LINES array list
-        for (int i=0; i<LINES.size(); i++) {
-            if (LINES.get(i).trim().startsWith("interface eth0"))
-                eth0 = i;
+        // the root helper commits and rebinds in one round trip, without it
+        // the sudo script does
+        long start = Metrics.start();
+        if (!helper("/etc/dhcpcd.conf",saved.getSourceVersion(),
+         ConfFile.encode(saved),changed)) {
+            t.step(40);
+            start = Metrics.start();
+            script(saved,changed);
         }
-        // if the eth0 address field has been cleared
-        if (eth0AddressField.getText().equals("")) {
-            // remove the eth0 data
-            for (int i=eth0; i<eth0 + 4; i++)
-                LINES.remove(eth0);
+        loadConfFile();
+        journal(saved,diff,"Save " + String.join(",",changed));
+        t.step(70);
+        if (verify(changed,start,previous))
+            claimAddresses(before,edits);
+        exportMetrics();
+    }
+
+    /**
+     * Commits a model in process.  If another program changed the file
+     * since the model was read, the change is merged into the form when
+     * the task ends and nothing is written.  Runs on a background thread.
+     *
+     * @param   saved the model to commit
+     *
+     * @throws  IOException if the file changed or can't be committed
+     */
+    private void commit(DhcpcdConf saved) throws IOException {
+        try {
+            COMMITTER.commit(saved,CONF_FILE.toPath(),
+             ConfCommitter.DHCPCD_CONF);
+        } catch (ConfCommitter.StaleException se) {
+            throw stale(se);
         }
     }
 
     /**
-     * Create the script to write the new /etc/dhcpcd.conf file
+     * Commits a model through the sudo script, see SudoScript.commit.  A
+     * change made by another program is merged as for commit.  Runs on a
+     * background thread.
+     *
+     * @param   saved the model to commit
+     * @param   changed the interfaces to rebind
      *
-     * @return a String containing the script
+     * @throws  IOException if the file changed, the script failed before
+     *          replacing it or a rebind failed after
+     * @throws  InterruptedException if interrupted waiting for the script
      */
-    private String dhcpcdScript() {
-        StringBuilder sb = new StringBuilder();
-        sb.append("#!/bin/bash\n");
-        sb.append("chmod 664 $HOME/temp\n");
-        sb.append("sudo chown root:netdev $HOME/temp\n");
-        sb.append("sudo mv $HOME/temp /etc/dhcpcd.conf\n");
-        sb.append("echo dhcpcd script complete!\n");
-        
-		sb.append("sudo service dhcpcd stop\n");
-		sb.append("sudo dhclient -r eth0\n");		
-		sb.append("sudo dhclient -r wlan0\n");
-		sb.append("sudo service dhcpcd start\n");
+    private void script(DhcpcdConf saved, java.util.List<String> changed)
+     throws IOException, InterruptedException {
+        try {
+            SCRIPT.commit(COMMITTER,saved,CONF_FILE.toPath(),changed,METRICS);
+        } catch (ConfCommitter.StaleException se) {
+            throw stale(se);
+        } catch (IOException ioe) {
+            exportMetrics();
+            throw ioe;
+        }
+    }
 
-        return sb.toString();
+    /**
+     * Arranges for a change made by another program to be merged into the
+     * form when the task ends
+     *
+     * @param   se the exception thrown by the committer
+     *
+     * @return  the exception to report
+     */
+    private IOException stale(ConfCommitter.StaleException se) {
+        externalPending = true;
+        return new IOException(se.getMessage() + ".\nIts changes are " +
+         "merged into the form, check them and save again.",se);
     }
 
     /**
-     * Create the script to recover /etc/network/interfaces
+     * Commits a file and rebinds interfaces through the root helper in one
+     * round trip, if it is running.  The time is kept as the script's,
+     * which the helper stands in for.  Runs on a background thread.
      *
-     * @return a String containing the script
+     * @param   target the system path of the file, e.g. /etc/dhcpcd.conf
+     * @param   version the version the contents were edited from or -1
+     * @param   data the new contents
+     * @param   rebind the interfaces to rebind
+     *
+     * @return  false if the helper isn't running or refused the write and
+     *          nothing was done, the sudo script is to be used
+     *
+     * @throws  IOException if the file changed or the helper failed
      */
-    private String recoverScript() {
-        StringBuilder sb = new StringBuilder();
-        sb.append("#!/bin/bash\n");
-        sb.append("chmod 644 $HOME/temp\n");
-        sb.append("sudo chown root:root $HOME/temp\n");
-        sb.append("sudo mv $HOME/temp /etc/network/interfaces\n");
-        sb.append("echo recover script complete!\n");
+    private boolean helper(String target, long version, byte[] data,
+     java.util.List<String> rebind) throws IOException {
+        long start = Metrics.start();
+        boolean sent = true;
+        try {
+            LOG.append(HELPER.write(target,version,data,rebind));
+        } catch (RootHelper.NotRunningException nre) {
+            sent = false;
+        } catch (RootHelper.RefusedException re) {
+            LOG.append(re.getMessage() + ", using the sudo script");
+            sent = false;
+        } catch (ConfCommitter.StaleException se) {
+            throw stale(se);
+        } finally {
+            if (sent)
+                METRICS.record(Metrics.RUN_SCRIPT,start);
+        }
+        return sent;
+    }
 
-        return sb.toString();
+    /**
+     * Rebinds interfaces and times the rebinds.  Runs on a background
+     * thread.
+     *
+     * @param   changed the interfaces to rebind
+     *
+     * @throws  IOException if a rebind command can't be run or fails
+     * @throws  InterruptedException if interrupted waiting for a command
+     */
+    private void rebind(java.util.List<String> changed)
+     throws IOException, InterruptedException {
+        long start = Metrics.start();
+        RELOADER.rebind(changed).forEach((name,ms) ->
+         LOG.append(name + " rebound in " + ms + " ms"));
+        METRICS.record(Metrics.RELOAD,start);
+    }
+
+    /**
+     * Waits for rebound interfaces to come up with their addresses and
+     * reach their routers.  If one doesn't by the watchdog deadline its
+     * block is put back as it was before the save and only that interface
+     * is rebound, so a wrong address doesn't leave a remote Pi unreachable.
+     * Runs on a background thread.
+     *
+     * @param   changed the rebound interfaces
+     * @param   start the time the rebind started
+     * @param   previous the file before the save or null to only measure
+     *
+     * @return  true if every interface came back or the watchdog is off
+     *
+     * @throws  IOException if the previous blocks can't be restored
+     * @throws  InterruptedException if the task is cancelled
+     */
+    @SuppressWarnings("try")
+    private boolean verify(java.util.List<String> changed, long start,
+     DhcpcdConf previous) throws IOException, InterruptedException {
+        if (WATCHDOG == null)
+            return true;
+        java.util.List<InterfaceConfig> configs = new ArrayList<>();
+        for (String name : changed)
+            configs.add(conf.getInterface(name));
+        java.util.List<String> failed = new ArrayList<>();
+        for (LinkWatchdog.Result r : WATCHDOG.watch(configs,start).values()) {
+            LOG.append(r.toString());
+            if (r.getAddressTime() >= 0)
+                METRICS.get(Metrics.LINK_UP).observe(r.getAddressTime());
+            if (r.getGatewayTime() >= 0)
+                METRICS.get(Metrics.GATEWAY).observe(r.getGatewayTime());
+            if (!r.isUp())
+                failed.add(r.name);
+        }
+        if (failed.isEmpty() || previous == null)
+            return failed.isEmpty();
+
+        String names = String.join(",",failed);
+        LOG.append("Restoring the previous configuration of " + names);
+        boolean helped = false;
+        if (!COMMITTER.isDirect(CONF_FILE.toPath())) {
+            // the helper is sent the file as it is now with the blocks put
+            // back and checks it like any other write
+            DhcpcdConf restored = restore(failed,previous);
+            try {
+                LOG.append(HELPER.write("/etc/dhcpcd.conf",
+                 restored.getSourceVersion(),ConfFile.encode(restored),failed));
+                helped = true;
+            } catch (RootHelper.NotRunningException |
+             RootHelper.RefusedException | ConfCommitter.StaleException e) {
+                // the script puts them back
+            }
+        }
+        if (!helped) {
+            // the blocks are put back into the file as it is now, read with
+            // the commit lock held so nothing changes it in between
+            try (ConfCommitter.Lock lock = COMMITTER.lock()) {
+                DhcpcdConf restored = restore(failed,previous);
+                if (COMMITTER.isDirect(CONF_FILE.toPath())) {
+                    COMMITTER.commit(restored,CONF_FILE.toPath(),
+                     ConfCommitter.DHCPCD_CONF);
+                    rebind(failed);
+                } else {
+                    script(restored,failed);
+                }
+            }
+        }
+        loadConfFile();
+        journal("Watchdog restore " + names);
+        EventQueue.invokeLater(() -> JOptionPane.showMessageDialog(this,
+         names + " did not come back within the watchdog deadline.\n" +
+         "Its previous configuration has been restored.","IPConfig",
+         JOptionPane.WARNING_MESSAGE));
+        return false;
+    }
+
+    /**
+     * Reads the file as it is now and puts interface blocks back into it as
+     * they were in an earlier model.  Runs on a background thread.
+     *
+     * @param   names the interfaces
+     * @param   previous the earlier model
+     *
+     * @return  the file with the blocks put back
+     *
+     * @throws  IOException if the file can't be read
+     */
+    private DhcpcdConf restore(java.util.List<String> names,
+     DhcpcdConf previous) throws IOException {
+        DhcpcdConf restored = ConfFile.read(CONF_FILE.toPath());
+        for (String name : names) {
+            java.util.List<String> block = previous.getBlock(name);
+            restored.replaceBlock(name,block != null ? block :
+             Collections.<String>emptyList());
+        }
+        return restored;
+    }
+
+    /**
+     * Loads the metrics of earlier runs.  Runs on a background thread.
+     */
+    private void loadMetrics() {
+        METRICS.describe(COMMITTER.getRoot());
+        try {
+            METRICS.load(METRICS_FILE);
+        } catch (IOException ioe) {
+            LOG.append("Error loading metrics: " + ioe.getMessage());
+        }
+    }
+
+    /**
+     * Exports the metrics for the Prometheus textfile collector
+     */
+    private void exportMetrics() {
+        try {
+            METRICS.export(METRICS_FILE);
+        } catch (IOException ioe) {
+            LOG.append("Error exporting metrics: " + ioe.getMessage());
+        }
+    }
+
+    /**
+     * Shows the times of the load and save phases
+     */
+    private void diagnostics() {
+        JTextArea text = new JTextArea(METRICS.summary() + "\n\nExported to " +
+         METRICS_FILE);
+        text.setFont(new Font(Font.MONOSPACED,Font.PLAIN,12));
+        text.setForeground(RASPBERRY);
+        text.setEditable(false);
+        JOptionPane.showMessageDialog(this,text,"Diagnostics",
+         JOptionPane.PLAIN_MESSAGE);
+    }
+
+    /**
+     * Records dhcpcd.conf in the journal if it changed since the newest
+     * version.  Runs on a background thread.
+     *
+     * @param   note what made the version
+     */
+    private void journal(String note) {
+        try {
+            JOURNAL.record(CONF_FILE.toPath(),note);
+        } catch (IOException ioe) {
+            // the file is saved, only the history is behind
+            LOG.append("Error recording dhcpcd.conf version: " +
+             ioe.getMessage());
+        }
+    }
+
+    /**
+     * Records a saved model in the journal.  Runs on a background thread.
+     *
+     * @param   saved the model that was committed
+     * @param   diff the diff of the file before the save and the model or
+     *          null to diff them again
+     * @param   note what made the version
+     */
+    private void journal(DhcpcdConf saved, java.util.List<LineDiff.Edit> diff,
+     String note) {
+        try {
+            JOURNAL.record(saved.rawLines(),diff,note);
+        } catch (IOException ioe) {
+            LOG.append("Error recording dhcpcd.conf version: " +
+             ioe.getMessage());
+        }
+    }
+
+    /**
+     * Shows a unified diff of dhcpcd.conf and the edits in the form and
+     * saves them if the user chooses to
+     */
+    private void preview() {
+        if (!validateFields())
+            return;
+        java.util.List<InterfaceConfig> edits = depopulateFields();
+        DhcpcdConf edited = conf.copy();
+        for (InterfaceConfig ic : edits)
+            edited.setInterface(ic);
+        java.util.List<String> before = conf.getLines();
+        java.util.List<String> after = edited.getLines();
+        java.util.List<LineDiff.Edit> diff = LineDiff.diff(before,after);
+        if (diff.isEmpty()) {
+            JOptionPane.showMessageDialog(this,"There are no changes to save",
+             "Preview Changes",JOptionPane.INFORMATION_MESSAGE);
+            return;
+        }
+
+        JTextArea text = new JTextArea(LineDiff.unified(before,after,diff,
+         CONF_FILE.getPath(),CONF_FILE.getPath() + " (edited)"));
+        text.setFont(new Font(Font.MONOSPACED,Font.PLAIN,12));
+        text.setForeground(RASPBERRY);
+        text.setEditable(false);
+        text.setCaretPosition(0);
+        JScrollPane scroll = new JScrollPane(text);
+        scroll.setPreferredSize(new Dimension(560,360));
+        Object[] options = { "Save", "Cancel" };
+        int choice = JOptionPane.showOptionDialog(this,scroll,
+         "Preview Changes",JOptionPane.DEFAULT_OPTION,
+         JOptionPane.PLAIN_MESSAGE,null,options,options[0]);
+        if (choice == 0)
+            background("Error saving dhcpcd.conf file",
+             t -> save(t,edits,diff),this::populateFields);
+    }
+
+    /**
+     * Shows the recorded versions of dhcpcd.conf and rolls back to the one
+     * the user picks
+     */
+    private void rollback() {
+        java.util.List<ConfJournal.Version> versions;
+        try {
+            versions = JOURNAL.getVersions();
+        } catch (IOException ioe) {
+            JOptionPane.showMessageDialog(this,ioe.getMessage(),"Rollback",
+             JOptionPane.ERROR_MESSAGE);
+            return;
+        }
+        if (versions.size() < 2) {
+            JOptionPane.showMessageDialog(this,
+             "No earlier versions of dhcpcd.conf have been recorded",
+             "Rollback",JOptionPane.INFORMATION_MESSAGE);
+            return;
+        }
+        Collections.reverse(versions);
+        JList<ConfJournal.Version> list =
+         new JList<>(versions.toArray(new ConfJournal.Version[0]));
+        list.setForeground(RASPBERRY);
+        list.setSelectionMode(ListSelectionModel.SINGLE_SELECTION);
+        list.setSelectedIndex(1);
+        list.setVisibleRowCount(10);
+
+        int option = JOptionPane.showConfirmDialog(this,new JScrollPane(list),
+         "Roll back dhcpcd.conf to",JOptionPane.OK_CANCEL_OPTION,
+         JOptionPane.PLAIN_MESSAGE);
+        ConfJournal.Version version = list.getSelectedValue();
+        if (option != JOptionPane.OK_OPTION || version == null)
+            return;
+        background("Error rolling back dhcpcd.conf file",
+         t -> rollback(t,version.number),this::populateFields);
     }
 
     /**
-     * Runs the script create by createScript()
+     * Replaces dhcpcd.conf with a recorded version and rebinds the
+     * interfaces whose parameters differ.  Runs on a background thread.
+     *
+     * @param   t the task running the rollback
+     * @param   number the version to roll back to
      *
-     * @throws IOException if an I/O error occurs starting the process
+     * @throws  Exception if the rollback fails or is cancelled
      */
-    private void runScript() throws IOException {
-        ProcessBuilder pb = new ProcessBuilder(SCRIPT_NAME);
-        pb.redirectErrorStream();
-        Process p = pb.start();
-        InputStream is = p.getInputStream();
-        // separate thread to handle stdout/stderr
-        new Thread(() -> {
-            int c;
+    private void rollback(Task t, int number) throws Exception {
+        journal("Before rollback");
+        String text = ConfJournal.join(JOURNAL.lines(number));
+        java.util.List<String> changed = new ArrayList<>(
+         conf.differences(ConfFile.parse(text,null,-1,-1)));
+        t.step(25);
+
+        if (COMMITTER.isDirect(CONF_FILE.toPath())) {
+            long start = Metrics.start();
+            COMMITTER.commit(text,CONF_FILE.toPath(),
+             ConfCommitter.DHCPCD_CONF);
+            METRICS.record(Metrics.WRITE,start);
+            t.step(50);
+            loadConfFile();
+            journal("Rollback to " + number);
+            t.step(60);
+            start = Metrics.start();
+            rebind(changed);
+            verify(changed,start,null);
+            exportMetrics();
+            return;
+        }
+
+        long start = Metrics.start();
+        if (!helper("/etc/dhcpcd.conf",-1,
+         text.getBytes(StandardCharsets.ISO_8859_1),changed)) {
+            t.step(40);
+            start = Metrics.start();
             try {
-                while ((c = is.read()) != -1)
-                    System.out.print((char)c);
+                SCRIPT.commit(COMMITTER,text,CONF_FILE.toPath(),changed,
+                 METRICS);
             } catch (IOException ioe) {
-                ioe.printStackTrace();
+                exportMetrics();
+                throw ioe;
             }
-        }).start();
+        }
+        loadConfFile();
+        journal("Rollback to " + number);
+        verify(changed,start,null);
+        exportMetrics();
+    }
 
-        // separate thread to wait for script to complete and delete the
-        // script file
-        new Thread(() -> {
+    /**
+     * Shows the profiles and switches to, saves or deletes the one the user
+     * picks
+     */
+    private void profiles() {
+        java.util.List<Profiles.Profile> profiles = PROFILES.getProfiles();
+        Profiles.Profile active = PROFILES.getActive(conf);
+        JList<Profiles.Profile> list =
+         new JList<>(profiles.toArray(new Profiles.Profile[0]));
+        list.setForeground(RASPBERRY);
+        list.setSelectionMode(ListSelectionModel.SINGLE_SELECTION);
+        list.setSelectedValue(active,true);
+        list.setVisibleRowCount(8);
+        list.setCellRenderer(new DefaultListCellRenderer() {
+            @Override
+            public Component getListCellRendererComponent(JList<?> l,
+             Object value, int index, boolean selected, boolean focus) {
+                return super.getListCellRendererComponent(l,
+                 (value == active ? "* " : "  ") + value,index,selected,focus);
+            }
+        });
+
+        Object[] options = { "Switch","Save Current As","Delete","Cancel" };
+        int choice = JOptionPane.showOptionDialog(this,new JScrollPane(list),
+         "Profiles",JOptionPane.DEFAULT_OPTION,JOptionPane.PLAIN_MESSAGE,
+         null,options,options[0]);
+        Profiles.Profile profile = list.getSelectedValue();
+        try {
+            if (choice == 0 && profile != null) {
+                if (!profile.getErrors().isEmpty()) {
+                    JOptionPane.showMessageDialog(this,profile.name + ":\n" +
+                     String.join("\n",profile.getErrors()),"Profiles",
+                     JOptionPane.ERROR_MESSAGE);
+                    return;
+                }
+                background("Error switching profile",
+                 t -> switchProfile(t,profile),this::populateFields);
+            } else if (choice == 1) {
+                String name = JOptionPane.showInputDialog(this,
+                 "Save the interface blocks of " + CONF_FILE + " as",
+                 profile != null ? profile.name : "");
+                if (name == null || name.trim().isEmpty())
+                    return;
+                Profiles.Profile saved = PROFILES.save(name.trim(),conf,
+                 Collections.<String>emptyList());
+                LOG.append("Saved profile " + saved);
+            } else if (choice == 2 && profile != null) {
+                PROFILES.delete(profile.name);
+                LOG.append("Deleted profile " + profile.name);
+            }
+        } catch (IllegalArgumentException|IOException e) {
+            JOptionPane.showMessageDialog(this,e.getMessage(),"Profiles",
+             JOptionPane.ERROR_MESSAGE);
+        }
+    }
+
+    /**
+     * Switches to a profile by swapping its blocks into a copy of the model,
+     * committing it and rebinding the interfaces whose blocks changed.
+     * Runs on a background thread.
+     *
+     * @param   t the task running the switch
+     * @param   profile the profile
+     *
+     * @throws  Exception if the switch fails or is cancelled
+     */
+    private void switchProfile(Task t, Profiles.Profile profile)
+     throws Exception {
+        journal("Before profile");
+        long started = System.nanoTime();
+        DhcpcdConf previous = conf;
+        DhcpcdConf switched = previous.copy();
+        java.util.List<String> changed =
+         new ArrayList<>(profile.activate(switched));
+        if (changed.isEmpty()) {
+            LOG.append("Profile " + profile.name + " is already active");
+            return;
+        }
+        t.step(25);
+
+        long start = Metrics.start();
+        if (COMMITTER.isDirect(CONF_FILE.toPath())) {
+            commit(switched);
+            METRICS.record(Metrics.WRITE,start);
+            t.step(50);
+            loadConfFile();
+            start = Metrics.start();
+            rebind(changed);
+        } else if (helper("/etc/dhcpcd.conf",switched.getSourceVersion(),
+         ConfFile.encode(switched),changed)) {
+            loadConfFile();
+        } else {
+            t.step(40);
+            start = Metrics.start();
+            script(switched,changed);
+            loadConfFile();
+        }
+        journal(switched,null,"Profile " + profile.name);
+        LOG.append("Switched to profile " + profile.name + " in " +
+         (System.nanoTime() - started) / 1000000 + " ms");
+        t.step(70);
+        verify(changed,start,previous);
+        exportMetrics();
+    }
+
+    /**
+     * Marks saved addresses as allocated in their pools and releases the
+     * addresses interfaces no longer use.  Runs on a background thread.
+     *
+     * @param   before the addresses of the edited interfaces before the save
+     * @param   edits the saved interface configurations
+     */
+    private void claimAddresses(Map<String,String> before,
+     java.util.List<InterfaceConfig> edits) {
+        Set<AddressPool> touched = new LinkedHashSet<>();
+        for (InterfaceConfig ic : edits) {
+            String old = before.get(ic.getName());
+            if (old.equals(ic.getAddress()))
+                continue;
+            long address = Ipv4.parse(old);
+            AddressPool pool;
+            if (address != Ipv4.INVALID &&
+             (pool = POOLS.release((int)address)) != null)
+                touched.add(pool);
+            address = Ipv4.parse(ic.getAddress());
+            if (address != Ipv4.INVALID &&
+             (pool = POOLS.find((int)address)) != null &&
+             pool.allocate((int)address))
+                touched.add(pool);
+        }
+        for (AddressPool pool : touched) {
             try {
-                p.waitFor();
-            } catch (InterruptedException ie) {
-                EventQueue.invokeLater(() ->
-                 JOptionPane.showMessageDialog(IPConfig.this,
-                 "Thread Interrupted Waiting for Script to Complete",
-                 "IPConfig",JOptionPane.WARNING_MESSAGE));
+                POOLS.save(pool);
+            } catch (IOException ioe) {
+                // the file is saved, only the pool is behind
+                LOG.append("Error saving address pool " + pool + ": " +
+                 ioe.getMessage());
             }
-            if (!SCRIPT_FILE.delete())
-                EventQueue.invokeLater(() ->
-                 JOptionPane.showMessageDialog(IPConfig.this,
-                 "Unable to Delete Script File","IPConfig",
-                 JOptionPane.ERROR_MESSAGE));
-        }).start();
+        }
+    }
+
+    /**
+     * Shows the address pools and lets the user add one
+     */
+    private void addressPools() {
+        StringBuilder sb = new StringBuilder();
+        for (AddressPool pool : POOLS.getPools())
+            sb.append(pool).append("   ").append(pool.getFree())
+             .append(" free\n");
+        JTextArea list = new JTextArea(sb.length() == 0 ? "No pools" :
+         sb.toString().trim());
+        list.setEditable(false);
+        list.setForeground(RASPBERRY);
+
+        JPanel p = new JPanel(new GridBagLayout());
+        GridBagConstraints c = new GridBagConstraints();
+        c.insets = new Insets(5,5,5,5);
+        c.gridx = c.gridy = 0;
+        c.gridwidth = 2;
+        c.fill = GridBagConstraints.HORIZONTAL;
+        p.add(list,c);
+
+        ++c.gridy;  c.gridwidth = 1;
+        p.add(new RaspberryJLabel("New Subnet:",JLabel.RIGHT),c);
+        ++c.gridx;
+        JTextField subnet = new RaspberryJTextField(15);
+        p.add(subnet,c);
+
+        c.gridx = 0;  ++c.gridy;
+        p.add(new RaspberryJLabel("Reserved:",JLabel.RIGHT),c);
+        ++c.gridx;
+        JTextField reserved = new RaspberryJTextField(15);
+        reserved.setToolTipText("Addresses or a.b.c.d-a.b.c.d ranges");
+        p.add(reserved,c);
+
+        int option = JOptionPane.showConfirmDialog(this,p,"Address Pools",
+         JOptionPane.OK_CANCEL_OPTION,JOptionPane.PLAIN_MESSAGE);
+        if (option != JOptionPane.OK_OPTION ||
+         subnet.getText().trim().isEmpty())
+            return;
+        try {
+            AddressPool pool = AddressPool.parse(subnet.getText());
+            pool.reserve(reserved.getText());
+            POOLS.add(pool);
+            LOG.append("Added address pool " + pool + " with " +
+             pool.getFree() + " free addresses");
+        } catch (IllegalArgumentException|IOException e) {
+            JOptionPane.showMessageDialog(this,e.getMessage(),
+             "Address Pools",JOptionPane.ERROR_MESSAGE);
+        }
     }
 
     /**
-     * Create a script file from a String containing the script lines, set it
-     * executable and delete on exit
+     * Writes the /etc/network/interfaces template.  Runs on a background
+     * thread.
      *
-     * @param   script the String containing the lines of the script
-     * @throws  IOException if an I/O error occurs during file creation
+     * @param   t the task running the recover
+     *
+     * @throws  Exception if the recover fails or is cancelled
      */
-    private void createScriptFile(String script) throws IOException {
-        try (BufferedWriter bw = new BufferedWriter(
-         new FileWriter(SCRIPT_FILE))) {
-            bw.write(script);
+    private void recover(Task t) throws Exception {
+        if (COMMITTER.isDirect(INTERFACES_FILE.toPath())) {
+            COMMITTER.commit(SudoScript.INTERFACES,INTERFACES_FILE.toPath(),
+             ConfCommitter.INTERFACES);
+            return;
         }
-        SCRIPT_FILE.setExecutable(true);
+
+        if (helper("/etc/network/interfaces",-1,
+         SudoScript.INTERFACES.getBytes(StandardCharsets.ISO_8859_1),
+         Collections.<String>emptyList()))
+            return;
+
+        // write data to temp file
+        SCRIPT.write(SudoScript.INTERFACES);
+        t.step(30);
+
+        // create the recover script
+        SCRIPT.create(SCRIPT.recoverScript(INTERFACES_FILE.toPath()));
+        t.step(50);
+
+        // run the script
+        runScript("writing " + INTERFACES_FILE);
     }
 
     /**
-     * Create the directions message data
+     * Runs work on a background thread.  The form is disabled and a progress
+     * bar and cancel button are shown until the work is done.
+     *
+     * @param   title the title of the error message if the work fails
+     * @param   work the work to run
+     * @param   done run on the EDT after the work completes normally, may be
+     *          null
+     */
+    private void background(String title, Work work, Runnable done) {
+        setFormEnabled(false);
+        progressBar.setValue(0);
+        progressBar.setVisible(true);
+        cancelButton.setVisible(true);
+        EDT_MONITOR.start();
+        task = new Task(title,work,done);
+        task.addPropertyChangeListener(event -> {
+            if ("progress".equals(event.getPropertyName()))
+                progressBar.setValue((Integer)event.getNewValue());
+        });
+        task.execute();
+        revalidate();
+    }
+
+    /**
+     * Enables or disables everything that could start or change an edit
+     *
+     * @param   enabled true to enable
+     */
+    private void setFormEnabled(boolean enabled) {
+        for (InterfacePanel panel : panels.values())
+            panel.setEditable(enabled);
+        saveButton.setEnabled(enabled);
+        previewButton.setEnabled(enabled);
+        editMenu.setEnabled(enabled);
+    }
+
+    /**
+     * Runs the script written by SCRIPT.create() and waits for it to
+     * complete, its output goes to the log.  A script that fails throws, so
+     * the task reports it and the form keeps the user's values.
+     *
+     * @param   what what the script does, for the error message
+     *
+     * @throws  IOException if an I/O error occurs starting the process, the
+     *          script times out or it exits with a status other than 0
+     * @throws  InterruptedException if interrupted waiting for the script
+     */
+    private void runScript(String what)
+     throws IOException, InterruptedException {
+        long start = Metrics.start();
+        int status;
+        try {
+            status = SCRIPT.run();
+        } finally {
+            METRICS.record(Metrics.RUN_SCRIPT,start);
+        }
+        if (status != 0) {
+            exportMetrics();
+            throw new IOException("The script " + what +
+             " exited with status " + status);
+        }
+    }
+
+    /**
+     * Create the directions message data, the message is built once and
+     * kept
      *
      * @return String containing program directions
      */
     private String directions() {
+        if (directionsHtml != null)
+            return directionsHtml;
         StringBuilder sb = new StringBuilder();
         sb.append("<html>\n");
         sb.append("<head>\n");
@@ -540,55 +1366,108 @@ public class IPConfig extends JPanel {
         sb.append("ces file, remove all edits or select the Edit/Recover me");
         sb.append("nu option.\n");
         sb.append("        <li>Fill in the static IP parameters for the net");
-        sb.append("work device desired - eth0, wlan0 or both and press the ");
-        sb.append("Save button.\n");
+        sb.append("work devices desired, click a device to show its fields,");
+        sb.append(" and press the Save button.\n");
+        sb.append("        <li>An interface may have an IPv4 address, an IP");
+        sb.append("v6 address or both. DNS servers may be IPv4 or IPv6 addr");
+        sb.append("esses.\n");
         sb.append("        <li>To remove static IP from a network device, c");
         sb.append("lear all the fields for that network device and press th");
-        sb.append("e Save button. Edit/Clear eth0 or Edit/Clear wlan0\n");
+        sb.append("e Save button. Edit/Clear lists every device\n");
+        sb.append("        <li>Preview shows the changes to /etc/dhcpcd.con");
+        sb.append("f as a diff before they are saved.\n");
+        sb.append("        <li>Every save is recorded, Edit/Rollback puts b");
+        sb.append("ack an earlier version of /etc/dhcpcd.conf.\n");
+        sb.append("        <li>Edit/Profiles saves the interface blocks as ");
+        sb.append("a named profile, such as office or lab, and switches to ");
+        sb.append("a profile by swapping its blocks in and rebinding the int");
+        sb.append("erfaces that change.\n");
         sb.append("    </ul>\n");
         sb.append("</body>\n");
         sb.append("</html>\n");
 
-        return sb.toString();
+        return directionsHtml = sb.toString();
     }
 
     /**
-     * Create the /etc/network/interfaces file data
-     *
-     * @return a String containing the lines of the file
+     * Work run by a background Task
      */
-    private String interfaces() {
-        StringBuilder sb = new StringBuilder();
-            sb.append("# interfaces(5) file used by ifup(8) and ifdown(8)\n");
-            sb.append("\n");
-            sb.append(
-            "# Please note that this file is written to be used with dhcpcd\n");
-            sb.append(
-           "# For static IP, consult /etc/dhcpcd.conf and 'man dhcpcd.conf'\n");
-            sb.append("\n");
-            sb.append("# Include files from /etc/network/interfaces.d:\n");
-            sb.append("source-directory /etc/network/interfaces.d\n");
-            sb.append("\n");
-            sb.append("auto lo\n");
-            sb.append("iface lo inet loopback\n");
-            sb.append("\n");
-            sb.append("iface eth0 inet manual\n");
-            sb.append("\n");
-            sb.append("allow-hotplug wlan0\n");
-            sb.append("iface wlan0 inet manual\n");
-            sb.append("    wpa-conf /etc/wpa_supplicant/wpa_supplicant.conf\n");
-            sb.append("\n");
-            sb.append("allow-hotplug wlan1\n");
-            sb.append("iface wlan1 inet manual\n");
-            sb.append("    wpa-conf /etc/wpa_supplicant/wpa_supplicant.conf");
-
-            return sb.toString();
+    private interface Work {
+        void run(Task t) throws Exception;
+    }
+
+    /**
+     * Background task that runs Work off the EDT and restores the form when
+     * it is done
+     */
+    private class Task extends SwingWorker<Void,Void> {
+        /** Title of the error message */
+        private final String title;
+
+        /** Work to run */
+        private final Work work;
+
+        /** Run on the EDT after normal completion or null */
+        private final Runnable done;
+
+        public Task(String title, Work work, Runnable done) {
+            this.title = title;
+            this.work = work;
+            this.done = done;
+        }
+
+        /**
+         * Reports progress and stops the work if it has been cancelled
+         *
+         * @param   progress the progress from 0 to 100
+         *
+         * @throws  InterruptedException if the task has been cancelled
+         */
+        public void step(int progress) throws InterruptedException {
+            if (isCancelled() || Thread.interrupted())
+                throw new InterruptedException("cancelled");
+            setProgress(progress);
+        }
+
+        @Override
+        protected Void doInBackground() throws Exception {
+            work.run(this);
+            return null;
+        }
+
+        @Override
+        protected void done() {
+            task = null;
+            progressBar.setVisible(false);
+            cancelButton.setVisible(false);
+            setFormEnabled(conf != null);
+            long stall = EDT_MONITOR.stop();
+            if (stall > EdtMonitor.FRAME_NANOS)
+                LOG.append("EDT stalled for " + stall / 1000000 + " ms");
+            if (externalPending) {
+                externalPending = false;
+                EventQueue.invokeLater(IPConfig.this::externalChange);
+            }
+
+            try {
+                get();
+                if (done != null)
+                    done.run();
+            } catch (CancellationException ce) {
+                LOG.append(title.replace("Error","Cancelled"));
+            } catch (InterruptedException | ExecutionException e) {
+                Throwable cause = e.getCause() == null ? e : e.getCause();
+                JOptionPane.showMessageDialog(IPConfig.this,cause,title,
+                 JOptionPane.ERROR_MESSAGE);
+                cause.printStackTrace();
+            }
+        }
     }
 
     /**
      * Raspberry colored JLabel
      */
-    private static class RaspberryJLabel extends JLabel {
+    static class RaspberryJLabel extends JLabel {
         public RaspberryJLabel(String text) {
             super(text);
             setForeground(RASPBERRY);
@@ -603,36 +1482,62 @@ public class IPConfig extends JPanel {
     /**
      * Raspberry colored JTextField
      */
-    private static class RaspberryJTextField extends JTextField {
+    static class RaspberryJTextField extends JTextField {
         public RaspberryJTextField(int columns) {
             super(columns);
             setForeground(RASPBERRY);
         }
     }
 
+    /**
+     * Paints the form, running the first paint hook the first time
+     *
+     * @param   g the graphics context
+     */
+    @Override
+    public void paint(Graphics g) {
+        super.paint(g);
+        if (firstPaint != null) {
+            Runnable r = firstPaint;
+            firstPaint = null;
+            // after the paint so the frame is on the screen
+            EventQueue.invokeLater(r);
+        }
+    }
+
     /**
      * Main program entry point, creates the containing frame and an IPConfig
      * GUI
      *
-     * @param   args command line arguments, not used
+     * @param   args command line arguments, --measure-startup to report the
+     *          time to the first frame on standard output and exit
      */
     public static void main(String... args) {
+        long start = System.nanoTime();
+        boolean measure = args.length > 0 &&
+         args[0].equals("--measure-startup");
         EventQueue.invokeLater(() -> {
-            try {
-                JFrame frame = new JFrame("IPConfig " + VERSION);
-                frame.setDefaultCloseOperation(JFrame.DISPOSE_ON_CLOSE);
-                IPConfig ipconfig = new IPConfig(frame);
-                frame.setJMenuBar(ipconfig.getJMenuBar());
-                frame.add(ipconfig,BorderLayout.CENTER);
-                frame.pack();
-                frame.setLocationRelativeTo(null);
-                frame.setVisible(true);
-            } catch (IOException ioe) {
-                JOptionPane.showMessageDialog(null,ioe,
-                 "Error loading dhcpcd.conf file",JOptionPane.ERROR_MESSAGE);
-                ioe.printStackTrace();
-            }
+            JFrame frame = new JFrame("IPConfig " + VERSION);
+            frame.setDefaultCloseOperation(JFrame.DISPOSE_ON_CLOSE);
+            IPConfig ipconfig = new IPConfig(frame);
+            frame.setJMenuBar(ipconfig.getJMenuBar());
+            frame.add(ipconfig,BorderLayout.CENTER);
+            frame.pack();
+            frame.setLocationRelativeTo(null);
+            ipconfig.firstPaint = () -> {
+                if (measure) {
+                    long main = TimeUnit.NANOSECONDS.toMillis(
+                     System.nanoTime() - start);
+                    long jvm = System.currentTimeMillis() -
+                     java.lang.management.ManagementFactory
+                     .getRuntimeMXBean().getStartTime();
+                    System.out.println("first frame " + jvm +
+                     " ms after JVM start, " + main + " ms after main");
+                    System.exit(0);
+                }
+                ipconfig.start();
+            };
+            frame.setVisible(true);
         });
     }
 }
-
@@ -0,0 +1,318 @@
+import java.util.*;
+
+/**
+ * Static IP parameters for one network interface as stored in an
+ * interface block of the dhcpcd.conf file
+ */
+public class InterfaceConfig {
+    /** Static address directive */
+    public static final String IP_ADDRESS = "static ip_address=";
+
+    /** Static IPv6 address directive */
+    public static final String IP6_ADDRESS = "static ip6_address=";
+
+    /** Static routers directive */
+    public static final String ROUTERS = "static routers=";
+
+    /** Static domain name servers directive */
+    public static final String NAME_SERVERS = "static domain_name_servers=";
+
+    /** Interface name */
+    private final String name;
+
+    /** IPv4 address */
+    private String address = "";
+
+    /** Network prefix bits */
+    private String bits = "";
+
+    /** IPv6 address */
+    private String ip6Address = "";
+
+    /** IPv6 network prefix bits */
+    private String ip6Bits = "";
+
+    /** Routers */
+    private String routers = "";
+
+    /** Domain name servers */
+    private String nameServers = "";
+
+    /**
+     * Creates a new empty InterfaceConfig
+     *
+     * @param   name the interface name
+     */
+    public InterfaceConfig(String name) {
+        this.name = name;
+    }
+
+    /**
+     * Creates a new InterfaceConfig from the lines of an interface block
+     *
+     * @param   name the interface name
+     * @param   block the lines of the block, header included, may be null
+     *
+     * @return  the parsed InterfaceConfig
+     */
+    public static InterfaceConfig fromBlock(String name, List<String> block) {
+        InterfaceConfig ic = new InterfaceConfig(name);
+        if (block == null)
+            return ic;
+
+        for (String line : block) {
+            String str = line.trim();
+            if (str.startsWith(IP_ADDRESS)) {
+                String value = str.substring(IP_ADDRESS.length()).trim();
+                int slash = value.indexOf('/');
+                if (slash < 0) {
+                    ic.address = value;
+                } else {
+                    ic.address = value.substring(0,slash);
+                    ic.bits = value.substring(slash + 1);
+                }
+            } else if (str.startsWith(IP6_ADDRESS)) {
+                String value = str.substring(IP6_ADDRESS.length()).trim();
+                int slash = value.indexOf('/');
+                if (slash < 0) {
+                    ic.ip6Address = value;
+                } else {
+                    ic.ip6Address = value.substring(0,slash);
+                    ic.ip6Bits = value.substring(slash + 1);
+                }
+            } else if (str.startsWith(ROUTERS)) {
+                ic.routers = str.substring(ROUTERS.length()).trim();
+            } else if (str.startsWith(NAME_SERVERS)) {
+                ic.nameServers = str.substring(NAME_SERVERS.length()).trim();
+            }
+        }
+
+        return ic;
+    }
+
+    /**
+     * Renders this configuration into an interface block.  Directives this
+     * class manages are replaced in place, everything else in the existing
+     * block is kept.  The IPv4 and IPv6 address directives are written only
+     * for the families that have an address, a valid IPv6 address in its
+     * canonical form.  If there is no address at all the static directives
+     * are dropped and, when nothing else is left, so is the block.
+     *
+     * @param   block the existing block lines or null if there is none
+     *
+     * @return  the new block lines, empty if the block should be removed
+     */
+    public List<String> render(List<String> block) {
+        List<String> out = new ArrayList<>();
+        boolean keep = isStatic();
+        String[] managed = new String[4];
+        if (keep) {
+            if (!address.isEmpty() || ip6Address.isEmpty()) {
+                managed[0] = IP_ADDRESS + address + "/" + bits;
+                managed[2] = ROUTERS + routers;
+            }
+            if (!ip6Address.isEmpty()) {
+                Ipv6Address a = Ipv6Address.parse(ip6Address);
+                managed[1] = IP6_ADDRESS + (a == null ? ip6Address :
+                 a.toString()) + "/" + ip6Bits;
+            }
+            managed[3] = NAME_SERVERS + nameServers;
+        }
+
+        if (block == null || block.isEmpty()) {
+            if (!keep)
+                return out;
+            out.add("interface " + name);
+            for (String line : managed)
+                if (line != null)
+                    out.add(line);
+            return out;
+        }
+
+        out.add(block.get(0));
+        boolean other = false;
+        // position to insert managed lines that were not in the block
+        int insert = 1;
+        for (int i=1; i<block.size(); i++) {
+            String str = block.get(i).trim();
+            int m = managedIndex(str);
+            if (m < 0) {
+                out.add(block.get(i));
+                if (!str.isEmpty() && !str.startsWith("#"))
+                    other = true;
+            } else if (managed[m] != null) {
+                out.add(managed[m]);
+                managed[m] = null;
+                insert = out.size();
+            }
+        }
+        if (keep) {
+            for (String line : managed)
+                if (line != null)
+                    out.add(insert++,line);
+        } else if (!other) {
+            out.clear();
+        }
+
+        return out;
+    }
+
+    /**
+     * Gets the index of the managed directive a line holds
+     *
+     * @param   str the trimmed line
+     *
+     * @return  0 to 3 for a managed directive or -1
+     */
+    static int managedIndex(String str) {
+        if (str.startsWith(IP_ADDRESS))
+            return 0;
+        if (str.startsWith(IP6_ADDRESS))
+            return 1;
+        if (str.startsWith(ROUTERS))
+            return 2;
+        if (str.startsWith(NAME_SERVERS))
+            return 3;
+        return -1;
+    }
+
+    /**
+     * Tests if this interface has a static address
+     *
+     * @return  true if an IPv4 or IPv6 address is set
+     */
+    public boolean isStatic() {
+        return !address.isEmpty() || !ip6Address.isEmpty();
+    }
+
+    /**
+     * Tests if another configuration holds the same values
+     *
+     * @param   other the other configuration
+     *
+     * @return  true if every value is the same
+     */
+    public boolean sameValues(InterfaceConfig other) {
+        return address.equals(other.address) && bits.equals(other.bits) &&
+         ip6Address.equals(other.ip6Address) &&
+         ip6Bits.equals(other.ip6Bits) && routers.equals(other.routers) &&
+         nameServers.equals(other.nameServers);
+    }
+
+    /**
+     * Gets the interface name
+     *
+     * @return  interface name
+     */
+    public String getName() {
+        return name;
+    }
+
+    /**
+     * Gets the IPv4 address
+     *
+     * @return  IPv4 address
+     */
+    public String getAddress() {
+        return address;
+    }
+
+    /**
+     * Sets the IPv4 address
+     *
+     * @param   address the IPv4 address
+     */
+    public void setAddress(String address) {
+        this.address = address.trim();
+    }
+
+    /**
+     * Gets the network prefix bits
+     *
+     * @return  network prefix bits
+     */
+    public String getBits() {
+        return bits;
+    }
+
+    /**
+     * Sets the network prefix bits
+     *
+     * @param   bits the network prefix bits
+     */
+    public void setBits(String bits) {
+        this.bits = bits.trim();
+    }
+
+    /**
+     * Gets the IPv6 address
+     *
+     * @return  IPv6 address
+     */
+    public String getIp6Address() {
+        return ip6Address;
+    }
+
+    /**
+     * Sets the IPv6 address
+     *
+     * @param   ip6Address the IPv6 address
+     */
+    public void setIp6Address(String ip6Address) {
+        this.ip6Address = ip6Address.trim();
+    }
+
+    /**
+     * Gets the IPv6 network prefix bits
+     *
+     * @return  IPv6 network prefix bits
+     */
+    public String getIp6Bits() {
+        return ip6Bits;
+    }
+
+    /**
+     * Sets the IPv6 network prefix bits
+     *
+     * @param   ip6Bits the IPv6 network prefix bits
+     */
+    public void setIp6Bits(String ip6Bits) {
+        this.ip6Bits = ip6Bits.trim();
+    }
+
+    /**
+     * Gets the routers
+     *
+     * @return  routers
+     */
+    public String getRouters() {
+        return routers;
+    }
+
+    /**
+     * Sets the routers
+     *
+     * @param   routers the routers
+     */
+    public void setRouters(String routers) {
+        this.routers = routers.trim();
+    }
+
+    /**
+     * Gets the domain name servers
+     *
+     * @return  domain name servers
+     */
+    public String getNameServers() {
+        return nameServers;
+    }
+
+    /**
+     * Sets the domain name servers
+     *
+     * @param   nameServers the domain name servers
+     */
+    public void setNameServers(String nameServers) {
+        this.nameServers = nameServers.trim();
+    }
+}
@@ -0,0 +1,136 @@
+import java.io.*;
+import java.net.*;
+import java.nio.file.*;
+import java.util.*;
+
+/**
+ * Finds the network interfaces of the system.  The names are read from
+ * /sys/class/net, or from {@link NetworkInterface} where there is no sysfs,
+ * and cached, the cache is only refreshed when it is asked for after it has
+ * gone stale.  Listing a directory of names is all the work done, so a
+ * system with dozens of virtual interfaces is enumerated just as fast.
+ */
+public class InterfaceDiscovery {
+    /**
+     * Orders interfaces wired first, then wireless, then the rest, by name
+     * within each kind
+     */
+    public static final Comparator<String> ORDER =
+     Comparator.comparingInt(InterfaceDiscovery::rank)
+     .thenComparing(Comparator.naturalOrder());
+
+    /** Directory of network interfaces */
+    private final Path sysClassNet;
+
+    /** Time a cached enumeration stays fresh in milliseconds */
+    private final long ttl;
+
+    /** Cached interface names */
+    private List<String> names;
+
+    /** Time the names were read */
+    private long readAt;
+
+    /**
+     * Creates a new InterfaceDiscovery
+     *
+     * @param   sysClassNet the /sys/class/net directory
+     * @param   ttl the time an enumeration stays fresh in milliseconds
+     */
+    public InterfaceDiscovery(Path sysClassNet, long ttl) {
+        this.sysClassNet = sysClassNet;
+        this.ttl = ttl;
+    }
+
+    /**
+     * Gets the interface names, loopback excluded, enumerating them again
+     * if the cached names are stale
+     *
+     * @return  the interface names in display order
+     */
+    public synchronized List<String> get() {
+        long now = System.nanoTime() / 1000000;
+        if (names == null || now - readAt > ttl) {
+            names = Collections.unmodifiableList(enumerate());
+            readAt = now;
+        }
+        return names;
+    }
+
+    /**
+     * Marks the cached names stale, the next get() enumerates again
+     */
+    public synchronized void invalidate() {
+        names = null;
+    }
+
+    /**
+     * Enumerates the interfaces
+     *
+     * @return  the sorted interface names
+     */
+    private List<String> enumerate() {
+        List<String> list = new ArrayList<>();
+        if (Files.isDirectory(sysClassNet)) {
+            try (DirectoryStream<Path> ds =
+             Files.newDirectoryStream(sysClassNet)) {
+                for (Path p : ds)
+                    list.add(p.getFileName().toString());
+            } catch (IOException ioe) {
+                ioe.printStackTrace();
+            }
+        } else {
+            try {
+                Enumeration<NetworkInterface> e =
+                 NetworkInterface.getNetworkInterfaces();
+                while (e != null && e.hasMoreElements())
+                    list.add(e.nextElement().getName());
+            } catch (SocketException se) {
+                se.printStackTrace();
+            }
+        }
+        list.remove("lo");
+        list.sort(ORDER);
+
+        return list;
+    }
+
+    /**
+     * Gets the sort rank of an interface
+     *
+     * @param   name the interface name
+     *
+     * @return  the rank
+     */
+    private static int rank(String name) {
+        if (name.startsWith("eth") || name.startsWith("en"))
+            return name.indexOf('.') < 0 ? 0 : 3;
+        if (name.startsWith("wl"))
+            return 1;
+        if (name.startsWith("usb"))
+            return 2;
+        return 4;
+    }
+
+    /**
+     * Gets a description of an interface for display
+     *
+     * @param   name the interface name
+     *
+     * @return  the description, e.g. Ethernet IP (eth0)
+     */
+    public static String describe(String name) {
+        String kind;
+        if (name.indexOf('.') >= 0)
+            kind = "VLAN IP";
+        else if (name.startsWith("eth") || name.startsWith("en"))
+            kind = "Ethernet IP";
+        else if (name.startsWith("wl"))
+            kind = "Wi-Fi IP";
+        else if (name.startsWith("usb"))
+            kind = "USB IP";
+        else
+            kind = "IP";
+        return kind + " (" + name + ")";
+    }
+}
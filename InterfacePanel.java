@@ -0,0 +1,434 @@
+import java.awt.*;
+import java.io.*;
+import javax.swing.*;
+import javax.swing.event.*;
+
+/**
+ * Collapsible form section for the static IP parameters of one network
+ * interface.  Only the header is built up front, the fields are created the
+ * first time the section is expanded.  Next to the fields a status panel
+ * shows the live state of the interface while the section is expanded.
+ */
+public class InterfacePanel extends JPanel {
+    /** Collapsed header arrow */
+    private static final String COLLAPSED = "\u25b8 ";
+
+    /** Expanded header arrow */
+    private static final String EXPANDED = "\u25be ";
+
+    /** Background of a field with an invalid value */
+    private static final Color INVALID = new Color(255,220,220);
+
+    /** Interface name */
+    private final String name;
+
+    /** Header button that expands and collapses the section */
+    private final JButton header;
+
+    /** Polls the status panel or null */
+    private final StatusPoller poller;
+
+    /** Address pools or null for no allocate button */
+    private final AddressPools pools;
+
+    /** Address this section took from a pool and has not saved yet */
+    private long allocated = Ipv4.INVALID;
+
+    /** Status panel or null until first expanded */
+    private StatusPanel status;
+
+    /** Configuration loaded from the file */
+    private InterfaceConfig config;
+
+    /** Panel holding the fields or null until first expanded */
+    private JPanel body;
+
+    /** Address field */
+    private JTextField addressField;
+
+    /** Bits field */
+    private JTextField bitsField;
+
+    /** IPv6 address field */
+    private JTextField ip6AddressField;
+
+    /** IPv6 bits field */
+    private JTextField ip6BitsField;
+
+    /** Routers field */
+    private JTextField routersField;
+
+    /** Domain name servers field */
+    private JTextField nameServersField;
+
+    /** Fields in ConfigValidator field order */
+    private JTextField[] fields;
+
+    /** Result of the last validation */
+    private int result = ConfigValidator.OK;
+
+    /** True if the fields can be edited */
+    private boolean editable = true;
+
+    /**
+     * Creates a new collapsed InterfacePanel
+     *
+     * @param   config the interface configuration to show
+     * @param   poller polls the status panel, null for no status
+     * @param   pools the address pools, null for no allocate button
+     */
+    public InterfacePanel(InterfaceConfig config, StatusPoller poller,
+     AddressPools pools) {
+        super(new BorderLayout());
+        this.name = config.getName();
+        this.config = config;
+        this.poller = poller;
+        this.pools = pools;
+
+        header = new JButton(COLLAPSED + InterfaceDiscovery.describe(name));
+        header.setForeground(IPConfig.RASPBERRY);
+        header.setHorizontalAlignment(SwingConstants.LEFT);
+        header.setBorder(BorderFactory.createEmptyBorder(10,0,0,0));
+        header.setContentAreaFilled(false);
+        header.setFocusPainted(false);
+        header.addActionListener(event -> setExpanded(!isExpanded()));
+        add(header,BorderLayout.NORTH);
+    }
+
+    /**
+     * Gets the interface name
+     *
+     * @return  interface name
+     */
+    public String getInterfaceName() {
+        return name;
+    }
+
+    /**
+     * Tests if the section is expanded
+     *
+     * @return  true if the fields are showing
+     */
+    public boolean isExpanded() {
+        return body != null && body.isVisible();
+    }
+
+    /**
+     * Expands or collapses the section, building the fields on first expand
+     *
+     * @param   expanded true to show the fields
+     */
+    public void setExpanded(boolean expanded) {
+        if (expanded && body == null)
+            buildBody();
+        if (body != null)
+            body.setVisible(expanded);
+        if (status != null) {
+            if (expanded)
+                poller.watch(status);
+            else
+                poller.unwatch(status);
+        }
+        header.setText((expanded ? EXPANDED : COLLAPSED) +
+         InterfaceDiscovery.describe(name));
+        revalidate();
+        repaint();
+        // grow or shrink the window to fit
+        Window window = SwingUtilities.getWindowAncestor(this);
+        if (window != null)
+            window.pack();
+    }
+
+    /**
+     * Builds the fields and fills them from the configuration
+     */
+    private void buildBody() {
+        body = new JPanel(new GridBagLayout());
+        GridBagConstraints c = new GridBagConstraints();
+        c.insets = new Insets(5,15,5,15);
+        c.gridx = c.gridy = 0;
+        c.fill = GridBagConstraints.HORIZONTAL;
+        c.anchor = GridBagConstraints.WEST;
+
+        JLabel l = new IPConfig.RaspberryJLabel("IPv4 Address:",JLabel.RIGHT);
+        body.add(l,c);
+
+        ++c.gridx;
+        JPanel p = new JPanel(new FlowLayout(FlowLayout.LEFT,0,0));
+        addressField = new IPConfig.RaspberryJTextField(12);
+        p.add(addressField);
+
+        l = new IPConfig.RaspberryJLabel(" / ");
+        p.add(l);
+
+        bitsField = new IPConfig.RaspberryJTextField(2);
+        p.add(bitsField);
+
+        if (pools != null) {
+            JButton allocate = new JButton("Allocate next free");
+            allocate.setForeground(IPConfig.RASPBERRY);
+            allocate.addActionListener(event -> allocateNext());
+            p.add(Box.createHorizontalStrut(10));
+            p.add(allocate);
+        }
+        body.add(p,c);
+
+        c.gridx = 0;  ++c.gridy;
+        l = new IPConfig.RaspberryJLabel("IPv6 Address:",JLabel.RIGHT);
+        body.add(l,c);
+
+        ++c.gridx;
+        p = new JPanel(new FlowLayout(FlowLayout.LEFT,0,0));
+        ip6AddressField = new IPConfig.RaspberryJTextField(12);
+        p.add(ip6AddressField);
+
+        l = new IPConfig.RaspberryJLabel(" / ");
+        p.add(l);
+
+        ip6BitsField = new IPConfig.RaspberryJTextField(2);
+        p.add(ip6BitsField);
+        body.add(p,c);
+
+        c.gridx = 0;  ++c.gridy;
+        l = new IPConfig.RaspberryJLabel("Router:",JLabel.RIGHT);
+        body.add(l,c);
+
+        ++c.gridx;
+        routersField = new IPConfig.RaspberryJTextField(12);
+        body.add(routersField,c);
+
+        c.gridx = 0;  ++c.gridy;
+        l = new IPConfig.RaspberryJLabel("DNS Servers:",JLabel.RIGHT);
+        body.add(l,c);
+
+        ++c.gridx;
+        nameServersField = new IPConfig.RaspberryJTextField(12);
+        body.add(nameServersField,c);
+
+        if (poller != null) {
+            c.gridx = 2;  c.gridy = 0;
+            c.gridheight = 4;
+            c.fill = GridBagConstraints.BOTH;
+            status = new StatusPanel(name);
+            body.add(status,c);
+        }
+
+        // check the fields on every keystroke
+        fields = new JTextField[] {
+         addressField,bitsField,routersField,nameServersField,
+         ip6AddressField,ip6BitsField };
+        DocumentListener dl = new DocumentListener() {
+            @Override
+            public void insertUpdate(DocumentEvent e) {
+                validateFields();
+            }
+
+            @Override
+            public void removeUpdate(DocumentEvent e) {
+                validateFields();
+            }
+
+            @Override
+            public void changedUpdate(DocumentEvent e) {
+                validateFields();
+            }
+        };
+        for (JTextField field : fields)
+            field.getDocument().addDocumentListener(dl);
+
+        fill(config);
+        setEditable(editable);
+        add(body,BorderLayout.CENTER);
+    }
+
+    /**
+     * Fills the address fields with the lowest free address of a pool.  The
+     * address is taken from the pool right away so no other device can get
+     * it, an address taken earlier and not yet saved goes back.
+     */
+    private void allocateNext() {
+        AddressPool pool = choosePool();
+        if (pool == null)
+            return;
+        long address = pool.allocateNext();
+        if (address == Ipv4.INVALID) {
+            JOptionPane.showMessageDialog(this,pool + " has no free addresses",
+             "IPConfig",JOptionPane.WARNING_MESSAGE);
+            return;
+        }
+        try {
+            pools.save(pool);
+            if (allocated != Ipv4.INVALID) {
+                AddressPool old = pools.release((int)allocated);
+                if (old != null)
+                    pools.save(old);
+            }
+        } catch (IOException ioe) {
+            ioe.printStackTrace();
+            JOptionPane.showMessageDialog(this,ioe.toString(),
+             "Error saving address pool",JOptionPane.ERROR_MESSAGE);
+        }
+        allocated = address;
+        addressField.setText(Ipv4.toString((int)address));
+        bitsField.setText(Integer.toString(pool.getPrefix()));
+    }
+
+    /**
+     * Chooses the pool to allocate from, the one holding the address or
+     * router in the fields, the only pool or one the user picks
+     *
+     * @return  the pool or null if there is none
+     */
+    private AddressPool choosePool() {
+        String[] texts = { addressField.getText().trim(),
+         routersField.getText().trim().split("[,\\s]+")[0] };
+        for (String text : texts) {
+            long address = Ipv4.parse(text);
+            AddressPool pool = address == Ipv4.INVALID ? null :
+             pools.find((int)address);
+            if (pool != null)
+                return pool;
+        }
+
+        java.util.List<AddressPool> list = pools.getPools();
+        if (list.isEmpty()) {
+            JOptionPane.showMessageDialog(this,"There are no address " +
+             "pools, add one with Edit/Address Pools","IPConfig",
+             JOptionPane.INFORMATION_MESSAGE);
+            return null;
+        }
+        if (list.size() == 1)
+            return list.get(0);
+        Object[] options = list.toArray();
+        return (AddressPool)JOptionPane.showInputDialog(this,
+         "Allocate an address for " + name + " from","IPConfig",
+         JOptionPane.QUESTION_MESSAGE,null,options,options[0]);
+    }
+
+    /**
+     * Tests if an address is the one this section took from a pool
+     *
+     * @param   address the address
+     *
+     * @return  true if the section allocated it
+     */
+    public boolean isAllocatedHere(int address) {
+        return allocated != Ipv4.INVALID && (int)allocated == address;
+    }
+
+    /**
+     * Validates the fields and marks the one with a problem
+     *
+     * @return  ConfigValidator.OK or the problem found
+     */
+    public int validateFields() {
+        if (body == null)
+            return ConfigValidator.OK;
+        result = ConfigValidator.validate(addressField.getText(),
+         bitsField.getText(),routersField.getText(),
+         nameServersField.getText(),ip6AddressField.getText(),
+         ip6BitsField.getText());
+        int bad = result == ConfigValidator.OK ? -1 :
+         ConfigValidator.field(result);
+        for (int i=0; i<fields.length; i++) {
+            fields[i].setBackground(i == bad ? INVALID :
+             UIManager.getColor("TextField.background"));
+            fields[i].setToolTipText(i == bad ?
+             ConfigValidator.message(result) : null);
+        }
+        return result;
+    }
+
+    /**
+     * Gets the result of the last validation
+     *
+     * @return  ConfigValidator.OK or the problem found
+     */
+    public int getValidation() {
+        return result;
+    }
+
+    /**
+     * Fills the fields from a configuration
+     *
+     * @param   ic the configuration
+     */
+    private void fill(InterfaceConfig ic) {
+        addressField.setText(ic.getAddress());
+        bitsField.setText(ic.getBits());
+        ip6AddressField.setText(ic.getIp6Address());
+        ip6BitsField.setText(ic.getIp6Bits());
+        routersField.setText(ic.getRouters());
+        nameServersField.setText(ic.getNameServers());
+    }
+
+    /**
+     * Shows a configuration loaded from the file
+     *
+     * @param   ic the configuration
+     */
+    public void setConfig(InterfaceConfig ic) {
+        config = ic;
+        allocated = Ipv4.INVALID;
+        if (body != null)
+            fill(ic);
+    }
+
+    /**
+     * Replaces the configuration loaded from the file without touching the
+     * fields, so edits in them are kept on top of it
+     *
+     * @param   ic the configuration
+     */
+    public void rebase(InterfaceConfig ic) {
+        config = ic;
+    }
+
+    /**
+     * Gets the configuration loaded from the file
+     *
+     * @return  the configuration
+     */
+    public InterfaceConfig getLoadedConfig() {
+        return config;
+    }
+
+    /**
+     * Gets the configuration in the fields
+     *
+     * @return  the configuration or null if the fields have not been edited
+     */
+    public InterfaceConfig getConfig() {
+        if (body == null)
+            return null;
+        InterfaceConfig ic = new InterfaceConfig(name);
+        ic.setAddress(addressField.getText());
+        ic.setBits(bitsField.getText());
+        ic.setIp6Address(ip6AddressField.getText());
+        ic.setIp6Bits(ip6BitsField.getText());
+        ic.setRouters(routersField.getText());
+        ic.setNameServers(nameServersField.getText());
+        return ic.sameValues(config) ? null : ic;
+    }
+
+    /**
+     * Clears the fields, expanding the section so the change is visible
+     */
+    public void clear() {
+        setExpanded(true);
+        fill(new InterfaceConfig(name));
+    }
+
+    /**
+     * Enables or disables editing of the fields
+     *
+     * @param   editable true to enable
+     */
+    public void setEditable(boolean editable) {
+        this.editable = editable;
+        if (body == null)
+            return;
+        for (JTextField field : fields)
+            field.setEnabled(editable);
+    }
+}
@@ -0,0 +1,156 @@
+/**
+ * IPv4 address arithmetic on primitive ints.  Addresses are held in network
+ * order, a.b.c.d as a&lt;&lt;24 | b&lt;&lt;16 | c&lt;&lt;8 | d.  Parsing works on a
+ * range of a CharSequence without regular expressions, splitting or any
+ * other allocation, so it can run on every keystroke or over millions of
+ * records.
+ */
+public final class Ipv4 {
+    /** Returned by the parse methods for invalid input */
+    public static final long INVALID = -1;
+
+    private Ipv4() { }
+
+    /**
+     * Parses a dotted quad address
+     *
+     * @param   s the text
+     *
+     * @return  the address as an unsigned value or INVALID
+     */
+    public static long parse(CharSequence s) {
+        return parse(s,0,s.length());
+    }
+
+    /**
+     * Parses a dotted quad address from a range of text.  Octets with leading
+     * zeros are rejected since some resolvers read them as octal.
+     *
+     * @param   s the text
+     * @param   from index of the first character
+     * @param   to index one past the last character
+     *
+     * @return  the address as an unsigned value or INVALID
+     */
+    public static long parse(CharSequence s, int from, int to) {
+        int value = 0, octet = 0, digits = 0, dots = 0;
+        for (int i=from; i<to; i++) {
+            char ch = s.charAt(i);
+            if (ch >= '0' && ch <= '9') {
+                if (digits > 0 && octet == 0)
+                    return INVALID;
+                octet = octet * 10 + ch - '0';
+                if (octet > 255 || ++digits > 3)
+                    return INVALID;
+            } else if (ch == '.' && digits > 0 && dots < 3) {
+                value = value << 8 | octet;
+                octet = digits = 0;
+                ++dots;
+            } else {
+                return INVALID;
+            }
+        }
+        if (dots != 3 || digits == 0)
+            return INVALID;
+        return (value << 8 | octet) & 0xffffffffL;
+    }
+
+    /**
+     * Parses a prefix length
+     *
+     * @param   s the text
+     * @param   from index of the first character
+     * @param   to index one past the last character
+     * @param   max the largest prefix allowed
+     *
+     * @return  the prefix length or -1 if invalid
+     */
+    public static int parsePrefix(CharSequence s, int from, int to,
+     int max) {
+        if (from >= to || to - from > 3)
+            return -1;
+        int bits = 0;
+        for (int i=from; i<to; i++) {
+            char ch = s.charAt(i);
+            if (ch < '0' || ch > '9')
+                return -1;
+            bits = bits * 10 + ch - '0';
+        }
+        return bits <= max ? bits : -1;
+    }
+
+    /**
+     * Gets the netmask of a prefix length
+     *
+     * @param   prefix the prefix length, 0 to 32
+     *
+     * @return  the netmask
+     */
+    public static int mask(int prefix) {
+        return prefix == 0 ? 0 : -1 << (32 - prefix);
+    }
+
+    /**
+     * Gets the network address of an address
+     *
+     * @param   address the address
+     * @param   prefix the prefix length
+     *
+     * @return  the network address
+     */
+    public static int network(int address, int prefix) {
+        return address & mask(prefix);
+    }
+
+    /**
+     * Gets the broadcast address of an address
+     *
+     * @param   address the address
+     * @param   prefix the prefix length
+     *
+     * @return  the broadcast address
+     */
+    public static int broadcast(int address, int prefix) {
+        return address | ~mask(prefix);
+    }
+
+    /**
+     * Tests if an address is inside a subnet
+     *
+     * @param   network an address of the subnet
+     * @param   prefix the prefix length of the subnet
+     * @param   address the address
+     *
+     * @return  true if the address is inside
+     */
+    public static boolean contains(int network, int prefix, int address) {
+        return ((address ^ network) & mask(prefix)) == 0;
+    }
+
+    /**
+     * Tests if two subnets overlap, as CIDR blocks they overlap only when
+     * one contains the other
+     *
+     * @param   a an address of the first subnet
+     * @param   aPrefix the prefix length of the first subnet
+     * @param   b an address of the second subnet
+     * @param   bPrefix the prefix length of the second subnet
+     *
+     * @return  true if they overlap
+     */
+    public static boolean overlaps(int a, int aPrefix, int b, int bPrefix) {
+        return contains(a,Math.min(aPrefix,bPrefix),b);
+    }
+
+    /**
+     * Formats an address
+     *
+     * @param   address the address
+     *
+     * @return  the address in dotted quad form
+     */
+    public static String toString(int address) {
+        return (address >>> 24) + "." + ((address >>> 16) & 0xff) + "." +
+         ((address >>> 8) & 0xff) + "." + (address & 0xff);
+    }
+}
@@ -0,0 +1,329 @@
+/**
+ * IPv6 address held in two longs, the high and low 64 bits.  Parsing,
+ * RFC 5952 formatting, prefix and overlap checks all work on the two longs
+ * without going through {@link java.net.InetAddress} or name resolution.
+ */
+public final class Ipv6Address implements Comparable<Ipv6Address> {
+    /** The unspecified address :: */
+    public static final Ipv6Address UNSPECIFIED = new Ipv6Address(0,0);
+
+    /** High 64 bits */
+    private final long hi;
+
+    /** Low 64 bits */
+    private final long lo;
+
+    /**
+     * Creates a new Ipv6Address
+     *
+     * @param   hi the high 64 bits
+     * @param   lo the low 64 bits
+     */
+    public Ipv6Address(long hi, long lo) {
+        this.hi = hi;
+        this.lo = lo;
+    }
+
+    /**
+     * Parses an address
+     *
+     * @param   s the text
+     *
+     * @return  the address or null if the text is not an IPv6 address
+     */
+    public static Ipv6Address parse(CharSequence s) {
+        return parse(s,0,s.length());
+    }
+
+    /**
+     * Parses an address from a range of text
+     *
+     * @param   s the text
+     * @param   from index of the first character
+     * @param   to index one past the last character
+     *
+     * @return  the address or null if the text is not an IPv6 address
+     */
+    public static Ipv6Address parse(CharSequence s, int from, int to) {
+        long[] out = new long[2];
+        return parse(s,from,to,out) ? new Ipv6Address(out[0],out[1]) : null;
+    }
+
+    /**
+     * Tests if a range of text is an IPv6 address without creating any
+     * objects
+     *
+     * @param   s the text
+     * @param   from index of the first character
+     * @param   to index one past the last character
+     *
+     * @return  true if the text is an address
+     */
+    public static boolean isValid(CharSequence s, int from, int to) {
+        return parse(s,from,to,null);
+    }
+
+    /**
+     * Parses an address.  Groups before a :: are shifted in from the right
+     * into one 128 bit accumulator and groups after it into another, the
+     * first is then moved up past the room the :: stands for.  A dotted quad
+     * may end the address, standing for the last two groups.
+     *
+     * @param   s the text
+     * @param   from index of the first character
+     * @param   to index one past the last character
+     * @param   out receives the high and low 64 bits, may be null
+     *
+     * @return  true if the text is an address
+     */
+    static boolean parse(CharSequence s, int from, int to,
+     long[] out) {
+        if (to - from < 2)
+            return false;
+        long headHi = 0, headLo = 0, tailHi = 0, tailLo = 0;
+        int headGroups = 0, tailGroups = 0;
+        boolean compressed = false;
+        int i = from;
+        if (s.charAt(i) == ':') {
+            if (s.charAt(i + 1) != ':')
+                return false;
+            compressed = true;
+            i += 2;
+        }
+        while (i < to) {
+            // parse one group or a trailing dotted quad
+            int start = i;
+            int group = 0;
+            while (i < to && i - start < 5) {
+                int d = Character.digit(s.charAt(i),16);
+                if (d < 0)
+                    break;
+                group = group << 4 | d;
+                ++i;
+            }
+            int groups = 1;
+            if (i < to && s.charAt(i) == '.') {
+                long v4 = Ipv4.parse(s,start,to);
+                if (v4 == Ipv4.INVALID)
+                    return false;
+                i = to;
+                groups = 2;
+                group = (int)v4;
+            } else if (i == start || i - start > 4) {
+                return false;
+            }
+
+            if (compressed) {
+                int shift = 16 * groups;
+                tailHi = tailHi << shift | tailLo >>> (64 - shift);
+                tailLo = tailLo << shift | (group & 0xffffffffL);
+                tailGroups += groups;
+            } else {
+                int shift = 16 * groups;
+                headHi = headHi << shift | headLo >>> (64 - shift);
+                headLo = headLo << shift | (group & 0xffffffffL);
+                headGroups += groups;
+            }
+            if (headGroups + tailGroups > 8)
+                return false;
+            if (i == to)
+                break;
+
+            // a separator, :: may appear once
+            if (s.charAt(i) != ':' || i + 1 == to)
+                return false;
+            ++i;
+            if (s.charAt(i) == ':') {
+                if (compressed)
+                    return false;
+                compressed = true;
+                ++i;
+            }
+        }
+
+        int total = headGroups + tailGroups;
+        if (compressed ? total > 7 : total != 8)
+            return false;
+        if (out != null) {
+            // move the head up past the groups the :: stands for
+            int shift = 16 * (8 - headGroups);
+            long hi, lo;
+            if (shift >= 128) {
+                hi = lo = 0;
+            } else if (shift >= 64) {
+                hi = headLo << (shift - 64);
+                lo = 0;
+            } else if (shift > 0) {
+                hi = headHi << shift | headLo >>> (64 - shift);
+                lo = headLo << shift;
+            } else {
+                hi = headHi;
+                lo = headLo;
+            }
+            out[0] = hi | tailHi;
+            out[1] = lo | tailLo;
+        }
+        return true;
+    }
+
+    /**
+     * Gets the high 64 bits
+     *
+     * @return  the high 64 bits
+     */
+    public long getHigh() {
+        return hi;
+    }
+
+    /**
+     * Gets the low 64 bits
+     *
+     * @return  the low 64 bits
+     */
+    public long getLow() {
+        return lo;
+    }
+
+    /**
+     * Gets a 16 bit group
+     *
+     * @param   i the group index, 0 to 7
+     *
+     * @return  the group
+     */
+    public int group(int i) {
+        long half = i < 4 ? hi : lo;
+        return (int)(half >>> (16 * (3 - (i & 3)))) & 0xffff;
+    }
+
+    /**
+     * Gets the high 64 bits of the mask of a prefix length
+     *
+     * @param   prefix the prefix length, 0 to 128
+     *
+     * @return  the high bits of the mask
+     */
+    private static long maskHi(int prefix) {
+        return prefix == 0 ? 0 : prefix >= 64 ? -1L : -1L << (64 - prefix);
+    }
+
+    /**
+     * Gets the low 64 bits of the mask of a prefix length
+     *
+     * @param   prefix the prefix length, 0 to 128
+     *
+     * @return  the low bits of the mask
+     */
+    private static long maskLo(int prefix) {
+        return prefix <= 64 ? 0 : -1L << (128 - prefix);
+    }
+
+    /**
+     * Gets the network address of this address
+     *
+     * @param   prefix the prefix length
+     *
+     * @return  the network address
+     */
+    public Ipv6Address network(int prefix) {
+        return new Ipv6Address(hi & maskHi(prefix),lo & maskLo(prefix));
+    }
+
+    /**
+     * Tests if an address is inside the subnet of this address
+     *
+     * @param   prefix the prefix length of the subnet
+     * @param   other the address
+     *
+     * @return  true if the address is inside
+     */
+    public boolean contains(int prefix, Ipv6Address other) {
+        return ((hi ^ other.hi) & maskHi(prefix)) == 0 &&
+         ((lo ^ other.lo) & maskLo(prefix)) == 0;
+    }
+
+    /**
+     * Tests if the subnet of this address overlaps another
+     *
+     * @param   prefix the prefix length of this subnet
+     * @param   other an address of the other subnet
+     * @param   otherPrefix the prefix length of the other subnet
+     *
+     * @return  true if they overlap
+     */
+    public boolean overlaps(int prefix, Ipv6Address other, int otherPrefix) {
+        return contains(Math.min(prefix,otherPrefix),other);
+    }
+
+    /**
+     * Tests if this is a multicast address, ff00::/8
+     *
+     * @return  true if multicast
+     */
+    public boolean isMulticast() {
+        return (hi >>> 56) == 0xff;
+    }
+
+    /**
+     * Formats the address in the RFC 5952 canonical form: lower case hex
+     * without leading zeros, the longest run of two or more zero groups, the
+     * first of equal runs, replaced by :: and IPv4 mapped addresses with a
+     * dotted quad
+     *
+     * @return  the canonical text
+     */
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder(39);
+        if (hi == 0 && (lo >>> 32) == 0xffffL) {
+            sb.append("::ffff:");
+            return LinkStatus.appendAddress(sb,(int)lo).toString();
+        }
+
+        int bestStart = -1, bestLength = 1;
+        for (int i=0; i<8; ) {
+            if (group(i) != 0) {
+                ++i;
+                continue;
+            }
+            int start = i;
+            while (i < 8 && group(i) == 0)
+                ++i;
+            if (i - start > bestLength) {
+                bestStart = start;
+                bestLength = i - start;
+            }
+        }
+
+        for (int i=0; i<8; i++) {
+            if (i == bestStart) {
+                sb.append("::");
+                i += bestLength - 1;
+                continue;
+            }
+            if (sb.length() > 0 && sb.charAt(sb.length() - 1) != ':')
+                sb.append(':');
+            sb.append(Integer.toHexString(group(i)));
+        }
+        return sb.toString();
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (!(o instanceof Ipv6Address))
+            return false;
+        Ipv6Address other = (Ipv6Address)o;
+        return hi == other.hi && lo == other.lo;
+    }
+
+    @Override
+    public int hashCode() {
+        return Long.hashCode(hi) * 31 + Long.hashCode(lo);
+    }
+
+    @Override
+    public int compareTo(Ipv6Address other) {
+        int c = Long.compareUnsigned(hi,other.hi);
+        return c != 0 ? c : Long.compareUnsigned(lo,other.lo);
+    }
+}
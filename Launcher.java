@@ -0,0 +1,341 @@
+import java.io.*;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.*;
+
+/**
+ * Entry point of IPConfig.jar.  Without arguments it starts the GUI, the
+ * command line modes read, change and commit dhcpcd.conf without loading
+ * AWT or Swing, so they start fast and run on machines without a display.
+ *
+ * <pre>
+ * java -jar IPConfig.jar                      start the GUI
+ * java -jar IPConfig.jar --measure-startup    start the GUI, report the
+ *                                             time to the first frame, exit
+ * java -jar IPConfig.jar --print [iface...]   print static configurations
+ * java -jar IPConfig.jar --apply iface [ip_address=a.b.c.d/bits]
+ *      [ip6_address=addr/bits] [routers=...] [domain_name_servers=...]
+ *                                             change an interface, commit
+ *                                             the file and rebind it, the
+ *                                             change is undone if the
+ *                                             interface doesn't come back
+ * java -jar IPConfig.jar --apply iface dhcp   remove the static addresses
+ * java -jar IPConfig.jar --history            list the recorded versions
+ * java -jar IPConfig.jar --rollback version   put back a recorded version
+ *                                             and rebind the interfaces
+ *                                             that differ
+ * java -jar IPConfig.jar --profiles           list the profiles, the active
+ *                                             one marked with *
+ * java -jar IPConfig.jar --profile name       switch to a profile and
+ *                                             rebind the interfaces whose
+ *                                             blocks change
+ * java -jar IPConfig.jar --save-profile name [iface...]
+ *                                             save the current blocks of
+ *                                             interfaces as a profile
+ * java -jar IPConfig.jar --daemon [port]      serve the HTTP API on the
+ *                                             loopback address, see
+ *                                             ApiDaemon
+ * java -jar IPConfig.jar --monitor [script]   switch profiles when links
+ *                                             gain or lose their carrier,
+ *                                             see LinkMonitor
+ * java -jar IPConfig.jar --helper [socket]    as root, commit and rebind
+ *                                             for the GUI, see RootHelper
+ * java -jar IPConfig.jar --fleet ...          see Fleet
+ * </pre>
+ */
+public class Launcher {
+    private Launcher() { }
+
+    /**
+     * Prints the static configuration of interfaces
+     *
+     * @param   conf the dhcpcd.conf model
+     * @param   names the interfaces, all with a block if empty
+     */
+    private static void print(DhcpcdConf conf, List<String> names) {
+        if (names.isEmpty())
+            names = new ArrayList<>(conf.getInterfaces());
+        for (String name : names) {
+            InterfaceConfig ic = conf.getInterface(name);
+            if (!ic.isStatic()) {
+                System.out.println(name + " dhcp");
+                continue;
+            }
+            StringBuilder sb = new StringBuilder(name);
+            if (!ic.getAddress().isEmpty())
+                sb.append(" ip_address=").append(ic.getAddress()).append('/')
+                 .append(ic.getBits());
+            if (!ic.getIp6Address().isEmpty())
+                sb.append(" ip6_address=").append(ic.getIp6Address())
+                 .append('/').append(ic.getIp6Bits());
+            if (!ic.getRouters().isEmpty())
+                sb.append(" routers=").append(ic.getRouters());
+            if (!ic.getNameServers().isEmpty())
+                sb.append(" domain_name_servers=").append(ic.getNameServers());
+            System.out.println(sb);
+        }
+    }
+
+    /**
+     * Changes an interface, commits dhcpcd.conf and rebinds the interface
+     *
+     * @param   service reads and commits the file
+     * @param   args the interface name and its settings
+     *
+     * @return  the exit status
+     *
+     * @throws  Exception if the file can't be read, committed or the
+     *          interface can't be rebound
+     */
+    private static int apply(ConfService service, List<String> args)
+     throws Exception {
+        if (args.isEmpty()) {
+            System.err.println("--apply needs an interface name");
+            return 2;
+        }
+        InterfaceConfig ic = service.read().getInterface(args.get(0));
+        try {
+            ConfService.edit(ic,args.subList(1,args.size()));
+        } catch (IllegalArgumentException iae) {
+            System.err.println(iae.getMessage());
+            return 2;
+        }
+        ConfService.Outcome outcome;
+        try {
+            outcome = service.apply(Collections.singletonList(ic),
+             "Save " + ic.getName());
+        } catch (IllegalArgumentException iae) {
+            System.err.println(iae.getMessage());
+            return 1;
+        }
+        if (outcome.changed.isEmpty()) {
+            System.out.println(ic.getName() + " is unchanged");
+            return 0;
+        }
+        if (outcome.restored.isEmpty())
+            return 0;
+        System.err.println(ic.getName() + " did not come back, its " +
+         "previous configuration has been restored");
+        return 1;
+    }
+
+    /**
+     * Replaces dhcpcd.conf with a recorded version and rebinds the
+     * interfaces whose parameters differ
+     *
+     * @param   service reads and commits the file
+     * @param   args the version number
+     *
+     * @return  the exit status
+     *
+     * @throws  Exception if the version can't be rebuilt, the file can't be
+     *          committed or an interface can't be rebound
+     */
+    private static int rollback(ConfService service, List<String> args)
+     throws Exception {
+        int number;
+        try {
+            number = Integer.parseInt(args.get(0));
+        } catch (IndexOutOfBoundsException | NumberFormatException e) {
+            System.err.println("--rollback needs a version number");
+            return 2;
+        }
+        service.rollback(number);
+        return 0;
+    }
+
+    /**
+     * Lists, switches to or saves profiles
+     *
+     * @param   service reads and commits the file
+     * @param   mode --profiles, --profile or --save-profile
+     * @param   args the profile name and, to save, the interfaces
+     *
+     * @return  the exit status
+     *
+     * @throws  Exception if a profile can't be read or saved, the file
+     *          can't be committed or an interface can't be rebound
+     */
+    private static int profile(ConfService service, String mode,
+     List<String> args) throws Exception {
+        Profiles profiles = new Profiles(Profiles.defaultDir());
+        profiles.load();
+        if (mode.equals("--profiles")) {
+            DhcpcdConf conf = service.read();
+            for (Profiles.Profile p : profiles.getProfiles()) {
+                System.out.println((p.isActive(conf) ? "* " : "  ") + p);
+                for (String error : p.getErrors())
+                    System.out.println("    " + error);
+            }
+            return 0;
+        }
+        if (args.isEmpty()) {
+            System.err.println(mode + " needs a profile name");
+            return 2;
+        }
+        try {
+            if (mode.equals("--save-profile")) {
+                System.out.println(profiles.save(args.get(0),service.read(),
+                 args.subList(1,args.size())));
+                return 0;
+            }
+            Profiles.Profile p = profiles.get(args.get(0));
+            if (p == null) {
+                System.err.println("No profile " + args.get(0));
+                return 1;
+            }
+            long start = System.nanoTime();
+            ConfService.Outcome outcome = service.activate(p);
+            if (!outcome.restored.isEmpty()) {
+                System.err.println(String.join(",",outcome.restored) +
+                 " did not come back, the previous configuration has " +
+                 "been restored");
+                return 1;
+            }
+            System.out.println("Switched to " + p.name + " in " +
+             (System.nanoTime() - start) / 1000000 + " ms");
+            return 0;
+        } catch (IllegalArgumentException iae) {
+            System.err.println(iae.getMessage());
+            return 1;
+        }
+    }
+
+    /**
+     * Runs the API daemon until the process is stopped
+     *
+     * @param   service reads and commits the file
+     * @param   args the port, ApiDaemon.DEFAULT_PORT if there is none
+     *
+     * @return  the exit status if the daemon can't be started
+     *
+     * @throws  Exception if the daemon can't be started
+     */
+    private static int daemon(ConfService service, List<String> args)
+     throws Exception {
+        int port;
+        try {
+            port = args.isEmpty() ? ApiDaemon.DEFAULT_PORT :
+             Integer.parseInt(args.get(0));
+        } catch (NumberFormatException nfe) {
+            System.err.println("--daemon needs a port number");
+            return 2;
+        }
+        new ApiDaemon(service,port).run();
+        return 0;
+    }
+
+    /**
+     * Runs the link monitor on ip monitor until the process is stopped, or
+     * on a script until it ends
+     *
+     * @param   service switches the profiles
+     * @param   args the script, none to read ip monitor
+     *
+     * @return  the exit status
+     *
+     * @throws  Exception if the rules, profiles or events can't be read
+     */
+    private static int monitor(ConfService service, List<String> args)
+     throws Exception {
+        Profiles profiles = new Profiles(Profiles.defaultDir());
+        profiles.load();
+        long debounce = Long.getLong("ipconfig.debounce",
+         LinkMonitor.DEFAULT_DEBOUNCE);
+        LinkMonitor monitor = new LinkMonitor(service,profiles,
+         LinkMonitor.readRules(LinkMonitor.defaultRules()),debounce,
+         System.out::println);
+        monitor.run(args.isEmpty() ? new LinkMonitor.IpMonitor() :
+         new LinkMonitor.Script(new FileReader(args.get(0))));
+        return 0;
+    }
+
+    /**
+     * Runs the root helper until the process is stopped
+     *
+     * @param   service commits the files
+     * @param   args the socket, RootHelper.SOCKET if there is none
+     *
+     * @return  the exit status if the helper can't be started
+     *
+     * @throws  Exception if the helper can't be started
+     */
+    private static int helper(ConfService service, List<String> args)
+     throws Exception {
+        ConfCommitter committer = service.getCommitter();
+        Path socket = args.isEmpty() ? committer.resolve(RootHelper.SOCKET) :
+         Paths.get(args.get(0));
+        DhcpcdReloader reloader = new DhcpcdReloader(
+         new ProcessRunner(System.out::println,60,TimeUnit.SECONDS),false);
+        new RootHelper(committer,reloader,RootHelper.defaultUsers(),
+         System.out::println).run(socket);
+        return 0;
+    }
+
+    /**
+     * Main program entry point
+     *
+     * @param   args command line arguments
+     */
+    public static void main(String... args) {
+        if (args.length == 0 || args[0].equals("--measure-startup")) {
+            IPConfig.main(args);
+            return;
+        }
+        if (args[0].equals("--fleet")) {
+            Fleet.main(Arrays.copyOfRange(args,1,args.length));
+            return;
+        }
+
+        ConfService service = ConfService.fromProperties(System.out::println);
+        List<String> rest = Arrays.asList(args).subList(1,args.length);
+        int status;
+        try {
+            switch (args[0]) {
+                case "--print":
+                    print(service.read(),rest);
+                    status = 0;
+                    break;
+                case "--apply":
+                    status = apply(service,rest);
+                    break;
+                case "--history":
+                    for (ConfJournal.Version v :
+                     service.getJournal().getVersions())
+                        System.out.println(v);
+                    status = 0;
+                    break;
+                case "--rollback":
+                    status = rollback(service,rest);
+                    break;
+                case "--profiles":
+                case "--profile":
+                case "--save-profile":
+                    status = profile(service,args[0],rest);
+                    break;
+                case "--daemon":
+                    status = daemon(service,rest);
+                    break;
+                case "--monitor":
+                    status = monitor(service,rest);
+                    break;
+                case "--helper":
+                    status = helper(service,rest);
+                    break;
+                default:
+                    System.err.println("Usage: IPConfig [--measure-startup | " +
+                     "--print [iface...] | --apply iface setting... | " +
+                     "--history | --rollback version | --profiles | " +
+                     "--profile name | --save-profile name [iface...] | " +
+                     "--daemon [port] | --monitor [script] | " +
+                     "--helper [socket] | --fleet ...]");
+                    status = 2;
+            }
+        } catch (Exception e) {
+            System.err.println(e.getMessage() != null ? e.getMessage() :
+             e.toString());
+            status = 1;
+        }
+        System.exit(status);
+    }
+}
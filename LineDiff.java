@@ -0,0 +1,294 @@
+import java.util.*;
+
+/**
+ * Line diff in linear space.  Lines the two versions start and end with are
+ * trimmed off first, which leaves only the edited region of a dhcpcd.conf
+ * file however large it is.  The rest is split at the middle snake of
+ * Myers' O(ND) algorithm and each half diffed the same way, so the shortest
+ * edit script is found with two int arrays of O(N + M) entries rather than
+ * the O(ND) trace of the basic algorithm.
+ */
+public class LineDiff {
+    /** Lines of context around the changes in a unified diff */
+    public static final int CONTEXT = 3;
+
+    /** Old lines */
+    private final List<?> a;
+
+    /** New lines */
+    private final List<?> b;
+
+    /** Furthest x on each diagonal of the forward search */
+    private final int[] vf;
+
+    /** Furthest x from the end on each diagonal of the reverse search */
+    private final int[] vb;
+
+    /** Offset of diagonal 0 in vf and vb */
+    private final int off;
+
+    /** Edits found, in order */
+    private final List<Edit> edits = new ArrayList<>();
+
+    /**
+     * Creates a new LineDiff
+     *
+     * @param   a the old lines
+     * @param   b the new lines
+     */
+    private LineDiff(List<?> a, List<?> b) {
+        this.a = a;
+        this.b = b;
+        off = (a.size() + b.size() + 1) / 2 + 1;
+        vf = new int[2 * off + 1];
+        vb = new int[2 * off + 1];
+    }
+
+    /**
+     * Finds the shortest edit script that turns one list of lines into
+     * another
+     *
+     * @param   a the old lines
+     * @param   b the new lines
+     *
+     * @return  the edits in order, none if the lists are equal
+     */
+    public static List<Edit> diff(List<?> a, List<?> b) {
+        LineDiff ld = new LineDiff(a,b);
+        ld.compare(0,a.size(),0,b.size());
+        return ld.edits;
+    }
+
+    /**
+     * Applies edits to a copy of the old lines
+     *
+     * @param   a the old lines
+     * @param   b the new lines
+     * @param   edits the edits from a to b
+     *
+     * @param   <T> the type of the lines
+     *
+     * @return  the edited lines
+     */
+    public static <T> List<T> apply(List<T> a, List<T> b, List<Edit> edits) {
+        List<T> result = new ArrayList<>(b.size());
+        int i = 0;
+        for (Edit e : edits) {
+            result.addAll(a.subList(i,e.aStart));
+            result.addAll(b.subList(e.bStart,e.bEnd));
+            i = e.aEnd;
+        }
+        result.addAll(a.subList(i,a.size()));
+        return result;
+    }
+
+    /**
+     * Diffs a range of each list
+     *
+     * @param   aLo first old line
+     * @param   aHi one past the last old line
+     * @param   bLo first new line
+     * @param   bHi one past the last new line
+     */
+    private void compare(int aLo, int aHi, int bLo, int bHi) {
+        while (aLo < aHi && bLo < bHi && a.get(aLo).equals(b.get(bLo))) {
+            ++aLo;
+            ++bLo;
+        }
+        while (aLo < aHi && bLo < bHi &&
+         a.get(aHi - 1).equals(b.get(bHi - 1))) {
+            --aHi;
+            --bHi;
+        }
+        if (aLo == aHi || bLo == bHi) {
+            if (aLo < aHi || bLo < bHi)
+                add(aLo,aHi,bLo,bHi);
+            return;
+        }
+        int[] snake = middleSnake(aLo,aHi,bLo,bHi);
+        compare(aLo,snake[0],bLo,snake[1]);
+        compare(snake[2],aHi,snake[3],bHi);
+    }
+
+    /**
+     * Adds an edit, joining it to the one before if they touch
+     *
+     * @param   aLo first old line
+     * @param   aHi one past the last old line
+     * @param   bLo first new line
+     * @param   bHi one past the last new line
+     */
+    private void add(int aLo, int aHi, int bLo, int bHi) {
+        int last = edits.size() - 1;
+        if (last >= 0 && edits.get(last).aEnd == aLo &&
+         edits.get(last).bEnd == bLo) {
+            Edit e = edits.get(last);
+            edits.set(last,new Edit(e.aStart,aHi,e.bStart,bHi));
+        } else {
+            edits.add(new Edit(aLo,aHi,bLo,bHi));
+        }
+    }
+
+    /**
+     * Finds the middle snake of the shortest edit script of two ranges that
+     * differ at both ends, searching forward from the start and backward
+     * from the end until the two paths meet
+     *
+     * @param   aLo first old line
+     * @param   aHi one past the last old line
+     * @param   bLo first new line
+     * @param   bHi one past the last new line
+     *
+     * @return  the start x and y and end x and y of the snake
+     */
+    private int[] middleSnake(int aLo, int aHi, int bLo, int bHi) {
+        int n = aHi - aLo;
+        int m = bHi - bLo;
+        int delta = n - m;
+        boolean odd = (delta & 1) != 0;
+        int max = (n + m + 1) / 2;
+        vf[off + 1] = 0;
+        vb[off + 1] = 0;
+        for (int d=0; d<=max; d++) {
+            for (int k=-d; k<=d; k+=2) {
+                int x = k == -d || k != d && vf[off + k - 1] < vf[off + k + 1] ?
+                 vf[off + k + 1] : vf[off + k - 1] + 1;
+                int y = x - k;
+                int x0 = x, y0 = y;
+                while (x < n && y < m &&
+                 a.get(aLo + x).equals(b.get(bLo + y))) {
+                    ++x;
+                    ++y;
+                }
+                vf[off + k] = x;
+                // the reverse paths of the last round lie on diagonals
+                // delta - (d - 1) to delta + (d - 1)
+                if (odd && k - delta >= -(d - 1) && k - delta <= d - 1 &&
+                 x + vb[off + delta - k] >= n)
+                    return new int[] {aLo + x0,bLo + y0,aLo + x,bLo + y};
+            }
+            for (int k=-d; k<=d; k+=2) {
+                int x = k == -d || k != d && vb[off + k - 1] < vb[off + k + 1] ?
+                 vb[off + k + 1] : vb[off + k - 1] + 1;
+                int y = x - k;
+                int x0 = x, y0 = y;
+                while (x < n && y < m &&
+                 a.get(aHi - 1 - x).equals(b.get(bHi - 1 - y))) {
+                    ++x;
+                    ++y;
+                }
+                vb[off + k] = x;
+                if (!odd && delta - k >= -d && delta - k <= d &&
+                 x + vf[off + delta - k] >= n)
+                    return new int[] {aHi - x,bHi - y,aHi - x0,bHi - y0};
+            }
+        }
+        // two ranges always meet by round max
+        throw new IllegalStateException("No middle snake");
+    }
+
+    /**
+     * Formats edits as a unified diff with CONTEXT lines around each hunk
+     *
+     * @param   a the old lines
+     * @param   b the new lines
+     * @param   edits the edits from a to b
+     * @param   aName the name of the old file
+     * @param   bName the name of the new file
+     *
+     * @return  the diff, empty if there are no edits
+     */
+    public static String unified(List<String> a, List<String> b,
+     List<Edit> edits, String aName, String bName) {
+        StringBuilder sb = new StringBuilder();
+        if (edits.isEmpty())
+            return "";
+        sb.append("--- ").append(aName).append('\n');
+        sb.append("+++ ").append(bName).append('\n');
+        int first = 0;
+        while (first < edits.size()) {
+            // edits closer than twice the context share a hunk
+            int last = first;
+            while (last + 1 < edits.size() && edits.get(last + 1).aStart -
+             edits.get(last).aEnd <= 2 * CONTEXT)
+                ++last;
+            Edit f = edits.get(first);
+            Edit l = edits.get(last);
+            int aStart = Math.max(0,f.aStart - CONTEXT);
+            int aEnd = Math.min(a.size(),l.aEnd + CONTEXT);
+            int bStart = f.bStart - (f.aStart - aStart);
+            int bEnd = l.bEnd + (aEnd - l.aEnd);
+            sb.append("@@ -").append(range(aStart,aEnd - aStart))
+             .append(" +").append(range(bStart,bEnd - bStart))
+             .append(" @@\n");
+            int i = aStart;
+            for (int e=first; e<=last; e++) {
+                Edit edit = edits.get(e);
+                for (; i<edit.aStart; i++)
+                    sb.append(' ').append(a.get(i)).append('\n');
+                for (int j=edit.aStart; j<edit.aEnd; j++)
+                    sb.append('-').append(a.get(j)).append('\n');
+                for (int j=edit.bStart; j<edit.bEnd; j++)
+                    sb.append('+').append(b.get(j)).append('\n');
+                i = edit.aEnd;
+            }
+            for (; i<aEnd; i++)
+                sb.append(' ').append(a.get(i)).append('\n');
+            first = last + 1;
+        }
+        return sb.toString();
+    }
+
+    /**
+     * Formats the range of a hunk header
+     *
+     * @param   start index of the first line
+     * @param   count number of lines
+     *
+     * @return  start,count with 1 based lines, an empty range is given by
+     *          the line before it
+     */
+    private static String range(int start, int count) {
+        if (count == 1)
+            return Integer.toString(start + 1);
+        return (count == 0 ? start : start + 1) + "," + count;
+    }
+
+    /**
+     * An edit, replacing a range of old lines with a range of new lines.
+     * Either range may be empty.
+     */
+    public static final class Edit {
+        /** First old line */
+        public final int aStart;
+
+        /** One past the last old line */
+        public final int aEnd;
+
+        /** First new line */
+        public final int bStart;
+
+        /** One past the last new line */
+        public final int bEnd;
+
+        /**
+         * Creates a new Edit
+         *
+         * @param   aStart first old line
+         * @param   aEnd one past the last old line
+         * @param   bStart first new line
+         * @param   bEnd one past the last new line
+         */
+        public Edit(int aStart, int aEnd, int bStart, int bEnd) {
+            this.aStart = aStart;
+            this.aEnd = aEnd;
+            this.bStart = bStart;
+            this.bEnd = bEnd;
+        }
+
+        @Override
+        public String toString() {
+            return aStart + "," + aEnd + "->" + bStart + "," + bEnd;
+        }
+    }
+}
@@ -0,0 +1,54 @@
+import java.io.*;
+
+/**
+ * A stream of carrier changes of network interfaces.  LinkMonitor reads
+ * events through this interface so that a scripted fake can stand in for
+ * the kernel's.
+ */
+public interface LinkEventSource extends Closeable {
+    /**
+     * Waits for the next event
+     *
+     * @return  the event or null if the source has ended
+     *
+     * @throws  IOException if an I/O error occurs reading the source
+     * @throws  InterruptedException if interrupted waiting for an event
+     */
+    Event next() throws IOException, InterruptedException;
+
+    /**
+     * A carrier change of one interface
+     */
+    class Event {
+        /** Interface name */
+        public final String name;
+
+        /** True if the interface has a carrier */
+        public final boolean carrier;
+
+        /** Monotonic time the event was read in nanoseconds */
+        public final long time;
+
+        /**
+         * Creates a new Event read now
+         *
+         * @param   name the interface name
+         * @param   carrier true if the interface has a carrier
+         */
+        public Event(String name, boolean carrier) {
+            this.name = name;
+            this.carrier = carrier;
+            time = System.nanoTime();
+        }
+
+        /**
+         * Formats the event for the log
+         *
+         * @return  the interface name and carrier state
+         */
+        @Override
+        public String toString() {
+            return name + " carrier " + (carrier ? "up" : "down");
+        }
+    }
+}
@@ -0,0 +1,327 @@
+import java.io.*;
+import java.nio.charset.*;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.function.*;
+
+/**
+ * Switches profiles when interfaces gain or lose their carrier, e.g. to
+ * give a Pi a static address when its cable is moved to an isolated bench
+ * network.  Rules are lines of a file, by default .ipconfig-links in the
+ * home directory, naming an interface, up or down and a profile:
+ *
+ * <pre>
+ * eth0 down bench
+ * eth0 up   office
+ * </pre>
+ *
+ * Events are read on the calling thread and settled on one scheduler
+ * thread.  Each event restarts the debounce delay of its interface, so a
+ * flapping link is acted on once it has kept one state for the whole
+ * delay, and the profile is switched through ConfService like any other
+ * edit.  The watchdog only checks a switch made when a carrier comes up,
+ * an interface that lost its carrier can't come back with its address.
+ * An event is handled at most the debounce delay plus one switch after it
+ * arrives, without a thread of its own.
+ */
+public class LinkMonitor implements Closeable {
+    /** Default debounce delay in milliseconds */
+    public static final long DEFAULT_DEBOUNCE = 2000;
+
+    /** Switches profiles */
+    private final ConfService service;
+
+    /** Profiles the rules name */
+    private final Profiles profiles;
+
+    /** Profile names by interface and state, e.g. "eth0 down" */
+    private final Map<String,String> rules;
+
+    /** Debounce delay in milliseconds */
+    private final long debounce;
+
+    /** Receives log messages */
+    private final Consumer<String> log;
+
+    /** Settles events and switches profiles */
+    private final ScheduledExecutorService scheduler =
+     Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread t = new Thread(r,"link-monitor");
+        t.setDaemon(true);
+        return t;
+    });
+
+    /** Settle waiting for each interface, guarded by this */
+    private final Map<String,ScheduledFuture<?>> pending = new HashMap<>();
+
+    /**
+     * Last state switched to for each interface, used on the scheduler.  A
+     * switch that fails or that the watchdog undoes isn't recorded, so the
+     * next event of the same state tries it again.
+     */
+    private final Map<String,Boolean> settled = new HashMap<>();
+
+    /**
+     * Creates a new LinkMonitor
+     *
+     * @param   service switches profiles
+     * @param   profiles the profiles the rules name
+     * @param   rules profile names by interface and state, from readRules
+     * @param   debounce the debounce delay in milliseconds
+     * @param   log receives log messages
+     */
+    public LinkMonitor(ConfService service, Profiles profiles,
+     Map<String,String> rules, long debounce, Consumer<String> log) {
+        this.service = service;
+        this.profiles = profiles;
+        this.rules = new HashMap<>(rules);
+        this.debounce = debounce;
+        this.log = log;
+    }
+
+    /**
+     * Gets the default rules file
+     *
+     * @return  .ipconfig-links in the home directory
+     */
+    public static Path defaultRules() {
+        return Paths.get(System.getProperty("user.home"),".ipconfig-links");
+    }
+
+    /**
+     * Reads a rules file.  Blank lines and lines starting with # are
+     * skipped.
+     *
+     * @param   path the file
+     *
+     * @return  profile names by interface and state, e.g. "eth0 down"
+     *
+     * @throws  IOException if the file can't be read or a rule is not
+     *          understood
+     */
+    public static Map<String,String> readRules(Path path) throws IOException {
+        Map<String,String> rules = new HashMap<>();
+        int n = 0;
+        for (String line : Files.readAllLines(path,
+         StandardCharsets.ISO_8859_1)) {
+            ++n;
+            line = line.trim();
+            if (line.isEmpty() || line.startsWith("#"))
+                continue;
+            String[] words = line.split("\\s+");
+            if (words.length != 3 ||
+             !(words[1].equals("up") || words[1].equals("down")))
+                throw new IOException(path + ":" + n +
+                 ": expected interface up|down profile");
+            rules.put(words[0] + " " + words[1],words[2]);
+        }
+        return rules;
+    }
+
+    /**
+     * Reads events until the source ends, then waits for the events read
+     * to be settled
+     *
+     * @param   source the events
+     *
+     * @throws  IOException if an I/O error occurs reading the source
+     * @throws  InterruptedException if interrupted
+     */
+    public void run(LinkEventSource source)
+     throws IOException, InterruptedException {
+        try {
+            LinkEventSource.Event event;
+            while ((event = source.next()) != null)
+                event(event);
+        } finally {
+            source.close();
+            close();
+        }
+        scheduler.awaitTermination(Long.MAX_VALUE,TimeUnit.NANOSECONDS);
+    }
+
+    /**
+     * Restarts the debounce delay of an interface with a new state
+     *
+     * @param   event the event
+     */
+    public synchronized void event(LinkEventSource.Event event) {
+        if (!rules.containsKey(event.name + " up") &&
+         !rules.containsKey(event.name + " down"))
+            return;
+        ScheduledFuture<?> before = pending.put(event.name,
+         scheduler.schedule(() -> settle(event),debounce,
+         TimeUnit.MILLISECONDS));
+        if (before != null)
+            before.cancel(false);
+    }
+
+    /**
+     * Switches to the profile of a state that has lasted the debounce
+     * delay, unless the interface was already in that state.  Runs on the
+     * scheduler thread.
+     *
+     * @param   event the last event of the interface
+     */
+    private void settle(LinkEventSource.Event event) {
+        if (Boolean.valueOf(event.carrier).equals(settled.get(event.name)))
+            return;
+        String name = rules.get(event.name + " " +
+         (event.carrier ? "up" : "down"));
+        if (name == null) {
+            settled.put(event.name,event.carrier);
+            log.accept(event + ", no rule");
+            return;
+        }
+        try {
+            profiles.load();
+            Profiles.Profile profile = profiles.get(name);
+            if (profile == null) {
+                log.accept(event + ", no profile " + name);
+                return;
+            }
+            ConfService.Outcome outcome =
+             service.activate(profile,event.carrier);
+            if (outcome.restored.isEmpty())
+                settled.put(event.name,event.carrier);
+            log.accept(event + ", profile " + name + (outcome.changed
+             .isEmpty() ? " already active" : " switched " +
+             String.join(",",outcome.changed)) + " " +
+             (System.nanoTime() - event.time) / 1000000 + " ms after the " +
+             "event" + (outcome.restored.isEmpty() ? "" : ", restored " +
+             String.join(",",outcome.restored)));
+        } catch (IOException | IllegalArgumentException e) {
+            log.accept(event + ", error switching to profile " + name + ": " +
+             e.getMessage());
+        } catch (InterruptedException ie) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Stops taking events, the events already read are still settled
+     */
+    @Override
+    public void close() {
+        scheduler.shutdown();
+    }
+
+    /**
+     * Events from a long lived ip -o monitor link process.  An interface
+     * has a carrier when its flags hold LOWER_UP, and loses it when it is
+     * deleted.
+     */
+    public static class IpMonitor implements LinkEventSource {
+        /** The ip process */
+        private final Process process;
+
+        /** Its output */
+        private final BufferedReader reader;
+
+        /**
+         * Starts ip monitor
+         *
+         * @throws  IOException if ip can't be started
+         */
+        public IpMonitor() throws IOException {
+            process = new ProcessBuilder("ip","-o","monitor","link")
+             .redirectErrorStream(true).start();
+            reader = new BufferedReader(new InputStreamReader(
+             process.getInputStream(),StandardCharsets.ISO_8859_1));
+        }
+
+        @Override
+        public Event next() throws IOException {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                Event event = parse(line);
+                if (event != null)
+                    return event;
+            }
+            return null;
+        }
+
+        /**
+         * Parses a line of ip monitor output, e.g.
+         * 2: eth0: &lt;BROADCAST,MULTICAST,UP,LOWER_UP&gt; mtu 1500 ...
+         *
+         * @param   line the line
+         *
+         * @return  the event or null if the line is not a link event
+         */
+        static Event parse(String line) {
+            if (line.startsWith("["))
+                line = line.substring(line.indexOf(']') + 1).trim();
+            boolean deleted = line.startsWith("Deleted ");
+            if (deleted)
+                line = line.substring(8);
+            int colon = line.indexOf(": ");
+            int end = colon < 0 ? -1 : line.indexOf(':',colon + 2);
+            int open = line.indexOf('<');
+            int close = line.indexOf('>');
+            if (end < 0 || open < end || close < open)
+                return null;
+            String name = line.substring(colon + 2,end);
+            int at = name.indexOf('@');
+            if (at > 0)
+                name = name.substring(0,at);
+            List<String> flags =
+             Arrays.asList(line.substring(open + 1,close).split(","));
+            return new Event(name,!deleted && flags.contains("LOWER_UP"));
+        }
+
+        @Override
+        public void close() throws IOException {
+            process.destroy();
+            reader.close();
+        }
+    }
+
+    /**
+     * Events replayed from a script, for trying out rules without touching
+     * a cable.  Each line holds a delay in milliseconds, an interface name
+     * and up or down, e.g. 250 eth0 down, blank lines and lines starting
+     * with # are skipped.
+     */
+    public static class Script implements LinkEventSource {
+        /** The script */
+        private final BufferedReader reader;
+
+        /**
+         * Creates a new Script
+         *
+         * @param   reader reads the script
+         */
+        public Script(Reader reader) {
+            this.reader = new BufferedReader(reader);
+        }
+
+        @Override
+        public Event next() throws IOException, InterruptedException {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                line = line.trim();
+                if (line.isEmpty() || line.startsWith("#"))
+                    continue;
+                String[] words = line.split("\\s+");
+                if (words.length != 3 ||
+                 !(words[2].equals("up") || words[2].equals("down")))
+                    throw new IOException("Expected delay interface " +
+                     "up|down: " + line);
+                try {
+                    Thread.sleep(Long.parseLong(words[0]));
+                } catch (NumberFormatException nfe) {
+                    throw new IOException("Bad delay: " + line);
+                }
+                return new Event(words[1],words[2].equals("up"));
+            }
+            return null;
+        }
+
+        @Override
+        public void close() throws IOException {
+            reader.close();
+        }
+    }
+}
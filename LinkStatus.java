@@ -0,0 +1,212 @@
+/**
+ * Sample of the live state of one network interface.  Samples are mutable
+ * and reused from poll to poll so reading them allocates nothing.
+ */
+public class LinkStatus {
+    /** Operational state unknown */
+    public static final int UNKNOWN = 0;
+
+    /** Operational state down */
+    public static final int DOWN = 1;
+
+    /** Operational state up */
+    public static final int UP = 2;
+
+    /** Operational state dormant, e.g. Wi-Fi not associated */
+    public static final int DORMANT = 3;
+
+    /** Cell holding the link state */
+    public static final int STATE = 1;
+
+    /** Cell holding the addresses */
+    public static final int ADDRESSES = 2;
+
+    /** Cell holding the traffic counters */
+    public static final int TRAFFIC = 4;
+
+    /** Cell holding the default route */
+    public static final int ROUTE = 8;
+
+    /** Most addresses kept per interface */
+    static final int MAX_ADDRESSES = 4;
+
+    /** Operational state */
+    int state;
+
+    /** True if the interface has carrier */
+    boolean carrier;
+
+    /** Bytes received */
+    long rxBytes;
+
+    /** Bytes transmitted */
+    long txBytes;
+
+    /** IPv4 addresses in network order */
+    final int[] addresses = new int[MAX_ADDRESSES];
+
+    /** Prefix lengths of the addresses */
+    final int[] prefixes = new int[MAX_ADDRESSES];
+
+    /** Number of addresses */
+    int addressCount;
+
+    /** True if the default route goes through the interface */
+    boolean defaultRoute;
+
+    /** Default gateway in network order, 0 if there is none */
+    int gateway;
+
+    /**
+     * Resets the sample to an interface that doesn't exist
+     */
+    void clear() {
+        state = UNKNOWN;
+        carrier = defaultRoute = false;
+        rxBytes = txBytes = 0;
+        addressCount = gateway = 0;
+    }
+
+    /**
+     * Copies another sample
+     *
+     * @param   other the sample to copy
+     */
+    public void copyFrom(LinkStatus other) {
+        state = other.state;
+        carrier = other.carrier;
+        rxBytes = other.rxBytes;
+        txBytes = other.txBytes;
+        addressCount = other.addressCount;
+        System.arraycopy(other.addresses,0,addresses,0,addressCount);
+        System.arraycopy(other.prefixes,0,prefixes,0,addressCount);
+        defaultRoute = other.defaultRoute;
+        gateway = other.gateway;
+    }
+
+    /**
+     * Compares this sample with an earlier one
+     *
+     * @param   other the earlier sample
+     *
+     * @return  the cells that differ, a mask of STATE, ADDRESSES, TRAFFIC and
+     *          ROUTE
+     */
+    public int diff(LinkStatus other) {
+        int mask = 0;
+        if (state != other.state || carrier != other.carrier)
+            mask |= STATE;
+        if (rxBytes != other.rxBytes || txBytes != other.txBytes)
+            mask |= TRAFFIC;
+        if (defaultRoute != other.defaultRoute || gateway != other.gateway)
+            mask |= ROUTE;
+        if (addressCount != other.addressCount) {
+            mask |= ADDRESSES;
+        } else {
+            for (int i=0; i<addressCount; i++)
+                if (addresses[i] != other.addresses[i] ||
+                 prefixes[i] != other.prefixes[i])
+                    mask |= ADDRESSES;
+        }
+        return mask;
+    }
+
+    /**
+     * Tests if the interface has an address
+     *
+     * @param   address the address in network order
+     *
+     * @return  true if the interface has the address
+     */
+    public boolean hasAddress(int address) {
+        for (int i=0; i<addressCount; i++)
+            if (addresses[i] == address)
+                return true;
+        return false;
+    }
+
+    /**
+     * Gets the link state for display
+     *
+     * @return  the link state
+     */
+    public String stateText() {
+        switch (state) {
+            case UP: return carrier ? "up" : "up, no carrier";
+            case DOWN: return "down";
+            case DORMANT: return "dormant";
+            default: return carrier ? "carrier" : "unknown";
+        }
+    }
+
+    /**
+     * Gets the addresses for display
+     *
+     * @return  the addresses in a.b.c.d/bits form
+     */
+    public String addressText() {
+        if (addressCount == 0)
+            return "none";
+        StringBuilder sb = new StringBuilder();
+        for (int i=0; i<addressCount; i++) {
+            if (i > 0)
+                sb.append(", ");
+            appendAddress(sb,addresses[i]).append('/').append(prefixes[i]);
+        }
+        return sb.toString();
+    }
+
+    /**
+     * Gets the traffic counters for display
+     *
+     * @return  the counters
+     */
+    public String trafficText() {
+        return "rx " + bytes(rxBytes) + "  tx " + bytes(txBytes);
+    }
+
+    /**
+     * Gets the default route for display
+     *
+     * @return  the gateway or none
+     */
+    public String routeText() {
+        if (!defaultRoute)
+            return "none";
+        if (gateway == 0)
+            return "direct";
+        return appendAddress(new StringBuilder(),gateway).toString();
+    }
+
+    /**
+     * Appends an address in dotted form
+     *
+     * @param   sb the StringBuilder to append to
+     * @param   address the address in network order
+     *
+     * @return  the StringBuilder
+     */
+    static StringBuilder appendAddress(StringBuilder sb, int address) {
+        return sb.append(address >>> 24).append('.')
+         .append((address >>> 16) & 0xff).append('.')
+         .append((address >>> 8) & 0xff).append('.')
+         .append(address & 0xff);
+    }
+
+    /**
+     * Formats a byte count
+     *
+     * @param   n the byte count
+     *
+     * @return  the count with a unit
+     */
+    private static String bytes(long n) {
+        if (n < 1024)
+            return n + " B";
+        if (n < 1024 * 1024)
+            return String.format("%.1f KB",n / 1024.0);
+        if (n < 1024L * 1024 * 1024)
+            return String.format("%.1f MB",n / (1024.0 * 1024));
+        return String.format("%.1f GB",n / (1024.0 * 1024 * 1024));
+    }
+}
@@ -0,0 +1,407 @@
+import java.io.*;
+import java.nio.*;
+import java.nio.channels.*;
+import java.nio.charset.*;
+import java.nio.file.*;
+import java.util.*;
+
+/**
+ * Reads the live state of network interfaces from /sys/class/net and
+ * /proc/net.  Files are read into one reused buffer and parsed in place, so
+ * a poll allocates next to nothing.  Addresses come from the local host
+ * entries of /proc/net/fib_trie matched to the interface whose link route
+ * in /proc/net/route covers them.  All paths are resolved against a root
+ * directory so a fake sysfs and procfs tree can stand in for the real one.
+ */
+public class LinkStatusReader {
+    /** Route flag, route is up */
+    private static final int RTF_UP = 0x0001;
+
+    /** Marks an address line in fib_trie */
+    private static final byte[] BRANCH = ascii("|-- ");
+
+    /** Marks a local host address in fib_trie */
+    private static final byte[] HOST_LOCAL = ascii("/32 host LOCAL");
+
+    /** Root directory */
+    private final Path root;
+
+    /** /proc/net/route */
+    private final Path routeFile;
+
+    /** /proc/net/fib_trie */
+    private final Path fibTrieFile;
+
+    /** Paths of the sysfs files of each interface */
+    private final Map<String,Path[]> sysFiles = new HashMap<>();
+
+    /** File read buffer */
+    private ByteBuffer buf = ByteBuffer.allocate(16384);
+
+    /** Number of routes read */
+    private int routeCount;
+
+    /** Index into the interface names of each route, -1 for others */
+    private int[] routeIface = new int[32];
+
+    /** Route destinations */
+    private int[] routeDest = new int[32];
+
+    /** Route gateways */
+    private int[] routeGateway = new int[32];
+
+    /** Route masks */
+    private int[] routeMask = new int[32];
+
+    /** Route flags */
+    private int[] routeFlags = new int[32];
+
+    /** Local addresses read from fib_trie */
+    private int[] locals = new int[16];
+
+    /** Number of local addresses */
+    private int localCount;
+
+    /**
+     * Creates a new LinkStatusReader
+     *
+     * @param   root the root directory, / for the real system
+     */
+    public LinkStatusReader(Path root) {
+        this.root = root;
+        routeFile = root.resolve("proc/net/route");
+        fibTrieFile = root.resolve("proc/net/fib_trie");
+    }
+
+    /**
+     * Reads the state of interfaces
+     *
+     * @param   names the interface names
+     * @param   out the samples to fill, one per name
+     */
+    public synchronized void read(List<String> names, LinkStatus[] out) {
+        for (int i=0; i<names.size(); i++)
+            readSys(names.get(i),out[i]);
+        readRoutes(names);
+        for (int r=0; r<routeCount; r++) {
+            int i = routeIface[r];
+            if (i >= 0 && routeDest[r] == 0 && routeMask[r] == 0 &&
+             (routeFlags[r] & RTF_UP) != 0 && !out[i].defaultRoute) {
+                out[i].defaultRoute = true;
+                out[i].gateway = routeGateway[r];
+            }
+        }
+        readLocals();
+        for (int l=0; l<localCount; l++) {
+            // the most specific link route that covers the address
+            int best = -1;
+            for (int r=0; r<routeCount; r++) {
+                if (routeIface[r] < 0 || routeGateway[r] != 0 ||
+                 routeMask[r] == 0 || (locals[l] & routeMask[r]) != routeDest[r])
+                    continue;
+                if (best < 0 || Integer.compareUnsigned(routeMask[r],
+                 routeMask[best]) > 0)
+                    best = r;
+            }
+            if (best < 0)
+                continue;
+            LinkStatus s = out[routeIface[best]];
+            if (s.addressCount < LinkStatus.MAX_ADDRESSES &&
+             !s.hasAddress(locals[l])) {
+                s.addresses[s.addressCount] = locals[l];
+                s.prefixes[s.addressCount++] = Integer.bitCount(routeMask[best]);
+            }
+        }
+    }
+
+    /**
+     * Reads the sysfs state of an interface
+     *
+     * @param   name the interface name
+     * @param   s the sample to fill
+     */
+    private void readSys(String name, LinkStatus s) {
+        s.clear();
+        Path[] files = sysFiles.computeIfAbsent(name,n -> {
+            Path dir = root.resolve("sys/class/net").resolve(n);
+            return new Path[] { dir.resolve("operstate"),
+             dir.resolve("carrier"),dir.resolve("statistics/rx_bytes"),
+             dir.resolve("statistics/tx_bytes") };
+        });
+
+        int n = load(files[0]);
+        if (n > 0) {
+            byte b = buf.get(0);
+            if (b == 'u' && n > 1 && buf.get(1) == 'p')
+                s.state = LinkStatus.UP;
+            else if (b == 'd' && n > 1 && buf.get(1) == 'o')
+                s.state = n > 2 && buf.get(2) == 'r' ?
+                 LinkStatus.DORMANT : LinkStatus.DOWN;
+        }
+        // carrier can't be read while the interface is down
+        s.carrier = load(files[1]) > 0 && buf.get(0) == '1';
+        s.rxBytes = load(files[2]) > 0 ? decimal(0) : 0;
+        s.txBytes = load(files[3]) > 0 ? decimal(0) : 0;
+    }
+
+    /**
+     * Reads /proc/net/route into the route arrays
+     *
+     * @param   names the interface names routes are matched to
+     */
+    private void readRoutes(List<String> names) {
+        routeCount = 0;
+        int n = load(routeFile);
+        // skip the header line
+        int pos = lineEnd(0,n) + 1;
+        while (pos < n) {
+            int end = lineEnd(pos,n);
+            int f = pos;
+            int nameEnd = tokenEnd(f,end);
+            if (nameEnd > f) {
+                grow();
+                routeIface[routeCount] = indexOf(names,f,nameEnd);
+                f = tokenStart(nameEnd,end);
+                routeDest[routeCount] = Integer.reverseBytes(hex(f));
+                f = tokenStart(tokenEnd(f,end),end);
+                routeGateway[routeCount] = Integer.reverseBytes(hex(f));
+                f = tokenStart(tokenEnd(f,end),end);
+                routeFlags[routeCount] = hex(f);
+                // skip RefCnt, Use and Metric
+                for (int i=0; i<4; i++)
+                    f = tokenStart(tokenEnd(f,end),end);
+                routeMask[routeCount] = Integer.reverseBytes(hex(f));
+                ++routeCount;
+            }
+            pos = end + 1;
+        }
+    }
+
+    /**
+     * Reads the local host addresses from /proc/net/fib_trie
+     */
+    private void readLocals() {
+        localCount = 0;
+        int n = load(fibTrieFile);
+        int pos = 0;
+        int last = 0;
+        while (pos < n) {
+            int end = lineEnd(pos,n);
+            int i = find(BRANCH,pos,end);
+            if (i >= 0) {
+                last = dotted(i + BRANCH.length,end);
+            } else if (last != 0 && find(HOST_LOCAL,pos,end) >= 0) {
+                boolean seen = false;
+                for (int l=0; l<localCount; l++)
+                    seen |= locals[l] == last;
+                // loopback addresses have no interface worth showing
+                if (!seen && (last >>> 24) != 127) {
+                    if (localCount == locals.length)
+                        locals = Arrays.copyOf(locals,localCount * 2);
+                    locals[localCount++] = last;
+                }
+            }
+            pos = end + 1;
+        }
+    }
+
+    /**
+     * Reads a file into the buffer
+     *
+     * @param   path the file
+     *
+     * @return  the number of bytes read, 0 if the file can't be read
+     */
+    private int load(Path path) {
+        buf.clear();
+        try (FileChannel fc = FileChannel.open(path,StandardOpenOption.READ)) {
+            // proc files report no size, so read until end of file
+            while (fc.read(buf) >= 0) {
+                if (!buf.hasRemaining()) {
+                    ByteBuffer bigger = ByteBuffer.allocate(buf.capacity() * 2);
+                    buf.flip();
+                    bigger.put(buf);
+                    buf = bigger;
+                }
+            }
+        } catch (IOException ioe) {
+            // interfaces come and go, a missing file is not an error
+            return 0;
+        }
+        return buf.position();
+    }
+
+    /**
+     * Ensures the route arrays have room for one more route
+     */
+    private void grow() {
+        if (routeCount < routeIface.length)
+            return;
+        int size = routeIface.length * 2;
+        routeIface = Arrays.copyOf(routeIface,size);
+        routeDest = Arrays.copyOf(routeDest,size);
+        routeGateway = Arrays.copyOf(routeGateway,size);
+        routeMask = Arrays.copyOf(routeMask,size);
+        routeFlags = Arrays.copyOf(routeFlags,size);
+    }
+
+    /**
+     * Finds an interface name in the buffer
+     *
+     * @param   names the interface names
+     * @param   start start of the name in the buffer
+     * @param   end end of the name in the buffer
+     *
+     * @return  the index of the name or -1
+     */
+    private int indexOf(List<String> names, int start, int end) {
+        outer:
+        for (int i=0; i<names.size(); i++) {
+            String name = names.get(i);
+            if (name.length() != end - start)
+                continue;
+            for (int j=0; j<name.length(); j++)
+                if (name.charAt(j) != buf.get(start + j))
+                    continue outer;
+            return i;
+        }
+        return -1;
+    }
+
+    /**
+     * Finds a byte pattern in the buffer
+     *
+     * @param   pattern the pattern
+     * @param   start where to start looking
+     * @param   end where to stop looking
+     *
+     * @return  the index of the pattern or -1
+     */
+    private int find(byte[] pattern, int start, int end) {
+        outer:
+        for (int i=start; i<=end-pattern.length; i++) {
+            for (int j=0; j<pattern.length; j++)
+                if (buf.get(i + j) != pattern[j])
+                    continue outer;
+            return i;
+        }
+        return -1;
+    }
+
+    /**
+     * Gets the end of the line starting at a position
+     *
+     * @param   pos the position
+     * @param   n the number of bytes in the buffer
+     *
+     * @return  the index of the newline or n
+     */
+    private int lineEnd(int pos, int n) {
+        while (pos < n && buf.get(pos) != '\n')
+            ++pos;
+        return pos;
+    }
+
+    /**
+     * Gets the end of the token at a position
+     *
+     * @param   pos the position
+     * @param   end the end of the line
+     *
+     * @return  the index after the token
+     */
+    private int tokenEnd(int pos, int end) {
+        while (pos < end && buf.get(pos) > ' ')
+            ++pos;
+        return pos;
+    }
+
+    /**
+     * Gets the start of the token at or after a position
+     *
+     * @param   pos the position
+     * @param   end the end of the line
+     *
+     * @return  the index of the token
+     */
+    private int tokenStart(int pos, int end) {
+        while (pos < end && buf.get(pos) <= ' ')
+            ++pos;
+        return pos;
+    }
+
+    /**
+     * Parses a hexadecimal number
+     *
+     * @param   pos the position of the number
+     *
+     * @return  the value
+     */
+    private int hex(int pos) {
+        int v = 0;
+        for (int i=pos; i<buf.position(); i++) {
+            int d = Character.digit(buf.get(i),16);
+            if (d < 0)
+                break;
+            v = v << 4 | d;
+        }
+        return v;
+    }
+
+    /**
+     * Parses a decimal number
+     *
+     * @param   pos the position of the number
+     *
+     * @return  the value
+     */
+    private long decimal(int pos) {
+        long v = 0;
+        for (int i=pos; i<buf.position(); i++) {
+            byte b = buf.get(i);
+            if (b < '0' || b > '9')
+                break;
+            v = v * 10 + b - '0';
+        }
+        return v;
+    }
+
+    /**
+     * Parses a dotted IPv4 address
+     *
+     * @param   pos the position of the address
+     * @param   end the end of the line
+     *
+     * @return  the address in network order, 0 if it is not an address
+     */
+    private int dotted(int pos, int end) {
+        int v = 0, octet = 0, dots = 0;
+        boolean digit = false;
+        for (int i=pos; i<end; i++) {
+            byte b = buf.get(i);
+            if (b >= '0' && b <= '9') {
+                octet = octet * 10 + b - '0';
+                digit = true;
+            } else if (b == '.' && digit && dots < 3) {
+                v = v << 8 | octet;
+                octet = 0;
+                digit = false;
+                ++dots;
+            } else {
+                break;
+            }
+        }
+        return dots == 3 && digit ? v << 8 | octet : 0;
+    }
+
+    /**
+     * Encodes a pattern
+     *
+     * @param   s the pattern
+     *
+     * @return  the bytes of the pattern
+     */
+    private static byte[] ascii(String s) {
+        return s.getBytes(StandardCharsets.US_ASCII);
+    }
+}
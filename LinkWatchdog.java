@@ -0,0 +1,252 @@
+import java.io.*;
+import java.net.*;
+import java.nio.charset.*;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.*;
+
+/**
+ * Checks that rebound interfaces come back.  The state and addresses of
+ * each interface are polled through {@link LinkStatusReader} until it is up
+ * with its static address, then /proc/net/arp is polled until the first
+ * router has a complete entry on the interface.  On the real system a UDP
+ * datagram to the discard port of the router makes the kernel resolve it,
+ * under another root the arp file is left to the test that provides it.
+ * Every path is resolved against the root so tests can fake /sys and /proc.
+ */
+public class LinkWatchdog {
+    /** Default deadline in seconds */
+    public static final long DEFAULT_DEADLINE = 60;
+
+    /** Time between polls in milliseconds */
+    private static final long PERIOD = 100;
+
+    /** Time between router probes in nanoseconds */
+    private static final long PROBE_PERIOD = TimeUnit.SECONDS.toNanos(1);
+
+    /** ARP entry flag, the entry is complete */
+    private static final int ATF_COM = 0x02;
+
+    /** Root directory */
+    private final Path root;
+
+    /** Reads the interface state */
+    private final LinkStatusReader reader;
+
+    /** Deadline in nanoseconds */
+    private final long deadline;
+
+    /**
+     * Creates a new LinkWatchdog
+     *
+     * @param   root the root directory, / for the real system
+     * @param   deadline the time interfaces have to come back
+     * @param   unit the unit of the deadline
+     */
+    public LinkWatchdog(Path root, long deadline, TimeUnit unit) {
+        this.root = root;
+        this.deadline = unit.toNanos(deadline);
+        reader = new LinkStatusReader(root);
+    }
+
+    /**
+     * Creates a new LinkWatchdog with the deadline in seconds from the
+     * ipconfig.watchdog system property, 0 turns the watchdog off
+     *
+     * @param   root the root directory
+     *
+     * @return  the watchdog or null if it is turned off
+     */
+    public static LinkWatchdog fromProperties(Path root) {
+        long seconds = Long.getLong("ipconfig.watchdog",DEFAULT_DEADLINE);
+        return seconds > 0 ?
+         new LinkWatchdog(root,seconds,TimeUnit.SECONDS) : null;
+    }
+
+    /**
+     * Waits for interfaces to come up with their static IPv4 addresses and
+     * reach their routers.  Interfaces without a static IPv4 address are
+     * not watched.
+     *
+     * @param   configs the configurations of the rebound interfaces
+     * @param   start the time the rebind started, from System.nanoTime
+     *
+     * @return  the results of the watched interfaces, by name
+     *
+     * @throws  InterruptedException if interrupted while waiting
+     */
+    public Map<String,Result> watch(Collection<InterfaceConfig> configs,
+     long start) throws InterruptedException {
+        Map<String,Result> results = new LinkedHashMap<>();
+        for (InterfaceConfig ic : configs) {
+            long address = Ipv4.parse(ic.getAddress());
+            if (address == Ipv4.INVALID)
+                continue;
+            String[] routers = ic.getRouters().trim().split("\\s+");
+            long router = Ipv4.parse(routers[0]);
+            results.put(ic.getName(),new Result(ic.getName(),(int)address,
+             router == Ipv4.INVALID ? 0 : (int)router));
+        }
+
+        List<String> names = new ArrayList<>(results.keySet());
+        LinkStatus[] samples = new LinkStatus[names.size()];
+        for (int i=0; i<samples.length; i++)
+            samples[i] = new LinkStatus();
+        long lastProbe = start - PROBE_PERIOD;
+        while (true) {
+            long now = System.nanoTime();
+            reader.read(names,samples);
+            boolean probe = now - lastProbe >= PROBE_PERIOD;
+            Set<String> arp = null;
+            boolean pending = false;
+            for (int i=0; i<names.size(); i++) {
+                Result r = results.get(names.get(i));
+                if (r.addressTime < 0 && samples[i].state == LinkStatus.UP &&
+                 samples[i].hasAddress(r.address))
+                    r.addressTime = now - start;
+                if (r.addressTime >= 0 && r.gateway != 0 &&
+                 r.gatewayTime < 0) {
+                    if (arp == null)
+                        arp = readArp();
+                    if (arp.contains(r.gateway + " " + r.name))
+                        r.gatewayTime = now - start;
+                    else if (probe)
+                        probe(r.gateway);
+                }
+                pending |= !r.isUp();
+            }
+            if (probe)
+                lastProbe = now;
+            if (!pending || now - start >= deadline)
+                return results;
+            Thread.sleep(PERIOD);
+        }
+    }
+
+    /**
+     * Reads the complete entries of /proc/net/arp
+     *
+     * @return  the address, as an int, and the device of each entry
+     *          separated by a space
+     */
+    private Set<String> readArp() {
+        Set<String> entries = new HashSet<>();
+        try {
+            for (String line : Files.readAllLines(root.resolve("proc/net/arp"),
+             StandardCharsets.ISO_8859_1)) {
+                String[] f = line.trim().split("\\s+");
+                if (f.length < 6 || !f[2].startsWith("0x"))
+                    continue;
+                long address = Ipv4.parse(f[0]);
+                int flags = Integer.parseInt(f[2].substring(2),16);
+                if (address != Ipv4.INVALID && (flags & ATF_COM) != 0)
+                    entries.add((int)address + " " + f[5]);
+            }
+        } catch (IOException | NumberFormatException e) {
+            // no entries until the file can be read
+        }
+        return entries;
+    }
+
+    /**
+     * Sends a datagram to the discard port of a router so the kernel
+     * resolves its hardware address
+     *
+     * @param   router the router address
+     */
+    private void probe(int router) {
+        if (root.toAbsolutePath().getNameCount() > 0)
+            return;
+        try (DatagramSocket socket = new DatagramSocket()) {
+            socket.send(new DatagramPacket(new byte[0],0,
+             InetAddress.getByName(Ipv4.toString(router)),9));
+        } catch (IOException ioe) {
+            // the router may not be reachable yet
+        }
+    }
+
+    /**
+     * What the watchdog saw of one interface
+     */
+    public static class Result {
+        /** Interface name */
+        public final String name;
+
+        /** Static address */
+        final int address;
+
+        /** First router or 0 if there is none */
+        final int gateway;
+
+        /** Time from the rebind until the address was up, -1 if it wasn't */
+        long addressTime = -1;
+
+        /** Time until the router was reachable, -1 if it wasn't */
+        long gatewayTime = -1;
+
+        /**
+         * Creates a new Result
+         *
+         * @param   name the interface name
+         * @param   address the static address
+         * @param   gateway the first router or 0
+         */
+        Result(String name, int address, int gateway) {
+            this.name = name;
+            this.address = address;
+            this.gateway = gateway;
+        }
+
+        /**
+         * Tests if the interface came back
+         *
+         * @return  true if it got its address and reached its router
+         */
+        public boolean isUp() {
+            return addressTime >= 0 && (gateway == 0 || gatewayTime >= 0);
+        }
+
+        /**
+         * Gets the time until the address was up
+         *
+         * @return  the time in nanoseconds or -1
+         */
+        public long getAddressTime() {
+            return addressTime;
+        }
+
+        /**
+         * Gets the time until the router was reachable
+         *
+         * @return  the time in nanoseconds or -1 if it wasn't or there is
+         *          no router
+         */
+        public long getGatewayTime() {
+            return gatewayTime;
+        }
+
+        /**
+         * Formats the result for the log
+         *
+         * @return  the times or what was missed
+         */
+        @Override
+        public String toString() {
+            StringBuilder sb = new StringBuilder(name);
+            if (addressTime < 0) {
+                sb.append(" did not get ").append(Ipv4.toString(address));
+                return sb.toString();
+            }
+            sb.append(" had ").append(Ipv4.toString(address)).append(" after ")
+             .append(addressTime / 1000000).append(" ms");
+            if (gateway != 0) {
+                sb.append(gatewayTime < 0 ? ", did not reach " :
+                 ", reached ").append(Ipv4.toString(gateway));
+                if (gatewayTime >= 0)
+                    sb.append(" after ").append(gatewayTime / 1000000)
+                     .append(" ms");
+            }
+            return sb.toString();
+        }
+    }
+}
@@ -0,0 +1,74 @@
+import java.awt.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+import javax.swing.*;
+import javax.swing.text.*;
+
+/**
+ * Scrolling log of command output.  Lines can be added from any thread,
+ * they are queued and appended in batches by a single pending invokeLater
+ * so a chatty process can't flood the Event Dispatch Thread.
+ */
+public class LogPanel extends JScrollPane {
+    /** Most lines kept in the log */
+    private static final int MAX_LINES = 500;
+
+    /** Text area showing the log */
+    private final JTextArea textArea;
+
+    /** Lines waiting to be appended */
+    private final Queue<String> pending = new ConcurrentLinkedQueue<>();
+
+    /** True while a flush is scheduled on the EDT */
+    private final AtomicBoolean scheduled = new AtomicBoolean();
+
+    /**
+     * Creates a new LogPanel
+     *
+     * @param   rows the number of visible rows
+     * @param   columns the number of visible columns
+     */
+    public LogPanel(int rows, int columns) {
+        textArea = new JTextArea(rows,columns);
+        textArea.setEditable(false);
+        textArea.setFont(new Font(Font.MONOSPACED,Font.PLAIN,11));
+        setViewportView(textArea);
+    }
+
+    /**
+     * Adds a line to the log, may be called from any thread
+     *
+     * @param   line the line to add
+     */
+    public void append(String line) {
+        pending.add(line);
+        if (scheduled.compareAndSet(false,true))
+            EventQueue.invokeLater(this::flush);
+    }
+
+    /**
+     * Appends the queued lines and trims the log to MAX_LINES
+     */
+    private void flush() {
+        scheduled.set(false);
+        StringBuilder sb = new StringBuilder();
+        String line;
+        while ((line = pending.poll()) != null)
+            sb.append(line).append('\n');
+        if (sb.length() == 0)
+            return;
+        textArea.append(sb.toString());
+
+        int excess = textArea.getLineCount() - 1 - MAX_LINES;
+        if (excess > 0) {
+            try {
+                textArea.replaceRange("",0,
+                 textArea.getLineStartOffset(excess));
+            } catch (BadLocationException ble) {
+                ble.printStackTrace();
+            }
+        }
+        textArea.setCaretPosition(textArea.getDocument().getLength());
+    }
+}
@@ -0,0 +1,362 @@
+import java.io.*;
+import java.nio.charset.*;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.atomic.*;
+
+/**
+ * Timing of the phases of loading and saving dhcpcd.conf.  Each phase has a
+ * histogram with fixed buckets held in an AtomicLongArray, so recording a
+ * time is a few compares and two atomic adds and allocates nothing.  The
+ * histograms are written in the Prometheus text format for the node
+ * exporter's textfile collector and read back on the next start, so the
+ * counts build up across runs.
+ */
+public class Metrics {
+    /** Reading and indexing dhcpcd.conf */
+    public static final String LOAD = "load";
+
+    /** Validating the form */
+    public static final String VALIDATE = "validate";
+
+    /** Writing the new file */
+    public static final String WRITE = "write";
+
+    /** Running the sudo script */
+    public static final String RUN_SCRIPT = "run_script";
+
+    /** Rebinding the changed interfaces */
+    public static final String RELOAD = "reload";
+
+    /** From the rebind until the interface has its address */
+    public static final String LINK_UP = "link_up";
+
+    /** From the rebind until the router answers ARP */
+    public static final String GATEWAY = "gateway";
+
+    /** Bucket upper bounds in seconds, as exported */
+    private static final String[] LE = {
+        "0.001","0.0025","0.005","0.01","0.025","0.05","0.1","0.25","0.5",
+        "1","2.5","5","10","30","60"
+    };
+
+    /** Bucket upper bounds in nanoseconds */
+    private static final long[] BOUNDS = new long[LE.length];
+
+    static {
+        for (int i=0; i<LE.length; i++)
+            BOUNDS[i] = (long)(Double.parseDouble(LE[i]) * 1e9);
+    }
+
+    /** Metric name */
+    private static final String NAME = "ipconfig_phase_seconds";
+
+    /** Histograms by phase, in export order */
+    private final Map<String,Histogram> histograms = new LinkedHashMap<>();
+
+    /** Labels of the info metric, e.g. the board model */
+    private final Map<String,String> info = new TreeMap<>();
+
+    /**
+     * Creates a new Metrics with a histogram for each phase
+     */
+    public Metrics() {
+        for (String phase : new String[] {
+         LOAD,VALIDATE,WRITE,RUN_SCRIPT,RELOAD,LINK_UP,GATEWAY })
+            histograms.put(phase,new Histogram());
+    }
+
+    /**
+     * Gets the default export file, the ipconfig.metrics system property
+     * or .ipconfig-metrics.prom in the home directory
+     *
+     * @return  the export file
+     */
+    public static Path defaultPath() {
+        String path = System.getProperty("ipconfig.metrics");
+        return path != null ? Paths.get(path) :
+         Paths.get(System.getProperty("user.home"),".ipconfig-metrics.prom");
+    }
+
+    /**
+     * Gets the time to pass to record when a phase ends
+     *
+     * @return  the monotonic time in nanoseconds
+     */
+    public static long start() {
+        return System.nanoTime();
+    }
+
+    /**
+     * Records the time of a phase
+     *
+     * @param   phase the phase, e.g. LOAD
+     * @param   start the time the phase started, from start()
+     */
+    public void record(String phase, long start) {
+        histograms.get(phase).observe(System.nanoTime() - start);
+    }
+
+    /**
+     * Gets the histogram of a phase
+     *
+     * @param   phase the phase
+     *
+     * @return  the histogram
+     */
+    public Histogram get(String phase) {
+        return histograms.get(phase);
+    }
+
+    /**
+     * Reads the board model and SD card name so that times from different
+     * hardware can be told apart
+     *
+     * @param   root the root directory, / for the real system
+     */
+    public void describe(Path root) {
+        String model = readText(root.resolve("proc/device-tree/model"));
+        if (model != null)
+            info.put("model",model);
+        String card = readText(root.resolve("sys/block/mmcblk0/device/name"));
+        if (card != null)
+            info.put("card",card);
+    }
+
+    /**
+     * Reads a short text file from /proc or /sys
+     *
+     * @param   path the file
+     *
+     * @return  the text without trailing NULs and white space or null if it
+     *          can't be read
+     */
+    private static String readText(Path path) {
+        try {
+            String text = new String(Files.readAllBytes(path),
+             StandardCharsets.ISO_8859_1);
+            int end = text.length();
+            while (end > 0 && (text.charAt(end - 1) == 0 ||
+             Character.isWhitespace(text.charAt(end - 1))))
+                --end;
+            return end > 0 ? text.substring(0,end) : null;
+        } catch (IOException ioe) {
+            return null;
+        }
+    }
+
+    /**
+     * Formats the histograms in the Prometheus text format
+     *
+     * @return  the text
+     */
+    public String format() {
+        StringBuilder sb = new StringBuilder();
+        if (!info.isEmpty()) {
+            sb.append("# HELP ipconfig_info Hardware IPConfig runs on\n");
+            sb.append("# TYPE ipconfig_info gauge\n");
+            sb.append("ipconfig_info{");
+            String sep = "";
+            for (Map.Entry<String,String> e : info.entrySet()) {
+                sb.append(sep).append(e.getKey()).append("=\"")
+                 .append(e.getValue().replace("\\","\\\\")
+                 .replace("\"","\\\"")).append('"');
+                sep = ",";
+            }
+            sb.append("} 1\n");
+        }
+        sb.append("# HELP ").append(NAME)
+         .append(" Time of each phase of loading and saving dhcpcd.conf\n");
+        sb.append("# TYPE ").append(NAME).append(" histogram\n");
+        for (Map.Entry<String,Histogram> e : histograms.entrySet()) {
+            String phase = e.getKey();
+            Histogram h = e.getValue();
+            long cumulative = 0;
+            for (int i=0; i<=LE.length; i++) {
+                cumulative += h.counts.get(i);
+                sb.append(NAME).append("_bucket{phase=\"").append(phase)
+                 .append("\",le=\"").append(i < LE.length ? LE[i] : "+Inf")
+                 .append("\"} ").append(cumulative).append('\n');
+            }
+            sb.append(NAME).append("_sum{phase=\"").append(phase)
+             .append("\"} ").append(h.sum.get() / 1e9).append('\n');
+            sb.append(NAME).append("_count{phase=\"").append(phase)
+             .append("\"} ").append(cumulative).append('\n');
+        }
+        return sb.toString();
+    }
+
+    /**
+     * Writes the histograms to a file, replacing it atomically so the
+     * collector never reads a partly written file
+     *
+     * @param   path the file
+     *
+     * @throws  IOException if an I/O error occurs
+     */
+    public void export(Path path) throws IOException {
+        Path dir = path.toAbsolutePath().getParent();
+        Files.createDirectories(dir);
+        Path temp = Files.createTempFile(dir,"." + path.getFileName(),".tmp");
+        try {
+            Files.write(temp,format().getBytes(StandardCharsets.UTF_8));
+            Files.move(temp,path,StandardCopyOption.ATOMIC_MOVE,
+             StandardCopyOption.REPLACE_EXISTING);
+        } finally {
+            Files.deleteIfExists(temp);
+        }
+    }
+
+    /**
+     * Adds the counts of an earlier export to the histograms.  Lines that
+     * are not buckets or sums of known phases are skipped.
+     *
+     * @param   path the file
+     *
+     * @throws  IOException if an I/O error occurs
+     */
+    public void load(Path path) throws IOException {
+        if (!Files.exists(path))
+            return;
+        for (String line : Files.readAllLines(path,StandardCharsets.UTF_8)) {
+            if (!line.startsWith(NAME))
+                continue;
+            int brace = line.indexOf('{');
+            int close = line.indexOf('}');
+            if (brace < 0 || close < brace)
+                continue;
+            String kind = line.substring(NAME.length(),brace);
+            Map<String,String> labels = labels(line.substring(brace + 1,close));
+            Histogram h = histograms.get(labels.get("phase"));
+            if (h == null)
+                continue;
+            double value;
+            try {
+                value = Double.parseDouble(line.substring(close + 1).trim());
+            } catch (NumberFormatException nfe) {
+                continue;
+            }
+            if (kind.equals("_sum")) {
+                h.sum.addAndGet((long)(value * 1e9));
+            } else if (kind.equals("_bucket")) {
+                // buckets are cumulative, the count of the bucket before
+                // is taken off when the next one is read
+                String le = labels.get("le");
+                int i = le.equals("+Inf") ? LE.length :
+                 Arrays.asList(LE).indexOf(le);
+                if (i >= 0)
+                    h.loaded[i] = (long)value;
+            }
+        }
+        for (Histogram h : histograms.values()) {
+            long before = 0;
+            for (int i=0; i<=LE.length; i++) {
+                h.counts.addAndGet(i,Math.max(0,h.loaded[i] - before));
+                before = Math.max(before,h.loaded[i]);
+                h.loaded[i] = 0;
+            }
+        }
+    }
+
+    /**
+     * Splits Prometheus labels
+     *
+     * @param   text the text between the braces
+     *
+     * @return  the labels
+     */
+    private static Map<String,String> labels(String text) {
+        Map<String,String> labels = new HashMap<>();
+        for (String pair : text.split(",")) {
+            int eq = pair.indexOf('=');
+            if (eq > 0)
+                labels.put(pair.substring(0,eq).trim(),
+                 pair.substring(eq + 1).trim().replace("\"",""));
+        }
+        return labels;
+    }
+
+    /**
+     * Formats a table of the count, mean and estimated percentiles of each
+     * phase for the diagnostics dialog
+     *
+     * @return  the table
+     */
+    public String summary() {
+        StringBuilder sb = new StringBuilder();
+        sb.append(String.format("%-12s %7s %10s %10s %10s %10s%n","phase",
+         "count","mean ms","p50 ms","p90 ms","p99 ms"));
+        for (Map.Entry<String,Histogram> e : histograms.entrySet()) {
+            Histogram h = e.getValue();
+            long count = h.count();
+            if (count == 0) {
+                sb.append(String.format("%-12s %7d%n",e.getKey(),0));
+                continue;
+            }
+            sb.append(String.format("%-12s %7d %10.1f %10s %10s %10s%n",
+             e.getKey(),count,h.sum.get() / 1e6 / count,
+             h.percentile(0.5),h.percentile(0.9),h.percentile(0.99)));
+        }
+        for (Map.Entry<String,String> e : info.entrySet())
+            sb.append(String.format("%n%s: %s",e.getKey(),e.getValue()));
+        return sb.toString();
+    }
+
+    /**
+     * Histogram of the times of one phase
+     */
+    public static class Histogram {
+        /** Count of each bucket, the last is over the largest bound */
+        final AtomicLongArray counts = new AtomicLongArray(LE.length + 1);
+
+        /** Sum of the times in nanoseconds */
+        final AtomicLong sum = new AtomicLong();
+
+        /** Cumulative counts read by load */
+        final long[] loaded = new long[LE.length + 1];
+
+        /**
+         * Records a time
+         *
+         * @param   nanos the time in nanoseconds
+         */
+        public void observe(long nanos) {
+            int i = 0;
+            while (i < BOUNDS.length && nanos > BOUNDS[i])
+                ++i;
+            counts.incrementAndGet(i);
+            sum.addAndGet(nanos);
+        }
+
+        /**
+         * Gets the number of times recorded
+         *
+         * @return  the count
+         */
+        public long count() {
+            long count = 0;
+            for (int i=0; i<counts.length(); i++)
+                count += counts.get(i);
+            return count;
+        }
+
+        /**
+         * Estimates a percentile as the upper bound of the bucket it falls
+         * in
+         *
+         * @param   p the percentile, 0 to 1
+         *
+         * @return  the bound in milliseconds, or &gt; the largest bound
+         */
+        public String percentile(double p) {
+            long rank = (long)Math.ceil(p * count());
+            long cumulative = 0;
+            for (int i=0; i<BOUNDS.length; i++) {
+                cumulative += counts.get(i);
+                if (cumulative >= rank)
+                    return "<=" + BOUNDS[i] / 1000000.0;
+            }
+            return ">" + BOUNDS[BOUNDS.length - 1] / 1000000;
+        }
+    }
+}
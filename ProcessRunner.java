@@ -0,0 +1,166 @@
+import java.io.*;
+import java.nio.charset.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+import java.util.function.*;
+
+/**
+ * Runs processes on a shared pool of daemon threads.  Standard error is
+ * merged into standard output, which is read in bulk and handed line by line
+ * to a consumer.  A process that runs past its timeout is killed and its
+ * future completes with a TimeoutException.  execute kills the process when
+ * its caller is interrupted and returns only once the process has exited.
+ */
+public class ProcessRunner implements CommandExecutor {
+    /** Threads that read process output, shared by all runners */
+    private static final ExecutorService READERS =
+     Executors.newCachedThreadPool(daemon("process-reader"));
+
+    /** Thread that kills processes that time out */
+    private static final ScheduledExecutorService KILLER =
+     Executors.newSingleThreadScheduledExecutor(daemon("process-killer"));
+
+    /** Receives the output lines */
+    private final Consumer<String> output;
+
+    /** Timeout in milliseconds */
+    private final long timeout;
+
+    /**
+     * Creates a new ProcessRunner
+     *
+     * @param   output receives the output lines, called from a pool thread
+     * @param   timeout the time a process may run
+     * @param   unit the unit of the timeout
+     */
+    public ProcessRunner(Consumer<String> output, long timeout,
+     TimeUnit unit) {
+        this.output = output;
+        this.timeout = unit.toMillis(timeout);
+    }
+
+    /**
+     * Creates a thread factory for daemon threads
+     *
+     * @param   name the thread name
+     *
+     * @return  the thread factory
+     */
+    private static ThreadFactory daemon(String name) {
+        return r -> {
+            Thread t = new Thread(r,name);
+            t.setDaemon(true);
+            return t;
+        };
+    }
+
+    /**
+     * Starts a process
+     *
+     * @param   command the command and its arguments
+     *
+     * @return  a future that completes with the exit status
+     *
+     * @throws  IOException if an I/O error occurs starting the process
+     */
+    public CompletableFuture<Integer> run(List<String> command)
+     throws IOException {
+        CompletableFuture<Integer> future = new CompletableFuture<>();
+        start(command,future);
+        return future;
+    }
+
+    /**
+     * Starts a process and completes a future when it exits
+     *
+     * @param   command the command and its arguments
+     * @param   future completes with the exit status
+     *
+     * @return  the process
+     *
+     * @throws  IOException if an I/O error occurs starting the process
+     */
+    private Process start(List<String> command,
+     CompletableFuture<Integer> future) throws IOException {
+        ProcessBuilder pb = new ProcessBuilder(command);
+        pb.redirectErrorStream(true);
+        Process p = pb.start();
+        AtomicBoolean timedOut = new AtomicBoolean();
+        ScheduledFuture<?> kill = KILLER.schedule(() -> {
+            timedOut.set(true);
+            p.destroyForcibly();
+        },timeout,TimeUnit.MILLISECONDS);
+
+        READERS.execute(() -> {
+            try (BufferedReader br = new BufferedReader(new InputStreamReader(
+             p.getInputStream(),Charset.defaultCharset()),8192)) {
+                String line;
+                while ((line = br.readLine()) != null)
+                    output.accept(line);
+                int status = p.waitFor();
+                kill.cancel(false);
+                if (timedOut.get())
+                    future.completeExceptionally(new TimeoutException(
+                     command.get(0) + " timed out after " + timeout + " ms"));
+                else
+                    future.complete(status);
+            } catch (IOException | InterruptedException e) {
+                kill.cancel(false);
+                awaitKilled(p);
+                future.completeExceptionally(e);
+            }
+        });
+
+        return p;
+    }
+
+    /**
+     * Kills a process and waits for it to exit, even if interrupted
+     *
+     * @param   p the process
+     */
+    private static void awaitKilled(Process p) {
+        p.destroyForcibly();
+        boolean interrupted = false;
+        while (true) {
+            try {
+                p.waitFor();
+                break;
+            } catch (InterruptedException ie) {
+                interrupted = true;
+            }
+        }
+        if (interrupted)
+            Thread.currentThread().interrupt();
+    }
+
+    /**
+     * Runs a command and waits for it to finish
+     *
+     * @param   command the command and its arguments
+     *
+     * @return  the exit status of the command
+     *
+     * @throws  IOException if the command can't be started or timed out
+     * @throws  InterruptedException if interrupted waiting for the command,
+     *          it is killed and has exited
+     */
+    @Override
+    public int execute(List<String> command)
+     throws IOException, InterruptedException {
+        CompletableFuture<Integer> future = new CompletableFuture<>();
+        Process p = start(command,future);
+        try {
+            return future.get();
+        } catch (InterruptedException ie) {
+            awaitKilled(p);
+            throw ie;
+        } catch (ExecutionException ee) {
+            Throwable cause = ee.getCause();
+            if (cause instanceof IOException)
+                throw (IOException)cause;
+            throw new IOException(cause);
+        }
+    }
+}
@@ -0,0 +1,309 @@
+import java.io.*;
+import java.nio.charset.*;
+import java.nio.file.*;
+import java.util.*;
+
+/**
+ * Named sets of interface blocks, such as office, lab and field, each kept
+ * in a file of dhcpcd.conf interface blocks in one directory, by default
+ * .ipconfig-profiles in the home directory.  A profile is parsed and
+ * validated when it is loaded and its blocks are kept as they will be
+ * written, so switching to it only swaps blocks in the model and rebinds
+ * the interfaces whose blocks differ.  A block may hold any dhcpcd
+ * directive, e.g. a fallback to a dhcpcd profile block, and is written as
+ * it is.
+ */
+public class Profiles {
+    /** Profile file name suffix */
+    private static final String SUFFIX = ".profile";
+
+    /** Directory holding the profile files */
+    private final Path dir;
+
+    /** Profiles by name, in name order */
+    private final Map<String,Profile> profiles = new TreeMap<>();
+
+    /**
+     * Creates a new Profiles
+     *
+     * @param   dir the directory holding the profile files
+     */
+    public Profiles(Path dir) {
+        this.dir = dir;
+    }
+
+    /**
+     * Gets the default profile directory
+     *
+     * @return  .ipconfig-profiles in the home directory
+     */
+    public static Path defaultDir() {
+        return Paths.get(System.getProperty("user.home"),
+         ".ipconfig-profiles");
+    }
+
+    /**
+     * Loads every profile in the directory, replacing the profiles already
+     * loaded
+     *
+     * @throws  IOException if an I/O error occurs reading a profile
+     */
+    public synchronized void load() throws IOException {
+        profiles.clear();
+        if (!Files.isDirectory(dir))
+            return;
+        try (DirectoryStream<Path> ds =
+         Files.newDirectoryStream(dir,"*" + SUFFIX)) {
+            for (Path path : ds) {
+                String file = path.getFileName().toString();
+                String name = file.substring(0,file.length() - SUFFIX.length());
+                profiles.put(name,new Profile(name,ConfFile.read(path)));
+            }
+        }
+    }
+
+    /**
+     * Gets the profiles
+     *
+     * @return  a copy of the list of profiles
+     */
+    public synchronized List<Profile> getProfiles() {
+        return new ArrayList<>(profiles.values());
+    }
+
+    /**
+     * Gets a profile
+     *
+     * @param   name the profile name
+     *
+     * @return  the profile or null if there is none
+     */
+    public synchronized Profile get(String name) {
+        return profiles.get(name);
+    }
+
+    /**
+     * Saves the current blocks of interfaces as a profile, replacing its
+     * file atomically
+     *
+     * @param   name the profile name
+     * @param   conf the model holding the blocks
+     * @param   names the interfaces, all with a block if empty
+     *
+     * @return  the profile
+     *
+     * @throws  IOException if an I/O error occurs
+     * @throws  IllegalArgumentException if the name can't be a file name or
+     *          none of the interfaces has a block
+     */
+    public synchronized Profile save(String name, DhcpcdConf conf,
+     Collection<String> names) throws IOException {
+        if (!isName(name))
+            throw new IllegalArgumentException("Profile names are letters, " +
+             "digits, '.', '-' and '_'");
+        if (names.isEmpty())
+            names = conf.getInterfaces();
+        StringBuilder sb = new StringBuilder();
+        for (String iface : names) {
+            List<String> block = conf.getBlock(iface);
+            if (block == null)
+                continue;
+            if (sb.length() > 0)
+                sb.append('\n');
+            for (String line : block)
+                sb.append(line).append('\n');
+        }
+        if (sb.length() == 0)
+            throw new IllegalArgumentException("No interface blocks to save");
+
+        Files.createDirectories(dir);
+        Path target = dir.resolve(name + SUFFIX);
+        Path temp = Files.createTempFile(dir,"." + target.getFileName(),
+         ".tmp");
+        try {
+            Files.write(temp,
+             sb.toString().getBytes(StandardCharsets.ISO_8859_1));
+            Files.move(temp,target,StandardCopyOption.ATOMIC_MOVE,
+             StandardCopyOption.REPLACE_EXISTING);
+        } finally {
+            Files.deleteIfExists(temp);
+        }
+        Profile profile = new Profile(name,ConfFile.read(target));
+        profiles.put(name,profile);
+        return profile;
+    }
+
+    /**
+     * Deletes a profile
+     *
+     * @param   name the profile name
+     *
+     * @throws  IOException if an I/O error occurs
+     */
+    public synchronized void delete(String name) throws IOException {
+        if (profiles.remove(name) != null)
+            Files.deleteIfExists(dir.resolve(name + SUFFIX));
+    }
+
+    /**
+     * Gets the profile whose blocks are all in a model
+     *
+     * @param   conf the model
+     *
+     * @return  the first active profile or null if there is none
+     */
+    public synchronized Profile getActive(DhcpcdConf conf) {
+        for (Profile p : profiles.values())
+            if (p.isActive(conf))
+                return p;
+        return null;
+    }
+
+    /**
+     * Tests if a name can be used as a profile file name
+     *
+     * @param   name the name
+     *
+     * @return  true if it can
+     */
+    private static boolean isName(String name) {
+        if (name.isEmpty() || name.startsWith("."))
+            return false;
+        for (int i=0; i<name.length(); i++) {
+            char ch = name.charAt(i);
+            if (!Character.isLetterOrDigit(ch) && ch != '.' && ch != '-' &&
+             ch != '_')
+                return false;
+        }
+        return true;
+    }
+
+    /**
+     * A named set of interface blocks, validated when it is read
+     */
+    public static class Profile {
+        /** Profile name */
+        public final String name;
+
+        /** Block lines by interface, as they are written */
+        private final Map<String,List<String>> blocks = new LinkedHashMap<>();
+
+        /** Static IP parameters by interface */
+        private final Map<String,InterfaceConfig> configs =
+         new LinkedHashMap<>();
+
+        /** Validation errors, empty if the profile can be switched to */
+        private final List<String> errors = new ArrayList<>();
+
+        /**
+         * Creates a new Profile from the interface blocks of a file
+         *
+         * @param   name the profile name
+         * @param   conf the parsed profile file
+         */
+        Profile(String name, DhcpcdConf conf) {
+            this.name = name;
+            for (String iface : conf.getInterfaces()) {
+                List<String> block = Collections.unmodifiableList(
+                 new ArrayList<>(conf.getBlock(iface)));
+                InterfaceConfig ic = InterfaceConfig.fromBlock(iface,block);
+                blocks.put(iface,block);
+                configs.put(iface,ic);
+                int code = ConfigValidator.validate(ic);
+                if (code != ConfigValidator.OK)
+                    errors.add(iface + ": " + ConfigValidator.message(code));
+            }
+            if (blocks.isEmpty())
+                errors.add("No interface blocks");
+            String[] overlap = ConfigValidator.findOverlap(configs.values());
+            if (overlap != null)
+                errors.add(overlap[0] + " and " + overlap[1] + ": " +
+                 ConfigValidator.message(ConfigValidator.OVERLAP));
+        }
+
+        /**
+         * Gets the interfaces of the profile
+         *
+         * @return  the interface names, in file order
+         */
+        public Set<String> getInterfaces() {
+            return Collections.unmodifiableSet(blocks.keySet());
+        }
+
+        /**
+         * Gets the static IP parameters of the profile's interfaces
+         *
+         * @return  the configurations
+         */
+        public Collection<InterfaceConfig> getConfigs() {
+            return Collections.unmodifiableCollection(configs.values());
+        }
+
+        /**
+         * Gets the validation errors
+         *
+         * @return  the errors, empty if the profile can be switched to
+         */
+        public List<String> getErrors() {
+            return Collections.unmodifiableList(errors);
+        }
+
+        /**
+         * Tests if every block of the profile is in a model
+         *
+         * @param   conf the model
+         *
+         * @return  true if the profile is active
+         */
+        public boolean isActive(DhcpcdConf conf) {
+            for (Map.Entry<String,List<String>> e : blocks.entrySet())
+                if (!e.getValue().equals(conf.getBlock(e.getKey())))
+                    return false;
+            return !blocks.isEmpty();
+        }
+
+        /**
+         * Swaps the blocks of the profile into a model
+         *
+         * @param   conf the model
+         *
+         * @return  the interfaces whose blocks changed
+         *
+         * @throws  IllegalArgumentException if the profile is not valid or
+         *          would overlap an interface it doesn't hold
+         */
+        public Set<String> activate(DhcpcdConf conf) {
+            if (!errors.isEmpty())
+                throw new IllegalArgumentException(name + ": " +
+                 String.join(", ",errors));
+            List<InterfaceConfig> all = new ArrayList<>(configs.values());
+            for (String iface : conf.getInterfaces())
+                if (!configs.containsKey(iface))
+                    all.add(conf.getInterface(iface));
+            String[] overlap = ConfigValidator.findOverlap(all);
+            if (overlap != null)
+                throw new IllegalArgumentException(overlap[0] + " and " +
+                 overlap[1] + ": " +
+                 ConfigValidator.message(ConfigValidator.OVERLAP));
+
+            Set<String> changed = new LinkedHashSet<>();
+            for (Map.Entry<String,List<String>> e : blocks.entrySet())
+                if (!e.getValue().equals(conf.getBlock(e.getKey()))) {
+                    conf.replaceBlock(e.getKey(),e.getValue());
+                    changed.add(e.getKey());
+                }
+            return changed;
+        }
+
+        /**
+         * Formats the profile for a list
+         *
+         * @return  the name and interfaces
+         */
+        @Override
+        public String toString() {
+            return name + "  " + String.join(",",blocks.keySet()) +
+             (errors.isEmpty() ? "" : "  (not valid)");
+        }
+    }
+}
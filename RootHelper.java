@@ -0,0 +1,673 @@
+import java.io.*;
+import java.lang.reflect.*;
+import java.net.*;
+import java.nio.channels.*;
+import java.nio.charset.*;
+import java.nio.file.*;
+import java.nio.file.attribute.*;
+import java.security.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.function.*;
+
+/**
+ * A long lived helper, started once as root, that commits dhcpcd.conf and
+ * /etc/network/interfaces and rebinds interfaces for the GUI over a Unix
+ * domain socket, so a save is one round trip instead of a bash script and
+ * its sudo processes.  The socket belongs to the netdev group and is not
+ * open to others, and each connection is authenticated by its peer
+ * credentials: root, the user who started the helper with sudo and the
+ * users in the ipconfig.helper.users system property are served.
+ *
+ * <p>Unix domain socket channels and peer credentials came in JDK 16.
+ * IPConfig is built for Java 8, so they are reached by reflection, and on
+ * an older JDK the helper doesn't start and the client reports that it
+ * isn't running, so the sudo script is used.
+ *
+ * <p>A connection carries requests, each answered before the next is
+ * read, written with DataOutputStream:
+ * <pre>
+ * WRITE    byte 1, UTF target, long version, int length, bytes,
+ *          short count, UTF interface names to rebind
+ * REBIND   byte 2, short count, UTF interface names
+ * reply    byte status, UTF message
+ * </pre>
+ * The target is the system path, /etc/dhcpcd.conf or
+ * /etc/network/interfaces.  A write with a version other than -1 is only
+ * committed if the file still has that version, see ConfCommitter.  The
+ * helper keeps no state between requests, a watchdog restore is a write of
+ * the file with the old blocks put back.
+ *
+ * <p>Both files can make the system run commands as root, dhcpcd.conf
+ * through script and hook directives and the interfaces file through up
+ * and down commands, so the helper doesn't take whatever it is sent.  A
+ * new dhcpcd.conf may only change interface blocks, and a changed block
+ * may only add the static directives the form manages to the lines it had,
+ * each once and rendered from values that pass ConfigValidator.  The
+ * interfaces file can only be given the template the recover writes.
+ * Anything else is refused and left to the sudo script, which runs with
+ * the user's own rights.
+ */
+public class RootHelper {
+    /** Default socket */
+    public static final String SOCKET = "/run/ipconfig-helper.sock";
+
+    /** Writes a file and rebinds interfaces */
+    static final byte WRITE = 1;
+
+    /** Rebinds interfaces */
+    static final byte REBIND = 2;
+
+    /** The request was done */
+    static final byte OK = 0;
+
+    /** The file changed after the client read it, nothing was written */
+    static final byte STALE = 1;
+
+    /** The request was not understood or not allowed */
+    static final byte REFUSED = 2;
+
+    /** The request failed */
+    static final byte FAILED = 3;
+
+    /** Largest file accepted */
+    private static final int MAX_FILE = 1 << 20;
+
+    /** Most interfaces in a request */
+    private static final int MAX_NAMES = 64;
+
+    /** Threads serving connections */
+    private static final int THREADS = 2;
+
+    /** Unix domain socket protocol family, null before JDK 16 */
+    private static final ProtocolFamily UNIX = unixFamily();
+
+    /** Files that can be written and their owner, group and mode */
+    private static final Map<String,ConfCommitter.Ownership> TARGETS =
+     new HashMap<>();
+
+    static {
+        TARGETS.put("/etc/dhcpcd.conf",ConfCommitter.DHCPCD_CONF);
+        TARGETS.put("/etc/network/interfaces",ConfCommitter.INTERFACES);
+    }
+
+    /** Commits the files */
+    private final ConfCommitter committer;
+
+    /** Rebinds interfaces */
+    private final DhcpcdReloader reloader;
+
+    /** Users that are served besides root */
+    private final Set<String> users;
+
+    /** Receives log messages */
+    private final Consumer<String> log;
+
+    /**
+     * Creates a new RootHelper
+     *
+     * @param   committer commits the files
+     * @param   reloader rebinds interfaces, without sudo
+     * @param   users the users that are served besides root
+     * @param   log receives log messages
+     */
+    public RootHelper(ConfCommitter committer, DhcpcdReloader reloader,
+     Collection<String> users, Consumer<String> log) {
+        this.committer = committer;
+        this.reloader = reloader;
+        this.users = new HashSet<>(users);
+        this.users.add("root");
+        this.log = log;
+    }
+
+    /**
+     * Gets the users to serve from the environment, the user who ran sudo
+     * and those in the ipconfig.helper.users system property
+     *
+     * @return  the user names
+     */
+    public static Set<String> defaultUsers() {
+        Set<String> users = new TreeSet<>();
+        String sudoUser = System.getenv("SUDO_USER");
+        if (sudoUser != null)
+            users.add(sudoUser);
+        for (String user :
+         System.getProperty("ipconfig.helper.users","").split(","))
+            if (!user.trim().isEmpty())
+                users.add(user.trim());
+        return users;
+    }
+
+    /**
+     * Gets the Unix domain socket protocol family
+     *
+     * @return  the family or null if the JDK has none
+     */
+    private static ProtocolFamily unixFamily() {
+        try {
+            return Enum.valueOf(StandardProtocolFamily.class,"UNIX");
+        } catch (IllegalArgumentException iae) {
+            return null;
+        }
+    }
+
+    /**
+     * Opens a Unix domain socket channel
+     *
+     * @param   type SocketChannel or ServerSocketChannel
+     *
+     * @return  the channel
+     *
+     * @throws  IOException if the JDK has no Unix domain sockets or the
+     *          channel can't be opened
+     */
+    static <T extends NetworkChannel> T open(Class<T> type)
+     throws IOException {
+        if (UNIX == null)
+            throw new IOException("Unix domain sockets need JDK 16 or later");
+        try {
+            return type.cast(type.getMethod("open",ProtocolFamily.class)
+             .invoke(null,UNIX));
+        } catch (InvocationTargetException ite) {
+            if (ite.getCause() instanceof IOException)
+                throw (IOException)ite.getCause();
+            throw new IOException(ite.getCause());
+        } catch (ReflectiveOperationException roe) {
+            throw new IOException("Unix domain sockets need JDK 16 or later",
+             roe);
+        }
+    }
+
+    /**
+     * Gets the address of a Unix domain socket
+     *
+     * @param   path the socket file
+     *
+     * @return  the address
+     *
+     * @throws  IOException if the JDK has no Unix domain sockets
+     */
+    static SocketAddress address(Path path) throws IOException {
+        try {
+            return (SocketAddress)Class.forName(
+             "java.net.UnixDomainSocketAddress").getMethod("of",Path.class)
+             .invoke(null,path);
+        } catch (ReflectiveOperationException roe) {
+            throw new IOException("Unix domain sockets need JDK 16 or later",
+             roe);
+        }
+    }
+
+    /**
+     * Gets the user at the other end of a connection from its peer
+     * credentials
+     *
+     * @param   channel the connection
+     *
+     * @return  the user name
+     *
+     * @throws  IOException if the credentials can't be read
+     */
+    private static String peer(SocketChannel channel) throws IOException {
+        try {
+            SocketOption<?> option = (SocketOption<?>)Class.forName(
+             "jdk.net.ExtendedSocketOptions").getField("SO_PEERCRED")
+             .get(null);
+            Object principal = channel.getOption(option);
+            return ((Principal)principal.getClass().getMethod("user")
+             .invoke(principal)).getName();
+        } catch (ReflectiveOperationException | RuntimeException e) {
+            throw new IOException("No peer credentials",e);
+        }
+    }
+
+    /**
+     * Serves connections on a socket until the process is stopped
+     *
+     * @param   socket the socket file
+     *
+     * @throws  IOException if the socket can't be created
+     */
+    public void run(Path socket) throws IOException {
+        if (new Client(socket).isRunning())
+            throw new IOException("A helper is already serving " + socket);
+        // makes the commit lock directory and file as root for the GUI
+        committer.lock().close();
+        Files.deleteIfExists(socket);
+        ServerSocketChannel server = open(ServerSocketChannel.class);
+        server.bind(address(socket));
+        socket.toFile().deleteOnExit();
+        // only root and the netdev group can connect
+        try {
+            PosixFileAttributeView view = Files.getFileAttributeView(socket,
+             PosixFileAttributeView.class);
+            view.setGroup(socket.getFileSystem().getUserPrincipalLookupService()
+             .lookupPrincipalByGroupName("netdev"));
+        } catch (IOException | UnsupportedOperationException e) {
+            log.accept("Unable to give " + socket + " to the netdev group");
+        }
+        Files.setPosixFilePermissions(socket,
+         PosixFilePermissions.fromString("rw-rw----"));
+        log.accept("Serving " + socket + " for " + users);
+
+        ExecutorService pool = Executors.newFixedThreadPool(THREADS,r -> {
+            Thread t = new Thread(r,"root-helper");
+            t.setDaemon(true);
+            return t;
+        });
+        while (true) {
+            SocketChannel channel = server.accept();
+            pool.execute(() -> serve(channel));
+        }
+    }
+
+    /**
+     * Serves the requests of one connection until the client closes it
+     *
+     * @param   channel the connection
+     */
+    private void serve(SocketChannel channel) {
+        try (SocketChannel ch = channel) {
+            String user = peer(ch);
+            DataInputStream in = new DataInputStream(new BufferedInputStream(
+             Channels.newInputStream(ch)));
+            DataOutputStream out = new DataOutputStream(
+             new BufferedOutputStream(Channels.newOutputStream(ch)));
+            if (!users.contains(user)) {
+                log.accept("Refused " + user);
+                reply(out,REFUSED,user + " is not allowed");
+                return;
+            }
+            int op;
+            while ((op = in.read()) >= 0) {
+                if (!request(user,op,in,out))
+                    return;
+            }
+        } catch (IOException ioe) {
+            log.accept("Connection failed: " + ioe.getMessage());
+        }
+    }
+
+    /**
+     * Reads, does and answers one request
+     *
+     * @param   user the client user, for the log
+     * @param   op the request
+     * @param   in reads the rest of the request
+     * @param   out writes the reply
+     *
+     * @return  false if the connection is to be closed
+     *
+     * @throws  IOException if the connection fails
+     */
+    private boolean request(String user, int op, DataInputStream in,
+     DataOutputStream out) throws IOException {
+        String target = null;
+        long version = -1;
+        byte[] data = null;
+        if (op == WRITE) {
+            target = in.readUTF();
+            version = in.readLong();
+            int length = in.readInt();
+            if (length < 0 || length > MAX_FILE) {
+                reply(out,REFUSED,"File too large");
+                return false;
+            }
+            data = new byte[length];
+            in.readFully(data);
+        } else if (op != REBIND) {
+            reply(out,REFUSED,"Unknown request " + op);
+            return false;
+        }
+        int count = in.readUnsignedShort();
+        if (count > MAX_NAMES) {
+            reply(out,REFUSED,"Too many interfaces");
+            return false;
+        }
+        List<String> names = new ArrayList<>();
+        for (int i=0; i<count; i++) {
+            String name = in.readUTF();
+            if (!ApiDaemon.isInterfaceName(name)) {
+                reply(out,REFUSED,"Bad interface name");
+                return false;
+            }
+            names.add(name);
+        }
+        if (target != null && !TARGETS.containsKey(target)) {
+            reply(out,REFUSED,"Not a file the helper writes: " + target);
+            return true;
+        }
+
+        log.accept(user + (op == WRITE ? " write " + target : " rebind") +
+         " " + String.join(",",names));
+        try {
+            String message;
+            synchronized (this) {
+                message = op == WRITE ? write(target,version,data) : "";
+                if (!names.isEmpty())
+                    message += rebind(names);
+            }
+            reply(out,OK,message.trim());
+        } catch (ConfCommitter.StaleException se) {
+            reply(out,STALE,se.getMessage());
+        } catch (RefusedException re) {
+            log.accept("Refused " + user + ": " + re.getMessage());
+            reply(out,REFUSED,re.getMessage());
+        } catch (IOException | RuntimeException e) {
+            reply(out,FAILED,e.getMessage() != null ? e.getMessage() :
+             e.toString());
+        } catch (InterruptedException ie) {
+            Thread.currentThread().interrupt();
+            reply(out,FAILED,"Interrupted");
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * Commits a file if it still has the version the client read and
+     * changes only what the helper allows
+     *
+     * @param   target the system path
+     * @param   version the version or -1 to not check
+     * @param   data the new contents
+     *
+     * @return  what was done
+     *
+     * @throws  RefusedException if the contents change more than the
+     *          helper allows
+     * @throws  IOException if the file changed or can't be committed
+     */
+    @SuppressWarnings("try")
+    private String write(String target, long version, byte[] data)
+     throws IOException {
+        Path path = committer.resolve(target);
+        String text = new String(data,StandardCharsets.ISO_8859_1);
+        try (ConfCommitter.Lock lock = committer.lock()) {
+            if (version != -1 && ConfFile.version(path) != version)
+                throw new ConfCommitter.StaleException(target + " was " +
+                 "changed by another program after it was read");
+            byte[] before = Files.exists(path) ? Files.readAllBytes(path) :
+             null;
+            if (TARGETS.get(target) == ConfCommitter.INTERFACES) {
+                if (!text.equals(SudoScript.INTERFACES))
+                    throw new RefusedException("Only the recover template " +
+                     "can be written to " + target);
+                committer.commit(text,path,TARGETS.get(target));
+            } else {
+                DhcpcdConf current = before == null ?
+                 new DhcpcdConf(new ArrayList<>()) : ConfFile.parse(
+                 new String(before,StandardCharsets.ISO_8859_1),null,-1,-1);
+                committer.commit(edited(current,
+                 ConfFile.parse(text,null,-1,-1)),path,TARGETS.get(target));
+            }
+        }
+        return "Committed " + target + ".";
+    }
+
+    /**
+     * Checks a new dhcpcd.conf against the current one and gives the
+     * current file with the interface blocks of the new one.  Outside the
+     * interface blocks nothing may change, and a changed block may only add
+     * comments, blank lines and the static directives InterfaceConfig
+     * manages to the lines it had.  Each directive may be given once, as
+     * InterfaceConfig renders values that pass ConfigValidator.
+     *
+     * @param   current the file as it is
+     * @param   conf the new file
+     *
+     * @return  the file to commit
+     *
+     * @throws  RefusedException if the new file changes more than that
+     */
+    static DhcpcdConf edited(DhcpcdConf current, DhcpcdConf conf)
+     throws RefusedException {
+        DhcpcdConf result = current.copy();
+        Set<String> names = new LinkedHashSet<>(current.getInterfaces());
+        names.addAll(conf.getInterfaces());
+        for (String name : names) {
+            List<String> block = conf.getBlock(name);
+            List<String> old = current.getBlock(name);
+            if (block == null) {
+                result.replaceBlock(name,Collections.<String>emptyList());
+                continue;
+            }
+            if (block.equals(old))
+                continue;
+            if (!ApiDaemon.isInterfaceName(name))
+                throw new RefusedException("Bad interface name " + name);
+            InterfaceConfig ic = InterfaceConfig.fromBlock(name,block);
+            int code = ConfigValidator.validate(ic);
+            if (code != ConfigValidator.OK)
+                throw new RefusedException(name + ": " +
+                 ConfigValidator.message(code));
+            // fromBlock keeps the last of each directive, so each may only be
+            // given once and only as the values that were validated render it
+            List<String> rendered = ic.render(null);
+            boolean[] seen = new boolean[4];
+            Set<String> had = old == null ? Collections.<String>emptySet() :
+             new HashSet<>(old);
+            for (int i=0; i<block.size(); i++) {
+                String str = block.get(i).trim();
+                int m = i == 0 ? -1 : InterfaceConfig.managedIndex(str);
+                if (m >= 0) {
+                    if (seen[m] || !rendered.contains(str))
+                        throw new RefusedException(name + ": each static " +
+                         "directive can only be given once, as the form " +
+                         "writes it, not " + str);
+                    seen[m] = true;
+                } else if (!had.contains(block.get(i)) && !str.isEmpty() &&
+                 !str.startsWith("#") &&
+                 !(i == 0 && str.equals("interface " + name))) {
+                    throw new RefusedException(name + ": only static " +
+                     "addresses, routers and DNS servers can be changed, " +
+                     "not " + str);
+                }
+            }
+            result.replaceBlock(name,block);
+        }
+        if (!result.getLines().equals(conf.getLines()))
+            throw new RefusedException("Only interface blocks can be changed");
+        return result;
+    }
+
+    /**
+     * Rebinds interfaces
+     *
+     * @param   names the interfaces
+     *
+     * @return  what was done
+     *
+     * @throws  IOException if a rebind fails
+     * @throws  InterruptedException if interrupted waiting for dhcpcd
+     */
+    private String rebind(List<String> names)
+     throws IOException, InterruptedException {
+        StringBuilder sb = new StringBuilder();
+        reloader.rebind(names).forEach((name,ms) ->
+         sb.append(" Rebound ").append(name).append(" in ").append(ms)
+         .append(" ms."));
+        return sb.toString();
+    }
+
+    /**
+     * Writes a reply
+     *
+     * @param   out the connection
+     * @param   status the status
+     * @param   message the message
+     *
+     * @throws  IOException if the connection fails
+     */
+    private static void reply(DataOutputStream out, byte status,
+     String message) throws IOException {
+        out.writeByte(status);
+        out.writeUTF(message);
+        out.flush();
+    }
+
+    /**
+     * Thrown when the helper won't do a request, e.g. a write that changes
+     * more than an interface's static addresses
+     */
+    public static class RefusedException extends IOException {
+        private static final long serialVersionUID = 1L;
+
+        public RefusedException(String message) {
+            super(message);
+        }
+    }
+
+    /**
+     * Thrown when no helper is serving the socket, nothing was sent
+     */
+    public static class NotRunningException extends IOException {
+        private static final long serialVersionUID = 1L;
+
+        public NotRunningException(String message, Throwable cause) {
+            super(message,cause);
+        }
+    }
+
+    /**
+     * The client side, used by the GUI.  Each request is a connection of
+     * its own, so a request when no helper is running fails fast with a
+     * NotRunningException and the caller can fall back to the sudo script.
+     */
+    public static class Client {
+        /** Socket file */
+        private final Path socket;
+
+        /**
+         * Creates a new Client
+         *
+         * @param   socket the socket file
+         */
+        public Client(Path socket) {
+            this.socket = socket;
+        }
+
+        /**
+         * Tests if a helper is serving the socket
+         *
+         * @return  true if a connection can be made
+         */
+        public boolean isRunning() {
+            try {
+                connect().close();
+                return true;
+            } catch (IOException ioe) {
+                return false;
+            }
+        }
+
+        /**
+         * Connects to the helper
+         *
+         * @return  the connection
+         *
+         * @throws  NotRunningException if the helper isn't running
+         */
+        private SocketChannel connect() throws NotRunningException {
+            if (UNIX == null || !Files.exists(socket))
+                throw new NotRunningException("No root helper at " + socket,
+                 null);
+            SocketChannel ch = null;
+            try {
+                ch = open(SocketChannel.class);
+                ch.connect(address(socket));
+                return ch;
+            } catch (IOException ioe) {
+                try {
+                    if (ch != null)
+                        ch.close();
+                } catch (IOException e) {
+                    ioe.addSuppressed(e);
+                }
+                throw new NotRunningException("No root helper at " + socket,
+                 ioe);
+            }
+        }
+
+        /**
+         * Commits a file and rebinds interfaces
+         *
+         * @param   target the system path, e.g. /etc/dhcpcd.conf
+         * @param   version the version the contents were edited from or -1
+         *          to not check
+         * @param   data the new contents
+         * @param   names the interfaces to rebind
+         *
+         * @return  the helper's message
+         *
+         * @throws  ConfCommitter.StaleException if the file changed after
+         *          the client read it, nothing was written
+         * @throws  NotRunningException if no helper is running
+         * @throws  RefusedException if the helper refused the write
+         * @throws  IOException if the helper failed
+         */
+        public String write(String target, long version, byte[] data,
+         List<String> names) throws IOException {
+            return request(WRITE,target,version,data,names);
+        }
+
+        /**
+         * Rebinds interfaces
+         *
+         * @param   names the interfaces
+         *
+         * @return  the helper's message
+         *
+         * @throws  IOException if the helper refused or failed
+         */
+        public String rebind(List<String> names) throws IOException {
+            return request(REBIND,null,-1,null,names);
+        }
+
+        /**
+         * Makes a request and reads the reply
+         *
+         * @param   op the request
+         * @param   target the system path or null
+         * @param   version the version for a write
+         * @param   data the contents for a write or null
+         * @param   names the interfaces
+         *
+         * @return  the helper's message
+         *
+         * @throws  IOException if the helper refused or failed
+         */
+        private String request(byte op, String target, long version,
+         byte[] data, List<String> names) throws IOException {
+            try (SocketChannel ch = connect()) {
+                DataOutputStream out = new DataOutputStream(
+                 new BufferedOutputStream(Channels.newOutputStream(ch)));
+                out.writeByte(op);
+                if (target != null)
+                    out.writeUTF(target);
+                if (data != null) {
+                    out.writeLong(version);
+                    out.writeInt(data.length);
+                    out.write(data);
+                }
+                out.writeShort(names.size());
+                for (String name : names)
+                    out.writeUTF(name);
+                out.flush();
+
+                DataInputStream in = new DataInputStream(
+                 new BufferedInputStream(Channels.newInputStream(ch)));
+                byte status = in.readByte();
+                String message = in.readUTF();
+                if (status == OK)
+                    return message;
+                if (status == STALE)
+                    throw new ConfCommitter.StaleException(message);
+                if (status == REFUSED)
+                    throw new RefusedException("Root helper refused: " +
+                     message);
+                throw new IOException("Root helper: " + message);
+            }
+        }
+    }
+}
@@ -0,0 +1,95 @@
+import java.awt.*;
+import javax.swing.*;
+
+/**
+ * Shows the live state of one network interface: link state, addresses,
+ * traffic counters and default route.  Only the cells whose values changed
+ * since the last poll are updated.
+ */
+public class StatusPanel extends JPanel {
+    /** Interface name */
+    private final String name;
+
+    /** Last sample shown, owned by the polling thread */
+    final LinkStatus last = new LinkStatus();
+
+    /** True until the first sample has been shown */
+    volatile boolean fresh = true;
+
+    /** Link state cell */
+    private final JLabel stateLabel;
+
+    /** Addresses cell */
+    private final JLabel addressLabel;
+
+    /** Traffic cell */
+    private final JLabel trafficLabel;
+
+    /** Default route cell */
+    private final JLabel routeLabel;
+
+    /**
+     * Creates a new StatusPanel
+     *
+     * @param   name the interface name
+     */
+    public StatusPanel(String name) {
+        super(new GridBagLayout());
+        this.name = name;
+        setBorder(BorderFactory.createTitledBorder("Status"));
+
+        GridBagConstraints c = new GridBagConstraints();
+        c.insets = new Insets(1,5,1,5);
+        c.anchor = GridBagConstraints.WEST;
+        c.gridx = 0;  c.gridy = 0;
+        stateLabel = row("Link:",c);
+        addressLabel = row("Address:",c);
+        trafficLabel = row("Traffic:",c);
+        routeLabel = row("Default:",c);
+    }
+
+    /**
+     * Adds a row of the panel
+     *
+     * @param   title the row title
+     * @param   c the constraints, advanced to the next row
+     *
+     * @return  the value cell of the row
+     */
+    private JLabel row(String title, GridBagConstraints c) {
+        c.gridx = 0;
+        add(new IPConfig.RaspberryJLabel(title,JLabel.RIGHT),c);
+        ++c.gridx;
+        JLabel value = new IPConfig.RaspberryJLabel("-");
+        add(value,c);
+        ++c.gridy;
+        return value;
+    }
+
+    /**
+     * Gets the interface name
+     *
+     * @return  interface name
+     */
+    public String getInterfaceName() {
+        return name;
+    }
+
+    /**
+     * Updates the changed cells, called on the EDT
+     *
+     * @param   mask the cells that changed
+     * @param   text the new text of each cell, in STATE, ADDRESSES, TRAFFIC
+     *          and ROUTE order, null for cells that did not change
+     */
+    void show(int mask, String[] text) {
+        if ((mask & LinkStatus.STATE) != 0)
+            stateLabel.setText(text[0]);
+        if ((mask & LinkStatus.ADDRESSES) != 0)
+            addressLabel.setText(text[1]);
+        if ((mask & LinkStatus.TRAFFIC) != 0)
+            trafficLabel.setText(text[2]);
+        if ((mask & LinkStatus.ROUTE) != 0)
+            routeLabel.setText(text[3]);
+    }
+}
@@ -0,0 +1,144 @@
+import java.awt.*;
+import java.util.*;
+import java.util.List;
+import java.util.concurrent.*;
+
+/**
+ * Polls the state of the interfaces shown by StatusPanels on one scheduled
+ * background thread.  Each poll reads every watched interface into reused
+ * samples, compares them with what the panels last showed and posts a
+ * single batch of updates for the cells that changed, or nothing at all
+ * when nothing did.
+ */
+public class StatusPoller {
+    /** Every cell */
+    private static final int ALL = LinkStatus.STATE | LinkStatus.ADDRESSES |
+     LinkStatus.TRAFFIC | LinkStatus.ROUTE;
+
+    /** Reads the interface state */
+    private final LinkStatusReader reader;
+
+    /** Watched panels */
+    private final List<StatusPanel> panels = new CopyOnWriteArrayList<>();
+
+    /** Runs the polls */
+    private final ScheduledExecutorService scheduler =
+     Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread t = new Thread(r,"status-poller");
+        t.setDaemon(true);
+        return t;
+    });
+
+    /** Names of the watched interfaces, reused by each poll */
+    private final List<String> names = new ArrayList<>();
+
+    /** Samples, reused by each poll */
+    private LinkStatus[] samples = new LinkStatus[0];
+
+    /** Running poll task or null */
+    private ScheduledFuture<?> task;
+
+    /**
+     * Creates a new StatusPoller
+     *
+     * @param   reader reads the interface state
+     */
+    public StatusPoller(LinkStatusReader reader) {
+        this.reader = reader;
+    }
+
+    /**
+     * Starts polling
+     *
+     * @param   period the time between polls in milliseconds
+     */
+    public synchronized void start(long period) {
+        if (task == null)
+            task = scheduler.scheduleWithFixedDelay(this::poll,0,period,
+             TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Stops polling
+     */
+    public synchronized void stop() {
+        if (task != null) {
+            task.cancel(false);
+            task = null;
+        }
+    }
+
+    /**
+     * Starts updating a panel
+     *
+     * @param   panel the panel
+     */
+    public void watch(StatusPanel panel) {
+        if (!panels.contains(panel)) {
+            panel.fresh = true;
+            panels.add(panel);
+        }
+    }
+
+    /**
+     * Stops updating a panel
+     *
+     * @param   panel the panel
+     */
+    public void unwatch(StatusPanel panel) {
+        panels.remove(panel);
+    }
+
+    /**
+     * Reads the watched interfaces and posts the changed cells
+     */
+    private void poll() {
+        try {
+            StatusPanel[] watched = panels.toArray(new StatusPanel[0]);
+            if (watched.length == 0)
+                return;
+            names.clear();
+            for (StatusPanel panel : watched)
+                names.add(panel.getInterfaceName());
+            if (samples.length < watched.length) {
+                samples = Arrays.copyOf(samples,watched.length);
+                for (int i=0; i<samples.length; i++)
+                    if (samples[i] == null)
+                        samples[i] = new LinkStatus();
+            }
+            reader.read(names,samples);
+
+            List<Runnable> updates = null;
+            for (int i=0; i<watched.length; i++) {
+                StatusPanel panel = watched[i];
+                LinkStatus s = samples[i];
+                int mask = panel.fresh ? ALL : s.diff(panel.last);
+                if (mask == 0)
+                    continue;
+                panel.fresh = false;
+                panel.last.copyFrom(s);
+                String[] text = new String[4];
+                if ((mask & LinkStatus.STATE) != 0)
+                    text[0] = s.stateText();
+                if ((mask & LinkStatus.ADDRESSES) != 0)
+                    text[1] = s.addressText();
+                if ((mask & LinkStatus.TRAFFIC) != 0)
+                    text[2] = s.trafficText();
+                if ((mask & LinkStatus.ROUTE) != 0)
+                    text[3] = s.routeText();
+                if (updates == null)
+                    updates = new ArrayList<>();
+                int m = mask;
+                updates.add(() -> panel.show(m,text));
+            }
+
+            if (updates != null) {
+                List<Runnable> batch = updates;
+                EventQueue.invokeLater(() -> batch.forEach(Runnable::run));
+            }
+        } catch (RuntimeException re) {
+            // keep polling, a scheduled task that throws is never run again
+            re.printStackTrace();
+        }
+    }
+}
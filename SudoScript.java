@@ -0,0 +1,343 @@
+import java.io.*;
+import java.nio.charset.*;
+import java.nio.file.*;
+import java.util.*;
+import java.util.function.*;
+
+/**
+ * Commits files through a bash script for users who can't write /etc
+ * themselves.  The new contents go to a temporary file, and the script
+ * gives it its owner and mode with sudo, moves it over the target and
+ * rebinds the changed interfaces.  The script stops at the first command
+ * that fails, so a refused sudo leaves the target as it was.  commit does
+ * a whole save of dhcpcd.conf under the commit lock.  The temporary and
+ * script files are created once, in the home directory by default, and are
+ * unique to the instance so two editors don't share them.
+ */
+public class SudoScript {
+    /**
+     * The /etc/network/interfaces file the recover writes, the only
+     * contents the root helper writes to the file
+     */
+    public static final String INTERFACES =
+     "# interfaces(5) file used by ifup(8) and ifdown(8)\n" +
+     "\n" +
+     "# Please note that this file is written to be used with dhcpcd\n" +
+     "# For static IP, consult /etc/dhcpcd.conf and 'man dhcpcd.conf'\n" +
+     "\n" +
+     "# Include files from /etc/network/interfaces.d:\n" +
+     "source-directory /etc/network/interfaces.d\n" +
+     "\n" +
+     "auto lo\n" +
+     "iface lo inet loopback\n" +
+     "\n" +
+     "iface eth0 inet manual\n" +
+     "\n" +
+     "allow-hotplug wlan0\n" +
+     "iface wlan0 inet manual\n" +
+     "    wpa-conf /etc/wpa_supplicant/wpa_supplicant.conf\n" +
+     "\n" +
+     "allow-hotplug wlan1\n" +
+     "iface wlan1 inet manual\n" +
+     "    wpa-conf /etc/wpa_supplicant/wpa_supplicant.conf";
+
+    /** Directory of the temporary and script files */
+    private final File dir;
+
+    /** Runs the script */
+    private final CommandExecutor executor;
+
+    /** Gives the rebind commands */
+    private final DhcpcdReloader reloader;
+
+    /** Receives log messages */
+    private final Consumer<String> log;
+
+    /** Temporary file, created when it is first written */
+    private File tempFile;
+
+    /** Script file, created when it is first written */
+    private File scriptFile;
+
+    /**
+     * Creates a new SudoScript
+     *
+     * @param   dir the directory of the temporary and script files
+     * @param   executor runs the script
+     * @param   reloader gives the rebind commands
+     * @param   log receives log messages
+     */
+    public SudoScript(File dir, CommandExecutor executor,
+     DhcpcdReloader reloader, Consumer<String> log) {
+        this.dir = dir;
+        this.executor = executor;
+        this.reloader = reloader;
+        this.log = log;
+    }
+
+    /**
+     * Creates an empty file in the directory, it is deleted on exit
+     *
+     * @param   suffix the file name suffix
+     *
+     * @return  the file
+     *
+     * @throws  IOException if the file can't be created
+     */
+    private File newFile(String suffix) throws IOException {
+        File file = File.createTempFile("ipconfig-",suffix,dir);
+        file.deleteOnExit();
+        return file;
+    }
+
+    /**
+     * Gets the temporary file
+     *
+     * @return  the file
+     *
+     * @throws  IOException if the file can't be created
+     */
+    private synchronized File tempFile() throws IOException {
+        if (tempFile == null)
+            tempFile = newFile(".conf");
+        return tempFile;
+    }
+
+    /**
+     * Writes a dhcpcd.conf model to the temporary file, untouched lines are
+     * copied byte for byte
+     *
+     * @param   conf the model
+     *
+     * @return  the number of bytes written
+     *
+     * @throws  IOException if an I/O error occurs
+     */
+    public long write(DhcpcdConf conf) throws IOException {
+        Path temp = tempFile().toPath();
+        ConfFile.write(conf,temp);
+        return Files.size(temp);
+    }
+
+    /**
+     * Writes text to the temporary file
+     *
+     * @param   text the new contents of the target
+     *
+     * @return  the number of bytes written
+     *
+     * @throws  IOException if an I/O error occurs
+     */
+    public long write(String text) throws IOException {
+        byte[] bytes = text.getBytes(StandardCharsets.ISO_8859_1);
+        Files.write(tempFile().toPath(),bytes);
+        return bytes.length;
+    }
+
+    /**
+     * Creates the script that moves the temporary file over dhcpcd.conf and
+     * rebinds the interfaces that changed
+     *
+     * @param   target the dhcpcd.conf file
+     * @param   changed the names of the interfaces to rebind
+     *
+     * @return  the script
+     *
+     * @throws  IOException if the temporary file can't be created
+     */
+    public String dhcpcdScript(Path target, List<String> changed)
+     throws IOException {
+        String temp = quote(tempFile().getPath());
+        StringBuilder sb = new StringBuilder();
+        sb.append("#!/bin/bash\n");
+        sb.append("set -e\n");
+        sb.append("chmod 664 ").append(temp).append("\n");
+        sb.append("sudo chown root:netdev ").append(temp).append("\n");
+        sb.append("sudo mv ").append(temp).append(' ')
+         .append(quote(target.toString())).append("\n");
+        sb.append("echo dhcpcd script complete!\n");
+        for (String name : changed)
+            sb.append(String.join(" ",reloader.rebindCommand(name)))
+             .append("\n");
+
+        return sb.toString();
+    }
+
+    /**
+     * Creates the script that moves the temporary file over
+     * /etc/network/interfaces
+     *
+     * @param   target the interfaces file
+     *
+     * @return  the script
+     *
+     * @throws  IOException if the temporary file can't be created
+     */
+    public String recoverScript(Path target) throws IOException {
+        String temp = quote(tempFile().getPath());
+        StringBuilder sb = new StringBuilder();
+        sb.append("#!/bin/bash\n");
+        sb.append("set -e\n");
+        sb.append("chmod 644 ").append(temp).append("\n");
+        sb.append("sudo chown root:root ").append(temp).append("\n");
+        sb.append("sudo mv ").append(temp).append(' ')
+         .append(quote(target.toString())).append("\n");
+        sb.append("echo recover script complete!\n");
+
+        return sb.toString();
+    }
+
+    /**
+     * Writes the script file and sets it executable
+     *
+     * @param   script the lines of the script
+     *
+     * @return  the number of bytes written
+     *
+     * @throws  IOException if an I/O error occurs
+     */
+    public synchronized long create(String script) throws IOException {
+        if (scriptFile == null)
+            scriptFile = newFile(".sh");
+        byte[] bytes = script.getBytes(StandardCharsets.ISO_8859_1);
+        Files.write(scriptFile.toPath(),bytes);
+        scriptFile.setExecutable(true);
+        return bytes.length;
+    }
+
+    /**
+     * Runs the script written by create and waits for it to complete, the
+     * script file is emptied once the script has exited.  The executor kills
+     * an interrupted script and waits for it, so bash is never left reading
+     * a file that is being emptied.
+     *
+     * @return  the exit status of the script
+     *
+     * @throws  IOException if an I/O error occurs starting the script or the
+     *          script times out
+     * @throws  InterruptedException if interrupted waiting for the script
+     */
+    public synchronized int run() throws IOException, InterruptedException {
+        if (scriptFile == null)
+            throw new IllegalStateException("No script created");
+        try {
+            int status = executor.execute(
+             Collections.singletonList(scriptFile.getPath()));
+            log.accept("script exited with status " + status);
+            return status;
+        } finally {
+            try {
+                Files.write(scriptFile.toPath(),new byte[0]);
+            } catch (IOException ioe) {
+                log.accept("Unable to empty the script file");
+            }
+        }
+    }
+
+    /**
+     * Commits an edited dhcpcd.conf model through the script and rebinds
+     * the interfaces that changed, the save of a user who can't write /etc.
+     * The commit lock is held until the script has moved the file, and the
+     * file must still have the version the model was read from.
+     *
+     * @param   committer checks the version and holds the commit lock
+     * @param   conf the edited model
+     * @param   target the dhcpcd.conf file
+     * @param   changed the names of the interfaces to rebind
+     * @param   metrics receives the write and script times
+     *
+     * @throws  ConfCommitter.StaleException if the file changed after the
+     *          model was read, nothing was run
+     * @throws  DhcpcdReloader.RebindException if the script replaced the
+     *          file but failed after it
+     * @throws  IOException if the script failed before replacing the file,
+     *          it is left as it was
+     * @throws  InterruptedException if interrupted waiting for the script
+     */
+    @SuppressWarnings("try")
+    public void commit(ConfCommitter committer, DhcpcdConf conf, Path target,
+     List<String> changed, Metrics metrics)
+     throws IOException, InterruptedException {
+        try (ConfCommitter.Lock lock = committer.lock()) {
+            committer.check(conf,target);
+            long start = Metrics.start();
+            write(conf);
+            metrics.record(Metrics.WRITE,start);
+            commit(target,changed,metrics);
+        }
+    }
+
+    /**
+     * Commits text to dhcpcd.conf through the script, whatever version the
+     * file has, and rebinds interfaces
+     *
+     * @param   committer holds the commit lock
+     * @param   text the new contents of the file
+     * @param   target the dhcpcd.conf file
+     * @param   changed the names of the interfaces to rebind
+     * @param   metrics receives the write and script times
+     *
+     * @throws  DhcpcdReloader.RebindException if the script replaced the
+     *          file but failed after it
+     * @throws  IOException if the script failed before replacing the file,
+     *          it is left as it was
+     * @throws  InterruptedException if interrupted waiting for the script
+     */
+    @SuppressWarnings("try")
+    public void commit(ConfCommitter committer, String text, Path target,
+     List<String> changed, Metrics metrics)
+     throws IOException, InterruptedException {
+        try (ConfCommitter.Lock lock = committer.lock()) {
+            long start = Metrics.start();
+            write(text);
+            metrics.record(Metrics.WRITE,start);
+            commit(target,changed,metrics);
+        }
+    }
+
+    /**
+     * Creates and runs the script that moves the temporary file over
+     * dhcpcd.conf.  set -e stops the script at the first command that
+     * fails, before the move or in a rebind after it, and the two are told
+     * apart by the contents of the target.
+     *
+     * @param   target the dhcpcd.conf file
+     * @param   changed the names of the interfaces to rebind
+     * @param   metrics receives the script time
+     *
+     * @throws  DhcpcdReloader.RebindException if the script replaced the
+     *          file but failed after it
+     * @throws  IOException if the script failed before replacing the file
+     * @throws  InterruptedException if interrupted waiting for the script
+     */
+    private void commit(Path target, List<String> changed, Metrics metrics)
+     throws IOException, InterruptedException {
+        long version = ConfFile.version(tempFile().toPath());
+        create(dhcpcdScript(target,changed));
+        long start = Metrics.start();
+        int status;
+        try {
+            status = run();
+        } finally {
+            metrics.record(Metrics.RUN_SCRIPT,start);
+        }
+        if (status == 0)
+            return;
+        if (ConfFile.version(target) == version)
+            throw new DhcpcdReloader.RebindException("The script saved " +
+             target + " but exited with status " + status);
+        throw new IOException("The script saving " + target +
+         " exited with status " + status + ", it was not changed");
+    }
+
+    /**
+     * Quotes a path for the shell
+     *
+     * @param   path the path
+     *
+     * @return  the path in single quotes
+     */
+    private static String quote(String path) {
+        return "'" + path.replace("'","'\\''") + "'";
+    }
+}
@@ -0,0 +1,44 @@
+import java.io.*;
+import java.nio.file.*;
+
+/**
+ * The stages of an edit on IPConfig's own classes, for the benchmarks in
+ * the bench package
+ */
+public class BenchStages implements bench.Stages<DhcpcdConf> {
+    @Override
+    public DhcpcdConf parse(Path file) throws IOException {
+        return ConfFile.read(file);
+    }
+
+    @Override
+    public int populate(DhcpcdConf conf) {
+        int n = 0;
+        for (String name : conf.getInterfaces())
+            if (conf.getInterface(name).isStatic())
+                ++n;
+        return n;
+    }
+
+    @Override
+    public int edit(DhcpcdConf conf, int round) {
+        int n = 0;
+        for (String name : conf.getInterfaces().toArray(new String[0])) {
+            InterfaceConfig ic = conf.getInterface(name);
+            // one of two hosts in the interface's own subnet
+            int address = (int)Ipv4.parse(ic.getAddress());
+            ic.setAddress(Ipv4.toString((address & ~0xff) | 2 + (round & 1)));
+            if (ConfigValidator.validate(ic) == ConfigValidator.OK) {
+                conf.setInterface(ic);
+                ++n;
+            }
+        }
+        return n;
+    }
+
+    @Override
+    public long serialize(DhcpcdConf conf, Path out) throws IOException {
+        // the form syncs the file, here only the writing is measured
+        return ConfFile.write(conf,out,false);
+    }
+}
@@ -0,0 +1,160 @@
+import java.io.*;
+import java.nio.charset.*;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+
+/**
+ * Stress test of the commit lock and the version check.  Processes, each
+ * with threads, increment a counter kept as the metric of an interface
+ * block in a dhcpcd.conf under a temporary root.  Every increment reads the
+ * file, changes the block and commits it, and is read again and retried if
+ * another writer committed in between.  The final count must be the number
+ * of increments, a lost update exits with status 1.
+ *
+ * <pre>
+ * java -cp target/classes CommitStress [processes] [threads] [increments]
+ * </pre>
+ */
+public class CommitStress {
+    /** Interface whose block holds the counter */
+    private static final String COUNTER = "ctr";
+
+    private CommitStress() { }
+
+    /**
+     * Reads the counter
+     *
+     * @param   conf the model
+     *
+     * @return  the value of the metric line of the counter block
+     */
+    private static int count(DhcpcdConf conf) {
+        for (String line : conf.getBlock(COUNTER)) {
+            String[] words = line.trim().split("\\s+");
+            if (words.length == 2 && words[0].equals("metric"))
+                return Integer.parseInt(words[1]);
+        }
+        throw new IllegalStateException("No counter in the block");
+    }
+
+    /**
+     * Increments the counter, reading the file again until the commit isn't
+     * stale
+     *
+     * @param   committer commits the file
+     * @param   target the file
+     *
+     * @return  the number of stale commits
+     *
+     * @throws  IOException if the file can't be read or committed
+     */
+    private static int increment(ConfCommitter committer, Path target)
+     throws IOException {
+        for (int stale=0; ; stale++) {
+            DhcpcdConf conf = ConfFile.read(target);
+            conf.replaceBlock(COUNTER,Arrays.asList("interface " + COUNTER,
+             "metric " + (count(conf) + 1)));
+            try {
+                committer.commit(conf,target,ConfCommitter.DHCPCD_CONF);
+                return stale;
+            } catch (ConfCommitter.StaleException se) {
+                // another writer won, try again on its version
+            }
+        }
+    }
+
+    /**
+     * Runs the increments of one process and prints its stale commits
+     *
+     * @param   root the temporary root
+     * @param   threads the number of threads
+     * @param   increments the increments per thread
+     *
+     * @throws  Exception if an increment fails
+     */
+    private static void worker(Path root, int threads, int increments)
+     throws Exception {
+        ConfCommitter committer = new ConfCommitter(root,"direct");
+        Path target = committer.resolve("/etc/dhcpcd.conf");
+        AtomicInteger stale = new AtomicInteger();
+        ExecutorService pool = Executors.newFixedThreadPool(threads);
+        List<Future<?>> futures = new ArrayList<>();
+        for (int i=0; i<threads; i++)
+            futures.add(pool.submit(() -> {
+                for (int n=0; n<increments; n++)
+                    stale.addAndGet(increment(committer,target));
+                return null;
+            }));
+        try {
+            for (Future<?> f : futures)
+                f.get();
+        } finally {
+            pool.shutdown();
+        }
+        System.out.println(stale.get());
+    }
+
+    /**
+     * Main program entry point
+     *
+     * @param   args the number of processes, threads per process and
+     *          increments per thread, or --worker, the root, threads and
+     *          increments in a child process
+     *
+     * @throws  Exception if the test can't be run
+     */
+    public static void main(String... args) throws Exception {
+        if (args.length == 4 && args[0].equals("--worker")) {
+            worker(Paths.get(args[1]),Integer.parseInt(args[2]),
+             Integer.parseInt(args[3]));
+            return;
+        }
+        int processes = args.length > 0 ? Integer.parseInt(args[0]) : 4;
+        int threads = args.length > 1 ? Integer.parseInt(args[1]) : 4;
+        int increments = args.length > 2 ? Integer.parseInt(args[2]) : 50;
+
+        Path root = Files.createTempDirectory("commit-stress");
+        Path target = root.resolve("etc/dhcpcd.conf");
+        Files.createDirectories(target.getParent());
+        Files.write(target,("# counter\n\ninterface " + COUNTER +
+         "\nmetric 0\n").getBytes(StandardCharsets.ISO_8859_1));
+
+        String java = Paths.get(System.getProperty("java.home"),"bin","java")
+         .toString();
+        List<Process> children = new ArrayList<>();
+        long start = System.nanoTime();
+        for (int i=0; i<processes; i++)
+            children.add(new ProcessBuilder(java,"-cp",
+             System.getProperty("java.class.path"),"CommitStress","--worker",
+             root.toString(),String.valueOf(threads),
+             String.valueOf(increments))
+             .redirectError(ProcessBuilder.Redirect.INHERIT).start());
+        long stale = 0;
+        boolean failed = false;
+        for (Process p : children) {
+            try (BufferedReader br = new BufferedReader(new InputStreamReader(
+             p.getInputStream(),StandardCharsets.ISO_8859_1))) {
+                String line = br.readLine();
+                if (line != null)
+                    stale += Long.parseLong(line.trim());
+            }
+            if (p.waitFor() != 0)
+                failed = true;
+        }
+        long ms = (System.nanoTime() - start) / 1000000;
+
+        int expected = processes * threads * increments;
+        int actual = count(ConfFile.read(target));
+        System.out.printf("%d processes x %d threads x %d increments in " +
+         "%d ms%n",processes,threads,increments,ms);
+        System.out.printf("expected %d, counted %d, %d stale commits " +
+         "retried%n",expected,actual,stale);
+        if (failed || actual != expected) {
+            System.out.println(failed ? "a worker failed" :
+             (expected - actual) + " updates lost");
+            System.exit(1);
+        }
+    }
+}
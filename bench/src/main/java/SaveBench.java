@@ -0,0 +1,331 @@
+import java.io.*;
+import java.nio.charset.*;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+
+/**
+ * Times the whole save of an interface against a temporary root, without
+ * root access or a real dhcpcd.  Each cycle goes through the steps of a
+ * save from the form: read dhcpcd.conf, change an interface as the form
+ * would and validate it, then commit it with SudoScript.commit, the save
+ * IPConfig makes without write access to /etc, or in process through
+ * ConfService.  sudo and dhcpcd are replaced by fakes on the PATH of the
+ * script with a configurable delay and failure rate, and every fake and
+ * wrapped command logs its run so the commands a save runs are counted.
+ * A save that fails must leave the file as it was.  One that succeeds, or
+ * that replaced the file and only failed to rebind, must leave the new
+ * address in it.  Any other outcome exits with status 1.
+ *
+ * <pre>
+ * java -cp target/classes SaveBench [--direct] [-n cycles]
+ *      [--sudo-ms ms] [--dhcpcd-ms ms] [--fail percent]
+ * </pre>
+ */
+public class SaveBench {
+    /** Commands wrapped to count their runs */
+    private static final String[] WRAPPED = { "chmod","mv" };
+
+    /** Interfaces in the file */
+    private static final int INTERFACES = 4;
+
+    /** Temporary root */
+    private final Path root;
+
+    /** dhcpcd.conf under the root */
+    private final Path target;
+
+    /** Directory of the fakes */
+    private final Path bin;
+
+    /** Log the fakes append a line to for each run */
+    private final Path spawnLog;
+
+    /** Processes started by the JVM */
+    private final AtomicLong spawns = new AtomicLong();
+
+    private SaveBench(Path root) {
+        this.root = root;
+        target = root.resolve("etc/dhcpcd.conf");
+        bin = root.resolve("bin");
+        spawnLog = root.resolve("spawns.log");
+    }
+
+    /**
+     * Writes dhcpcd.conf and the fakes
+     *
+     * @param   sudoMs the delay of sudo in milliseconds
+     * @param   dhcpcdMs the delay of dhcpcd in milliseconds
+     * @param   fail the percentage of sudo and dhcpcd runs that fail
+     *
+     * @throws  IOException if a file can't be written
+     */
+    private void setUp(int sudoMs, int dhcpcdMs, int fail) throws IOException {
+        Files.createDirectories(target.getParent());
+        StringBuilder sb = new StringBuilder("# simulated system\n");
+        for (int i=0; i<INTERFACES; i++)
+            sb.append("\ninterface eth").append(i)
+             .append("\nstatic ip_address=10.").append(i)
+             .append(".0.2/24\nstatic routers=10.").append(i)
+             .append(".0.1\n");
+        Files.write(target,sb.toString().getBytes(StandardCharsets.ISO_8859_1));
+
+        Files.createDirectories(bin);
+        // sudo runs its command as the user, chown to root is left out
+        fake("sudo",sudoMs,fail,"[ \"$1\" = chown ] && exit 0\nexec \"$@\"");
+        fake("dhcpcd",dhcpcdMs,fail,"exit 0");
+        for (String command : WRAPPED)
+            fake(command,0,0,"exec " + which(command) + " \"$@\"");
+    }
+
+    /**
+     * Writes a fake command
+     *
+     * @param   name the command name
+     * @param   ms the delay in milliseconds
+     * @param   fail the percentage of runs that fail
+     * @param   body what the fake does after the delay
+     *
+     * @throws  IOException if the fake can't be written
+     */
+    private void fake(String name, int ms, int fail, String body)
+     throws IOException {
+        StringBuilder sb = new StringBuilder("#!/bin/bash\n");
+        sb.append("echo ").append(name).append(" >> '").append(spawnLog)
+         .append("'\n");
+        if (ms > 0)
+            sb.append(String.format("sleep %.3f%n",ms / 1000.0));
+        if (fail > 0)
+            sb.append("[ $((RANDOM % 100)) -lt ").append(fail)
+             .append(" ] && { echo ").append(name)
+             .append(" failed >&2; exit 1; }\n");
+        sb.append(body).append('\n');
+        Path path = bin.resolve(name);
+        Files.write(path,sb.toString().getBytes(StandardCharsets.ISO_8859_1));
+        path.toFile().setExecutable(true);
+    }
+
+    /**
+     * Finds a command on the PATH
+     *
+     * @param   command the command name
+     *
+     * @return  the path of the command
+     *
+     * @throws  IOException if it isn't on the PATH
+     */
+    private static String which(String command) throws IOException {
+        for (String dir : System.getenv("PATH").split(File.pathSeparator)) {
+            Path path = Paths.get(dir,command);
+            if (Files.isExecutable(path))
+                return path.toString();
+        }
+        throw new IOException(command + " is not on the PATH");
+    }
+
+    /**
+     * Runs commands with the fakes first on the PATH and counts them.  The
+     * JVM looks commands up on its own PATH, so a fake run directly is
+     * given by its path.  Output is read and dropped so a chatty fake
+     * can't block.
+     *
+     * @param   command the command and its arguments
+     *
+     * @return  the exit status
+     *
+     * @throws  IOException if the command can't be started
+     * @throws  InterruptedException if interrupted waiting for it, it is
+     *          killed and has exited
+     */
+    private int execute(List<String> command)
+     throws IOException, InterruptedException {
+        command = new ArrayList<>(command);
+        Path fake = bin.resolve(command.get(0));
+        if (command.get(0).indexOf('/') < 0 && Files.isExecutable(fake))
+            command.set(0,fake.toString());
+        ProcessBuilder pb = new ProcessBuilder(command);
+        pb.environment().put("PATH",bin + File.pathSeparator +
+         System.getenv("PATH"));
+        pb.redirectErrorStream(true);
+        spawns.incrementAndGet();
+        Process p = pb.start();
+        try (InputStream in = p.getInputStream()) {
+            byte[] buf = new byte[4096];
+            while (in.read(buf) >= 0)
+                ;
+        }
+        try {
+            return p.waitFor();
+        } catch (InterruptedException ie) {
+            // the command must have exited when this is thrown
+            p.destroyForcibly().waitFor();
+            throw ie;
+        }
+    }
+
+    /**
+     * Counts the runs logged by the fakes and empties the log
+     *
+     * @return  the number of runs
+     *
+     * @throws  IOException if the log can't be read
+     */
+    private long fakeRuns() throws IOException {
+        if (!Files.exists(spawnLog))
+            return 0;
+        long runs = Files.readAllLines(spawnLog,StandardCharsets.ISO_8859_1)
+         .size();
+        Files.delete(spawnLog);
+        return runs;
+    }
+
+    /**
+     * Main program entry point
+     *
+     * @param   args the options
+     *
+     * @throws  Exception if the benchmark can't be run
+     */
+    public static void main(String... args) throws Exception {
+        boolean direct = false;
+        int cycles = 1000, sudoMs = 0, dhcpcdMs = 0, fail = 0;
+        for (int i=0; i<args.length; i++) {
+            switch (args[i]) {
+                case "--direct":
+                    direct = true;
+                    break;
+                case "-n":
+                    cycles = Integer.parseInt(args[++i]);
+                    break;
+                case "--sudo-ms":
+                    sudoMs = Integer.parseInt(args[++i]);
+                    break;
+                case "--dhcpcd-ms":
+                    dhcpcdMs = Integer.parseInt(args[++i]);
+                    break;
+                case "--fail":
+                    fail = Integer.parseInt(args[++i]);
+                    break;
+                default:
+                    System.err.println("Usage: SaveBench [--direct] " +
+                     "[-n cycles] [--sudo-ms ms] [--dhcpcd-ms ms] " +
+                     "[--fail percent]");
+                    System.exit(2);
+            }
+        }
+
+        SaveBench bench =
+         new SaveBench(Files.createTempDirectory("save-bench"));
+        bench.setUp(sudoMs,dhcpcdMs,fail);
+        System.exit(bench.run(direct,cycles) ? 0 : 1);
+    }
+
+    /**
+     * Runs the save cycles and prints the report
+     *
+     * @param   direct true to commit through ConfService, false to run the
+     *          sudo script
+     * @param   cycles the number of saves
+     *
+     * @return  true if every save left the file as it should
+     *
+     * @throws  Exception if the file can't be read or a script can't be
+     *          started
+     */
+    private boolean run(boolean direct, int cycles) throws Exception {
+        Metrics metrics = new Metrics();
+        ConfCommitter committer = new ConfCommitter(root,"direct");
+        DhcpcdReloader reloader = new DhcpcdReloader(this::execute,true);
+        SudoScript script = new SudoScript(root.toFile(),this::execute,
+         reloader,line -> { });
+        ConfService service = new ConfService(committer,
+         new ConfJournal(root.resolve("journal")),null,metrics,reloader,
+         line -> { });
+
+        long[] latencies = new long[cycles];
+        long bytes = 0;
+        int failed = 0, unbound = 0, wrong = 0;
+        bench: for (int n=0; n<cycles; n++) {
+            String name = "eth" + n % INTERFACES;
+            long start = System.nanoTime();
+
+            // read the file and change the interface as the form does
+            long phase = Metrics.start();
+            DhcpcdConf conf = ConfFile.read(target);
+            metrics.record(Metrics.LOAD,phase);
+            InterfaceConfig ic = conf.getInterface(name);
+            String address = "10." + n % INTERFACES + ".0." + (3 + n % 200);
+            ic.setAddress(address);
+            ic.setBits("24");
+            phase = Metrics.start();
+            if (ConfigValidator.validate(ic) != ConfigValidator.OK)
+                throw new IllegalStateException(name + " " + address);
+            metrics.record(Metrics.VALIDATE,phase);
+
+            // committed is true once the file has been replaced
+            boolean saved = true, committed = true;
+            try {
+                if (direct) {
+                    service.apply(Collections.singletonList(ic),"Save " +
+                     name);
+                } else {
+                    DhcpcdConf edited = conf.copy();
+                    edited.setInterface(ic);
+                    script.commit(committer,edited,target,
+                     new ArrayList<>(edited.getChangedInterfaces()),metrics);
+                }
+            } catch (DhcpcdReloader.RebindException re) {
+                saved = false;
+            } catch (IOException ioe) {
+                saved = committed = false;
+            }
+            latencies[n] = System.nanoTime() - start;
+            if (committed)
+                bytes += Files.size(target);
+
+            String expected = committed ? address :
+             conf.getInterface(name).getAddress();
+            String now = ConfFile.read(target).getInterface(name)
+             .getAddress();
+            if (!now.equals(expected)) {
+                System.err.println("Cycle " + n + ": " + name + " has " +
+                 now + ", expected " + expected);
+                ++wrong;
+                if (wrong > 10)
+                    break bench;
+            }
+            if (!committed)
+                ++failed;
+            else if (!saved)
+                ++unbound;
+        }
+
+        long runs = spawns.get() + fakeRuns();
+        Arrays.sort(latencies);
+        System.out.printf("%d saves (%s), %d failed, %d saved but not " +
+         "rebound, %d left the file wrong%n",cycles,direct ? "direct" :
+         "sudo script",failed,unbound,wrong);
+        System.out.printf("end to end ms  p50 %.2f  p99 %.2f  max %.2f%n",
+         percentile(latencies,0.5),percentile(latencies,0.99),
+         latencies[cycles - 1] / 1e6);
+        System.out.printf("commands run per save %.2f, bytes written per " +
+         "save %.0f%n",(double)runs / cycles,(double)bytes / cycles);
+        System.out.println();
+        System.out.print(metrics.summary());
+        return wrong == 0;
+    }
+
+    /**
+     * Gets a percentile of sorted times
+     *
+     * @param   sorted the times in nanoseconds, sorted
+     * @param   p the percentile, 0 to 1
+     *
+     * @return  the time in milliseconds
+     */
+    private static double percentile(long[] sorted, double p) {
+        int i = (int)Math.ceil(p * sorted.length) - 1;
+        return sorted[Math.max(0,i)] / 1e6;
+    }
+}
@@ -0,0 +1,222 @@
+import java.io.*;
+import java.nio.charset.*;
+import java.nio.file.*;
+import java.util.*;
+
+/**
+ * Checks LinkStatusReader against a fake sysfs and procfs tree under a
+ * temporary root.  eth0 starts up with an address and the default route
+ * and wlan0 dormant, then eth0 loses its carrier and wlan0 associates and
+ * takes the address and the route, and every field read and every cell
+ * LinkStatus.diff reports changed is compared with what the files say.
+ * Any mismatch is printed and exits with status 1.
+ *
+ * <pre>
+ * java -cp target/classes StatusCheck
+ * </pre>
+ */
+public class StatusCheck {
+    /** Header of /proc/net/route */
+    private static final String ROUTE_HEADER = "Iface\tDestination\tGateway" +
+     " \tFlags\tRefCnt\tUse\tMetric\tMask\t\tMTU\tWindow\tIRTT\n";
+
+    /** Temporary root */
+    private final Path root;
+
+    /** Number of checks that failed */
+    private int failures;
+
+    private StatusCheck(Path root) {
+        this.root = root;
+    }
+
+    /**
+     * Writes a file under the root, creating its directories
+     *
+     * @param   path the path relative to the root
+     * @param   text the contents
+     *
+     * @throws  IOException if the file can't be written
+     */
+    private void write(String path, String text) throws IOException {
+        Path file = root.resolve(path);
+        Files.createDirectories(file.getParent());
+        Files.write(file,text.getBytes(StandardCharsets.US_ASCII));
+    }
+
+    /**
+     * Writes the sysfs files of an interface
+     *
+     * @param   name the interface name
+     * @param   operstate the operational state
+     * @param   carrier the carrier, null to leave the file out as the
+     *          kernel does for an interface that is down
+     * @param   rx bytes received
+     * @param   tx bytes transmitted
+     *
+     * @throws  IOException if a file can't be written
+     */
+    private void sys(String name, String operstate, String carrier, long rx,
+     long tx) throws IOException {
+        String dir = "sys/class/net/" + name + "/";
+        write(dir + "operstate",operstate + "\n");
+        if (carrier == null)
+            Files.deleteIfExists(root.resolve(dir + "carrier"));
+        else
+            write(dir + "carrier",carrier + "\n");
+        write(dir + "statistics/rx_bytes",rx + "\n");
+        write(dir + "statistics/tx_bytes",tx + "\n");
+    }
+
+    /**
+     * Formats a route line of /proc/net/route
+     *
+     * @param   name the interface name
+     * @param   dest the destination, dotted
+     * @param   gateway the gateway, dotted
+     * @param   flags the route flags
+     * @param   mask the mask, dotted
+     *
+     * @return  the line
+     */
+    private static String route(String name, String dest, String gateway,
+     int flags, String mask) {
+        return String.format("%s\t%s\t%s\t%04X\t0\t0\t100\t%s\t0\t0\t0%n",
+         name,hex(dest),hex(gateway),flags,hex(mask));
+    }
+
+    /**
+     * Encodes an address as /proc/net/route does, in host byte order on a
+     * little endian machine
+     *
+     * @param   dotted the address
+     *
+     * @return  eight hex digits
+     */
+    private static String hex(String dotted) {
+        String[] octets = dotted.split("\\.");
+        StringBuilder sb = new StringBuilder();
+        for (int i=3; i>=0; i--)
+            sb.append(String.format("%02X",Integer.parseInt(octets[i])));
+        return sb.toString();
+    }
+
+    /**
+     * Formats the local table of /proc/net/fib_trie for host addresses
+     *
+     * @param   addresses the local addresses, dotted
+     *
+     * @return  the text
+     */
+    private static String fibTrie(String... addresses) {
+        StringBuilder sb = new StringBuilder("Main:\n  +-- 0.0.0.0/0 3 0 5\n");
+        sb.append("     |-- 0.0.0.0\n        /0 universe UNICAST\n");
+        sb.append("Local:\n  +-- 0.0.0.0/0 3 0 5\n");
+        sb.append("     |-- 127.0.0.1\n        /32 host LOCAL\n");
+        for (String address : addresses)
+            sb.append("     |-- ").append(address)
+             .append("\n        /32 host LOCAL\n");
+        return sb.toString();
+    }
+
+    /**
+     * Compares a value read with the one expected
+     *
+     * @param   what the value checked
+     * @param   actual the value read
+     * @param   expected the value expected
+     */
+    private void check(String what, Object actual, Object expected) {
+        if (!actual.equals(expected)) {
+            System.err.println(what + " is " + actual + ", expected " +
+             expected);
+            ++failures;
+        } else {
+            System.out.println(what + " " + actual);
+        }
+    }
+
+    /**
+     * Main program entry point
+     *
+     * @param   args not used
+     *
+     * @throws  Exception if the tree can't be written
+     */
+    public static void main(String... args) throws Exception {
+        StatusCheck check =
+         new StatusCheck(Files.createTempDirectory("status-check"));
+        System.exit(check.run() ? 0 : 1);
+    }
+
+    /**
+     * Runs the checks
+     *
+     * @return  true if every check passed
+     *
+     * @throws  IOException if the tree can't be written
+     */
+    private boolean run() throws IOException {
+        List<String> names = Arrays.asList("eth0","wlan0","eth9");
+        LinkStatus[] now = new LinkStatus[names.size()];
+        LinkStatus[] before = new LinkStatus[names.size()];
+        for (int i=0; i<now.length; i++) {
+            now[i] = new LinkStatus();
+            before[i] = new LinkStatus();
+        }
+        LinkStatusReader reader = new LinkStatusReader(root);
+
+        sys("eth0","up","1",123456,7890);
+        sys("wlan0","dormant","0",0,0);
+        write("proc/net/route",ROUTE_HEADER +
+         route("eth0","0.0.0.0","192.168.1.1",0x0003,"0.0.0.0") +
+         route("eth0","192.168.1.0","0.0.0.0",0x0001,"255.255.255.0"));
+        write("proc/net/fib_trie",fibTrie("192.168.1.20"));
+        reader.read(names,now);
+
+        check("eth0 state",now[0].stateText(),"up");
+        check("eth0 addresses",now[0].addressText(),"192.168.1.20/24");
+        check("eth0 traffic",now[0].rxBytes + "/" + now[0].txBytes,
+         "123456/7890");
+        check("eth0 route",now[0].routeText(),"192.168.1.1");
+        check("wlan0 state",now[1].stateText(),"dormant");
+        check("wlan0 addresses",now[1].addressText(),"none");
+        check("wlan0 route",now[1].routeText(),"none");
+        check("eth9 state",now[2].stateText(),"unknown");
+
+        for (int i=0; i<now.length; i++)
+            before[i].copyFrom(now[i]);
+        reader.read(names,now);
+        for (int i=0; i<now.length; i++)
+            check(names.get(i) + " unchanged cells",now[i].diff(before[i]),0);
+
+        // the cable moves from eth0 to a network wlan0 joins
+        sys("eth0","down",null,123456,7890);
+        sys("wlan0","up","1",2048,1024);
+        write("proc/net/route",ROUTE_HEADER +
+         route("wlan0","0.0.0.0","10.0.0.1",0x0003,"0.0.0.0") +
+         route("wlan0","10.0.0.0","0.0.0.0",0x0001,"255.255.0.0") +
+         route("wlan0","10.0.5.0","0.0.0.0",0x0001,"255.255.255.0"));
+        write("proc/net/fib_trie",fibTrie("10.0.5.7","10.0.9.9"));
+        reader.read(names,now);
+
+        check("eth0 state",now[0].stateText(),"down");
+        check("eth0 addresses",now[0].addressText(),"none");
+        check("eth0 route",now[0].routeText(),"none");
+        check("eth0 changed cells",now[0].diff(before[0]),
+         LinkStatus.STATE | LinkStatus.ADDRESSES | LinkStatus.ROUTE);
+        check("wlan0 state",now[1].stateText(),"up");
+        // the most specific link route gives the prefix
+        check("wlan0 addresses",now[1].addressText(),
+         "10.0.5.7/24, 10.0.9.9/16");
+        check("wlan0 route",now[1].routeText(),"10.0.0.1");
+        check("wlan0 changed cells",now[1].diff(before[1]),
+         LinkStatus.STATE | LinkStatus.ADDRESSES | LinkStatus.TRAFFIC |
+         LinkStatus.ROUTE);
+        check("eth9 changed cells",now[2].diff(before[2]),0);
+
+        System.out.println(failures == 0 ? "All checks passed" :
+         failures + " checks failed");
+        return failures == 0;
+    }
+}
@@ -0,0 +1,160 @@
+package bench;
+
+import java.io.*;
+import java.nio.charset.*;
+import java.nio.file.*;
+import java.util.concurrent.*;
+
+import org.openjdk.jmh.annotations.*;
+
+/**
+ * Throughput of the stages of an edit of dhcpcd.conf on synthetic files
+ * from 50 lines with one interface block to a million lines with a thousand.
+ * Run with -prof gc to get the allocation rate of each stage.
+ *
+ * <pre>
+ * cd bench
+ * mvn package
+ * java -jar target/benchmarks.jar -prof gc
+ * java -jar target/benchmarks.jar ConfBenchmark.parse -p shape=1000000:1000
+ * </pre>
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations=3, time=1)
+@Measurement(iterations=5, time=1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class ConfBenchmark {
+    /** Lines and interface blocks of the file, lines:blocks */
+    @Param({"50:1","1000:10","10000:100","100000:1000","1000000:1000"})
+    public String shape;
+
+    /** The stages on IPConfig's classes */
+    private Stages<Object> stages;
+
+    /** Directory of the files */
+    private Path dir;
+
+    /** The synthetic file */
+    private Path file;
+
+    /** File the serialize stage writes */
+    private Path out;
+
+    /** The parsed file, read by populate */
+    private Object parsed;
+
+    /** The parsed file, changed by edit */
+    private Object editing;
+
+    /** An edited file, written by serialize */
+    private Object edited;
+
+    /** Edit number */
+    private int round;
+
+    @Setup(Level.Trial)
+    public void setup() throws Exception {
+        int colon = shape.indexOf(':');
+        int lines = Integer.parseInt(shape.substring(0,colon));
+        int blocks = Integer.parseInt(shape.substring(colon + 1));
+        stages = Stages.load();
+        dir = Files.createTempDirectory("ipconfig-bench");
+        file = dir.resolve("dhcpcd.conf");
+        out = dir.resolve("dhcpcd.conf.out");
+        generate(file,lines,blocks);
+        parsed = stages.parse(file);
+        editing = stages.parse(file);
+        edited = stages.parse(file);
+        stages.edit(edited,1);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        Files.deleteIfExists(file);
+        Files.deleteIfExists(out);
+        Files.deleteIfExists(dir);
+    }
+
+    /**
+     * Writes a synthetic dhcpcd.conf: the global options of the stock file,
+     * then the interface blocks, each with a static address, routers and
+     * name servers and padded with comments and options to the line count
+     *
+     * @param   path the file to write
+     * @param   lines the number of lines
+     * @param   blocks the number of interface blocks
+     *
+     * @throws  IOException if an I/O error occurs
+     */
+    static void generate(Path path, int lines, int blocks)
+     throws IOException {
+        try (BufferedWriter w = Files.newBufferedWriter(path,
+         StandardCharsets.ISO_8859_1)) {
+            String[] header = {
+                "# A sample configuration for dhcpcd.",
+                "# See dhcpcd.conf(5) for details.",
+                "hostname",
+                "clientid",
+                "persistent",
+                "option rapid_commit",
+                "option domain_name_servers, domain_name, domain_search, " +
+                 "host_name",
+                "option classless_static_routes",
+                "option ntp_servers",
+                "slaac private"
+            };
+            int n = 0;
+            for (String line : header) {
+                if (n == lines)
+                    break;
+                w.write(line);
+                w.newLine();
+                ++n;
+            }
+            int perBlock = Math.max(4,(lines - n) / blocks);
+            for (int b=0; b<blocks; b++) {
+                int subnet = b + 1;
+                String net = "10." + (subnet >> 8) + "." + (subnet & 0xff) + ".";
+                w.write("interface eth" + b);
+                w.newLine();
+                w.write("static ip_address=" + net + "10/24");
+                w.newLine();
+                w.write("static routers=" + net + "1");
+                w.newLine();
+                w.write("static domain_name_servers=" + net + "1 8.8.8.8");
+                w.newLine();
+                n += 4;
+                // the last block takes the lines left over
+                int pad = b == blocks - 1 ? lines - n : perBlock - 4;
+                for (int i=0; i<pad; i++) {
+                    w.write(i % 2 == 0 ? "# padding line " + i :
+                     "option interface_mtu");
+                    w.newLine();
+                }
+                n += pad;
+            }
+        }
+    }
+
+    @Benchmark
+    public Object parse() throws IOException {
+        return stages.parse(file);
+    }
+
+    @Benchmark
+    public int populate() {
+        return stages.populate(parsed);
+    }
+
+    @Benchmark
+    public int edit() {
+        return stages.edit(editing,++round);
+    }
+
+    @Benchmark
+    public long serialize() throws IOException {
+        return stages.serialize(edited,out);
+    }
+}
@@ -0,0 +1,72 @@
+package bench;
+
+import java.io.*;
+import java.nio.file.*;
+
+/**
+ * The stages of an edit of dhcpcd.conf, from reading the file to writing it
+ * back.  IPConfig's classes are in the default package, which code in a
+ * package can't name, so the benchmarks reach them through this interface
+ * and an implementation in the default package that is loaded by name.
+ *
+ * @param   <C> the type of the parsed file
+ */
+public interface Stages<C> {
+    /**
+     * Reads and indexes a file, as loadConfFile does
+     *
+     * @param   file the file
+     *
+     * @return  the parsed file
+     *
+     * @throws  IOException if an I/O error occurs
+     */
+    C parse(Path file) throws IOException;
+
+    /**
+     * Reads the static configuration of every interface, as populateFields
+     * does for the form
+     *
+     * @param   conf the parsed file
+     *
+     * @return  the number of static interfaces
+     */
+    int populate(C conf);
+
+    /**
+     * Stores a new address for every interface, as the Save button does
+     * with the configurations depopulateFields returns
+     *
+     * @param   conf the parsed file, edited in place
+     * @param   round the edit number, alternate rounds store different
+     *          addresses so every edit changes the blocks
+     *
+     * @return  the number of changed interfaces
+     */
+    int edit(C conf, int round);
+
+    /**
+     * Writes a file, as the Save button does
+     *
+     * @param   conf the parsed file
+     * @param   out the file to write
+     *
+     * @return  the number of bytes encoded
+     *
+     * @throws  IOException if an I/O error occurs
+     */
+    long serialize(C conf, Path out) throws IOException;
+
+    /**
+     * Loads the implementation on IPConfig's classes
+     *
+     * @return  the stages
+     *
+     * @throws  ReflectiveOperationException if it can't be loaded
+     */
+    @SuppressWarnings("unchecked")
+    static Stages<Object> load() throws ReflectiveOperationException {
+        return (Stages<Object>)Class.forName("BenchStages")
+         .getDeclaredConstructor().newInstance();
+    }
+}
@@ -0,0 +1,9 @@
+#!/bin/sh
+# Runs the API daemon with a small heap, the serial collector, the C1
+# compiler alone and small code and class areas, so it stays small on a Pi
+JDK=${JDK:-/usr/lib/jvm/jdk8}
+OPTS="-Xms2m -Xmx16m -Xss256k -XX:+UseSerialGC -XX:TieredStopAtLevel=1"
+OPTS="$OPTS -XX:CICompilerCount=1 -XX:ReservedCodeCacheSize=8m"
+OPTS="$OPTS -XX:MaxMetaspaceSize=24m -XX:CompressedClassSpaceSize=8m"
+OPTS="$OPTS -XX:-UsePerfData"
+exec $JDK/bin/java $OPTS -jar IPConfig.jar --daemon "$@"
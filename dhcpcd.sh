@@ -1,2 +1,8 @@
 #!/bin/sh
-/usr/lib/jvm/jdk8/bin/java -jar IPConfig.jar
+JDK=${JDK:-/usr/lib/jvm/jdk8}
+# the C1 compiler alone starts faster and the GUI needs no more
+OPTS="-XX:TieredStopAtLevel=1"
+if [ -f IPConfig.jsa ]; then
+	OPTS="$OPTS -XX:SharedArchiveFile=IPConfig.jsa -Xshare:auto"
+fi
+$JDK/bin/java $OPTS -jar IPConfig.jar "$@"
@@ -1,6 +1,14 @@
 #!/bin/bash
-if /usr/lib/jvm/jdk8/bin/javac IPConfig.java; then
-	/usr/lib/jvm/jdk8/bin/jar cvfe IPConfig.jar IPConfig *.class
+JDK=${JDK:-/usr/lib/jvm/jdk8}
+if $JDK/bin/javac *.java; then
+	$JDK/bin/jar cvfe IPConfig.jar Launcher *.class
 fi
 rm *.class
-/usr/lib/jvm/jdk8/bin/java -jar IPConfig.jar
+# make a class data sharing archive of the classes loaded up to the first
+# frame, needs JDK 13 or later, dhcpcd.sh uses it when it is there
+if [ "$1" = "cds" ]; then
+	$JDK/bin/java -XX:ArchiveClassesAtExit=IPConfig.jsa -jar IPConfig.jar \
+	 --measure-startup
+	exit
+fi
+$JDK/bin/java -jar IPConfig.jar
@@ -0,0 +1,9 @@
+#!/bin/sh
+# Starts the GUI a number of times and reports the time to the first frame
+# of each start, with the same options as dhcpcd.sh
+RUNS=${1:-5}
+i=0
+while [ $i -lt $RUNS ]; do
+	./dhcpcd.sh --measure-startup
+	i=$((i + 1))
+done